@@ -0,0 +1,185 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Compact binary encoding of the DevicesPayloadDO and its DeviceDataDOs, used
+ * in place of Java serialisation for patient uploads.
+ *
+ * The encoding is negotiated using the Payload-Encoding HTTP header - an
+ * upload without the header is Java serialised so that older patient units
+ * continue to work. The concentrator lists the encodings it accepts in the
+ * Accept-Payload-Encoding header of its upload responses and a patient unit
+ * only uses an encoding once it has seen it advertised.
+ *
+ * Version 1 of the encoding is:
+ *
+ * magic "MPB" and version byte 1
+ *
+ * string uploadUuid, varlong uploadedDate (milliseconds + 1, 0 for null)
+ *
+ * varint number of DeviceDataDOs, each as string deviceDataUuid, string
+ * profileId, string payload
+ *
+ * where a string is a varint of its UTF-8 encoded length + 1 (0 for null)
+ * followed by its UTF-8 bytes, and varints are unsigned LEB128.
+ *
+ * @author Richard Robison rrobinson@nhs.net
+ */
+public class DevicesPayloadCodec {
+
+    /**
+     * HTTP header used to declare the encoding of an upload's payload
+     */
+    public static final String HEADER = "Payload-Encoding";
+
+    /**
+     * Payload-Encoding header value for version 1 of the binary encoding
+     */
+    public static final String BINARY_V1 = "medipi-binary-1";
+
+    /**
+     * HTTP response header used to advertise the encodings which are accepted
+     */
+    public static final String ACCEPTHEADER = "Accept-Payload-Encoding";
+
+    /**
+     * Accept-Payload-Encoding header value - comma separated list of the
+     * encodings which can be decoded
+     */
+    public static final String SUPPORTED = BINARY_V1;
+
+    static final byte[] MAGIC = {'M', 'P', 'B'};
+    static final int VERSION = 1;
+
+    private DevicesPayloadCodec() {
+    }
+
+    /**
+     * @param payloadEncoding value of the Payload-Encoding header
+     * @return true if the encoding can be decoded - null represents Java
+     * serialisation
+     */
+    public static boolean isSupported(String payloadEncoding) {
+        return payloadEncoding == null || BINARY_V1.equals(payloadEncoding);
+    }
+
+    /**
+     * @param advertised value of the Accept-Payload-Encoding header - null if
+     * it was not present
+     * @param payloadEncoding encoding to be used
+     * @return true if the encoding is one of those advertised
+     */
+    public static boolean isAdvertised(String advertised, String payloadEncoding) {
+        if (advertised == null || payloadEncoding == null) {
+            return false;
+        }
+        for (String s : advertised.split(",")) {
+            if (s.trim().equals(payloadEncoding)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Encode a devices payload
+     *
+     * @param dp devices payload
+     * @return the binary encoding
+     * @throws IOException
+     */
+    public static byte[] encode(DevicesPayloadDO dp) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(estimateSize(dp));
+        encode(dp, bos);
+        return bos.toByteArray();
+    }
+
+    /**
+     * Encode a devices payload to a stream
+     *
+     * @param dp devices payload
+     * @param out stream to write the encoding to
+     * @throws IOException
+     */
+    public static void encode(DevicesPayloadDO dp, OutputStream out) throws IOException {
+        out.write(MAGIC);
+        out.write(VERSION);
+        writeString(out, dp.getUploadUuid());
+        writeVarLong(out, dp.getUploadedDate() == null ? 0L : dp.getUploadedDate().getTime() + 1L);
+        List<DeviceDataDO> payload = dp.getPayload();
+        int count = payload == null ? 0 : payload.size();
+        writeVarLong(out, count);
+        for (int i = 0; i < count; i++) {
+            DeviceDataDO ddo = payload.get(i);
+            writeString(out, ddo.getDeviceDataUuid());
+            writeString(out, ddo.getProfileId());
+            writeString(out, ddo.getPayload());
+        }
+    }
+
+    /**
+     * Decode a devices payload in full
+     *
+     * @param in stream holding the encoding
+     * @return the devices payload
+     * @throws IOException if the stream is not a supported encoding
+     */
+    public static DevicesPayloadDO decode(InputStream in) throws IOException {
+        DevicesPayloadReader reader = new DevicesPayloadReader(in);
+        DevicesPayloadDO dp = new DevicesPayloadDO(reader.getUploadUuid(), reader.getUploadedDate());
+        DeviceDataDO ddo;
+        while ((ddo = reader.next()) != null) {
+            dp.addPayload(ddo);
+        }
+        return dp;
+    }
+
+    private static int estimateSize(DevicesPayloadDO dp) {
+        int size = 64;
+        if (dp.getPayload() != null) {
+            for (DeviceDataDO ddo : dp.getPayload()) {
+                size += 96 + (ddo.getPayload() == null ? 0 : ddo.getPayload().length());
+            }
+        }
+        return size;
+    }
+
+    static void writeString(OutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.write(0);
+            return;
+        }
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, b.length + 1L);
+        out.write(b);
+    }
+
+    static void writeVarLong(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.model;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Streaming decoder for the binary encoding of a DevicesPayloadDO (see
+ * DevicesPayloadCodec).
+ *
+ * The envelope fields are read when the reader is created and each DeviceDataDO
+ * is then decoded from the stream only when next() is called, so the caller
+ * need not hold all the device data of a payload at once
+ *
+ * @author Richard Robison rrobinson@nhs.net
+ */
+public class DevicesPayloadReader {
+
+    // upper bound on a single string so that a corrupt length cannot exhaust the heap
+    private static final int MAX_STRING_LENGTH = 64 * 1024 * 1024;
+
+    private final InputStream in;
+    private final String uploadUuid;
+    private final Date uploadedDate;
+    private final long count;
+    private long read = 0;
+    private byte[] buffer = new byte[256];
+
+    /**
+     * Constructor - reads and checks the envelope
+     *
+     * @param in stream holding the encoding
+     * @throws IOException if the stream is not a supported encoding
+     */
+    public DevicesPayloadReader(InputStream in) throws IOException {
+        this.in = in;
+        for (byte m : DevicesPayloadCodec.MAGIC) {
+            if (readByte() != m) {
+                throw new IOException("Payload is not in the MediPi binary encoding");
+            }
+        }
+        int version = readByte();
+        if (version != DevicesPayloadCodec.VERSION) {
+            throw new IOException("Unsupported MediPi binary encoding version: " + version);
+        }
+        uploadUuid = readString();
+        long date = readVarLong();
+        uploadedDate = date == 0L ? null : new Date(date - 1L);
+        count = readVarLong();
+    }
+
+    public String getUploadUuid() {
+        return uploadUuid;
+    }
+
+    public Date getUploadedDate() {
+        return uploadedDate;
+    }
+
+    /**
+     * @return the number of DeviceDataDOs in the payload
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Decode the next DeviceDataDO
+     *
+     * @return the next device data or null when all have been read
+     * @throws IOException if the stream is truncated or corrupt
+     */
+    public DeviceDataDO next() throws IOException {
+        if (read == count) {
+            return null;
+        }
+        DeviceDataDO ddo = new DeviceDataDO(readString());
+        ddo.setProfileId(readString());
+        ddo.setPayload(readString());
+        read++;
+        return ddo;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("MediPi binary encoded payload is truncated");
+        }
+        return b;
+    }
+
+    private long readVarLong() throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("MediPi binary encoded payload has a malformed length");
+    }
+
+    private String readString() throws IOException {
+        long l = readVarLong();
+        if (l == 0L) {
+            return null;
+        }
+        if (l - 1L > MAX_STRING_LENGTH) {
+            throw new IOException("MediPi binary encoded payload has a malformed length");
+        }
+        int length = (int) (l - 1L);
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        int off = 0;
+        while (off < length) {
+            int n = in.read(buffer, off, length - off);
+            if (n < 0) {
+                throw new EOFException("MediPi binary encoded payload is truncated");
+            }
+            off += n;
+        }
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+}
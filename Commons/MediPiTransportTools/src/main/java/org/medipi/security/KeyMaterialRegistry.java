@@ -0,0 +1,445 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.security;
+
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide registry of the key material held in JKS keystores and trust
+ * stores.
+ *
+ * Each keystore is opened and decrypted once and the key material derived from
+ * it (signing keys, private keys, trusted certificates) is handed out as
+ * KeyMaterial handles which are shared by every UploadEncryptionAdapter in the
+ * process. The material held by a handle is immutable and may be used from any
+ * thread.
+ *
+ * The keystore files are watched and when one changes it is reloaded and all
+ * the material derived from it is recreated. The new material replaces the
+ * old in each handle only once all of it has been recreated successfully -
+ * should the reload fail (e.g. the file has only been partially written) the
+ * previous material remains in use until the next change.
+ *
+ * Keystores are identified by their canonical path and each is opened with the
+ * password which first loaded it successfully. Errors found while watching
+ * the keystores are passed to the error logger set by the application (its
+ * MediPiLogger) as this library has no logger of its own
+ *
+ * @author Richard Robison rrobinson@nhs.net
+ */
+public class KeyMaterialRegistry {
+
+    private final Map<Path, StoreEntry> stores = new ConcurrentHashMap<>();
+    private final Set<Path> watchedDirectories = new HashSet<>();
+    private WatchService watchService;
+    private volatile BiConsumer<String, String> errorLogger = (location, message) -> Logger.getLogger(location).warning(message);
+
+    private KeyMaterialRegistry() {
+    }
+
+    public static KeyMaterialRegistry getInstance() {
+        return KeyMaterialRegistryHolder.INSTANCE;
+    }
+
+    private static class KeyMaterialRegistryHolder {
+
+        private static final KeyMaterialRegistry INSTANCE = new KeyMaterialRegistry();
+    }
+
+    /**
+     * Set where errors found while watching the keystores are logged
+     *
+     * @param errorLogger called with the location and message of each error
+     * e.g. MediPiLogger::error
+     */
+    public void setErrorLogger(BiConsumer<String, String> errorLogger) {
+        this.errorLogger = errorLogger;
+    }
+
+    /**
+     * Get the signing key held under an alias in a keystore
+     *
+     * @param location location of the keystore
+     * @param alias alias of the signing key
+     * @param password password of the keystore and key
+     * @return handle to the signing key
+     * @throws Exception if the keystore or signing key cannot be loaded
+     */
+    public KeyMaterial<SigningKey> getSigningKey(String location, String alias, String password) throws Exception {
+        return getMaterial(location, password, "signingkey:" + alias, (KeyStore ks) -> {
+            KeyStore.PasswordProtection pp = new KeyStore.PasswordProtection(password.toCharArray());
+            KeyStore.Entry entry = ks.getEntry(alias, pp);
+            if (!(entry instanceof KeyStore.PrivateKeyEntry)) {
+                throw new Exception("Signing key " + alias + " is not present");
+            }
+            X509Certificate signingCert = (X509Certificate) ks.getCertificate(alias);
+            if (signingCert == null) {
+                throw new Exception("Signing certificate is not present");
+            }
+            // We pass the full certificate chain but will only use the signing cert when this arrives at the host concentrator.
+            // The signing cert will be used to walk up the chain in the local trusted store
+            List<com.nimbusds.jose.util.Base64> certChain = new ArrayList<>();
+            for (Certificate cert : ks.getCertificateChain(alias)) {
+                certChain.add(com.nimbusds.jose.util.Base64.encode(cert.getEncoded()));
+            }
+            return new SigningKey((RSAPrivateKey) ((KeyStore.PrivateKeyEntry) entry).getPrivateKey(), signingCert, certChain);
+        });
+    }
+
+    /**
+     * Get the private key held under an alias in a keystore
+     *
+     * @param location location of the keystore
+     * @param alias alias of the private key
+     * @param password password of the keystore and key
+     * @return handle to the private key
+     * @throws Exception if the keystore or private key cannot be loaded
+     */
+    public KeyMaterial<RSAPrivateKey> getPrivateKey(String location, String alias, String password) throws Exception {
+        return getMaterial(location, password, "privatekey:" + alias, (KeyStore ks) -> {
+            KeyStore.PasswordProtection pp = new KeyStore.PasswordProtection(password.toCharArray());
+            KeyStore.Entry entry = ks.getEntry(alias, pp);
+            if (!(entry instanceof KeyStore.PrivateKeyEntry)) {
+                throw new Exception("Private key " + alias + " is not present");
+            }
+            return (RSAPrivateKey) ((KeyStore.PrivateKeyEntry) entry).getPrivateKey();
+        });
+    }
+
+    /**
+     * Get the public key of the certificate held under an alias in a trust
+     * store
+     *
+     * @param location location of the trust store
+     * @param alias alias of the certificate
+     * @param password password of the trust store
+     * @return handle to the public key
+     * @throws Exception if the trust store or certificate cannot be loaded
+     */
+    public KeyMaterial<RSAPublicKey> getTrustedPublicKey(String location, String alias, String password) throws Exception {
+        return getMaterial(location, password, "publickey:" + alias, (KeyStore ks) -> {
+            X509Certificate cert = (X509Certificate) ks.getCertificate(alias);
+            if (cert == null) {
+                throw new Exception("Certificate " + alias + " is not present");
+            }
+            return (RSAPublicKey) cert.getPublicKey();
+        });
+    }
+
+    /**
+     * Get all the certificates of a trust store
+     *
+     * @param location location of the trust store
+     * @param password password of the trust store
+     * @return handle to the trust store's certificates
+     * @throws Exception if the trust store cannot be loaded
+     */
+    public KeyMaterial<TrustStore> getTrustStore(String location, String password) throws Exception {
+        return getMaterial(location, password, "truststore", (KeyStore ks) -> {
+            X509Certificate[] certs = new X509Certificate[ks.size()];
+            int i = 0;
+            Enumeration<String> alias = ks.aliases();
+            while (alias.hasMoreElements()) {
+                certs[i++] = (X509Certificate) ks.getCertificate(alias.nextElement());
+            }
+            return new TrustStore(certs, VerifiedCertificateCache.trustStoreId(certs));
+        });
+    }
+
+    /**
+     * Reload a keystore and all the material derived from it now rather than
+     * waiting for the file to change
+     *
+     * @param location location of the keystore
+     * @throws Exception if the keystore or any of its material cannot be
+     * loaded - the previous material remains in use
+     */
+    public void reload(String location) throws Exception {
+        StoreEntry se = stores.get(canonicalPath(location));
+        if (se != null) {
+            se.reload();
+        }
+    }
+
+    private static Path canonicalPath(String location) throws IOException {
+        return Paths.get(location).toFile().getCanonicalFile().toPath();
+    }
+
+    private <T> KeyMaterial<T> getMaterial(String location, String password, String name, KeyStoreExtractor<T> extractor) throws Exception {
+        Path path = canonicalPath(location);
+        StoreEntry se;
+        synchronized (this) {
+            se = stores.get(path);
+            if (se == null) {
+                se = new StoreEntry(path);
+                stores.put(path, se);
+                watch(path);
+            }
+        }
+        return se.getMaterial(password, name, extractor);
+    }
+
+    private void watch(Path path) {
+        Path dir = path.getParent();
+        if (dir == null || watchedDirectories.contains(dir)) {
+            return;
+        }
+        try {
+            if (watchService == null) {
+                watchService = FileSystems.getDefault().newWatchService();
+                Thread t = new Thread(this::watchLoop, "medipi-keymaterial-watch");
+                t.setDaemon(true);
+                t.start();
+            }
+            dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.add(dir);
+        } catch (IOException e) {
+            // without a watch the keystore is only reloaded on request
+            errorLogger.accept(KeyMaterialRegistry.class.getName() + ".error", "Unable to watch keystore directory " + dir + " for changes: " + e.getLocalizedMessage());
+        }
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                StoreEntry se = stores.get(changed);
+                if (se != null) {
+                    try {
+                        se.reload();
+                    } catch (Exception e) {
+                        errorLogger.accept(KeyMaterialRegistry.class.getName() + ".error", "Unable to reload keystore " + changed + " - the previous key material remains in use: " + e.getLocalizedMessage());
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+
+    private static KeyStore load(Path path, String password) throws Exception {
+        KeyStore store = KeyStore.getInstance("JKS");
+        try (InputStream in = Files.newInputStream(path)) {
+            store.load(in, password.toCharArray());
+        }
+        return store;
+    }
+
+    /**
+     * A keystore file and the material which has been derived from it
+     */
+    private static class StoreEntry {
+
+        private final Path path;
+        // password which loaded the keystore - null until it has been loaded
+        private String password;
+        private KeyStore store;
+        private final Map<String, KeyMaterial<?>> materials = new HashMap<>();
+
+        private StoreEntry(Path path) {
+            this.path = path;
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized <T> KeyMaterial<T> getMaterial(String password, String name, KeyStoreExtractor<T> extractor) throws Exception {
+            if (store == null) {
+                store = load(path, password);
+                this.password = password;
+            } else if (!MessageDigest.isEqual(this.password.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8))) {
+                // the material is only handed out to callers who could have opened the keystore themselves
+                throw new Exception("Keystore password is incorrect: " + path);
+            }
+            KeyMaterial<T> km = (KeyMaterial<T>) materials.get(name);
+            if (km == null) {
+                km = new KeyMaterial<>(extractor, extractor.extract(store));
+                materials.put(name, km);
+            }
+            return km;
+        }
+
+        private synchronized void reload() throws Exception {
+            if (store == null) {
+                return;
+            }
+            KeyStore reloaded = load(path, password);
+            // derive all the new material before any of it is replaced
+            Map<KeyMaterial<?>, Object> values = new HashMap<>();
+            for (KeyMaterial<?> km : materials.values()) {
+                values.put(km, km.extractor.extract(reloaded));
+            }
+            store = reloaded;
+            for (Map.Entry<KeyMaterial<?>, Object> e : values.entrySet()) {
+                e.getKey().replace(e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Function to derive key material from a loaded keystore
+     *
+     * @param <T> type of the key material
+     */
+    @FunctionalInterface
+    private interface KeyStoreExtractor<T> {
+
+        T extract(KeyStore ks) throws Exception;
+    }
+
+    /**
+     * Handle to an item of key material. The current material is returned by
+     * get() and is replaced atomically when its keystore is reloaded
+     *
+     * @param <T> type of the key material
+     */
+    public static final class KeyMaterial<T> {
+
+        private final KeyStoreExtractor<T> extractor;
+        private volatile T value;
+
+        private KeyMaterial(KeyStoreExtractor<T> extractor, T value) {
+            this.extractor = extractor;
+            this.value = value;
+        }
+
+        /**
+         * Create a handle to key material which does not come from a keystore
+         * (e.g. a certificate supplied as PEM) and so is never reloaded
+         *
+         * @param <T> type of the key material
+         * @param value the key material
+         * @return handle to the key material
+         */
+        public static <T> KeyMaterial<T> of(T value) {
+            return new KeyMaterial<>(null, value);
+        }
+
+        /**
+         * @return the current key material
+         */
+        public T get() {
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void replace(Object newValue) {
+            T old = value;
+            value = (T) newValue;
+            if (old instanceof TrustStore && !((TrustStore) old).getId().equals(((TrustStore) newValue).getId())) {
+                // certificates validated against the previous contents must be validated again
+                VerifiedCertificateCache.getInstance().invalidate(((TrustStore) old).getId());
+            }
+        }
+    }
+
+    /**
+     * Immutable signing key with its certificate chain and signer
+     */
+    public static final class SigningKey {
+
+        private final RSAPrivateKey privateKey;
+        private final X509Certificate certificate;
+        private final List<com.nimbusds.jose.util.Base64> certChain;
+        private final JWSSigner signer;
+
+        private SigningKey(RSAPrivateKey privateKey, X509Certificate certificate, List<com.nimbusds.jose.util.Base64> certChain) {
+            this.privateKey = privateKey;
+            this.certificate = certificate;
+            this.certChain = Collections.unmodifiableList(certChain);
+            this.signer = new RSASSASigner(privateKey);
+        }
+
+        public RSAPrivateKey getPrivateKey() {
+            return privateKey;
+        }
+
+        public X509Certificate getCertificate() {
+            return certificate;
+        }
+
+        public List<com.nimbusds.jose.util.Base64> getCertChain() {
+            return certChain;
+        }
+
+        public JWSSigner getSigner() {
+            return signer;
+        }
+    }
+
+    /**
+     * Immutable set of trusted certificates with an identity for their
+     * contents
+     */
+    public static final class TrustStore {
+
+        private final X509Certificate[] certificates;
+        private final String id;
+
+        private TrustStore(X509Certificate[] certificates, String id) {
+            this.certificates = certificates;
+            this.id = id;
+        }
+
+        /**
+         * @return a copy of the trusted certificates
+         */
+        public X509Certificate[] getCertificates() {
+            return certificates.clone();
+        }
+
+        public String getId() {
+            return id;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.security;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters of the compression applied to signed payloads before
+ * they are symmetrically encrypted.
+ *
+ * Every payload encrypted or decrypted by an UploadEncryptionAdapter is
+ * counted, with the size of the signed payload and the size of the cipher
+ * text actually sent, so that the compression ratio achieved on the wire can
+ * be reported
+ *
+ * @author Richard Robison rrobinson@nhs.net
+ */
+public class PayloadCompressionMetrics {
+
+    private final AtomicLong payloads = new AtomicLong();
+    private final AtomicLong compressedPayloads = new AtomicLong();
+    private final AtomicLong signedBytes = new AtomicLong();
+    private final AtomicLong cipherBytes = new AtomicLong();
+
+    private PayloadCompressionMetrics() {
+    }
+
+    public static PayloadCompressionMetrics getInstance() {
+        return PayloadCompressionMetricsHolder.INSTANCE;
+    }
+
+    private static class PayloadCompressionMetricsHolder {
+
+        private static final PayloadCompressionMetrics INSTANCE = new PayloadCompressionMetrics();
+    }
+
+    /**
+     * Record a payload
+     *
+     * @param compressed whether the payload was compressed
+     * @param signedLength length of the signed payload in bytes
+     * @param cipherLength length of the cipher text in bytes
+     */
+    public void record(boolean compressed, long signedLength, long cipherLength) {
+        payloads.incrementAndGet();
+        if (compressed) {
+            compressedPayloads.incrementAndGet();
+        }
+        signedBytes.addAndGet(signedLength);
+        cipherBytes.addAndGet(cipherLength);
+    }
+
+    /**
+     * @return number of payloads recorded
+     */
+    public long getPayloads() {
+        return payloads.get();
+    }
+
+    /**
+     * @return number of payloads which were compressed
+     */
+    public long getCompressedPayloads() {
+        return compressedPayloads.get();
+    }
+
+    /**
+     * @return total size of the signed payloads in bytes
+     */
+    public long getSignedBytes() {
+        return signedBytes.get();
+    }
+
+    /**
+     * @return total size of the cipher text in bytes
+     */
+    public long getCipherBytes() {
+        return cipherBytes.get();
+    }
+
+    /**
+     * @return ratio of the cipher text size to the signed payload size over
+     * all the payloads recorded - 1.0 if none have been recorded
+     */
+    public double getRatio() {
+        long signed = signedBytes.get();
+        return signed == 0 ? 1.0 : (double) cipherBytes.get() / signed;
+    }
+}
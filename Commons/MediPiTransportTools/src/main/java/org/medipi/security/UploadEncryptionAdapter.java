@@ -15,6 +15,7 @@
  */
 package org.medipi.security;
 
+import com.nimbusds.jose.CompressionAlgorithm;
 import com.nimbusds.jose.EncryptionMethod;
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWEAlgorithm;
@@ -23,20 +24,18 @@ import com.nimbusds.jose.JWEObject;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.JWSHeader;
 import com.nimbusds.jose.JWSObject;
-import com.nimbusds.jose.JWSSigner;
 import com.nimbusds.jose.JWSVerifier;
 import com.nimbusds.jose.Payload;
 import com.nimbusds.jose.crypto.AESDecrypter;
 import com.nimbusds.jose.crypto.AESEncrypter;
 import com.nimbusds.jose.crypto.RSADecrypter;
 import com.nimbusds.jose.crypto.RSAEncrypter;
-import com.nimbusds.jose.crypto.RSASSASigner;
 import com.nimbusds.jose.crypto.RSASSAVerifier;
+import com.nimbusds.jose.util.Base64URL;
 import com.nimbusds.jwt.EncryptedJWT;
 import com.nimbusds.jwt.JWTClaimsSet;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
@@ -47,7 +46,6 @@ import java.io.StringReader;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PublicKey;
@@ -66,16 +64,19 @@ import java.security.cert.X509Certificate;
 import java.security.interfaces.RSAPrivateKey;
 import java.security.interfaces.RSAPublicKey;
 import java.text.ParseException;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.Enumeration;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
+import net.minidev.json.JSONObject;
 import org.apache.commons.codec.binary.Base64;
+import org.medipi.model.DevicesPayloadCodec;
+import org.medipi.model.DevicesPayloadDO;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 
 /**
@@ -84,12 +85,14 @@ import org.medipi.model.EncryptedAndSignedUploadDO;
  * perform encryption and signing. This implements: Signing JWS RFC 7515
  * Encryption JWE RFC 7516
  *
+ * Key material is obtained from the process-wide KeyMaterialRegistry so that
+ * each keystore is only loaded once however many adapters are initialised, and
+ * an adapter uses the current material whenever a keystore is reloaded
+ *
  * @author Richard Robison rrobinson@nhs.net
  */
 public class UploadEncryptionAdapter {
 
-    private List<com.nimbusds.jose.util.Base64> certChain;
-
     /**
      * Client mode encrypts and signs the payload - used for sending data from
      * the patient device to the concentrator
@@ -120,12 +123,34 @@ public class UploadEncryptionAdapter {
     private int mode;
     private CertificateDefinitions cd;
 
-    private RSAPrivateKey signPrivateKey;
-    private X509Certificate[] signTrustCerts;
+    private final KeyMaterialRegistry keyMaterialRegistry = KeyMaterialRegistry.getInstance();
+    private KeyMaterialRegistry.KeyMaterial<KeyMaterialRegistry.SigningKey> signingKey;
+    private KeyMaterialRegistry.KeyMaterial<KeyMaterialRegistry.TrustStore> signTrustStore;
+    private final VerifiedCertificateCache verifiedCertificateCache = VerifiedCertificateCache.getInstance();
 
-    private RSAPublicKey encryptPublicKey;
-    private RSAPrivateKey encryptPrivateKey;
+    private KeyMaterialRegistry.KeyMaterial<RSAPublicKey> encryptPublicKey;
+    private KeyMaterialRegistry.KeyMaterial<RSAPrivateKey> encryptPrivateKey;
     private static final int AESKEYSIZE = 256;
+    private final PayloadCompressionMetrics compressionMetrics = PayloadCompressionMetrics.getInstance();
+    private int compressionThreshold = -1;
+    private boolean acceptCompression = false;
+    private long maxInflatedSize = DEFAULTMAXINFLATEDSIZE;
+
+    /**
+     * Default maximum size in bytes to which a compressed payload may inflate
+     */
+    public static final long DEFAULTMAXINFLATEDSIZE = 10485760;
+
+    /**
+     * HTTP header used by the concentrator to advertise that it accepts
+     * compressed payloads
+     */
+    public static final String COMPRESSIONHEADER = "Payload-Compression";
+
+    /**
+     * Payload-Compression header value for DEFLATE compression
+     */
+    public static final String DEFLATE = CompressionAlgorithm.DEF.getName();
 
     /**
      * Constructor
@@ -202,25 +227,8 @@ public class UploadEncryptionAdapter {
             if (signAlias != null) {
                 if (signPassword != null) {
                     try {
-                        KeyStore.PasswordProtection pp = new KeyStore.PasswordProtection(signPassword.toCharArray());
-                        KeyStore sks = KeyStore.getInstance("JKS");
-                        FileInputStream fis = new FileInputStream(signKey);
-                        sks.load(fis, signPassword.toCharArray());
-                        signPrivateKey = (RSAPrivateKey) (((KeyStore.PrivateKeyEntry) sks.getEntry(signAlias, pp)).getPrivateKey());
-                        // We pass the full certificate chain but will only use the signing cert when this arrives at the host concentrator.
-                        // The signing cert will be used to walk up the chain in the local trusted store
-                        Certificate[] c = sks.getCertificateChain(signAlias);
-                        certChain = new ArrayList<>();
-                        for (Certificate cert : c) {
-                            X509Certificate xcert = (X509Certificate) cert;
-                            com.nimbusds.jose.util.Base64 b64 = com.nimbusds.jose.util.Base64.encode(xcert.getEncoded());
-                            certChain.add(b64);
-                        }
-                        X509Certificate signingCert = (X509Certificate) sks.getCertificate(signAlias);
-                        RSAPublicKey signPublicKey = (RSAPublicKey) signingCert.getPublicKey();
-                        if (signingCert == null) {
-                            return "Signing certificate is not present";
-                        }
+                        signingKey = keyMaterialRegistry.getSigningKey(signKey, signAlias, signPassword);
+                        X509Certificate signingCert = signingKey.get().getCertificate();
                         try {
                             signingCert.checkValidity();
                             return null;
@@ -253,7 +261,7 @@ public class UploadEncryptionAdapter {
                 CertificateFactory cf = CertificateFactory.getInstance("X.509");
                 Certificate cert = cf.generateCertificate(stream);
                 X509Certificate x509cert = (X509Certificate) cert;
-                encryptPublicKey = (RSAPublicKey) x509cert.getPublicKey();
+                encryptPublicKey = KeyMaterialRegistry.KeyMaterial.of((RSAPublicKey) x509cert.getPublicKey());
             } else {
                 String truststoreLocation = cd.getENCRYPTTRUSTSTORELOCATION();
                 String truststorePass = cd.getENCRYPTTRUSTSTOREPASSWORD();
@@ -261,9 +269,7 @@ public class UploadEncryptionAdapter {
                 if (truststoreLocation != null) {
                     if (truststorePass != null) {
                         if (truststoreAlias != null) {
-                            KeyStore trustStore = loadStore(truststoreLocation, truststorePass);
-                            X509Certificate trustcert = (X509Certificate) trustStore.getCertificate(truststoreAlias);
-                            encryptPublicKey = (RSAPublicKey) trustcert.getPublicKey();
+                            encryptPublicKey = keyMaterialRegistry.getTrustedPublicKey(truststoreLocation, truststoreAlias, truststorePass);
                         } else {
                             return "Encryption truststore alias not set";
                         }
@@ -287,17 +293,7 @@ public class UploadEncryptionAdapter {
             String truststorePass = cd.getSIGNTRUSTSTOREPASSWORD();
             if (truststoreLocation != null) {
                 if (truststorePass != null) {
-
-                    KeyStore trustStore = loadStore(truststoreLocation, truststorePass);
-
-                    signTrustCerts = new X509Certificate[trustStore.size()];
-                    int i = 0;
-                    Enumeration<String> alias = trustStore.aliases();
-
-                    while (alias.hasMoreElements()) {
-                        signTrustCerts[i++] = (X509Certificate) trustStore.getCertificate(alias
-                                .nextElement());
-                    }
+                    signTrustStore = keyMaterialRegistry.getTrustStore(truststoreLocation, truststorePass);
                 } else {
                     return "Signature truststore password not set";
                 }
@@ -321,11 +317,7 @@ public class UploadEncryptionAdapter {
                 if (encryptPassword != null) {
                     try {
                         //THIS IS FOR THE SERVER DECRYPT
-                        KeyStore.PasswordProtection pp = new KeyStore.PasswordProtection(encryptPassword.toCharArray());
-                        KeyStore sks = KeyStore.getInstance("JKS");
-                        FileInputStream fis = new FileInputStream(encryptKey);
-                        sks.load(fis, encryptPassword.toCharArray());
-                        encryptPrivateKey = (RSAPrivateKey) (((KeyStore.PrivateKeyEntry) sks.getEntry(encryptAlias, pp)).getPrivateKey());
+                        encryptPrivateKey = keyMaterialRegistry.getPrivateKey(encryptKey, encryptAlias, encryptPassword);
                         return null;
                     } catch (Exception e) {
                         return "error loading Encryption certificate: " + e.getLocalizedMessage();
@@ -341,10 +333,37 @@ public class UploadEncryptionAdapter {
         }
     }
 
-    private KeyStore loadStore(String trustStoreFile, String password) throws Exception {
-        KeyStore store = KeyStore.getInstance("JKS");
-        store.load(new FileInputStream(trustStoreFile), password.toCharArray());
-        return store;
+    /**
+     * Set the size of signed payload at and above which the payload is
+     * compressed using DEFLATE before it is symmetrically encrypted. The
+     * compression is declared in the JWE header. This must only be set once
+     * the recipient has advertised that it accepts compressed payloads
+     *
+     * @param compressionThreshold size in bytes or -1 never to compress
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Set whether incoming compressed payloads are accepted. Compressed
+     * payloads are refused unless this is set
+     *
+     * @param acceptCompression true to accept compressed payloads
+     */
+    public void setAcceptCompression(boolean acceptCompression) {
+        this.acceptCompression = acceptCompression;
+    }
+
+    /**
+     * Set the maximum size to which an incoming compressed payload may
+     * inflate. A compressed payload is inflated before its signature can be
+     * verified, so a payload which would inflate beyond this is refused
+     *
+     * @param maxInflatedSize size in bytes
+     */
+    public void setMaxInflatedSize(long maxInflatedSize) {
+        this.maxInflatedSize = maxInflatedSize;
     }
 
     /**
@@ -363,19 +382,7 @@ public class UploadEncryptionAdapter {
                 out = new ObjectOutputStream(bos);
                 out.writeObject(dp);
                 byte[] yourBytes = bos.toByteArray();
-                String signedPayload = signPayload(yourBytes);
-                KeyGenerator kgen;
-                try {
-                    kgen = KeyGenerator.getInstance("AES");
-                    kgen.init(AESKEYSIZE);
-                } catch (NoSuchAlgorithmException ex) {
-                    throw new Exception("encryption algorithm is unrecognised. " + ex.getLocalizedMessage());
-                }
-                SecretKey key = kgen.generateKey();
-                EncryptedAndSignedUploadDO easu = new EncryptedAndSignedUploadDO(UUID.randomUUID().toString());
-                String aesEncryptedPayload = symmetricallyEncrypt(signedPayload, key);
-                String rsaEncryptedSharedKey = encryptSharedKey(key);
-                return new EncryptedAndSignedUploadDO(UUID.randomUUID().toString(), rsaEncryptedSharedKey, aesEncryptedPayload);
+                return encryptAndSignBytes(yourBytes);
 
             } finally {
                 try {
@@ -397,6 +404,44 @@ public class UploadEncryptionAdapter {
         }
     }
 
+    /**
+     * Method to encryptAndSign a devices payload using a negotiated encoding
+     *
+     * @param dp devices payload to be encrypted
+     * @param payloadEncoding encoding of the payload as sent in the
+     * Payload-Encoding header - null for Java serialisation
+     * @return Encrypted and signed representation of the data payload
+     * @throws Exception
+     */
+    public EncryptedAndSignedUploadDO encryptAndSign(DevicesPayloadDO dp, String payloadEncoding) throws Exception {
+        if (payloadEncoding == null) {
+            return encryptAndSign(dp);
+        } else if (DevicesPayloadCodec.BINARY_V1.equals(payloadEncoding)) {
+            try {
+                return encryptAndSignBytes(DevicesPayloadCodec.encode(dp));
+            } catch (IOException ex) {
+                throw new Exception("cannot encode payload for transmission ." + ex.getLocalizedMessage());
+            }
+        } else {
+            throw new Exception("unsupported payload encoding: " + payloadEncoding);
+        }
+    }
+
+    private EncryptedAndSignedUploadDO encryptAndSignBytes(byte[] yourBytes) throws Exception {
+        String signedPayload = signPayload(yourBytes);
+        KeyGenerator kgen;
+        try {
+            kgen = KeyGenerator.getInstance("AES");
+            kgen.init(AESKEYSIZE);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new Exception("encryption algorithm is unrecognised. " + ex.getLocalizedMessage());
+        }
+        SecretKey key = kgen.generateKey();
+        String aesEncryptedPayload = symmetricallyEncrypt(signedPayload, key);
+        String rsaEncryptedSharedKey = encryptSharedKey(key);
+        return new EncryptedAndSignedUploadDO(UUID.randomUUID().toString(), rsaEncryptedSharedKey, aesEncryptedPayload);
+    }
+
     /**
      * Method to sign a payload
      *
@@ -406,16 +451,16 @@ public class UploadEncryptionAdapter {
      */
     public String signPayload(byte[] pay) throws Exception {
         try {
-            // Create RSA-signer with the private key
-            JWSSigner signer = new RSASSASigner(signPrivateKey);
+            // The RSA-signer and certificate chain are shared by all adapters using the signing key
+            KeyMaterialRegistry.SigningKey sk = signingKey.get();
 
             // Prepare JWS object with simple string as payload
             JWSHeader.Builder builder = new JWSHeader.Builder(JWSAlgorithm.RS256);
-            builder.x509CertChain(certChain);
+            builder.x509CertChain(sk.getCertChain());
             JWSObject jwsObject = new JWSObject(builder.build(), new Payload(pay));
 
             // Compute the RSA signature
-            jwsObject.sign(signer);
+            jwsObject.sign(sk.getSigner());
 
             return jwsObject.serialize();
         } catch (JOSEException ex) {
@@ -427,16 +472,21 @@ public class UploadEncryptionAdapter {
         try {
             // ENCRYPT PAYLOAD USING AES SHARED KEY
 
-            // Create the header
-            JWEHeader skHeader = new JWEHeader(JWEAlgorithm.A256KW, EncryptionMethod.A256GCM);
+            // Create the header - small payloads are not worth compressing
+            boolean compress = compressionThreshold >= 0 && signedPayload.length() >= compressionThreshold;
+            JWEHeader.Builder skHeader = new JWEHeader.Builder(JWEAlgorithm.A256KW, EncryptionMethod.A256GCM);
+            if (compress) {
+                skHeader.compressionAlgorithm(CompressionAlgorithm.DEF);
+            }
 
             // Set the plain text
             Payload payload = new Payload(signedPayload);
 
-            // Create the JWE object and encryptAndSign it
-            JWEObject jweObject = new JWEObject(skHeader, payload);
+            // Create the JWE object and encryptAndSign it - the payload is deflated by the encrypter
+            JWEObject jweObject = new JWEObject(skHeader.build(), payload);
 
             jweObject.encrypt(new AESEncrypter(key.getEncoded()));
+            compressionMetrics.record(compress, signedPayload.length(), decodedLength(jweObject.getCipherText()));
 
             // Serialise to compact JOSE form...
             return jweObject.serialize();
@@ -455,8 +505,6 @@ public class UploadEncryptionAdapter {
                     .subject(new String(encryptedKey, StandardCharsets.UTF_8))
                     .build();
 
-            System.out.println(claimsSet.toJSONObject());
-
             // Request JWT encrypted with RSA-OAEP-256 and 256-bit AES/GCM
             JWEHeader header = new JWEHeader(JWEAlgorithm.RSA_OAEP_256, EncryptionMethod.A256GCM);
 
@@ -464,7 +512,7 @@ public class UploadEncryptionAdapter {
             EncryptedJWT jwt = new EncryptedJWT(header, claimsSet);
 
             // Create an encrypter with the specified public RSA key
-            RSAEncrypter encrypter = new RSAEncrypter(encryptPublicKey);
+            RSAEncrypter encrypter = new RSAEncrypter(encryptPublicKey.get());
 
             // Do the actual encryption
             jwt.encrypt(encrypter);
@@ -484,6 +532,36 @@ public class UploadEncryptionAdapter {
      * @throws Exception
      */
     public Object decryptAndVerify(EncryptedAndSignedUploadDO easu) throws Exception {
+        return serializePayload(decryptAndVerifySignature(easu));
+    }
+
+    /**
+     * Method to decrypt and verify the signature of a devices payload sent
+     * using a negotiated encoding. The binary encoding is decoded directly from
+     * the verified payload bytes
+     *
+     * @param easu Encrypted and signed devices payload
+     * @param payloadEncoding encoding of the payload as received in the
+     * Payload-Encoding header - null for Java serialisation
+     * @return devices payload in the clear
+     * @throws Exception
+     */
+    public DevicesPayloadDO decryptAndVerify(EncryptedAndSignedUploadDO easu, String payloadEncoding) throws Exception {
+        if (payloadEncoding == null) {
+            return (DevicesPayloadDO) decryptAndVerify(easu);
+        } else if (DevicesPayloadCodec.BINARY_V1.equals(payloadEncoding)) {
+            JWSObject jwsObject = decryptAndVerifySignature(easu);
+            try {
+                return DevicesPayloadCodec.decode(new ByteArrayInputStream(jwsObject.getPayload().toBytes()));
+            } catch (IOException e) {
+                throw new Exception("Unable to parse signed and encrypted payload. " + e.getLocalizedMessage());
+            }
+        } else {
+            throw new Exception("unsupported payload encoding: " + payloadEncoding);
+        }
+    }
+
+    private JWSObject decryptAndVerifySignature(EncryptedAndSignedUploadDO easu) throws Exception {
 
         // Decrypt assymmetric key
         EncryptedJWT jwt;
@@ -494,7 +572,7 @@ public class UploadEncryptionAdapter {
         }
 
         // Create a decrypter with the specified private RSA key
-        RSADecrypter decrypter = new RSADecrypter(encryptPrivateKey);
+        RSADecrypter decrypter = new RSADecrypter(encryptPrivateKey.get());
 
         try {
             // Decrypt
@@ -516,28 +594,82 @@ public class UploadEncryptionAdapter {
             throw new Exception("cannot understand incoming encrypted key or cipherdata. " + ex.getLocalizedMessage());
         }
 
+        JWEHeader header = jweObject.getHeader();
+        boolean compressed = header.getCompressionAlgorithm() != null;
+        if (compressed && !CompressionAlgorithm.DEF.equals(header.getCompressionAlgorithm())) {
+            throw new Exception("unsupported payload compression: " + header.getCompressionAlgorithm());
+        }
+        if (compressed && !acceptCompression) {
+            throw new Exception("compressed payloads are not accepted");
+        }
+        byte[] plainText;
         try {
-            jweObject.decrypt(new AESDecrypter(sharedKey));
-        } catch (JOSEException ex) {
+            // The decrypter would inflate a compressed payload without any
+            // limit - decrypt using the same header (so that it is still
+            // authenticated) without the zip parameter and inflate it here
+            JWEHeader contentHeader = header;
+            if (compressed) {
+                JSONObject json = header.toJSONObject();
+                json.remove("zip");
+                contentHeader = JWEHeader.parse(json, header.toBase64URL());
+            }
+            plainText = new AESDecrypter(sharedKey).decrypt(contentHeader, jweObject.getEncryptedKey(), jweObject.getIV(), jweObject.getCipherText(), jweObject.getAuthTag());
+        } catch (JOSEException | ParseException ex) {
             throw new Exception("cannot decrypt incoming payload. " + ex.getLocalizedMessage());
         }
+        if (compressed) {
+            plainText = inflate(plainText, maxInflatedSize);
+        }
+        String signedPayload = new String(plainText, StandardCharsets.UTF_8);
+        compressionMetrics.record(compressed, signedPayload.length(), decodedLength(jweObject.getCipherText()));
         JWSObject jwsObject;
         try {
-            jwsObject = JWSObject.parse(jweObject.getPayload().toString());
+            jwsObject = JWSObject.parse(signedPayload);
         } catch (ParseException ex) {
             throw new Exception("cannot understand incoming payload. " + ex.getLocalizedMessage());
         }
 
         if (verifySignature(jwsObject)) {
-            return serializePayload(jwsObject);
+            return jwsObject;
         } else {
             throw new Exception("Signature does not verify.");
         }
 
     }
 
+    // Inflate a DEFLATE compressed payload, refusing it if it inflates beyond
+    // the maximum size
+    private static byte[] inflate(byte[] compressed, long maxSize) throws Exception {
+        Inflater inflater = new Inflater(true);
+        try (InputStream in = new InflaterInputStream(new ByteArrayInputStream(compressed), inflater)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(maxSize, compressed.length * 4L));
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                if (out.size() + n > maxSize) {
+                    throw new Exception("compressed payload inflates beyond the maximum of " + maxSize + " bytes");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (IOException ex) {
+            throw new Exception("cannot inflate incoming payload. " + ex.getLocalizedMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Length of the bytes encoded by an unpadded base64url value without
+    // decoding it
+    private static int decodedLength(Base64URL value) {
+        return value.toString().length() * 3 / 4;
+    }
+
     /**
-     * Method to verify the signature of a JWSObject
+     * Method to verify the signature of a JWSObject. Signing certificates whose
+     * chain has been validated against the signature trust store are held in
+     * the VerifiedCertificateCache so that the chain is not re-parsed and
+     * re-validated for every message
      *
      * @param jwsObject signature to be verified
      * @return boolean pass/fail of verification
@@ -548,24 +680,26 @@ public class UploadEncryptionAdapter {
         // Verify the Signature
 
         List<com.nimbusds.jose.util.Base64> certs = jwsObject.getHeader().getX509CertChain();
-        RSAPublicKey signPublicKey = null;
-        X509Certificate clientCert = null;
-        for (com.nimbusds.jose.util.Base64 b : certs) {
+        if (certs == null || certs.isEmpty()) {
+            throw new Exception("No valid patient signing certificate was recevied with the signature");
+        }
+        // Here we assume that the first certificate will be the cert used for signing
+        byte[] encodedCert = certs.get(0).decode();
+        String fingerprint = VerifiedCertificateCache.fingerprint(encodedCert);
+        KeyMaterialRegistry.TrustStore trustStore = signTrustStore.get();
+        VerifiedCertificateCache.VerifiedCertificate verified = verifiedCertificateCache.get(trustStore.getId(), fingerprint);
+        if (verified == null) {
             CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-            InputStream in = new ByteArrayInputStream(b.decode());
-            // Here we assume that the first certificate will be the cert used for signing
-            if (signPublicKey == null) {
-                clientCert = (X509Certificate) certFactory.generateCertificate(in);
-                signPublicKey = (RSAPublicKey) clientCert.getPublicKey();
+            X509Certificate clientCert = (X509Certificate) certFactory.generateCertificate(new ByteArrayInputStream(encodedCert));
+            if (clientCert.getPublicKey() == null) {
+                throw new Exception("No valid patient signing certificate was recevied with the signature");
+            } else if (validateKeyChain(clientCert, trustStore.getCertificates())) {
+                verified = verifiedCertificateCache.put(trustStore.getId(), fingerprint, clientCert, new RSASSAVerifier((RSAPublicKey) clientCert.getPublicKey()));
             }
         }
-        if (signPublicKey == null) {
-            throw new Exception("No valid patient signing certificate was recevied with the signature");
-        } else if (validateKeyChain(clientCert, signTrustCerts)) {
+        if (verified != null) {
             try {
-                JWSVerifier verifier = new RSASSAVerifier(signPublicKey);
-                if (jwsObject.verify(verifier)) {
-                    System.out.println(jwsObject.getPayload().toString());
+                if (jwsObject.verify(verified.getVerifier())) {
                     return true;
                 } else {
                     throw new Exception("Signature does not verify.");
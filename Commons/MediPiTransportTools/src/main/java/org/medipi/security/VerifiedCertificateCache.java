@@ -0,0 +1,222 @@
+/*
+ Copyright 2016  Richard Robinson @ HSCIC <rrobinson@hscic.gov.uk, rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.security;
+
+import com.nimbusds.jose.JWSVerifier;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of signing certificates which have been successfully validated
+ * against a signature trust store.
+ *
+ * Patient units and clinical systems sign with the same certificate for long
+ * periods so the parsing of the certificate, the validation of its chain and
+ * the creation of its verifier only need to be done once. Entries are keyed by
+ * the SHA-256 fingerprint of the trust store's certificates and the SHA-256
+ * fingerprint of the signing certificate - so an entry can only be used with
+ * the trust store contents it was validated against. An entry expires at the
+ * earlier of the certificate's notAfter date and the configured time to live.
+ * The cache is bounded and the least recently used entries are evicted first.
+ *
+ * The cache is shared by all UploadEncryptionAdapter instances in the JVM
+ *
+ * @author Richard Robison rrobinson@nhs.net
+ */
+public class VerifiedCertificateCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+    private static final long DEFAULT_TIME_TO_LIVE = 24L * 60L * 60L * 1000L;
+
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long timeToLive = DEFAULT_TIME_TO_LIVE;
+    private final LinkedHashMap<String, VerifiedCertificate> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private VerifiedCertificateCache() {
+    }
+
+    public static VerifiedCertificateCache getInstance() {
+        return VerifiedCertificateCacheHolder.INSTANCE;
+    }
+
+    private static class VerifiedCertificateCacheHolder {
+
+        private static final VerifiedCertificateCache INSTANCE = new VerifiedCertificateCache();
+    }
+
+    /**
+     * Set the bounds of the cache
+     *
+     * @param maxEntries maximum number of verified certificates to be held
+     * @param timeToLive maximum time in milliseconds for which a validation is
+     * trusted before the chain is validated again
+     */
+    public synchronized void setLimits(int maxEntries, long timeToLive) {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        evict();
+    }
+
+    /**
+     * Return a previously verified certificate
+     *
+     * @param trustStoreId identity of the trust store the certificate was
+     * validated against
+     * @param fingerprint fingerprint of the signing certificate
+     * @return the verified certificate or null if it is not cached or has
+     * expired
+     */
+    public synchronized VerifiedCertificate get(String trustStoreId, String fingerprint) {
+        String key = trustStoreId + ":" + fingerprint;
+        VerifiedCertificate vc = entries.get(key);
+        if (vc != null && vc.getExpiry() <= System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return vc;
+    }
+
+    /**
+     * Add a certificate whose chain has been successfully validated
+     *
+     * @param trustStoreId identity of the trust store the certificate was
+     * validated against
+     * @param fingerprint fingerprint of the signing certificate
+     * @param certificate the signing certificate
+     * @param verifier verifier created from the certificate's public key
+     * @return the cached entry
+     */
+    public synchronized VerifiedCertificate put(String trustStoreId, String fingerprint, X509Certificate certificate, JWSVerifier verifier) {
+        long expiry = Math.min(certificate.getNotAfter().getTime(), System.currentTimeMillis() + timeToLive);
+        VerifiedCertificate vc = new VerifiedCertificate((RSAPublicKey) certificate.getPublicKey(), verifier, expiry);
+        entries.put(trustStoreId + ":" + fingerprint, vc);
+        evict();
+        return vc;
+    }
+
+    /**
+     * Remove all certificates validated against a trust store - used when a
+     * trust store is reloaded
+     *
+     * @param trustStoreId identity of the trust store
+     */
+    public synchronized void invalidate(String trustStoreId) {
+        String prefix = trustStoreId + ":";
+        Iterator<String> it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Remove all certificates from the cache
+     */
+    public synchronized void invalidateAll() {
+        entries.clear();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, VerifiedCertificate>> it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Create an identity for the contents of a trust store
+     *
+     * @param trustedCerts the certificates of the trust store
+     * @return SHA-256 fingerprint over the fingerprints of all the trust store's
+     * certificates
+     * @throws CertificateEncodingException
+     * @throws NoSuchAlgorithmException
+     */
+    public static String trustStoreId(X509Certificate[] trustedCerts) throws CertificateEncodingException, NoSuchAlgorithmException {
+        String[] fingerprints = new String[trustedCerts.length];
+        for (int i = 0; i < trustedCerts.length; i++) {
+            fingerprints[i] = fingerprint(trustedCerts[i].getEncoded());
+        }
+        // the order of the aliases in a keystore is not significant
+        Arrays.sort(fingerprints);
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        for (String f : fingerprints) {
+            md.update(f.getBytes());
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Fingerprint of a DER encoded certificate
+     *
+     * @param encoded DER encoding of the certificate
+     * @return hex representation of the SHA-256 digest of the certificate
+     * @throws NoSuchAlgorithmException
+     */
+    public static String fingerprint(byte[] encoded) throws NoSuchAlgorithmException {
+        return toHex(MessageDigest.getInstance("SHA-256").digest(encoded));
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder sb = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A signing certificate whose chain has been validated, with its parsed
+     * public key and verifier
+     */
+    public static class VerifiedCertificate {
+
+        private final RSAPublicKey publicKey;
+        private final JWSVerifier verifier;
+        private final long expiry;
+
+        private VerifiedCertificate(RSAPublicKey publicKey, JWSVerifier verifier, long expiry) {
+            this.publicKey = publicKey;
+            this.verifier = verifier;
+            this.expiry = expiry;
+        }
+
+        public RSAPublicKey getPublicKey() {
+            return publicKey;
+        }
+
+        public JWSVerifier getVerifier() {
+            return verifier;
+        }
+
+        /**
+         * @return time in milliseconds after which the validation is no longer
+         * trusted
+         */
+        public long getExpiry() {
+            return expiry;
+        }
+    }
+}
@@ -18,13 +18,21 @@ package org.medipi.concentrator;
 import java.io.File;
 import java.util.Date;
 import java.util.Properties;
+import java.util.logging.Level;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import org.medipi.security.CertificateDefinitions;
+import org.medipi.security.KeyMaterialRegistry;
 import org.medipi.concentrator.dataformat.DataFormatFactory;
 import org.medipi.concentrator.dataformat.PatientUploadDataFormat;
+import org.medipi.concentrator.journal.InboundMessageArchive;
 import org.medipi.security.UploadEncryptionAdapter;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.services.AsyncUploadIngestService;
+import org.medipi.concentrator.services.DataChangeFeedService;
+import org.medipi.concentrator.services.DownloadableSigningService;
+import org.medipi.concentrator.services.RecordingDeviceDataPartitionService;
+import org.medipi.concentrator.tracing.UploadTracer;
 import org.medipi.concentrator.utilities.ConfigurationStringTokeniser;
 import org.medipi.concentrator.utilities.Utilities;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -67,9 +75,39 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
     @Value("${medipi.log}")
     private String log;
 
+    @Value("${medipi.concentrator.log.level:INFO}")
+    private String logLevel;
+
+    @Value("${medipi.concentrator.log.buffercapacity:8192}")
+    private int logBufferCapacity;
+
+    @Value("${medipi.concentrator.payloadcompression:false}")
+    private boolean payloadCompression;
+
+    @Value("${medipi.concentrator.payloadcompression.maxinflatedsize:10485760}")
+    private long maxInflatedSize;
+
     @Autowired
     DataFormatFactory dff;
 
+    @Autowired
+    AsyncUploadIngestService asyncUploadIngestService;
+
+    @Autowired
+    DownloadableSigningService downloadableSigningService;
+
+    @Autowired
+    RecordingDeviceDataPartitionService recordingDeviceDataPartitionService;
+
+    @Autowired
+    DataChangeFeedService dataChangeFeedService;
+
+    @Autowired
+    InboundMessageArchive inboundMessageArchive;
+
+    @Autowired
+    UploadTracer uploadTracer;
+
     /**
      * Run method inherited by the commandLineRunner. This method sets the
      * version, calls the properties and utilities classes and instantiates any
@@ -107,8 +145,15 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
             System.out.println(log + " - MediPi log directory is not set");
             System.exit(1);
         } else if (new File(log).isDirectory()) {
+            logger.setAsynchronous(logBufferCapacity);
             logger.setAppName("MEDIPI", log);
             logger.log(MediPiConcentratorSbApplication.class.getName() + "startup", versionIdent);
+            KeyMaterialRegistry.getInstance().setErrorLogger(logger::error);
+            try {
+                logger.setLevel(Level.parse(logLevel.trim()));
+            } catch (IllegalArgumentException e) {
+                logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Unknown logging level: " + logLevel + " - all messages will be logged");
+            }
         } else {
             System.out.println("FATAL: " + log + " - MediPi log directory is not a directory");
             System.exit(1);
@@ -121,6 +166,8 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
             logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Failed to instantiate Patient Encryption Adapter: " + patientAdapterError);
             System.out.println("Failed to instantiate Patient Encryption Adapter: " + patientAdapterError);
         }
+        patientEncryptionAdapter.setAcceptCompression(payloadCompression);
+        patientEncryptionAdapter.setMaxInflatedSize(maxInflatedSize);
         // instantiate the clinician encryption adapter
         CertificateDefinitions clinicianCD = new CertificateDefinitions(utils.getProperties());
         clinicianCD.setSIGNTRUSTSTORELOCATION("medipi.json.sign.truststore.clinician.location", CertificateDefinitions.INTERNAL);
@@ -170,6 +217,37 @@ public class MediPiConcentratorSbApplication implements CommandLineRunner {
             logger.log(MediPiConcentratorSbApplication.class.getName() + ".fatal", "FATAL: Failed to tokenise the data format class token list- " + e.getMessage());
             System.exit(1);
         }
+        // sign any hardware downloadables which have been registered without a current signature
+        try {
+            downloadableSigningService.signOnStartup();
+        } catch (Exception e) {
+            System.out.println("Failed to sign hardware downloadables: " + e.getMessage());
+            logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Failed to sign hardware downloadables: " + e.getMessage());
+        }
+        // create the partitions of recording_device_data for the coming months (if configured)
+        recordingDeviceDataPartitionService.start();
+        // start the change feed before any uploads are processed so that their notifications are buffered
+        dataChangeFeedService.start();
+        // start archiving inbound messages (if configured) before any are received - uploads are refused if they cannot be archived
+        String archiveError = inboundMessageArchive.start();
+        if (archiveError != null) {
+            System.out.println("FATAL: Cannot start the inbound message archive - " + archiveError);
+            logger.log(MediPiConcentratorSbApplication.class.getName() + ".fatal", "FATAL: Cannot start the inbound message archive - " + archiveError);
+            System.exit(1);
+        }
+        // start writing the traces of slow uploads before any are processed
+        String traceError = uploadTracer.start();
+        if (traceError != null) {
+            System.out.println("Cannot start upload tracing - " + traceError);
+            logger.log(MediPiConcentratorSbApplication.class.getName() + ".error", "Cannot start upload tracing - " + traceError);
+        }
+        // start asynchronous ingest (if configured) once the data formats are available to process journalled uploads
+        String asyncIngestError = asyncUploadIngestService.start();
+        if (asyncIngestError != null) {
+            System.out.println("FATAL: Cannot start asynchronous upload ingest - " + asyncIngestError);
+            logger.log(MediPiConcentratorSbApplication.class.getName() + ".fatal", "FATAL: Cannot start asynchronous upload ingest - " + asyncIngestError);
+            System.exit(1);
+        }
         System.out.println("ServletContextListener started");
 
     }
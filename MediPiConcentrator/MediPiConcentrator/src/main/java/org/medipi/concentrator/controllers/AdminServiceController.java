@@ -0,0 +1,165 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.controllers;
+
+import java.io.IOException;
+import java.util.List;
+import org.medipi.concentrator.exception.BadRequest400Exception;
+import org.medipi.concentrator.exception.InternalServerError500Exception;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.ReplayStatusDO;
+import org.medipi.concentrator.model.UploadTraceDO;
+import org.medipi.concentrator.services.AdminAuthorisationService;
+import org.medipi.concentrator.services.DownloadableSigningService;
+import org.medipi.concentrator.services.UploadReplayService;
+import org.medipi.concentrator.tracing.UploadTracer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Class to expose the administrative interfaces of the concentrator. Every
+ * request must present the configured admin token in the Admin-Token HTTP
+ * header.
+ *
+ * This exposes interfaces for: Replaying the inbound message archive, Finding
+ * the traces of slow uploads, Signing the hardware downloadables
+ *
+ * @author rick@robinsonhq.com
+ */
+@RestController
+@RequestMapping("MediPiConcentrator/webresources/admin")
+public class AdminServiceController {
+
+    @Autowired
+    private AdminAuthorisationService adminAuthorisationService;
+
+    @Autowired
+    private UploadReplayService uploadReplayService;
+
+    @Autowired
+    private UploadTracer uploadTracer;
+
+    @Autowired
+    private DownloadableSigningService downloadableSigningService;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    /**
+     * Controller for starting a replay of the inbound message archive through
+     * the normal upload processing. The replay runs in the background - its
+     * progress is returned by the replay status interface
+     *
+     * @param adminToken admin token from the Admin-Token HTTP header
+     * @param from replay only uploads received at or after this time (epoch
+     * millis) - optional
+     * @param to replay only uploads received before this time (epoch millis) -
+     * optional
+     * @param resume resume from the checkpoint of a previous replay
+     * @return Response to the request
+     */
+    @RequestMapping(value = "/replay", method = RequestMethod.POST, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<ReplayStatusDO> startReplay(@RequestHeader(value = AdminAuthorisationService.HEADER, required = false) String adminToken, @RequestParam(value = "from", required = false) Long from, @RequestParam(value = "to", required = false) Long to, @RequestParam(value = "resume", defaultValue = "false") boolean resume) {
+        adminAuthorisationService.authorise(adminToken, "start replay");
+        logger.info(AdminServiceController.class.getName(), () -> "Replay requested from: " + from + " to: " + to + " resume: " + resume);
+        return new ResponseEntity<>(uploadReplayService.start(from, to, resume), HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * Controller for the progress of the current or last replay
+     *
+     * @param adminToken admin token from the Admin-Token HTTP header
+     * @return Response to the request
+     */
+    @RequestMapping(value = "/replay", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<ReplayStatusDO> getReplayStatus(@RequestHeader(value = AdminAuthorisationService.HEADER, required = false) String adminToken) {
+        adminAuthorisationService.authorise(adminToken, "replay status");
+        return new ResponseEntity<>(uploadReplayService.status(), HttpStatus.OK);
+    }
+
+    /**
+     * Controller for cancelling the running replay
+     *
+     * @param adminToken admin token from the Admin-Token HTTP header
+     * @return Response to the request
+     */
+    @RequestMapping(value = "/replay", method = RequestMethod.DELETE, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<ReplayStatusDO> cancelReplay(@RequestHeader(value = AdminAuthorisationService.HEADER, required = false) String adminToken) {
+        adminAuthorisationService.authorise(adminToken, "cancel replay");
+        logger.info(AdminServiceController.class.getName(), () -> "Replay cancellation requested");
+        return new ResponseEntity<>(uploadReplayService.cancel(), HttpStatus.OK);
+    }
+
+    /**
+     * Controller for finding the traces of slow uploads, newest first, by
+     * upload UUID and/or device
+     *
+     * @param adminToken admin token from the Admin-Token HTTP header
+     * @param uploadUuid upload UUID - optional
+     * @param deviceId device which sent the uploads - optional
+     * @param limit maximum number of traces to return
+     * @return Response to the request
+     */
+    @RequestMapping(value = "/traces", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<List<UploadTraceDO>> getTraces(@RequestHeader(value = AdminAuthorisationService.HEADER, required = false) String adminToken, @RequestParam(value = "uploadUuid", required = false) String uploadUuid, @RequestParam(value = "deviceId", required = false) String deviceId, @RequestParam(value = "limit", defaultValue = "100") int limit) {
+        adminAuthorisationService.authorise(adminToken, "upload traces");
+        if (uploadUuid == null && deviceId == null) {
+            throw new BadRequest400Exception("uploadUuid and/or deviceId must be given");
+        }
+        if (limit < 1) {
+            throw new BadRequest400Exception("Invalid limit: " + limit);
+        }
+        try {
+            return new ResponseEntity<>(uploadTracer.find(uploadUuid, deviceId, limit), HttpStatus.OK);
+        } catch (IOException e) {
+            throw new InternalServerError500Exception("Cannot read the upload traces: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Controller for signing the hardware downloadables, e.g. those registered
+     * in the DB since startup or all of them following rotation of the
+     * hardware signing key
+     *
+     * @param adminToken admin token from the Admin-Token HTTP header
+     * @param force re-sign every downloadable rather than only those without
+     * a current signature
+     * @return Response to the request
+     */
+    @RequestMapping(value = "/downloadables/sign", method = RequestMethod.POST, produces = MediaType.TEXT_PLAIN_VALUE)
+    @ResponseBody
+    public ResponseEntity<String> signDownloadables(@RequestHeader(value = AdminAuthorisationService.HEADER, required = false) String adminToken, @RequestParam(value = "force", defaultValue = "true") boolean force) {
+        adminAuthorisationService.authorise(adminToken, "sign downloadables");
+        logger.info(AdminServiceController.class.getName(), () -> "Signing of hardware downloadables requested - force: " + force);
+        try {
+            return new ResponseEntity<>(downloadableSigningService.signAll(force) + " hardware downloadables signed", HttpStatus.OK);
+        } catch (Exception e) {
+            throw new InternalServerError500Exception("Failed to sign hardware downloadables: " + e.getLocalizedMessage());
+        }
+    }
+}
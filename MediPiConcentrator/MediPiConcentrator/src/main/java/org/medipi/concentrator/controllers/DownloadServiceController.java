@@ -17,16 +17,19 @@ package org.medipi.concentrator.controllers;
 
 import java.util.Date;
 import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.model.DownloadableDO;
 import org.medipi.concentrator.services.DownloadableListService;
 import org.medipi.concentrator.services.HardwareDownloadableService;
 import org.medipi.concentrator.services.PatientDownloadableService;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
@@ -62,13 +65,15 @@ public class DownloadServiceController {
      *
      * @param hardwareName incoming deviceId parameter from RESTful message
      * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param ifNoneMatch incoming If-None-Match HTTP header holding the ETag
+     * of the list last received by the device
      * @return Response to the request
      */
     @RequestMapping(value = "/{hardwareName}/{patientUuid}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
-    public ResponseEntity<List<DownloadableDO>> getDownloadableList(@PathVariable("hardwareName") String hardwareName, @PathVariable("patientUuid") String patientUuid) {
+    public ResponseEntity<List<DownloadableDO>> getDownloadableList(@PathVariable("hardwareName") String hardwareName, @PathVariable("patientUuid") String patientUuid, @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
         logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get DownloadableList called by patientUuid: " + patientUuid + " using hardwareName: " + hardwareName);
-        return this.downloadableListService.getDownloadableList(hardwareName, patientUuid);
+        return this.downloadableListService.getDownloadableList(hardwareName, patientUuid, ifNoneMatch);
     }
 
     /**
@@ -77,13 +82,14 @@ public class DownloadServiceController {
      *
      * @param downloadableUuid downloadable UUID of the patient downloadable
      * item
-     * @return Response to the request
+     * @param request request holding any Range and If-Range headers
+     * @param response response to which the file is written
      */
     @RequestMapping(value = "/patient/{downloadableUuid}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
-    public ResponseEntity<FileSystemResource> getPatientDownloadable(@PathVariable("downloadableUuid") String downloadableUuid) {
+    public void getPatientDownloadable(@PathVariable("downloadableUuid") String downloadableUuid, HttpServletRequest request, HttpServletResponse response) {
         logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get PatientDownloadable for downloadableUuid: " + downloadableUuid);
-        return this.patientDownloadableService.getDownload(downloadableUuid);
+        this.patientDownloadableService.getDownload(downloadableUuid, request, response);
     }
 
     /**
@@ -93,13 +99,14 @@ public class DownloadServiceController {
      *
      * @param downloadableUuid downloadable UUID of the hardware downloadable
      * item
-     * @return Response to the request
+     * @param request request holding any Range and If-Range headers
+     * @param response response to which the file is written
      */
     @RequestMapping(value = "/hardware/{downloadableUuid}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
-    public ResponseEntity<FileSystemResource> getHardwareDownloadable(@PathVariable("downloadableUuid") String downloadableUuid) {
+    public void getHardwareDownloadable(@PathVariable("downloadableUuid") String downloadableUuid, HttpServletRequest request, HttpServletResponse response) {
         logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get HardwareDownloadable for downloadableUuid: " + downloadableUuid);
-        return this.hardwareDownloadableService.getDownload(downloadableUuid);
+        this.hardwareDownloadableService.getDownload(downloadableUuid, request, response);
     }
 
     /**
@@ -110,13 +117,14 @@ public class DownloadServiceController {
      * @param downloadableUuid downloadable UUID of the all hardware
      * downloadable item
      * @param hardwareName hardware name uuid of requesting system
-     * @return Response to the request
+     * @param request request holding any Range and If-Range headers
+     * @param response response to which the file is written
      */
     @RequestMapping(value = "/hardware/{downloadableUuid}/{hardwareName}", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
-    public ResponseEntity<FileSystemResource> getAllHardwareDownloadable(@PathVariable("downloadableUuid") String downloadableUuid, @PathVariable("hardwareName") String hardwareName) {
+    public void getAllHardwareDownloadable(@PathVariable("downloadableUuid") String downloadableUuid, @PathVariable("hardwareName") String hardwareName, HttpServletRequest request, HttpServletResponse response) {
         logger.log(DownloadServiceController.class.getName(), new Date().toString() + " get AllHardwareDownloadable for downloadableUuid: " + downloadableUuid + " and hardwareName: " + hardwareName);
-        return this.hardwareDownloadableService.getAllDownload(downloadableUuid, hardwareName);
+        this.hardwareDownloadableService.getAllDownload(downloadableUuid, hardwareName, request, response);
     }
 
     /**
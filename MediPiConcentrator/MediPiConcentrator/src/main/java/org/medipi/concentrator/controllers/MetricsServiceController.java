@@ -0,0 +1,70 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.controllers;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import javax.servlet.http.HttpServletResponse;
+import org.medipi.concentrator.exception.InternalServerError500Exception;
+import org.medipi.concentrator.metrics.MetricsRegistry;
+import org.medipi.concentrator.services.AdminAuthorisationService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Class to expose the concentrator's metrics in the Prometheus text exposition
+ * format. The request must present the configured metrics token
+ * (medipi.concentrator.metrics.token) as an Authorization Bearer token
+ *
+ * @author rick@robinsonhq.com
+ */
+@RestController
+@RequestMapping("MediPiConcentrator/webresources/metrics")
+public class MetricsServiceController {
+
+    @Autowired
+    private AdminAuthorisationService adminAuthorisationService;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    /**
+     * Controller for scraping the metrics
+     *
+     * @param authorization Authorization HTTP header holding the metrics
+     * token as a Bearer token
+     * @param response response to which the metrics are written
+     */
+    @RequestMapping(method = RequestMethod.GET)
+    public void getMetrics(@RequestHeader(value = HttpHeaders.AUTHORIZATION, required = false) String authorization, HttpServletResponse response) {
+        adminAuthorisationService.authoriseMetrics(AdminAuthorisationService.bearerToken(authorization));
+        response.setContentType(MetricsRegistry.CONTENT_TYPE);
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        try {
+            Writer w = new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8);
+            metrics.write(w);
+            w.flush();
+        } catch (IOException e) {
+            throw new InternalServerError500Exception("Cannot write the metrics: " + e.getLocalizedMessage());
+        }
+    }
+}
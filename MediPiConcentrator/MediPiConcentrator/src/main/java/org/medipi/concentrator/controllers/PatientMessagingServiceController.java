@@ -16,7 +16,9 @@
 package org.medipi.concentrator.controllers;
 
 import java.util.Date;
+import java.util.List;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.PatientAlertDO;
 import org.medipi.concentrator.services.PatientMessagingService;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -64,4 +66,22 @@ public class PatientMessagingServiceController {
         return this.patientMessagingService.persistAlert(patientUuid, encryptedContent);
     }
 
+    /**
+     * Controller for uploading a batch of encrypted and signed messages, each
+     * to an individual patient device, in one request. This method passes the
+     * incoming batch to the service layer where it is persisted in a single
+     * transaction
+     *
+     * @param alerts list of the patientUuid of each intended recipient and the
+     * encrypted and signed alert data object for that patient
+     * @return Response to the request listing the downloadable UUID created for
+     * each alert
+     */
+    @RequestMapping(value = "/alerts", method = RequestMethod.POST, produces = {MediaType.APPLICATION_JSON_VALUE}, consumes = MediaType.APPLICATION_JSON_VALUE)
+    @ResponseBody
+    public ResponseEntity<List<PatientAlertDO>> sendAlerts(@RequestBody List<PatientAlertDO> alerts) {
+        logger.info(PatientMessagingServiceController.class.getName(), () -> "Batch of " + (alerts == null ? 0 : alerts.size()) + " alerts received");
+        return this.patientMessagingService.persistAlerts(alerts);
+    }
+
 }
@@ -15,15 +15,15 @@
  */
 package org.medipi.concentrator.controllers;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.Date;
+import javax.servlet.http.HttpServletResponse;
+import org.medipi.concentrator.journal.InboundMessageArchive;
+import org.medipi.concentrator.journal.JournalledUpload;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.services.AsyncUploadIngestService;
 import org.medipi.concentrator.services.PatientUploadService;
-import org.medipi.concentrator.utilities.Utilities;
+import org.medipi.model.DevicesPayloadCodec;
 import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.medipi.security.UploadEncryptionAdapter;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.MediaType;
@@ -35,6 +35,7 @@ import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
 /**
  * Class to receive incoming RESTful message containing data from MediPi patient
@@ -50,81 +51,74 @@ public class PatientUploadServiceController {
     @Autowired
     private PatientUploadService patientUploadService;
 
+    @Autowired
+    private AsyncUploadIngestService asyncUploadIngestService;
+
     @Autowired
     private MediPiLogger logger;
 
-    @Value("${medipi.concentrator.savemessagestofile}")
-    private boolean savemessagestofile;
+    @Autowired
+    private InboundMessageArchive inboundMessageArchive;
 
-    @Value("${medipi.concentrator.inboundsavedmessagedir}")
-    private String inboundsavedmessagedir;
+    @Value("${medipi.concentrator.payloadcompression:false}")
+    private boolean payloadCompression;
 
     /**
      * Controller for Patient Upload of data from MediPi Patient units.
      *
      * This method:
      *
-     * 1.saves the incoming message to file, if configured and passes the
-     * incoming message to the service layer for processing
+     * 1.hands the incoming message to the inbound message archive, if
+     * configured and passes the incoming message to the service layer for
+     * processing - a 503 response with Retry-After is returned if the archive
+     * cannot accept the message
+     *
+     * 2.if asynchronous ingest is enabled the incoming message is journalled
+     * and acknowledged with 202 Accepted and the upload UUID - it is processed
+     * later by the asynchronous ingest workers
+     *
+     * 3.otherwise the servlet thread is released while the message is
+     * decrypted and processed on the crypto executor - a 503 response with
+     * Retry-After is returned if the crypto executor is at capacity
+     *
+     * 4.if compressed payloads are accepted this is advertised to the patient
+     * unit in the Payload-Compression header of the response, and the payload
+     * encodings which are accepted in the Accept-Payload-Encoding header
      *
      * @param deviceId incoming deviceId parameter from RESTful message
      * @param patientUuid incoming patientUuid parameter from RESTful message
      * @param dataFormat incoming Data-Format HTTP header parameter from RESTful
      * message
+     * @param payloadEncoding incoming Payload-Encoding HTTP header parameter
+     * from RESTful message - null if the payload is Java serialised
      * @param easu incoming message in an encrypted and signed data object
+     * @param response the HTTP response
      * @return Response to the request
      */
     @RequestMapping(value = "/{deviceId}/{patientUuid}", method = RequestMethod.PUT, produces = {MediaType.APPLICATION_JSON_VALUE}, consumes = MediaType.APPLICATION_JSON_VALUE)
     @ResponseBody
-    public ResponseEntity<?> updateMessage(@PathVariable("deviceId") String deviceId, @PathVariable("patientUuid") String patientUuid, @RequestHeader(value = "Data-Format") String dataFormat, @RequestBody EncryptedAndSignedUploadDO easu) {
-        logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " Called by patientUuid: " + patientUuid + " using deviceId: " + deviceId);
+    public DeferredResult<ResponseEntity<?>> updateMessage(@PathVariable("deviceId") String deviceId, @PathVariable("patientUuid") String patientUuid, @RequestHeader(value = "Data-Format") String dataFormat, @RequestHeader(value = DevicesPayloadCodec.HEADER, required = false) String payloadEncoding, @RequestBody EncryptedAndSignedUploadDO easu, HttpServletResponse response) {
+        if (payloadCompression) {
+            response.setHeader(UploadEncryptionAdapter.COMPRESSIONHEADER, UploadEncryptionAdapter.DEFLATE);
+        }
+        response.setHeader(DevicesPayloadCodec.ACCEPTHEADER, DevicesPayloadCodec.SUPPORTED);
+        logger.log(PatientUploadServiceController.class.getName(), () -> "Called by patientUuid: " + patientUuid + " using deviceId: " + deviceId);
         EncryptedAndSignedUploadDO content = easu;
 
-        if (savemessagestofile) {
-            byte[] contentInBytes = null;
-
-            FileOutputStream fop = null;
-            try {
-                StringBuilder fnb = new StringBuilder(inboundsavedmessagedir);
-                fnb.append(System.getProperty("file.separator"));
-                fnb.append("uuid_");
-                fnb.append(content.getUploadUuid());
-                fnb.append("_device_");
-                fnb.append(deviceId);
-                fnb.append("_at_");
-                fnb.append(Utilities.INTERNAL_SPINE_FORMAT.format(new Date()));
-                fnb.append(".log");
-                File file = new File(fnb.toString());
-                fop = new FileOutputStream(file);
-                // if file doesnt exists, then create it
-                if (!file.exists()) {
-                    file.createNewFile();
-                }
-
-                // get the content in bytes
-                writeJSON(content, fop);
-                fop.flush();
-                fop.close();
-                logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " Encrypted payload uuid: " + easu.getUploadUuid());
-            } catch (IOException e) {
-                logger.log(PatientUploadServiceController.class.getName() + ".error", "Cannot save outbound message payload to local drive - check the configured directory: " + inboundsavedmessagedir);
-            } finally {
-                try {
-                    if (fop != null) {
-                        fop.close();
-                    }
-                } catch (IOException e) {
-                    logger.log(PatientUploadServiceController.class.getName() + ".error", "Cannot save outbound message payload to local drive - check the configured directory: " + inboundsavedmessagedir);
-                }
+        if (inboundMessageArchive.isEnabled()) {
+            // written by the archive's background writer - the request only waits if the writer has fallen behind
+            if (!inboundMessageArchive.archive(new JournalledUpload(deviceId, patientUuid, dataFormat, payloadEncoding, content))) {
+                DeferredResult<ResponseEntity<?>> refused = new DeferredResult<>();
+                refused.setResult(this.patientUploadService.serviceUnavailable());
+                return refused;
             }
         }
-        return this.patientUploadService.uploadRecordingDeviceData(deviceId, patientUuid, dataFormat, content);
-    }
-
-    private void writeJSON(EncryptedAndSignedUploadDO encryptedAndSignedUploadDO, FileOutputStream f) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
-        mapper.writeValue(f, encryptedAndSignedUploadDO);
-
+        if (asyncUploadIngestService.isEnabled()) {
+            DeferredResult<ResponseEntity<?>> accepted = new DeferredResult<>();
+            accepted.setResult(this.asyncUploadIngestService.accept(deviceId, patientUuid, dataFormat, payloadEncoding, content));
+            return accepted;
+        }
+        return this.patientUploadService.uploadRecordingDeviceDataDeferred(deviceId, patientUuid, dataFormat, payloadEncoding, content);
     }
 
 }
@@ -17,20 +17,21 @@ package org.medipi.concentrator.controllers;
 
 import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
 import java.util.Date;
-import java.util.List;
+import javax.servlet.http.HttpServletResponse;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
-import org.medipi.concentrator.model.PatientDataRequestDO;
+import org.medipi.concentrator.services.DataChangeFeedService;
 import org.medipi.concentrator.services.RequestDataService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
-import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 /**
  * Class to receive incoming RESTful message containing data from MediPi patient
@@ -46,6 +47,9 @@ public class RequestDataServiceController {
     @Autowired
     private RequestDataService requestDataService;
 
+    @Autowired
+    private DataChangeFeedService dataChangeFeedService;
+
     @Autowired
     private MediPiLogger logger;
 
@@ -67,11 +71,12 @@ public class RequestDataServiceController {
      * epoch time (millis after January 1, 1970, 00:00:00 GMT) when this data
      * was last synchronised. A value of 0 will return all data for all patients
      * in the patient group
-     * @return Response to the request
+     * @param acceptEncoding Accept-Encoding HTTP header - the response is
+     * gzipped if gzip is accepted
+     * @param response response to which the data is streamed
      */
     @RequestMapping(value = "/requestdata/allData/{patientGroupUuid}", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
-    @ResponseBody
-    public ResponseEntity<List<PatientDataRequestDO>> requestNewData(@PathVariable("patientGroupUuid") String patientGroupUuid, @RequestParam("date") Long lastDownloadEpochMillis) {
+    public void requestNewData(@PathVariable("patientGroupUuid") String patientGroupUuid, @RequestParam("date") Long lastDownloadEpochMillis, @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding, HttpServletResponse response) {
 
         if (lastDownloadEpochMillis < 0) {
             logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " new data requested from Patient Group: " + patientGroupUuid + " Invalid Unix epoch representation of date");
@@ -79,6 +84,45 @@ public class RequestDataServiceController {
         }
         Date lastDownloadDate = new Date(lastDownloadEpochMillis);
         logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " new data requested from Patient Group: " + patientGroupUuid + " since the last download at: " + new ISO8601DateFormat().format(lastDownloadDate));
-        return this.requestDataService.getData(patientGroupUuid, lastDownloadDate);
+        this.requestDataService.streamData(patientGroupUuid, lastDownloadDate, acceptEncoding, response);
+    }
+
+    /**
+     * Controller for synchronising data from all patients within a patient
+     * group a page at a time. Each page holds the data points stored since the
+     * cursor in the order in which they were stored, with the cursor from
+     * which to request the next page, so a client can resume exactly where it
+     * stopped
+     *
+     * @param patientGroupUuid the patient group for which to synchronise
+     * @param cursor the next cursor returned with the previous page, or 0 to
+     * return all data for all patients in the patient group
+     * @param pageSize maximum number of data points to return in the page
+     * @param acceptEncoding Accept-Encoding HTTP header - the response is
+     * gzipped if gzip is accepted
+     * @param response response to which the page is streamed
+     */
+    @RequestMapping(value = "/requestdata/pagedData/{patientGroupUuid}", method = RequestMethod.GET, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public void requestDataPage(@PathVariable("patientGroupUuid") String patientGroupUuid, @RequestParam(value = "cursor", defaultValue = "0") String cursor, @RequestParam(value = "pageSize", required = false) Integer pageSize, @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding, HttpServletResponse response) {
+        logger.log(RequestDataServiceController.class.getName(), new Date().toString() + " data page requested from Patient Group: " + patientGroupUuid + " after cursor: " + cursor);
+        this.requestDataService.streamPage(patientGroupUuid, cursor, pageSize, acceptEncoding, response);
+    }
+
+    /**
+     * Controller for subscribing to notifications of new data for patients
+     * within a patient group as Server-Sent Events. Each notification gives
+     * the patient, the device type and the cursor up to which the data can be
+     * requested from the paged data request
+     *
+     * @param patientGroupUuid the patient group for which to subscribe
+     * @param cursor cursor from which to resume - notifications of data stored
+     * after it are sent on subscription
+     * @param lastEventId Last-Event-ID HTTP header sent by a reconnecting
+     * client, used as the cursor if none is given
+     * @return event stream of notifications
+     */
+    @RequestMapping(value = "/requestdata/changes/{patientGroupUuid}", method = RequestMethod.GET, produces = {"text/event-stream"})
+    public SseEmitter subscribeToChanges(@PathVariable("patientGroupUuid") String patientGroupUuid, @RequestParam(value = "cursor", required = false) String cursor, @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId) {
+        return this.dataChangeFeedService.subscribe(patientGroupUuid, cursor != null ? cursor : lastEventId);
     }
 }
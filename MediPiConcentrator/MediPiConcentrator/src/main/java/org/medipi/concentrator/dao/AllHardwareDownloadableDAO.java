@@ -23,6 +23,26 @@ import org.medipi.concentrator.entities.AllHardwareDownloadable;
  * @author rick@robinsonhq.com
  */
 public interface AllHardwareDownloadableDAO extends GenericDAO<AllHardwareDownloadable> {
+    /**
+     * Method to return the all hardware downloadables which a hardware has not
+     * yet acknowledged. These are read from the hardware's rows in the
+     * all_hardware_pending table so the cost does not depend on the number of
+     * hardware or of downloadables published
+     *
+     * @param hname hardware name
+     * @return list of pending all hardware downloadables
+     */
     public List<AllHardwareDownloadable> getHardwareDownloads(String hname);
     public AllHardwareDownloadable getHardwareDownload(String downloadUuid);
+    public List<AllHardwareDownloadable> getAllHardwareDownloads();
+
+    /**
+     * Method to remove an all hardware downloadable from the pending
+     * downloadables of a hardware once it has been acknowledged
+     *
+     * @param downloadableUuid downloadable UUID
+     * @param hname hardware name
+     * @return number of pending rows removed
+     */
+    public int removePending(String downloadableUuid, String hname);
 }
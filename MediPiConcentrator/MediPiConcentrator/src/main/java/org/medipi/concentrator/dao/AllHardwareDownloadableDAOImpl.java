@@ -26,13 +26,25 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class AllHardwareDownloadableDAOImpl extends GenericDAOImpl<AllHardwareDownloadable> implements AllHardwareDownloadableDAO {
 
+    private static final String FIND_PENDING_SQL = "SELECT a.* FROM all_hardware_pending p JOIN all_hardware_downloadable a ON a.downloadable_uuid = p.downloadable_uuid WHERE p.hardware_name = ?1";
+    private static final String REMOVE_PENDING_SQL = "DELETE FROM all_hardware_pending WHERE downloadable_uuid = ?1 AND hardware_name = ?2";
+
     @Override
+    @SuppressWarnings("unchecked")
     public List<AllHardwareDownloadable> getHardwareDownloads(String hardware) {
-        return this.getEntityManager().createNamedQuery("AllHardwareDownloadable.findAllDownloadable", AllHardwareDownloadable.class)
-                .setParameter("hname", hardware)
+        return this.getEntityManager().createNativeQuery(FIND_PENDING_SQL, AllHardwareDownloadable.class)
+                .setParameter(1, hardware)
                 .getResultList();
     }
 
+    @Override
+    public int removePending(String downloadableUuid, String hardware) {
+        return this.getEntityManager().createNativeQuery(REMOVE_PENDING_SQL)
+                .setParameter(1, downloadableUuid)
+                .setParameter(2, hardware)
+                .executeUpdate();
+    }
+
     @Override
     public AllHardwareDownloadable getHardwareDownload(String downloadableUuid) {
         return this.getEntityManager().createNamedQuery("AllHardwareDownloadable.findByDownloadableUuid", AllHardwareDownloadable.class)
@@ -40,4 +52,10 @@ public class AllHardwareDownloadableDAOImpl extends GenericDAOImpl<AllHardwareDo
                 .getSingleResult();
     }
 
+    @Override
+    public List<AllHardwareDownloadable> getAllHardwareDownloads() {
+        return this.getEntityManager().createNamedQuery("AllHardwareDownloadable.findAll", AllHardwareDownloadable.class)
+                .getResultList();
+    }
+
 }
\ No newline at end of file
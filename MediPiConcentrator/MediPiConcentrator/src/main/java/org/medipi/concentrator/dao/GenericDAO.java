@@ -29,6 +29,14 @@ public interface GenericDAO<T> {
      */
     T save(T object);
 
+    /**
+     * Save data in its own transaction which is committed independently of
+     * any transaction the caller is participating in
+     * @param object to persist
+     * @return saved object 
+     */
+    T saveInNewTransaction(T object);
+
     /**
      * Update data
      * @param object to update 
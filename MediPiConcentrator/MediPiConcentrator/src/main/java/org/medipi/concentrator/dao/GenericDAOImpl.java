@@ -24,6 +24,8 @@ import org.medipi.concentrator.logging.MediPiLogger;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
 /**
  * Implementation of Generic Data Access Object
@@ -70,27 +72,33 @@ public abstract class GenericDAOImpl<T> implements GenericDAO<T> {
     @Override
     public T save(final T object) {
         this.getEntityManager().persist(object);
-        logger.log(object.getClass().getName() + ".info", "Object persisted:" + object + " of type:" + object.getClass());
+        logger.fine(object.getClass().getName() + ".info", () -> "Object persisted:" + object + " of type:" + object.getClass());
         return object;
     }
 
+    @Override
+    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = RuntimeException.class)
+    public T saveInNewTransaction(final T object) {
+        return save(object);
+    }
+
     @Override
     public T update(final T object) {
         final T updatedObject = this.getEntityManager().merge(object);
-        logger.log(object.getClass().getName() + ".info", "Object updated:" + object + " of type:" + object.getClass());
+        logger.fine(object.getClass().getName() + ".info", () -> "Object updated:" + object + " of type:" + object.getClass());
         return updatedObject;
     }
 
     @Override
     public void delete(final Object id) {
         this.getEntityManager().remove(this.getEntityManager().getReference(this.type, id));
-        logger.log(id.getClass().getName() + ".info", "Object Deleted:<" + id + ">");
+        logger.fine(id.getClass().getName() + ".info", () -> "Object Deleted:<" + id + ">");
     }
 
     @Override
     public T findByPrimaryKey(final Object id) {
         final T object = this.getEntityManager().find(this.type, id);
-        logger.log(id.getClass().getName() + ".info", "Find entity by primary key:<" + id + ">");
+        logger.fine(id.getClass().getName() + ".info", () -> "Find entity by primary key:<" + id + ">");
         return object;
     }
 }
@@ -25,4 +25,5 @@ import org.medipi.concentrator.entities.HardwareDownloadable;
 public interface HardwareDownloadableDAO extends GenericDAO<HardwareDownloadable> {
     public List<HardwareDownloadable> getHardwareDownloads(String hardware);
     public HardwareDownloadable getHardwareDownload(String downloadUuid);
+    public List<HardwareDownloadable> getOpenHardwareDownloads();
 }
@@ -40,4 +40,10 @@ public class HardwareDownloadableDAOImpl extends GenericDAOImpl<HardwareDownload
                 .getSingleResult();
     }
 
+    @Override
+    public List<HardwareDownloadable> getOpenHardwareDownloads() {
+        return this.getEntityManager().createNamedQuery("HardwareDownloadable.findOpen", HardwareDownloadable.class)
+                .getResultList();
+    }
+
 }
\ No newline at end of file
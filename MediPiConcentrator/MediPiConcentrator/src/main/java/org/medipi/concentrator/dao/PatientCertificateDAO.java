@@ -15,6 +15,8 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.Collection;
+import java.util.List;
 import org.medipi.concentrator.entities.PatientCertificate;
 
 /**
@@ -25,4 +27,5 @@ import org.medipi.concentrator.entities.PatientCertificate;
 public interface PatientCertificateDAO extends GenericDAO<PatientCertificate> {
 
     public PatientCertificate findByPatientUuid(String patientUuid);
+    public List<String> findPatientUuidsWithCertificate(Collection<String> patientUuids);
 }
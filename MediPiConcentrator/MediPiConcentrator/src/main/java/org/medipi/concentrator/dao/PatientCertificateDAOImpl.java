@@ -15,6 +15,9 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import org.medipi.concentrator.entities.PatientCertificate;
 import org.springframework.stereotype.Repository;
 
@@ -24,10 +27,26 @@ import org.springframework.stereotype.Repository;
  */
 @Repository
 public class PatientCertificateDAOImpl extends GenericDAOImpl<PatientCertificate> implements PatientCertificateDAO {
+
+    private static final int IN_CHUNK_SIZE = 1000;
+
     @Override
     public PatientCertificate findByPatientUuid(String patientUuid) {
         return this.getEntityManager().createNamedQuery("PatientCertificate.findByPatientUuid", PatientCertificate.class)
                 .setParameter("patientUuid", patientUuid)
                 .getSingleResult();
     }
+
+    @Override
+    public List<String> findPatientUuidsWithCertificate(Collection<String> patientUuids) {
+        List<String> found = new ArrayList<>();
+        List<String> uuids = new ArrayList<>(patientUuids);
+        // the IN list is bound a chunk at a time to stay within the JDBC parameter limit
+        for (int i = 0; i < uuids.size(); i += IN_CHUNK_SIZE) {
+            found.addAll(this.getEntityManager().createNamedQuery("PatientCertificate.findPatientUuidsIn", String.class)
+                    .setParameter("patientUuids", uuids.subList(i, Math.min(i + IN_CHUNK_SIZE, uuids.size())))
+                    .getResultList());
+        }
+        return found;
+    }
 }
\ No newline at end of file
@@ -26,4 +26,5 @@ import org.medipi.concentrator.entities.Patient;
 public interface PatientDAO extends GenericDAO<Patient> {
 
     public List<Patient> findByGroup(String patientGroupUuid);
+    public Patient getReference(String patientUuid);
 }
@@ -32,5 +32,10 @@ public class PatientDAOImpl extends GenericDAOImpl<Patient> implements PatientDA
                 .getResultList();
     }
 
+    @Override
+    public Patient getReference(String patientUuid) {
+        return this.getEntityManager().getReference(Patient.class, patientUuid);
+    }
+
     
 }
\ No newline at end of file
@@ -25,4 +25,5 @@ import org.medipi.concentrator.entities.PatientDownloadable;
 public interface PatientDownloadableDAO extends GenericDAO<PatientDownloadable> {
     public List<PatientDownloadable> getPatientDownloads(String patientUuid);
     public PatientDownloadable getPatientDownload(String downloadUuid);
+    public int saveBatch(List<PatientDownloadable> pdList);
 }
@@ -15,8 +15,15 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
 import java.util.List;
+import org.hibernate.Session;
 import org.medipi.concentrator.entities.PatientDownloadable;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
 
 /**
@@ -26,6 +33,14 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class PatientDownloadableDAOImpl extends GenericDAOImpl<PatientDownloadable> implements PatientDownloadableDAO {
 
+    private static final String INSERT_SQL = "INSERT INTO patient_downloadable (downloadable_uuid, patient_uuid, version, version_author, version_date, script_location, signature) VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Value("${medipi.concentrator.db.batchsize:500}")
+    private int batchSize;
+
     @Override
     public List<PatientDownloadable> getPatientDownloads(String patientUuid) {
         return this.getEntityManager().createNamedQuery("PatientDownloadable.findByPatientUuid", PatientDownloadable.class)
@@ -40,4 +55,34 @@ public class PatientDownloadableDAOImpl extends GenericDAOImpl<PatientDownloadab
                 .getSingleResult();
     }
 
-}
\ No newline at end of file
+    @Override
+    public int saveBatch(final List<PatientDownloadable> pdList) {
+        if (pdList == null || pdList.isEmpty()) {
+            return 0;
+        }
+        this.getEntityManager().flush();
+        final int[] written = {0};
+        this.getEntityManager().unwrap(Session.class).doWork((Connection connection) -> {
+            try (PreparedStatement ps = connection.prepareStatement(INSERT_SQL)) {
+                for (PatientDownloadable pd : pdList) {
+                    ps.setString(1, pd.getDownloadableUuid());
+                    ps.setString(2, pd.getPatientUuid().getPatientUuid());
+                    ps.setString(3, pd.getVersion());
+                    ps.setString(4, pd.getVersionAuthor());
+                    ps.setTimestamp(5, new Timestamp(pd.getVersionDate().getTime()));
+                    ps.setString(6, pd.getScriptLocation());
+                    ps.setString(7, pd.getSignature());
+                    ps.addBatch();
+                    if (++written[0] % batchSize == 0) {
+                        ps.executeBatch();
+                    }
+                }
+                if (written[0] % batchSize != 0) {
+                    ps.executeBatch();
+                }
+            }
+        });
+        logger.info(PatientDownloadableDAOImpl.class.getName() + ".info", () -> written[0] + " PatientDownloadable objects persisted in bulk");
+        return written[0];
+    }
+}
@@ -15,6 +15,7 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.util.List;
 import org.medipi.concentrator.entities.RecordingDeviceAttribute;
 import org.medipi.concentrator.entities.RecordingDeviceType;
 
@@ -33,4 +34,11 @@ public interface RecordingDeviceAttributeDAO extends GenericDAO<RecordingDeviceA
      * @return recording device attribute object 
      */
     public RecordingDeviceAttribute findByTypeUnitsFormatAndAttributeName(RecordingDeviceType typeId, String column, String units, String format);
+
+    /**
+     * Find all RecordingDeviceAttributes
+     *
+     * @return list of all recording device attribute objects
+     */
+    public List<RecordingDeviceAttribute> findAll();
 }
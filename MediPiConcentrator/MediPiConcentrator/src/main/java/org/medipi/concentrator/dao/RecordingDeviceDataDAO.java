@@ -15,11 +15,15 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.Date;
 import java.util.List;
 import org.medipi.concentrator.entities.RecordingDeviceData;
 import org.medipi.concentrator.entities.Patient;
 import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+import org.medipi.concentrator.entities.RecordingDeviceType;
 
 /**
  * Data Access Object interface for RecordingDeviceData
@@ -39,9 +43,155 @@ public interface RecordingDeviceDataDAO extends GenericDAO<RecordingDeviceData>
      */
     public List<RecordingDeviceData> isAlreadyStored(RecordingDeviceAttribute rda, Patient patient, String data, Date dataPointTime);
 
+    /**
+     * Method to return the identifying values of all the data points already
+     * persisted to the DB for a patient and device type within a time window.
+     * This allows a whole upload to be checked for duplicates using a single
+     * query
+     *
+     * @param patient patient
+     * @param rdt recordingDeviceType
+     * @param fromTime earliest data point time in the window (inclusive)
+     * @param toTime latest data point time in the window (inclusive)
+     * @return list of arrays of [attribute id, data value time, data value]
+     */
+    public List<Object[]> findStoredKeys(Patient patient, RecordingDeviceType rdt, Date fromTime, Date toTime);
+
     public List<RecordingDeviceData> findByPatientUuidAfterDate(String patientUuid, Date requestDate, String type);
 
     public RecordingDeviceData findByTypeAttributeAndData(String patientUuid, String type, String AttributeName, Date dataValueTime, String dataValue);
 
     public List<RecordingDeviceData> findByPatientAndDownloadedTime(String patientUuid, Date downloadedTime);
+
+    /**
+     * Method to stream all the data points downloaded after a given time for
+     * every patient in a patient group using a single query. The rows are read
+     * through a forward-only cursor of the configured fetch size and passed
+     * to the handler one at a time so that the result is never held in memory.
+     * Rows are ordered by patient and each holds the columns patient_uuid,
+     * data_id, data_value, data_value_time, downloaded_time,
+     * schedule_effective_time, schedule_expiry_time, attribute_id,
+     * attribute_name, attribute_type, attribute_units, type_id, type and
+     * subtype. This must be called within a transaction
+     *
+     * @param patientGroupUuid patient group UUID
+     * @param downloadedTime data points downloaded after this time are
+     * returned
+     * @param handler handler called for each row
+     * @return number of rows streamed
+     * @throws IOException if the handler fails to write a row
+     */
+    public int streamByPatientGroupAndDownloadedTime(String patientGroupUuid, Date downloadedTime, DataPointHandler handler) throws IOException;
+
+    /**
+     * Method to stream a page of the data points for every patient in a
+     * patient group in data_id order, starting after a given data_id and
+     * stopping before the committed data_id mark (see getCommittedDataIdMark).
+     * The rows have the same columns as streamByPatientGroupAndDownloadedTime
+     * but are ordered by data_id. No data point below the mark can become
+     * visible later, so the data_id of the last row streamed is a cursor from
+     * which the next page can be requested without missing or repeating any
+     * data point. This must be called within a transaction
+     *
+     * @param patientGroupUuid patient group UUID
+     * @param afterDataId data points with a data_id greater than this are
+     * returned
+     * @param beforeDataId data points with a data_id less than this are
+     * returned - the committed data_id mark
+     * @param limit maximum number of rows to stream
+     * @param handler handler called for each row
+     * @return number of rows streamed
+     * @throws IOException if the handler fails to write a row
+     */
+    public int streamByPatientGroupAfterDataId(String patientGroupUuid, long afterDataId, long beforeDataId, int limit, DataPointHandler handler) throws IOException;
+
+    /**
+     * Method to persist a list of data points in bulk. The data points are
+     * written directly through JDBC, either using PostgreSQL COPY (if enabled
+     * and available) or as JDBC batches of the configured batch size. Any
+     * pending changes in the persistence context are flushed first so that the
+     * referenced patient and attribute rows exist in the DB. The writer is
+     * registered as open until the end of the transaction so that readers by
+     * data_id cursor do not pass data points which are not yet visible
+     *
+     * @param rddList list of data points to be persisted
+     * @return number of data points written to the DB
+     */
+    public int saveBatch(List<RecordingDeviceData> rddList);
+
+    /**
+     * Method to persist data points grouped by reading. Each reading is
+     * written as a single recording_device_reading row with its values held in
+     * typed arrays, as JDBC batches of the configured batch size. The data
+     * points of a reading must share the same patient, device type and times.
+     * Any pending changes in the persistence context are flushed first. As for
+     * saveBatch, the writer is registered as open until the end of the
+     * transaction
+     *
+     * @param readings list of readings, each a list of the data points of the
+     * reading
+     * @return number of data points written to the DB
+     */
+    public int saveReadings(List<List<RecordingDeviceData>> readings);
+
+    /**
+     * Method to find whether data points are read through
+     * recording_device_data_view, which includes those stored as readings, or
+     * from recording_device_data alone. This is decided by the naming strategy
+     * with which the RecordingDeviceData entity is mapped
+     *
+     * @return true if readings can be stored and read
+     */
+    public boolean isReadingStorage();
+
+    /**
+     * Method to return the highest data_id allocated to data points written by
+     * saveBatch or saveReadings in the current transaction. This is the cursor
+     * up to which the transaction's data points will have been written once it
+     * commits
+     *
+     * @return highest data_id written in the current transaction
+     */
+    public long getLastWrittenDataId();
+
+    /**
+     * Method to return the highest data_id which has been allocated to any
+     * data point
+     *
+     * @return highest data_id allocated
+     */
+    public long getLatestDataId();
+
+    /**
+     * Method to return the committed data_id mark. Every data point with a
+     * data_id below the mark has either been committed or will never be, as
+     * the data_ids of writers which are still open and of those which have
+     * not yet started are all at or above it
+     *
+     * @return committed data_id mark
+     */
+    public long getCommittedDataIdMark();
+
+    /**
+     * Method to create the monthly partition of recording_device_data which
+     * holds data points downloaded in the given month (UTC) if it does not
+     * already exist. This is run in its own transaction
+     *
+     * @param month any date within the month
+     * @return name of the partition
+     */
+    public String createPartition(Date month);
+
+    /**
+     * Handler for the rows streamed by streamByPatientGroupAndDownloadedTime
+     */
+    public interface DataPointHandler {
+
+        /**
+         * @param rs result set positioned on the current row
+         * @throws IOException
+         * @throws SQLException
+         */
+        public void handle(ResultSet rs) throws IOException, SQLException;
+    }
 }
@@ -15,12 +15,37 @@
  */
 package org.medipi.concentrator.dao;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.metadata.ClassMetadata;
+import org.hibernate.persister.entity.AbstractEntityPersister;
 import org.medipi.concentrator.entities.RecordingDeviceData;
 import org.medipi.concentrator.entities.Patient;
+import org.medipi.concentrator.entities.ReadingStorageNamingStrategy;
 import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 
 /**
  * Implementation of the RecordingDeviceData data access object
@@ -30,6 +55,49 @@ import org.springframework.stereotype.Repository;
 @Repository
 public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceData> implements RecordingDeviceDataDAO {
 
+    private static final String INSERT_SQL = "INSERT INTO recording_device_data (attribute_id, data_value, patient_uuid, data_value_time, downloaded_time, schedule_effective_time, schedule_expiry_time) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String COPY_SQL = "COPY recording_device_data (attribute_id, data_value, patient_uuid, data_value_time, downloaded_time, schedule_effective_time, schedule_expiry_time) FROM STDIN WITH (FORMAT csv)";
+    // a data_id is allocated for every value of the reading so that it can be referenced through recording_device_data_view
+    private static final String INSERT_READING_SQL = "INSERT INTO recording_device_reading (type_id, patient_uuid, data_value_time, downloaded_time, schedule_effective_time, schedule_expiry_time, attribute_ids, numeric_values, text_values, data_ids) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ARRAY(SELECT nextval('recording_device_data_data_id_seq') FROM generate_series(1, ?)))";
+    // the data points are read from the table or, when readings are stored, the view named by the entity's mapping
+    private static final String STREAM_BY_GROUP_SQL = "SELECT d.patient_uuid, d.data_id, d.data_value, d.data_value_time, d.downloaded_time, d.schedule_effective_time, d.schedule_expiry_time, a.attribute_id, a.attribute_name, a.attribute_type, a.attribute_units, t.type_id, t.type, t.subtype"
+            + " FROM %s d JOIN patient p ON p.patient_uuid = d.patient_uuid JOIN recording_device_attribute a ON a.attribute_id = d.attribute_id JOIN recording_device_type t ON t.type_id = a.type_id"
+            + " WHERE p.patient_group_uuid = ? AND d.downloaded_time > ? ORDER BY d.patient_uuid";
+    private static final String STREAM_BY_GROUP_AFTER_DATA_ID_EAV_SQL = "SELECT d.patient_uuid, d.data_id, d.data_value, d.data_value_time, d.downloaded_time, d.schedule_effective_time, d.schedule_expiry_time, a.attribute_id, a.attribute_name, a.attribute_type, a.attribute_units, t.type_id, t.type, t.subtype"
+            + " FROM recording_device_data d JOIN patient p ON p.patient_uuid = d.patient_uuid JOIN recording_device_attribute a ON a.attribute_id = d.attribute_id JOIN recording_device_type t ON t.type_id = a.type_id"
+            + " WHERE d.data_id > ? AND d.data_id < ? AND p.patient_group_uuid = ? ORDER BY d.data_id LIMIT ?";
+    // the recording_device_data_view branches are queried directly so that both can be read in data_id order from their indexes
+    private static final String STREAM_BY_GROUP_AFTER_DATA_ID_SQL = "SELECT d.patient_uuid, d.data_id, d.data_value, d.data_value_time, d.downloaded_time, d.schedule_effective_time, d.schedule_expiry_time, a.attribute_id, a.attribute_name, a.attribute_type, a.attribute_units, t.type_id, t.type, t.subtype"
+            + " FROM (SELECT data_id, attribute_id, data_value, patient_uuid, data_value_time, downloaded_time, schedule_effective_time, schedule_expiry_time FROM recording_device_data WHERE data_id > ? AND data_id < ?"
+            + " UNION ALL SELECT r.data_ids[i], r.attribute_ids[i], COALESCE(r.text_values[i], r.numeric_values[i]::text), r.patient_uuid, r.data_value_time, r.downloaded_time, r.schedule_effective_time, r.schedule_expiry_time"
+            + " FROM recording_device_reading r, LATERAL generate_subscripts(r.attribute_ids, 1) AS i WHERE r.data_ids[array_upper(r.data_ids, 1)] > ? AND r.data_ids[i] > ? AND r.data_ids[i] < ?) d"
+            + " JOIN patient p ON p.patient_uuid = d.patient_uuid JOIN recording_device_attribute a ON a.attribute_id = d.attribute_id JOIN recording_device_type t ON t.type_id = a.type_id"
+            + " WHERE p.patient_group_uuid = ? ORDER BY d.data_id LIMIT ?";
+    // a shared advisory lock keyed by the data_id from which this writer's data_ids are allocated, held until the end of the transaction
+    private static final String OPEN_WRITE_SQL = "SELECT pg_advisory_xact_lock_shared(last_value) FROM recording_device_data_data_id_seq";
+    private static final String NEXT_DATA_ID_SQL = "SELECT last_value FROM recording_device_data_data_id_seq";
+    private static final String OPEN_WRITERS_MARK_SQL = "SELECT min((classid::bigint << 32) | objid::bigint) FROM pg_locks"
+            + " WHERE locktype = 'advisory' AND objsubid = 1 AND database = (SELECT oid FROM pg_database WHERE datname = current_database())";
+    private static final String LAST_WRITTEN_DATA_ID_SQL = "SELECT currval('recording_device_data_data_id_seq')";
+    private static final String LATEST_DATA_ID_SQL = "SELECT CASE WHEN is_called THEN last_value ELSE 0 END FROM recording_device_data_data_id_seq";
+    private static final String CREATE_PARTITION_SQL = "SELECT recording_device_data_create_partition(CAST(:month AS date))";
+    // plain decimal numbers which are stored as numeric and presented in exactly the same form by numeric::text
+    private static final Pattern NUMERIC_VALUE = Pattern.compile("-?(0|[1-9][0-9]{0,19})(\\.[0-9]{1,20})?");
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Value("${medipi.concentrator.db.batchsize:500}")
+    private int batchSize;
+
+    @Value("${medipi.concentrator.db.usecopy:true}")
+    private boolean useCopy;
+
+    @Value("${medipi.concentrator.db.fetchsize:1000}")
+    private int fetchSize;
+
+    private volatile Boolean readingStorage;
+
     @Override
     public List<RecordingDeviceData> isAlreadyStored(RecordingDeviceAttribute rda, Patient patient, String data, Date dataPointTime) {
         return this.getEntityManager().createNamedQuery("RecordingDeviceData.isAlreadyStored", RecordingDeviceData.class)
@@ -39,6 +107,16 @@ public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceDa
                 .setParameter("dataValueTime", dataPointTime)
                 .getResultList();
 
+    }
+    @Override
+    public List<Object[]> findStoredKeys(Patient patient, RecordingDeviceType rdt, Date fromTime, Date toTime) {
+        return this.getEntityManager().createNamedQuery("RecordingDeviceData.findStoredKeys", Object[].class)
+                .setParameter("patientUuid", patient)
+                .setParameter("typeId", rdt)
+                .setParameter("fromTime", fromTime)
+                .setParameter("toTime", toTime)
+                .getResultList();
+
     }
     @Override
     public List<RecordingDeviceData> findByPatientUuidAfterDate(String patientUuid, Date requestDate, String type) {
@@ -68,4 +146,322 @@ public class RecordingDeviceDataDAOImpl extends GenericDAOImpl<RecordingDeviceDa
                 .getResultList();
 
     }
+
+    @Override
+    public int streamByPatientGroupAndDownloadedTime(final String patientGroupUuid, final Date downloadedTime, final DataPointHandler handler) throws IOException {
+        final int[] streamed = {0};
+        try {
+            this.getEntityManager().unwrap(Session.class).doWork((Connection connection) -> {
+                // PostgreSQL only reads through a cursor for a forward-only statement with a fetch size outside autocommit
+                String sql = String.format(STREAM_BY_GROUP_SQL, isReadingStorage() ? ReadingStorageNamingStrategy.VIEW : ReadingStorageNamingStrategy.TABLE);
+                try (PreparedStatement ps = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    ps.setFetchSize(fetchSize);
+                    ps.setString(1, patientGroupUuid);
+                    ps.setTimestamp(2, toTimestamp(downloadedTime));
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            handler.handle(rs);
+                            streamed[0]++;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return streamed[0];
+    }
+
+    @Override
+    public int streamByPatientGroupAfterDataId(final String patientGroupUuid, final long afterDataId, final long beforeDataId, final int limit, final DataPointHandler handler) throws IOException {
+        final int[] streamed = {0};
+        try {
+            this.getEntityManager().unwrap(Session.class).doWork((Connection connection) -> {
+                boolean readings = isReadingStorage();
+                try (PreparedStatement ps = connection.prepareStatement(readings ? STREAM_BY_GROUP_AFTER_DATA_ID_SQL : STREAM_BY_GROUP_AFTER_DATA_ID_EAV_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+                    ps.setFetchSize(Math.min(fetchSize, limit));
+                    int i = 1;
+                    ps.setLong(i++, afterDataId);
+                    ps.setLong(i++, beforeDataId);
+                    if (readings) {
+                        ps.setLong(i++, afterDataId);
+                        ps.setLong(i++, afterDataId);
+                        ps.setLong(i++, beforeDataId);
+                    }
+                    ps.setString(i++, patientGroupUuid);
+                    ps.setInt(i, limit);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            handler.handle(rs);
+                            streamed[0]++;
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return streamed[0];
+    }
+
+    @Override
+    public int saveBatch(final List<RecordingDeviceData> rddList) {
+        if (rddList == null || rddList.isEmpty()) {
+            return 0;
+        }
+        // make sure that any newly created patients/types/attributes are in the DB before referencing them
+        this.getEntityManager().flush();
+        final int[] written = {0};
+        this.getEntityManager().unwrap(Session.class).doWork((Connection connection) -> {
+            openWrite(connection);
+            if (useCopy && connection.isWrapperFor(PGConnection.class)) {
+                written[0] = copyIn(connection.unwrap(PGConnection.class), rddList);
+            } else {
+                written[0] = batchInsert(connection, rddList);
+            }
+        });
+        logger.log(RecordingDeviceDataDAOImpl.class.getName() + ".info", () -> written[0] + " RecordingDeviceData objects persisted in bulk");
+        return written[0];
+    }
+
+    @Override
+    public int saveReadings(final List<List<RecordingDeviceData>> readings) {
+        if (readings == null || readings.isEmpty()) {
+            return 0;
+        }
+        // make sure that any newly created patients/types/attributes are in the DB before referencing them
+        this.getEntityManager().flush();
+        final int[] written = {0};
+        this.getEntityManager().unwrap(Session.class).doWork((Connection connection) -> {
+            openWrite(connection);
+            written[0] = batchInsertReadings(connection, readings);
+        });
+        logger.log(RecordingDeviceDataDAOImpl.class.getName() + ".info", () -> written[0] + " RecordingDeviceData objects persisted in bulk as " + readings.size() + " readings");
+        return written[0];
+    }
+
+    @Override
+    public boolean isReadingStorage() {
+        Boolean r = readingStorage;
+        if (r == null) {
+            ClassMetadata metadata = this.getEntityManager().getEntityManagerFactory().unwrap(SessionFactory.class).getClassMetadata(RecordingDeviceData.class);
+            // the table name is qualified with the default schema
+            r = metadata instanceof AbstractEntityPersister && ((AbstractEntityPersister) metadata).getTableName().endsWith(ReadingStorageNamingStrategy.VIEW);
+            readingStorage = r;
+        }
+        return r;
+    }
+
+    @Override
+    public long getLastWrittenDataId() {
+        return ((Number) this.getEntityManager().createNativeQuery(LAST_WRITTEN_DATA_ID_SQL).getSingleResult()).longValue();
+    }
+
+    @Override
+    public long getCommittedDataIdMark() {
+        final long[] mark = {0};
+        this.getEntityManager().unwrap(Session.class).doWork((Connection connection) -> {
+            // the sequence is read first - a writer which is not yet open then allocates data_ids from beyond it
+            try (PreparedStatement ps = connection.prepareStatement(NEXT_DATA_ID_SQL);
+                    ResultSet rs = ps.executeQuery()) {
+                rs.next();
+                mark[0] = rs.getLong(1);
+            }
+            try (PreparedStatement ps = connection.prepareStatement(OPEN_WRITERS_MARK_SQL);
+                    ResultSet rs = ps.executeQuery()) {
+                if (rs.next() && rs.getObject(1) != null) {
+                    mark[0] = Math.min(mark[0], rs.getLong(1));
+                }
+            }
+        });
+        return mark[0];
+    }
+
+    @Override
+    public long getLatestDataId() {
+        return ((Number) this.getEntityManager().createNativeQuery(LATEST_DATA_ID_SQL).getSingleResult()).longValue();
+    }
+
+    @Override
+    @Transactional(propagation = Propagation.REQUIRES_NEW, rollbackFor = RuntimeException.class)
+    public String createPartition(Date month) {
+        // the month is passed as a UTC date string so that the session timezone is irrelevant
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return (String) this.getEntityManager().createNativeQuery(CREATE_PARTITION_SQL)
+                .setParameter("month", dateFormat.format(month))
+                .getSingleResult();
+    }
+
+    /**
+     * Publish the data_id from which this transaction's data points will be
+     * allocated until the end of the transaction. data_ids are allocated from
+     * a sequence so a transaction which allocated lower data_ids can commit
+     * after one with higher data_ids. The shared advisory lock is visible to
+     * other sessions in pg_locks, so that readers by data_id cursor stop below
+     * the data_ids of any writer still open (see getCommittedDataIdMark).
+     * Shared locks do not block one another so writers still run concurrently
+     */
+    private void openWrite(Connection connection) throws SQLException {
+        try (PreparedStatement ps = connection.prepareStatement(OPEN_WRITE_SQL)) {
+            ps.execute();
+        }
+    }
+
+    private int batchInsertReadings(Connection connection, List<List<RecordingDeviceData>> readings) throws SQLException {
+        int count = 0;
+        int batched = 0;
+        try (PreparedStatement ps = connection.prepareStatement(INSERT_READING_SQL)) {
+            for (List<RecordingDeviceData> reading : readings) {
+                if (reading.isEmpty()) {
+                    continue;
+                }
+                RecordingDeviceData first = reading.get(0);
+                int size = reading.size();
+                Integer[] attributeIds = new Integer[size];
+                BigDecimal[] numericValues = new BigDecimal[size];
+                String[] textValues = new String[size];
+                boolean hasText = false;
+                for (int i = 0; i < size; i++) {
+                    RecordingDeviceData rdd = reading.get(i);
+                    attributeIds[i] = rdd.getAttributeId().getAttributeId();
+                    numericValues[i] = toNumeric(rdd.getDataValue());
+                    if (numericValues[i] == null) {
+                        textValues[i] = rdd.getDataValue();
+                        hasText = true;
+                    }
+                }
+                ps.setInt(1, first.getAttributeId().getTypeId().getTypeId());
+                ps.setString(2, first.getPatientUuid().getPatientUuid());
+                ps.setTimestamp(3, toTimestamp(first.getDataValueTime()));
+                ps.setTimestamp(4, toTimestamp(first.getDownloadedTime()));
+                setNullableTimestamp(ps, 5, first.getScheduleEffectiveTime());
+                setNullableTimestamp(ps, 6, first.getScheduleExpiryTime());
+                ps.setArray(7, connection.createArrayOf("int4", attributeIds));
+                ps.setArray(8, connection.createArrayOf("numeric", numericValues));
+                if (hasText) {
+                    ps.setArray(9, connection.createArrayOf("varchar", textValues));
+                } else {
+                    ps.setNull(9, Types.ARRAY);
+                }
+                ps.setInt(10, size);
+                ps.addBatch();
+                count += size;
+                if (++batched % batchSize == 0) {
+                    ps.executeBatch();
+                }
+            }
+            if (batched % batchSize != 0) {
+                ps.executeBatch();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Convert a data value to numeric if numeric::text will give back exactly
+     * the same string - otherwise it is stored as text
+     */
+    static BigDecimal toNumeric(String value) {
+        if (value == null || !NUMERIC_VALUE.matcher(value).matches()) {
+            return null;
+        }
+        BigDecimal bd = new BigDecimal(value);
+        // -0 would be presented as 0
+        if (bd.signum() == 0 && value.charAt(0) == '-') {
+            return null;
+        }
+        return bd;
+    }
+
+    private int batchInsert(Connection connection, List<RecordingDeviceData> rddList) throws SQLException {
+        int count = 0;
+        try (PreparedStatement ps = connection.prepareStatement(INSERT_SQL)) {
+            for (RecordingDeviceData rdd : rddList) {
+                ps.setInt(1, rdd.getAttributeId().getAttributeId());
+                ps.setString(2, rdd.getDataValue());
+                ps.setString(3, rdd.getPatientUuid().getPatientUuid());
+                ps.setTimestamp(4, toTimestamp(rdd.getDataValueTime()));
+                ps.setTimestamp(5, toTimestamp(rdd.getDownloadedTime()));
+                setNullableTimestamp(ps, 6, rdd.getScheduleEffectiveTime());
+                setNullableTimestamp(ps, 7, rdd.getScheduleExpiryTime());
+                ps.addBatch();
+                if (++count % batchSize == 0) {
+                    ps.executeBatch();
+                }
+            }
+            if (count % batchSize != 0) {
+                ps.executeBatch();
+            }
+        }
+        return count;
+    }
+
+    private int copyIn(PGConnection connection, List<RecordingDeviceData> rddList) throws SQLException {
+        // All timestamps are written as UTC with an explicit offset so that the session timezone is irrelevant
+        SimpleDateFormat tsFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSSXXX");
+        tsFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        int count = 0;
+        StringBuilder sb = new StringBuilder();
+        for (RecordingDeviceData rdd : rddList) {
+            sb.append(rdd.getAttributeId().getAttributeId()).append(',');
+            appendCsvText(sb, rdd.getDataValue()).append(',');
+            appendCsvText(sb, rdd.getPatientUuid().getPatientUuid()).append(',');
+            sb.append(tsFormat.format(rdd.getDataValueTime())).append(',');
+            sb.append(tsFormat.format(rdd.getDownloadedTime())).append(',');
+            if (rdd.getScheduleEffectiveTime() != null) {
+                sb.append(tsFormat.format(rdd.getScheduleEffectiveTime()));
+            }
+            sb.append(',');
+            if (rdd.getScheduleExpiryTime() != null) {
+                sb.append(tsFormat.format(rdd.getScheduleExpiryTime()));
+            }
+            sb.append('\n');
+            // send the rows to the server in chunks of the configured batch size
+            if (++count % batchSize == 0) {
+                copyChunk(connection, sb);
+            }
+        }
+        if (sb.length() != 0) {
+            copyChunk(connection, sb);
+        }
+        return count;
+    }
+
+    private void copyChunk(PGConnection connection, StringBuilder sb) throws SQLException {
+        try {
+            connection.getCopyAPI().copyIn(COPY_SQL, new StringReader(sb.toString()));
+        } catch (IOException e) {
+            throw new SQLException("Unable to COPY data into recording_device_data", e);
+        }
+        sb.setLength(0);
+    }
+
+    static StringBuilder appendCsvText(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        return sb.append('"');
+    }
+
+    private void setNullableTimestamp(PreparedStatement ps, int index, Date date) throws SQLException {
+        if (date == null) {
+            ps.setNull(index, Types.TIMESTAMP);
+        } else {
+            ps.setTimestamp(index, toTimestamp(date));
+        }
+    }
+
+    private Timestamp toTimestamp(Date date) {
+        return new Timestamp(date.getTime());
+    }
 }
@@ -29,4 +29,6 @@ public interface RecordingDeviceTypeDAO extends GenericDAO<RecordingDeviceType>
 
     public List<String> findByPatient(String patientUuid);
     public RecordingDeviceType findByType(String type);
+
+    public List<RecordingDeviceType> findAll();
 }
@@ -46,4 +46,9 @@ public class RecordingDeviceTypeDAOImpl extends GenericDAOImpl<RecordingDeviceTy
                 .setParameter("type", type)
                 .getSingleResult();
     }
+    @Override
+    public List<RecordingDeviceType> findAll() {
+        return this.getEntityManager().createNamedQuery("RecordingDeviceType.findAll", RecordingDeviceType.class)
+                .getResultList();
+    }
 }
\ No newline at end of file
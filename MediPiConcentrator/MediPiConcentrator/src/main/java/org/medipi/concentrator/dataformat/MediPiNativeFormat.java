@@ -15,19 +15,14 @@
  */
 package org.medipi.concentrator.dataformat;
 
-import com.fasterxml.jackson.databind.util.ISO8601DateFormat;
-import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import javax.persistence.EntityExistsException;
 import org.medipi.concentrator.dao.RecordingDeviceDataDAOImpl;
-import org.medipi.concentrator.dao.RecordingDeviceAttributeDAOImpl;
-import org.medipi.concentrator.dao.RecordingDeviceTypeDAOImpl;
+import org.medipi.concentrator.entities.ReadingStorageNamingStrategy;
 import org.medipi.concentrator.entities.RecordingDeviceData;
 import org.medipi.concentrator.entities.Patient;
 import org.medipi.concentrator.entities.RecordingDeviceAttribute;
@@ -35,10 +30,17 @@ import org.medipi.concentrator.entities.RecordingDeviceType;
 import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.metrics.MetricsRegistry;
+import org.medipi.concentrator.tracing.UploadTrace;
+import org.medipi.concentrator.tracing.UploadTracer;
+import org.medipi.concentrator.model.DataChangeDO;
+import org.medipi.concentrator.services.DataChangeFeedService;
+import org.medipi.concentrator.services.RecordingDeviceDictionaryService;
+import org.medipi.concentrator.utilities.ISO8601Parser;
+import org.medipi.concentrator.utilities.Utilities;
 import org.medipi.model.DeviceDataDO;
 import org.medipi.model.DevicesPayloadDO;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -56,16 +58,22 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
 
     private String classToken;
     private final MediPiLogger logger = MediPiLogger.getInstance();
-    private String trackingId;
+    private String storageMode = EAVSTORAGE;
 
     @Autowired
-    private RecordingDeviceTypeDAOImpl recordingDeviceTypeDAO;
+    private RecordingDeviceDictionaryService recordingDeviceDictionary;
 
     @Autowired
-    private RecordingDeviceAttributeDAOImpl recordingDeviceAttributeDAO;
+    private RecordingDeviceDataDAOImpl recordingDeviceDataDAO;
 
     @Autowired
-    private RecordingDeviceDataDAOImpl recordingDeviceDataDAO;
+    private DataChangeFeedService dataChangeFeedService;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    @Autowired
+    private UploadTracer tracer;
 
     @Override
     public void setClassToken(String classToken) {
@@ -74,6 +82,19 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
 
     @Override
     public String init() {
+        // the data points are stored either one per row (default) or one reading per row
+        String storage = Utilities.getInstance().getProperties().getProperty("medipi.concentrator.dataformat." + classToken + ".storage");
+        if (storage != null && storage.trim().length() != 0) {
+            storageMode = storage.trim().toLowerCase();
+            if (!storageMode.equals(EAVSTORAGE) && !storageMode.equals(READINGSTORAGE)) {
+                return "Unknown storage mode for data format " + classToken + ": " + storage;
+            }
+        }
+        // readings are only seen by the duplicate checks and data requests when they are read through recording_device_data_view
+        if (storageMode.equals(READINGSTORAGE) && !recordingDeviceDataDAO.isReadingStorage()) {
+            return "Data format " + classToken + " stores readings but recording_device_data is not read through " + ReadingStorageNamingStrategy.VIEW + " - set spring.jpa.hibernate.naming_strategy=" + ReadingStorageNamingStrategy.class.getName();
+        }
+        logger.log(MediPiNativeFormat.class.getName(), "Data format " + classToken + " using storage mode: " + storageMode);
         return null;
     }
 
@@ -84,198 +105,145 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
         List<DeviceDataDO> p = content.getPayload();
 
         if (p != null) {
+            // the upload UUID ties these log lines to the trace of the upload
+            String trackingId = tracer.currentUploadUuid();
             // Added data to the database - the design of the DB is that these are individual data points NOT rows of data
             int totalRowsWrittenToDB = 0;
+            // subscribed clinical systems are notified of the new data once it has been committed
+            List<DataChangeDO> changes = new ArrayList<>();
             // Loop through each of the data Payloads
             for (DeviceDataDO pay : p) {
-                if (pay == null) {
-                    //Unable to parse device's content
-                    throwBadRequest400("Unable to decrypt the content of the payload");
+                long parseStart = System.nanoTime();
+                try (UploadTrace.Span payloadSpan = tracer.span("payload")) {
+                    int rowsWrittenToDBPerPayload = 0;
+                    // data points are collected row by row for the whole payload,
+                    // checked for duplicates in one pass and written to the DB in bulk
+                    List<List<RecordingDeviceData>> parsedRows = new ArrayList<>();
+                    Date earliestDataPointTime = null;
+                    Date latestDataPointTime = null;
+                    // the metadata header is compiled into a schema once per payload
+                    MediPiNativeSchema schema = new MediPiNativeSchema();
+                    // get the device type e.g. Oximeter
+                    String type = null;
+                    try (UploadTrace.Span parseSpan = tracer.span("parse")) {
+                        if (pay == null) {
+                            //Unable to parse device's content
+                            throwBadRequest400("Unable to decrypt the content of the payload");
 
-                }
-                int rowsWrittenToDBPerPayload = 0;
-                String subtype = null;
-                String datadelimeter = null;
-                String[] columnsArray = null;
-                String[] formatArray = null;
-                String[] unitsArray = null;
-                Date scheduleeffectivedate = null;
-                Date scheduleexpirydate = null;
-                // get the device type e.g. Oximeter
-                String type = null;
-                try {
-                    type = pay.getProfileId().substring(pay.getProfileId().lastIndexOf(":") + 1, pay.getProfileId().length());
-                    if (type == null || type.trim().length() == 0) {
-                        throwBadRequest400("Unable to parse the content from the payload");
-                    }
-                } catch (IndexOutOfBoundsException e) {
-                    throwBadRequest400("Unable to parse the content from the payload");
-                }
-                BufferedReader br = null;
-                try {
-                    //Read the Device's content
-                    br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(pay.getPayload().getBytes())));
-                } catch (Exception e) {
-                    //Unable to parse device's content
-                    throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
-                }
-                logger.log(MediPiNativeFormat.class.getName(), new Date().toString() + " Payload device: " + type + ". Device data uuid:" + pay.getDeviceDataUuid());
-                try {
-                    String line;
-                    Boolean readAllMetadata = false;
-                    RecordingDeviceType rdt = null;
-                    while ((line = br.readLine()) != null) {
-
-                        String[] metaSplit = line.split("->");
-                        if (metaSplit[0].equals("metadata")) {
-                            // Found metadata
-                            if (metaSplit[1].equals("persist")) {
-                                //Data to be stored againast the delta of the whole downloaded dataset
-                                persistentMetadata.put(metaSplit[2], metaSplit[3]);
-                                if (metaSplit.length > 4) {
-                                    throwBadRequest400("Failed to parse metadata->persist: " + line + "in payload: " + pay.getProfileId());
+                        }
+                        try {
+                            type = pay.getProfileId().substring(pay.getProfileId().lastIndexOf(":") + 1, pay.getProfileId().length());
+                            if (type == null || type.trim().length() == 0) {
+                                throwBadRequest400("Unable to parse the content from the payload");
+                            }
+                        } catch (IndexOutOfBoundsException e) {
+                            throwBadRequest400("Unable to parse the content from the payload");
+                        }
+                        if (pay.getPayload() == null) {
+                            //Unable to parse device's content
+                            throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
+                        }
+                        //Read the Device's content in place
+                        MediPiNativePayloadParser parser = new MediPiNativePayloadParser(pay.getPayload());
+                        final String payloadType = type;
+                        logger.log(MediPiNativeFormat.class.getName(), () -> "Payload device: " + payloadType + ". Device data uuid:" + pay.getDeviceDataUuid());
+                        // Set the timedownloaded value in order to mark 
+                        //(using a trusted, recently synchronised timestamp 
+                        // for clinical systems to guage if data has been downloaded)
+                        Date downloadedTime = new Date();
+                        while (parser.nextLine()) {
+                            if (parser.isMetadata()) {
+                                // Found metadata
+                                if (schema.isCompiled()) {
+                                    throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " metadata found after data");
                                 }
+                                readMetadata(parser.metadataFields(), schema, persistentMetadata, type, pay.getProfileId());
                             } else {
-                                //Other metadata
-                                System.out.println(metaSplit[1]);
-                                switch (metaSplit[1]) {
-                                    case "datadelimiter":
-                                        datadelimeter = metaSplit[2];
-                                        // if delimeter is a special regex charater then prpend with a double //
-                                        if ("\\.[]{}()*+-?^$|".contains(datadelimeter)) {
-                                            datadelimeter = "\\" + datadelimeter;
-                                        }
-                                        break;
-                                    case "subtype":
-                                        subtype = metaSplit[2];
-                                        break;
-                                    case "columns":
-                                        columnsArray = metaSplit[2].split(datadelimeter);
-                                        if (columnsArray == null || !columnsArray[0].equals("iso8601time")) {
-                                            throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " iso8601date field is not the first column");
-                                        }
-                                        break;
-                                    case "format":
-                                        formatArray = metaSplit[2].split(datadelimeter);
-                                        if (formatArray == null || !formatArray[0].equals("DATE")) {
-                                            throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " iso8601date field is not in the correct format");
-                                        }
-                                        break;
-                                    case "units":
-                                        unitsArray = metaSplit[2].split(datadelimeter);
-                                        if (unitsArray == null) {
-                                            throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId() + " units field is not in the correct format");
-                                        }
-                                        break;
-                                    case "scheduleeffectivedate":
+                                // It's data
+                                if (!schema.isCompiled()) {
+                                    checkMetadata(schema.getSubtype(), schema.getDataDelimiter(), schema.getColumns(), schema.getFormats(), schema.getUnits());
+                                    // need to find the type and attributes - only needs to be done once per payload
+                                    schema.compile(this.recordingDeviceDictionary, type);
+                                }
+                                String[] columnsArray = schema.getColumns();
+                                List<RecordingDeviceData> row = new ArrayList<>(columnsArray.length);
+                                int columnNo = 0;
+                                Date dataPointTime = null;
+                                while (parser.nextField(schema.getDataDelimiter())) {
+                                    if (columnNo == 0) {
                                         try {
-                                            scheduleeffectivedate = new ISO8601DateFormat().parse(metaSplit[2]);
+                                            // The concentrator expects the incoming string representation of the time to be UTC in ISO
+                                            dataPointTime = new Date(parser.fieldAsISO8601());
                                         } catch (ParseException ex) {
-                                            throwBadRequest400("scheduleeffectivedate for device: " + type + " " + subtype + " metatdata->scheduleeffectivedate is in an invalid format");
+                                            throwBadRequest400("Datapoint time for device: " + type + " " + schema.getSubtype() + " is in an invalid format: " + parser.field());
                                         }
-                                        break;
-                                    case "scheduleexpirydate":
-                                        try {
-                                            scheduleexpirydate = new ISO8601DateFormat().parse(metaSplit[2]);
-                                        } catch (ParseException ex) {
-                                            throwBadRequest400("scheduleexpirydate for device: " + type + " " + subtype + " metatdata->scheduleexpirydate is in an invalid format");
+                                        if (earliestDataPointTime == null || dataPointTime.before(earliestDataPointTime)) {
+                                            earliestDataPointTime = dataPointTime;
                                         }
-                                        break;
-                                    default:
-                                        // Fail - bad data
-                                        throwBadRequest400("Failed to parse metadata in payload: " + pay.getProfileId());
-                                }
-                            }
-
-                        } else if (readAllMetadata || checkMetadata(subtype, datadelimeter, columnsArray, formatArray, unitsArray)) {
-                            readAllMetadata = true;
-                            // It's data
-                            if (rdt == null) {
-                                // need to find the type - only needs to be done once per device type
-                                // Check to find the device in the device_type table
-                                try {
-                                    rdt = this.recordingDeviceTypeDAO.findBytypeAndSubtype(type, subtype);
-                                } catch (EmptyResultDataAccessException e) {
-                                    // Device does NOT exist in the database
-                                    // if not in db add it
-                                    rdt = updateRecordingDeviceType(rdt, type, subtype);
-                                }
-                            }
-                            String[] dataArray = line.split(datadelimeter);
-                            int columnNo = 0;
-                            Date dataPointTime = null;
-                            for (String data : dataArray) {
-                                if (columnNo == 0) {
-                                    try {
-                                        // The concentrator expects the incoming string representation of the time to be UTC in ISO
-                                        dataPointTime = new ISO8601DateFormat().parse(data);
-                                    } catch (ParseException ex) {
-                                        throwBadRequest400("Datapoint time for device: " + type + " " + subtype + " is in an invalid format: " + data);
-                                    }
-                                } else {
-                                    RecordingDeviceAttribute rda = null;
-                                    try {
-                                        rda = this.recordingDeviceAttributeDAO.findByTypeUnitsFormatAndAttributeName(rdt, columnsArray[columnNo], unitsArray[columnNo], formatArray[columnNo]);
-                                    } catch (EmptyResultDataAccessException e) {
-                                        // Attribute Name does NOT exist in the database
-                                        // add new entry to DB
-                                        rda = updateRecordingDeviceAttribute(rda, rdt, columnsArray[columnNo], unitsArray[columnNo], formatArray[columnNo]);
-                                    }
-                                    //First check for duplicates - this is only to record the delta on machines with storage
-                                    boolean writeData = false;
-                                    List<RecordingDeviceData> dd = null;
-                                    try {
-                                        dd = this.recordingDeviceDataDAO.isAlreadyStored(rda, patient, data, dataPointTime);
-                                        if (dd.isEmpty()) {
-                                            writeData = true;
-                                        } else {
-                                            break;
+                                        if (latestDataPointTime == null || dataPointTime.after(latestDataPointTime)) {
+                                            latestDataPointTime = dataPointTime;
                                         }
-                                    } catch (Exception e) {
-                                        break;
-                                    }
-
-                                    //Now that the attribute id is found write device data
-                                    if (rda != null && writeData) {
-                                        RecordingDeviceData d = new RecordingDeviceData();
-                                        d.setAttributeId(rda);
-                                        d.setPatientUuid(patient);
-                                        d.setDataValue(data);
-                                        d.setDataValueTime(dataPointTime);
-                                        // Set the timedownloaded value in order to mark 
-                                        //(using a trusted, recently synchronised timestamp 
-                                        // for clinical systems to guage if data has been downloaded)
-                                        d.setDownloadedTime(new Date());
-                                        d.setScheduleEffectiveTime(scheduleeffectivedate);
-                                        d.setScheduleExpiryTime(scheduleexpirydate);
-
-                                        try {
-                                            this.recordingDeviceDataDAO.save(d);
-                                            rowsWrittenToDBPerPayload++;
-                                            totalRowsWrittenToDB++;
-                                        } catch (Exception e) {
-                                            logger.log(MediPiNativeFormat.class.getName() + ".dbIssue", "Attempt to write data for " + type + " to DB failed");
-                                            throw new InternalServerError500Exception("Attempt to write data for " + type + " to DB failed");
-
+                                    } else if (columnNo >= columnsArray.length) {
+                                        throwBadRequest400("Data line for device: " + type + " " + schema.getSubtype() + " has more columns than defined in metadata->columns");
+                                    } else {
+                                        RecordingDeviceAttribute rda = schema.getAttribute(columnNo);
+                                        //Now that the attribute id is found queue the device data for the duplicate check
+                                        if (rda != null) {
+                                            RecordingDeviceData d = new RecordingDeviceData();
+                                            d.setAttributeId(rda);
+                                            d.setPatientUuid(patient);
+                                            d.setDataValue(parser.field());
+                                            d.setDataValueTime(dataPointTime);
+                                            d.setDownloadedTime(downloadedTime);
+                                            d.setScheduleEffectiveTime(schema.getScheduleEffectiveDate());
+                                            d.setScheduleExpiryTime(schema.getScheduleExpiryDate());
+                                            row.add(d);
                                         }
                                     }
-
+                                    columnNo++;
                                 }
-                                columnNo++;
-
+                                parsedRows.add(row);
                             }
-                        } else {
-                            throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
                         }
+                        parseSpan.setRows(parsedRows.size()).succeeded();
                     }
-                    // failure in reading bufferedReader
-                } catch (IOException e) {
-                    throwBadRequest400("Unable to parse the content from the payload with profile Id: " + pay.getProfileId());
+                    long persistStart = System.nanoTime();
+                    metrics.stage(MetricsRegistry.STAGE_PARSE).record(persistStart - parseStart);
+                    payloadSpan.setDetail(type);
+                    try (UploadTrace.Span persistSpan = tracer.span("persist")) {
+                        List<List<RecordingDeviceData>> pendingRows = removeDuplicates(parsedRows, patient, schema.getRecordingDeviceType(), earliestDataPointTime, latestDataPointTime);
+                        try {
+                            if (storageMode.equals(READINGSTORAGE)) {
+                                rowsWrittenToDBPerPayload = this.recordingDeviceDataDAO.saveReadings(pendingRows);
+                            } else {
+                                List<RecordingDeviceData> pendingData = new ArrayList<>();
+                                for (List<RecordingDeviceData> row : pendingRows) {
+                                    pendingData.addAll(row);
+                                }
+                                rowsWrittenToDBPerPayload = this.recordingDeviceDataDAO.saveBatch(pendingData);
+                            }
+                            totalRowsWrittenToDB += rowsWrittenToDBPerPayload;
+                            metrics.stage(MetricsRegistry.STAGE_PERSIST).recordSince(persistStart);
+                            metrics.counter("medipi_rows_written_total", "Rows of data written to the DB").add(rowsWrittenToDBPerPayload);
+                            if (rowsWrittenToDBPerPayload > 0) {
+                                changes.add(new DataChangeDO(patient.getPatientUuid(), type, Long.toString(this.recordingDeviceDataDAO.getLastWrittenDataId())));
+                            }
+                        } catch (Exception e) {
+                            logger.log(MediPiNativeFormat.class.getName() + ".dbIssue", "Attempt to write data for " + type + " to DB failed");
+                            throw new InternalServerError500Exception("Attempt to write data for " + type + " to DB failed");
+                        }
+                        final int rows = rowsWrittenToDBPerPayload;
+                        final String payloadType = type;
+                        logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", () -> rows + " rows of data written to the DB for payload: " + payloadType);
+                        persistSpan.setRows(rowsWrittenToDBPerPayload).succeeded();
+                    }
+                    payloadSpan.setRows(rowsWrittenToDBPerPayload).succeeded();
                 }
-                logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", rowsWrittenToDBPerPayload + " rows of data written to the DB for payload: " + type);
 
             }
-            logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", totalRowsWrittenToDB + " rows of data written to the DB in total for transaction covered by trackingID: " + trackingId);
+            dataChangeFeedService.publishAfterCommit(patient, changes);
+            final int totalRows = totalRowsWrittenToDB;
+            logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", () -> totalRows + " rows of data written to the DB in total for transaction covered by trackingID: " + trackingId);
             if (totalRowsWrittenToDB == 0) {
                 // should any particular response be made for no data added to db for any payload?
             }
@@ -287,33 +255,59 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
         return true;
     }
 
-    @Transactional
-    private RecordingDeviceType updateRecordingDeviceType(RecordingDeviceType rdt, String type, String subtype) {
+    /**
+     * Check the parsed rows of a payload for data points which have already
+     * been persisted - this is only to record the delta on machines with
+     * storage which resend their whole history. All the stored data points for
+     * the patient and device type within the time window of the payload are
+     * loaded in a single query and the rows are filtered in memory. As before,
+     * once a duplicate is found the remainder of that row is not written
+     *
+     * @param parsedRows data points of the payload grouped by row
+     * @param patient patient
+     * @param rdt recordingDeviceType of the payload
+     * @param earliest earliest data point time in the payload
+     * @param latest latest data point time in the payload
+     * @return data points to be written to the DB grouped by row
+     */
+    List<List<RecordingDeviceData>> removeDuplicates(List<List<RecordingDeviceData>> parsedRows, Patient patient, RecordingDeviceType rdt, Date earliest, Date latest) {
+        List<List<RecordingDeviceData>> pendingRows = new ArrayList<>();
+        if (parsedRows.isEmpty() || rdt == null) {
+            return pendingRows;
+        }
+        HashSet<String> knownKeys = new HashSet<>();
         try {
-            rdt = new RecordingDeviceType();
-            rdt.setType(type);
-            rdt.setSubtype(subtype);
-            recordingDeviceTypeDAO.save(rdt);
-        } catch (EntityExistsException e) {
-            throwBadRequest400("Device: " + type + " " + subtype + " already exists in RECORDING_DEVICE_TYPE table in the DB");
+            for (Object[] stored : this.recordingDeviceDataDAO.findStoredKeys(patient, rdt, earliest, latest)) {
+                knownKeys.add(dataPointKey((Integer) stored[0], (Date) stored[1], (String) stored[2]));
+            }
+        } catch (Exception e) {
+            logger.log(MediPiNativeFormat.class.getName() + ".dbIssue", "Attempt to check for duplicate data for " + rdt.getType() + " failed");
+            throw new InternalServerError500Exception("Attempt to check for duplicate data for " + rdt.getType() + " failed");
         }
-        return rdt;
-
+        int duplicates = 0;
+        for (List<RecordingDeviceData> row : parsedRows) {
+            List<RecordingDeviceData> pendingRow = new ArrayList<>(row.size());
+            for (RecordingDeviceData d : row) {
+                // data points earlier in the same payload are added to the set as they are accepted
+                if (!knownKeys.add(dataPointKey(d.getAttributeId().getAttributeId(), d.getDataValueTime(), d.getDataValue()))) {
+                    duplicates++;
+                    break;
+                }
+                pendingRow.add(d);
+            }
+            if (!pendingRow.isEmpty()) {
+                pendingRows.add(pendingRow);
+            }
+        }
+        metrics.counter("medipi_dedup_rows_checked_total", "Rows of data checked for duplicates before being written").add(parsedRows.size());
+        metrics.counter("medipi_dedup_rows_duplicate_total", "Rows of data found to be already stored").add(duplicates);
+        final int duplicateRows = duplicates;
+        logger.log(MediPiNativeFormat.class.getName() + ".dbInfo", () -> duplicateRows + " rows of data already stored for payload: " + rdt.getType());
+        return pendingRows;
     }
 
-    @Transactional
-    private RecordingDeviceAttribute updateRecordingDeviceAttribute(RecordingDeviceAttribute rda, RecordingDeviceType rdt, String attributeName, String attributeUnits, String attributeType) {
-        try {
-            rda = new RecordingDeviceAttribute();
-            rda.setAttributeName(attributeName);
-            rda.setAttributeType(attributeType);
-            rda.setAttributeUnits(attributeUnits);
-            rda.setTypeId(rdt);
-            recordingDeviceAttributeDAO.save(rda);
-        } catch (EntityExistsException e) {
-            throwBadRequest400("Attribute: " + attributeName + attributeUnits + attributeType + " already exists for device " + attributeName + " " + attributeUnits + " " + attributeType + " in RECORDING_DEVICE_ATTRIBUTE table in the DB");
-        }
-        return rda;
+    private String dataPointKey(Integer attributeId, Date dataValueTime, String dataValue) {
+        return attributeId + "|" + dataValueTime.getTime() + "|" + dataValue;
     }
 
     private void throwBadRequest400(String message) throws BadRequest400Exception {
@@ -325,6 +319,80 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
         throw new BadRequest400Exception(message);
     }
 
+    /**
+     * Read a single metadata line into the payload's schema
+     *
+     * @param metaSplit the elements of the metadata line following "metadata->"
+     * @param schema the schema of the payload being read
+     * @param persistentMetadata metadata to be stored against the whole
+     * downloaded dataset
+     * @param type device type of the payload
+     * @param profileId profile id of the payload
+     */
+    private void readMetadata(String[] metaSplit, MediPiNativeSchema schema, HashMap<String, String> persistentMetadata, String type, String profileId) {
+        if (metaSplit.length < 2) {
+            throwBadRequest400("Failed to parse metadata in payload: " + profileId);
+        }
+        if (metaSplit[0].equals("persist")) {
+            //Data to be stored againast the delta of the whole downloaded dataset
+            if (metaSplit.length != 3) {
+                throwBadRequest400("Failed to parse metadata->persist in payload: " + profileId);
+            }
+            persistentMetadata.put(metaSplit[1], metaSplit[2]);
+            return;
+        }
+        //Other metadata
+        switch (metaSplit[0]) {
+            case "datadelimiter":
+                schema.setDataDelimiter(metaSplit[1]);
+                break;
+            case "subtype":
+                schema.setSubtype(metaSplit[1]);
+                break;
+            case "columns":
+                if (schema.getDataDelimiter() == null) {
+                    throwBadRequest400("Failed to parse metadata in payload: " + profileId + " metadata->datadelimiter must precede metadata->columns");
+                }
+                schema.setColumns(MediPiNativePayloadParser.split(metaSplit[1], schema.getDataDelimiter()));
+                if (schema.getColumns().length == 0 || !schema.getColumns()[0].equals("iso8601time")) {
+                    throwBadRequest400("Failed to parse metadata in payload: " + profileId + " iso8601date field is not the first column");
+                }
+                break;
+            case "format":
+                if (schema.getDataDelimiter() == null) {
+                    throwBadRequest400("Failed to parse metadata in payload: " + profileId + " metadata->datadelimiter must precede metadata->format");
+                }
+                schema.setFormats(MediPiNativePayloadParser.split(metaSplit[1], schema.getDataDelimiter()));
+                if (schema.getFormats().length == 0 || !schema.getFormats()[0].equals("DATE")) {
+                    throwBadRequest400("Failed to parse metadata in payload: " + profileId + " iso8601date field is not in the correct format");
+                }
+                break;
+            case "units":
+                if (schema.getDataDelimiter() == null) {
+                    throwBadRequest400("Failed to parse metadata in payload: " + profileId + " metadata->datadelimiter must precede metadata->units");
+                }
+                schema.setUnits(MediPiNativePayloadParser.split(metaSplit[1], schema.getDataDelimiter()));
+                break;
+            case "scheduleeffectivedate":
+                try {
+                    schema.setScheduleEffectiveDate(new Date(ISO8601Parser.parse(metaSplit[1])));
+                } catch (ParseException ex) {
+                    throwBadRequest400("scheduleeffectivedate for device: " + type + " " + schema.getSubtype() + " metatdata->scheduleeffectivedate is in an invalid format");
+                }
+                break;
+            case "scheduleexpirydate":
+                try {
+                    schema.setScheduleExpiryDate(new Date(ISO8601Parser.parse(metaSplit[1])));
+                } catch (ParseException ex) {
+                    throwBadRequest400("scheduleexpirydate for device: " + type + " " + schema.getSubtype() + " metatdata->scheduleexpirydate is in an invalid format");
+                }
+                break;
+            default:
+                // Fail - bad data
+                throwBadRequest400("Failed to parse metadata in payload: " + profileId);
+        }
+    }
+
     private boolean checkMetadata(String device, String datadelimiter, String[] columns, String[] format, String[] units) {
         //what is the minimum metadata required?
         StringBuilder nullContent = new StringBuilder();
@@ -346,6 +414,9 @@ public class MediPiNativeFormat extends PatientUploadDataFormat {
         if (columns != null && format != null && columns.length != format.length) {
             nullContent.append("metadata->columns and metadata->format have different number of elements ");
         }
+        if (columns != null && units != null && columns.length != units.length) {
+            nullContent.append("metadata->columns and metadata->units have different number of elements ");
+        }
 
         if (nullContent.length() != 0) {
             throwBadRequest400("Insufficient Metadata - Metadata in error: " + nullContent);
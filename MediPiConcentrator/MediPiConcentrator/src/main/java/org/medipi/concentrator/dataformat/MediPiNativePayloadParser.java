@@ -0,0 +1,223 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dataformat;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import org.medipi.concentrator.utilities.ISO8601Parser;
+
+/**
+ * Tokeniser for the MediPi Native payload format. The payload is scanned in
+ * place - lines and fields are located by index over the payload's character
+ * sequence so that no intermediate byte arrays, readers or regex splits are
+ * needed and only the data values themselves are copied into new Strings.
+ *
+ * Lines are terminated by \n, \r\n or \r and empty lines are skipped. Lines
+ * beginning "metadata->" are metadata lines; all others are data lines whose
+ * fields are separated by the data delimiter declared in the metadata. The
+ * delimiter is treated literally
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MediPiNativePayloadParser {
+
+    private static final String METADATA_PREFIX = "metadata->";
+    private static final String METADATA_SEPARATOR = "->";
+
+    private final CharSequence payload;
+    private final int length;
+    private int position = 0;
+    private int lineStart = 0;
+    private int lineEnd = 0;
+    private int fieldStart = 0;
+    private int fieldEnd = 0;
+    private int fieldPosition = -1;
+
+    /**
+     * Constructor
+     *
+     * @param payload the payload content of a DeviceDataDO
+     */
+    public MediPiNativePayloadParser(CharSequence payload) {
+        this.payload = payload;
+        this.length = payload.length();
+    }
+
+    /**
+     * Advance to the next non-empty line of the payload
+     *
+     * @return false if there are no more lines
+     */
+    public boolean nextLine() {
+        while (position < length) {
+            int start = position;
+            int end = start;
+            while (end < length && payload.charAt(end) != '\n' && payload.charAt(end) != '\r') {
+                end++;
+            }
+            position = end;
+            if (position < length && payload.charAt(position) == '\r') {
+                position++;
+            }
+            if (position < length && payload.charAt(position) == '\n') {
+                position++;
+            }
+            if (end > start) {
+                lineStart = start;
+                lineEnd = end;
+                fieldPosition = lineStart;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the current line
+     */
+    public String line() {
+        return payload.subSequence(lineStart, lineEnd).toString();
+    }
+
+    /**
+     * @return true if the current line is a metadata line
+     */
+    public boolean isMetadata() {
+        return regionMatches(lineStart, lineEnd, METADATA_PREFIX);
+    }
+
+    /**
+     * Split the current metadata line into its elements following the
+     * "metadata->" prefix e.g. "metadata->subtype->BM55" returns [subtype,
+     * BM55]. Metadata lines are only found in the header so these are
+     * allocated normally
+     *
+     * @return the elements of the metadata line
+     */
+    public String[] metadataFields() {
+        return split(payload, lineStart + METADATA_PREFIX.length(), lineEnd, METADATA_SEPARATOR);
+    }
+
+    /**
+     * Advance to the next field of the current data line. As with
+     * String.split, trailing empty fields are not returned
+     *
+     * @param delimiter the data delimiter declared in the metadata
+     * @return false if there are no more fields on the line
+     */
+    public boolean nextField(String delimiter) {
+        if (fieldPosition < 0 || fieldPosition > lineEnd) {
+            return false;
+        }
+        int end = indexOf(payload, fieldPosition, lineEnd, delimiter);
+        if (end < 0) {
+            end = lineEnd;
+        }
+        if (end == fieldPosition && onlyDelimitersRemain(fieldPosition, delimiter)) {
+            fieldPosition = -1;
+            return false;
+        }
+        fieldStart = fieldPosition;
+        fieldEnd = end;
+        fieldPosition = end == lineEnd ? lineEnd + 1 : end + delimiter.length();
+        return true;
+    }
+
+    /**
+     * @return the current field as a String
+     */
+    public String field() {
+        return payload.subSequence(fieldStart, fieldEnd).toString();
+    }
+
+    /**
+     * Parse the current field as an ISO8601 timestamp without copying it
+     *
+     * @return milliseconds since the epoch
+     * @throws ParseException if the field is not a valid ISO8601 timestamp
+     */
+    public long fieldAsISO8601() throws ParseException {
+        return ISO8601Parser.parse(payload, fieldStart, fieldEnd);
+    }
+
+    /**
+     * Split a string on a literal delimiter. As with String.split, trailing
+     * empty elements are removed
+     *
+     * @param s the string to split
+     * @param delimiter literal delimiter
+     * @return the elements of the string
+     */
+    public static String[] split(String s, String delimiter) {
+        return split(s, 0, s.length(), delimiter);
+    }
+
+    private static String[] split(CharSequence s, int start, int end, String delimiter) {
+        List<String> elements = new ArrayList<>();
+        int p = start;
+        while (p <= end) {
+            int next = indexOf(s, p, end, delimiter);
+            if (next < 0) {
+                next = end;
+            }
+            elements.add(s.subSequence(p, next).toString());
+            p = next + (next == end ? 1 : delimiter.length());
+        }
+        int size = elements.size();
+        while (size > 0 && elements.get(size - 1).isEmpty()) {
+            size--;
+        }
+        return elements.subList(0, size).toArray(new String[size]);
+    }
+
+    private boolean onlyDelimitersRemain(int from, String delimiter) {
+        int p = from;
+        while (p < lineEnd) {
+            if (!regionMatches(p, lineEnd, delimiter)) {
+                return false;
+            }
+            p += delimiter.length();
+        }
+        return true;
+    }
+
+    private boolean regionMatches(int start, int end, String s) {
+        return regionMatches(payload, start, end, s);
+    }
+
+    private static boolean regionMatches(CharSequence cs, int start, int end, String s) {
+        if (end - start < s.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (cs.charAt(start + i) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence cs, int start, int end, String s) {
+        char first = s.charAt(0);
+        for (int i = start; i <= end - s.length(); i++) {
+            if (cs.charAt(i) == first && regionMatches(cs, i, end, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
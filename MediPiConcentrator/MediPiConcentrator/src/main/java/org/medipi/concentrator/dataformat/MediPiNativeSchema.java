@@ -0,0 +1,134 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dataformat;
+
+import java.util.Date;
+import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.services.RecordingDeviceDictionaryService;
+
+/**
+ * Class to hold the metadata header of a single MediPi Native payload. The
+ * header is read into this class and then compiled once, resolving the
+ * recording device type and the recording device attribute of every column, so
+ * that each data line can be processed by column index alone
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MediPiNativeSchema {
+
+    private String subtype;
+    private String dataDelimiter;
+    private String[] columns;
+    private String[] formats;
+    private String[] units;
+    private Date scheduleEffectiveDate;
+    private Date scheduleExpiryDate;
+    private RecordingDeviceType recordingDeviceType;
+    private RecordingDeviceAttribute[] attributes;
+
+    /**
+     * Resolve the recording device type and the attribute for each data column
+     * of the payload. The dictionary adds the device type and any attributes to
+     * the DB if they are not already present
+     *
+     * @param dictionary recording device dictionary
+     * @param type device type taken from the payload's profile id
+     */
+    public void compile(RecordingDeviceDictionaryService dictionary, String type) {
+        recordingDeviceType = dictionary.getRecordingDeviceType(type, subtype);
+        attributes = new RecordingDeviceAttribute[columns.length];
+        // column 0 is always the iso8601time of the data point
+        for (int columnNo = 1; columnNo < columns.length; columnNo++) {
+            attributes[columnNo] = dictionary.getRecordingDeviceAttribute(recordingDeviceType, columns[columnNo], units[columnNo], formats[columnNo]);
+        }
+    }
+
+    /**
+     * @return true once the schema has been compiled
+     */
+    public boolean isCompiled() {
+        return attributes != null;
+    }
+
+    public String getSubtype() {
+        return subtype;
+    }
+
+    public void setSubtype(String subtype) {
+        this.subtype = subtype;
+    }
+
+    public String getDataDelimiter() {
+        return dataDelimiter;
+    }
+
+    public void setDataDelimiter(String dataDelimiter) {
+        this.dataDelimiter = dataDelimiter;
+    }
+
+    public String[] getColumns() {
+        return columns;
+    }
+
+    public void setColumns(String[] columns) {
+        this.columns = columns;
+    }
+
+    public String[] getFormats() {
+        return formats;
+    }
+
+    public void setFormats(String[] formats) {
+        this.formats = formats;
+    }
+
+    public String[] getUnits() {
+        return units;
+    }
+
+    public void setUnits(String[] units) {
+        this.units = units;
+    }
+
+    public Date getScheduleEffectiveDate() {
+        return scheduleEffectiveDate;
+    }
+
+    public void setScheduleEffectiveDate(Date scheduleEffectiveDate) {
+        this.scheduleEffectiveDate = scheduleEffectiveDate;
+    }
+
+    public Date getScheduleExpiryDate() {
+        return scheduleExpiryDate;
+    }
+
+    public void setScheduleExpiryDate(Date scheduleExpiryDate) {
+        this.scheduleExpiryDate = scheduleExpiryDate;
+    }
+
+    public RecordingDeviceType getRecordingDeviceType() {
+        return recordingDeviceType;
+    }
+
+    /**
+     * @param columnNo index of the data column
+     * @return the recording device attribute of the column
+     */
+    public RecordingDeviceAttribute getAttribute(int columnNo) {
+        return attributes[columnNo];
+    }
+}
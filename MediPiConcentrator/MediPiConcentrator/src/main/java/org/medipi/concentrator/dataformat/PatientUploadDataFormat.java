@@ -27,6 +27,18 @@ import org.springframework.transaction.annotation.Transactional;
  */
 public abstract class PatientUploadDataFormat {
 
+    /**
+     * Storage mode in which each attribute of a reading is stored as its own
+     * recording_device_data row
+     */
+    public static final String EAVSTORAGE = "eav";
+
+    /**
+     * Storage mode in which each reading is stored as a single
+     * recording_device_reading row with its values held in typed arrays
+     */
+    public static final String READINGSTORAGE = "reading";
+
     /**
      * Constructor
      */
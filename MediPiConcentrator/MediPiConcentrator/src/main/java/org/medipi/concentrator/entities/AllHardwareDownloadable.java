@@ -40,9 +40,6 @@ import javax.validation.constraints.Size;
 @Entity
 @Table(name = "all_hardware_downloadable")
 @NamedQueries({
-    //Added queries
-    @NamedQuery(name = "AllHardwareDownloadable.findAllDownloadable", query = "SELECT c FROM AllHardwareDownloadable c WHERE c.downloadableUuid NOT IN (SELECT a.downloadableUuid FROM AllHardwareDownloadable a, AllHardwareDownloaded b WHERE a.downloadableUuid = b.downloadableUuid AND b.hardwareName.hardwareName = :hname)"), 
-    //
     @NamedQuery(name = "AllHardwareDownloadable.findAll", query = "SELECT a FROM AllHardwareDownloadable a"),
     @NamedQuery(name = "AllHardwareDownloadable.findByDownloadableUuid", query = "SELECT a FROM AllHardwareDownloadable a WHERE a.downloadableUuid = :downloadableUuid"),
     @NamedQuery(name = "AllHardwareDownloadable.findByVersion", query = "SELECT a FROM AllHardwareDownloadable a WHERE a.version = :version"),
@@ -41,6 +41,7 @@ import javax.validation.constraints.Size;
 @NamedQueries({
     //Added
     @NamedQuery(name = "HardwareDownloadable.findByHardware", query = "SELECT p FROM HardwareDownloadable p WHERE p.hardwareName.hardwareName = :hname AND p.downloadedDate IS NULL"),
+    @NamedQuery(name = "HardwareDownloadable.findOpen", query = "SELECT p FROM HardwareDownloadable p WHERE p.downloadedDate IS NULL"),
     @NamedQuery(name = "HardwareDownloadable.findByDownloadableUuidAndOpen", query = "SELECT p FROM HardwareDownloadable p WHERE p.downloadableUuid = :downloadableUuid AND p.downloadedDate IS NULL"),
     // 
     @NamedQuery(name = "HardwareDownloadable.findAll", query = "SELECT h FROM HardwareDownloadable h"),
@@ -38,6 +38,7 @@ import javax.xml.bind.annotation.XmlRootElement;
 @NamedQueries({
     @NamedQuery(name = "PatientCertificate.findAll", query = "SELECT p FROM PatientCertificate p"),
     @NamedQuery(name = "PatientCertificate.findByPatientUuid", query = "SELECT p FROM PatientCertificate p WHERE p.patientUuid = :patientUuid"),
+    @NamedQuery(name = "PatientCertificate.findPatientUuidsIn", query = "SELECT p.patientUuid FROM PatientCertificate p WHERE p.patientUuid IN :patientUuids"),
     @NamedQuery(name = "PatientCertificate.findByCertificateLocation", query = "SELECT p FROM PatientCertificate p WHERE p.certificateLocation = :certificateLocation")})
 public class PatientCertificate implements Serializable {
 
@@ -0,0 +1,48 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.entities;
+
+import org.hibernate.cfg.EJB3NamingStrategy;
+
+/**
+ * Hibernate naming strategy for a concentrator which stores readings
+ * (medipi.concentrator.dataformat.{classtoken}.storage reading). It maps the
+ * RecordingDeviceData entity to recording_device_data_view so that its queries
+ * see the data points of both recording_device_data and
+ * recording_device_reading. It is set in place of the default strategy with
+ * spring.jpa.hibernate.naming_strategy once
+ * medipidb_recording_device_reading.sql has been applied
+ *
+ * @author rick@robinsonhq.com
+ */
+public class ReadingStorageNamingStrategy extends EJB3NamingStrategy {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Table holding the data points stored one per row
+     */
+    public static final String TABLE = "recording_device_data";
+    /**
+     * View presenting the data points of both storage modes
+     */
+    public static final String VIEW = "recording_device_data_view";
+
+    @Override
+    public String tableName(String tableName) {
+        return TABLE.equals(tableName) ? VIEW : super.tableName(tableName);
+    }
+}
@@ -34,7 +34,13 @@ import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
 
 /**
- * Entity class encapsulating RecordingDeviceData database table
+ * Entity class encapsulating RecordingDeviceData database table.
+ *
+ * When a data format stores readings, ReadingStorageNamingStrategy maps the
+ * entity to recording_device_data_view instead, which presents the data points
+ * stored one per row in recording_device_data and those stored one reading per
+ * row in recording_device_reading in the same layout. Data points are only
+ * written by RecordingDeviceDataDAO's bulk methods
  *
  * @author rick@robinsonhq.com
  */
@@ -43,6 +49,7 @@ import javax.validation.constraints.Size;
 @NamedQueries({
     //Added
     @NamedQuery(name = "RecordingDeviceData.isAlreadyStored", query = "SELECT d FROM RecordingDeviceData d WHERE d.attributeId = :attributeId AND d.dataValue = :dataValue AND d.dataValueTime = :dataValueTime AND d.patientUuid = :patientUuid"),
+    @NamedQuery(name = "RecordingDeviceData.findStoredKeys", query = "SELECT d.attributeId.attributeId, d.dataValueTime, d.dataValue FROM RecordingDeviceData d WHERE d.patientUuid = :patientUuid AND d.attributeId.typeId = :typeId AND d.dataValueTime BETWEEN :fromTime AND :toTime"),
     @NamedQuery(name = "RecordingDeviceData.findBypatientUuidAfterDate", query = "SELECT d FROM RecordingDeviceData d, RecordingDeviceAttribute a, RecordingDeviceType t WHERE d.attributeId = a.attributeId AND a.typeId =t.typeId AND d.patientUuid.patientUuid = :patientUuid AND d.dataValueTime > :requestDate AND t.type = :type ORDER BY d.dataValueTime"),
     @NamedQuery(name = "RecordingDeviceData.findByTypeAttributeAndData", query = "SELECT d FROM RecordingDeviceData d, RecordingDeviceAttribute a, RecordingDeviceType t WHERE d.attributeId = a.attributeId AND a.typeId =t.typeId AND d.patientUuid.patientUuid = :patientUuid AND t.type = :type AND a.attributeName = :attributeName AND d.dataValueTime = :dataValueTime AND d.dataValue = :dataValue"),
     @NamedQuery(name = "RecordingDeviceData.findByPatientAndDownloadedTime", query = "SELECT d FROM RecordingDeviceData d, Patient p WHERE d.patientUuid.patientUuid = p.patientUuid AND p.patientUuid = :patientUuid AND d.downloadedTime > :downloadedTime"),
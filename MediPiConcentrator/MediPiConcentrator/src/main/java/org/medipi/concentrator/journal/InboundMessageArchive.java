@@ -0,0 +1,531 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.journal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.utilities.RollingFileWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Archive of the messages received from MediPi patient units, kept as an audit
+ * trail when medipi.concentrator.savemessagestofile is set.
+ *
+ * Messages are handed to a background writer and the request thread does not
+ * wait for them to be written unless the writer has fallen behind, when it
+ * waits for up to the configured timeout for room in the writer's queue. A
+ * message which cannot be queued is not archived and the upload is to be
+ * refused. The writer appends them to a rolling segment file in the inbound
+ * saved message directory, each record laid out as:
+ *
+ * [int length][JSON of the JournalledUpload]
+ *
+ * The records taken from the queue together are written as one gzip member of
+ * the segment and forced to the storage device with a single fsync. A segment
+ * is a valid gzip file (of concatenated members) which can be read with
+ * standard tools. Alongside each segment an index file holds a line per
+ * message: upload UUID, offset of its gzip member in the segment and offset of
+ * its record within the member, so that a message can be found without
+ * decompressing the whole segment. Segments are rolled when they reach the
+ * configured size or age. If a group cannot be written the partly written
+ * member is removed, the segment is rolled and the same group is written again
+ * after a delay, so that no message which has been queued is lost
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class InboundMessageArchive {
+
+    private static final String SEGMENT_PREFIX = "inbound-messages-";
+    private static final String SEGMENT_SUFFIX = ".gz";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int MAX_GROUP = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+
+    @Value("${medipi.concentrator.savemessagestofile:false}")
+    private boolean saveMessagesToFile;
+
+    @Value("${medipi.concentrator.inboundsavedmessagedir:}")
+    private String inboundSavedMessageDir;
+
+    @Value("${medipi.concentrator.inboundarchive.segmentsize:67108864}")
+    private long segmentSize;
+
+    @Value("${medipi.concentrator.inboundarchive.rollminutes:60}")
+    private long rollMinutes;
+
+    @Value("${medipi.concentrator.inboundarchive.queuecapacity:10000}")
+    private int queueCapacity;
+
+    @Value("${medipi.concentrator.inboundarchive.offertimeoutmillis:5000}")
+    private long offerTimeoutMillis;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private BlockingQueue<JournalledUpload> queue;
+    private Thread writer;
+    private volatile boolean running = false;
+    private RollingFileWriter segments;
+    // index of the active segment - only used by the writer thread
+    private FileOutputStream indexFile;
+    private Writer index;
+
+    /**
+     * Whether inbound messages are to be archived
+     *
+     * @return true if medipi.concentrator.savemessagestofile is set
+     */
+    public boolean isEnabled() {
+        return saveMessagesToFile;
+    }
+
+    /**
+     * Start the background writer
+     *
+     * @return null if the archive has started (or is not configured),
+     * otherwise the reason why it could not be started
+     */
+    public synchronized String start() {
+        if (!saveMessagesToFile || writer != null) {
+            return null;
+        }
+        if (inboundSavedMessageDir == null || inboundSavedMessageDir.trim().length() == 0) {
+            return "medipi.concentrator.inboundsavedmessagedir is not set";
+        }
+        File directory = new File(inboundSavedMessageDir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return "Cannot create inbound saved message directory: " + inboundSavedMessageDir;
+        }
+        segments = new RollingFileWriter(directory, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        running = true;
+        writer = new Thread(this::write, "inbound-message-archive");
+        writer.setDaemon(true);
+        writer.start();
+        return null;
+    }
+
+    /**
+     * Hand a message to the background writer, waiting for up to the
+     * configured timeout if the writer's queue is full. The message is not
+     * archived if it cannot be queued in that time
+     *
+     * @param upload the message as received
+     * @return true if the message has been queued to be archived, false if
+     * the upload should be refused
+     */
+    public boolean archive(JournalledUpload upload) {
+        BlockingQueue<JournalledUpload> q = queue;
+        boolean queued = false;
+        try {
+            queued = q != null && q.offer(upload, offerTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!queued) {
+            logger.error(InboundMessageArchive.class.getName() + ".error", () -> "Inbound message archive is not keeping up - upload uuid: " + upload.getContent().getUploadUuid() + " has not been archived");
+        }
+        return queued;
+    }
+
+    /**
+     * Find an archived message using the segment index files, newest first
+     *
+     * @param uploadUuid upload UUID of the message
+     * @return the message or null if it is not in the archive
+     * @throws IOException if the archive cannot be read
+     */
+    public JournalledUpload find(String uploadUuid) throws IOException {
+        File[] segmentFiles = archiveSegments().listFiles();
+        for (int i = segmentFiles.length - 1; i >= 0; i--) {
+            File segmentIndex = new File(segmentFiles[i].getPath() + INDEX_SUFFIX);
+            if (!segmentIndex.isFile()) {
+                continue;
+            }
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(segmentIndex), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] entry = line.split("\t");
+                    if (entry.length == 3 && entry[0].equals(uploadUuid)) {
+                        return read(segmentFiles[i], Long.parseLong(entry[1]), Long.parseLong(entry[2]));
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * List the sequence numbers of the segments in the archive, oldest first
+     *
+     * @return segment sequence numbers
+     */
+    public long[] listSegmentSequences() {
+        RollingFileWriter archive = archiveSegments();
+        File[] segmentFiles = archive.listFiles();
+        long[] sequences = new long[segmentFiles.length];
+        for (int i = 0; i < segmentFiles.length; i++) {
+            sequences[i] = archive.sequenceOf(segmentFiles[i]);
+        }
+        return sequences;
+    }
+
+    /**
+     * Read every message in a segment in the order in which they were
+     * archived. The gzip members of the segment are found from its index and
+     * each is read on its own, so that a member which cannot be read is
+     * reported rather than silently ending the segment. Only an incomplete
+     * last member of the newest segment - a group which was being written
+     * when the concentrator stopped - is taken as the end of the segment
+     *
+     * @param sequence sequence number of the segment
+     * @param handler handler called for each message
+     * @return number of messages read
+     * @throws IOException if the segment cannot be read or is corrupt - the
+     * messages before the corrupt member have been handled
+     * @throws InterruptedException if the handler is interrupted
+     */
+    public int readSegment(long sequence, RecordHandler handler) throws IOException, InterruptedException {
+        File segmentFile = archiveSegments().fileOf(sequence);
+        long length = segmentFile.length();
+        long[] sequences = listSegmentSequences();
+        boolean newest = sequences.length > 0 && sequences[sequences.length - 1] == sequence;
+        // records in each member by member offset - -1 where the index does not say
+        TreeMap<Long, Integer> members = readMemberIndex(segmentFile, length);
+        int count = 0;
+        for (Map.Entry<Long, Integer> member : members.entrySet()) {
+            long offset = member.getKey();
+            Long next = members.higherKey(offset);
+            // the last member runs to the end of the segment and may be followed by a member whose index lines were never written
+            boolean last = next == null;
+            int expected = member.getValue();
+            int read = 0;
+            try (DataInputStream dis = openMember(segmentFile, offset, (last ? length : next) - offset)) {
+                int b;
+                while ((b = dis.read()) >= 0) {
+                    int size = (b << 24) | (dis.readUnsignedByte() << 16) | (dis.readUnsignedByte() << 8) | dis.readUnsignedByte();
+                    if (size < 0) {
+                        throw new ZipException("Invalid record length: " + size);
+                    }
+                    byte[] body = new byte[size];
+                    dis.readFully(body);
+                    handler.handle(mapper.readValue(body, JournalledUpload.class));
+                    read++;
+                    count++;
+                }
+            } catch (EOFException e) {
+                if (last && newest) {
+                    final int messages = count;
+                    logger.warn(InboundMessageArchive.class.getName(), () -> "Inbound message archive segment " + segmentFile.getName() + " ends with an incomplete record after " + messages + " messages");
+                    return count;
+                }
+                throw new IOException("Inbound message archive segment " + segmentFile.getName() + " has an incomplete member at offset " + offset + " after " + count + " messages", e);
+            } catch (IOException e) {
+                throw new IOException("Inbound message archive segment " + segmentFile.getName() + " has a corrupt member at offset " + offset + " after " + count + " messages: " + e.getLocalizedMessage(), e);
+            }
+            if (expected >= 0 && (last ? read < expected : read != expected)) {
+                throw new IOException("Inbound message archive segment " + segmentFile.getName() + " has " + read + " messages in the member at offset " + offset + " where its index has " + expected);
+            }
+        }
+        return count;
+    }
+
+    private DataInputStream openMember(File segmentFile, long offset, long size) throws IOException {
+        FileInputStream fis = new FileInputStream(segmentFile);
+        try {
+            fis.getChannel().position(offset);
+            return new DataInputStream(new GZIPInputStream(new BufferedInputStream(new LimitedInputStream(fis, size))));
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+    }
+
+    // the index lists the member offset of each message - a segment without an index is read as a single member
+    private TreeMap<Long, Integer> readMemberIndex(File segmentFile, long length) throws IOException {
+        TreeMap<Long, Integer> members = new TreeMap<>();
+        File segmentIndex = new File(segmentFile.getPath() + INDEX_SUFFIX);
+        if (segmentIndex.isFile()) {
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(segmentIndex), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] entry = line.split("\t");
+                    long offset;
+                    try {
+                        offset = entry.length == 3 ? Long.parseLong(entry[1]) : -1;
+                    } catch (NumberFormatException e) {
+                        offset = -1;
+                    }
+                    // lines of a group whose member did not reach the segment before a crash are ignored
+                    if (offset >= 0 && offset < length) {
+                        members.merge(offset, 1, Integer::sum);
+                    }
+                }
+            }
+        }
+        if (!members.containsKey(0L)) {
+            members.put(0L, -1);
+        }
+        return members;
+    }
+
+    /**
+     * Handler for the messages read from a segment
+     */
+    public interface RecordHandler {
+
+        void handle(JournalledUpload upload) throws InterruptedException;
+    }
+
+    /**
+     * Stream over the bytes of one member of a segment
+     */
+    private static final class LimitedInputStream extends FilterInputStream {
+
+        private long remaining;
+
+        private LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long s = super.skip(Math.min(n, remaining));
+            remaining -= s;
+            return s;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    private JournalledUpload read(File segmentFile, long memberOffset, long recordOffset) throws IOException {
+        try (FileInputStream fis = new FileInputStream(segmentFile)) {
+            fis.getChannel().position(memberOffset);
+            DataInputStream dis = new DataInputStream(new GZIPInputStream(fis));
+            long skipped = 0;
+            while (skipped < recordOffset) {
+                long s = dis.skip(recordOffset - skipped);
+                if (s <= 0) {
+                    throw new IOException("Archive index does not match segment: " + segmentFile.getName());
+                }
+                skipped += s;
+            }
+            byte[] body = new byte[dis.readInt()];
+            dis.readFully(body);
+            return mapper.readValue(body, JournalledUpload.class);
+        }
+    }
+
+    private void write() {
+        List<JournalledUpload> group = new ArrayList<>();
+        long retryDelay = 0;
+        while (running || !queue.isEmpty() || !group.isEmpty()) {
+            try {
+                if (group.isEmpty()) {
+                    JournalledUpload first = queue.poll(1, TimeUnit.SECONDS);
+                    if (segments.isDue(0, TimeUnit.MINUTES.toMillis(rollMinutes))) {
+                        closeSegment();
+                    }
+                    if (first == null) {
+                        continue;
+                    }
+                    group.add(first);
+                    queue.drainTo(group, MAX_GROUP - 1);
+                } else {
+                    // a group which could not be written is retried before any more are taken from the queue
+                    Thread.sleep(retryDelay);
+                }
+                writeGroup(group);
+                group.clear();
+                retryDelay = 0;
+            } catch (InterruptedException e) {
+                running = false;
+                if (!group.isEmpty()) {
+                    final int lost = group.size() + queue.size();
+                    logger.error(InboundMessageArchive.class.getName() + ".error", () -> "Inbound message archive stopped before " + lost + " queued messages could be saved");
+                    group.clear();
+                    queue.clear();
+                }
+            } catch (IOException e) {
+                retryDelay = Math.min(MAX_RETRY_DELAY_MILLIS, Math.max(1000, retryDelay * 2));
+                final long delay = retryDelay;
+                final int size = group.size();
+                logger.error(InboundMessageArchive.class.getName() + ".error", () -> "Cannot save " + size + " inbound messages to the archive - check the configured directory: " + inboundSavedMessageDir + " - " + e.getLocalizedMessage() + " - retrying in " + delay + "ms");
+                closeSegment();
+            }
+        }
+        closeSegment();
+    }
+
+    private void writeGroup(List<JournalledUpload> group) throws IOException {
+        if (!segments.isOpen()) {
+            openSegment();
+        }
+        FileOutputStream segment = segments.getStream();
+        long memberOffset = segment.getChannel().position();
+        long indexOffset = indexFile.getChannel().position();
+        try {
+            writeMember(group, segment, memberOffset);
+        } catch (IOException e) {
+            // remove what was written of the group so that the segment and its index end with complete members
+            try {
+                index.flush();
+                segment.getChannel().truncate(memberOffset);
+                indexFile.getChannel().truncate(indexOffset);
+            } catch (IOException te) {
+                // the segment is rolled and the incomplete member is reported when the segment is read
+            }
+            throw e;
+        }
+        if (segments.isDue(segmentSize, 0)) {
+            closeSegment();
+        }
+    }
+
+    private void writeMember(List<JournalledUpload> group, FileOutputStream segment, long memberOffset) throws IOException {
+        StringBuilder indexLines = new StringBuilder();
+        ByteArrayOutputStream member = new ByteArrayOutputStream();
+        try (DataOutputStream dos = new DataOutputStream(new GZIPOutputStream(member))) {
+            for (JournalledUpload upload : group) {
+                byte[] body = mapper.writeValueAsBytes(upload);
+                indexLines.append(upload.getContent().getUploadUuid()).append('\t')
+                        .append(memberOffset).append('\t')
+                        .append(dos.size()).append('\n');
+                dos.writeInt(body.length);
+                dos.write(body);
+            }
+        }
+        member.writeTo(segment);
+        index.write(indexLines.toString());
+        index.flush();
+        // one fsync of the segment and its index for the whole group
+        segment.getFD().sync();
+        indexFile.getFD().sync();
+    }
+
+    private void openSegment() throws IOException {
+        File f = segments.open();
+        indexFile = new FileOutputStream(f.getPath() + INDEX_SUFFIX, true);
+        index = new OutputStreamWriter(indexFile, StandardCharsets.UTF_8);
+    }
+
+    private void closeSegment() {
+        try {
+            if (index != null) {
+                index.close();
+            }
+            segments.close();
+        } catch (IOException e) {
+            logger.error(InboundMessageArchive.class.getName() + ".error", () -> "Cannot close inbound message archive segment: " + e.getLocalizedMessage());
+        } finally {
+            index = null;
+            indexFile = null;
+        }
+    }
+
+    // the archive can be read (e.g. to replay it) when new messages are not being archived
+    private RollingFileWriter archiveSegments() {
+        RollingFileWriter s = segments;
+        return s != null ? s : new RollingFileWriter(new File(inboundSavedMessageDir == null ? "" : inboundSavedMessageDir), SEGMENT_PREFIX, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Stop the background writer once it has written the messages already
+     * queued
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+            if (writer.isAlive()) {
+                // still retrying a group which cannot be written
+                writer.interrupt();
+                writer.join(TimeUnit.SECONDS.toMillis(5));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.journal;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle to an upload held in the upload journal. The handle does not hold the
+ * upload itself, which is read back from the journal when it is processed, and
+ * is passed back to the journal once the upload has been processed. A handle
+ * can be held in a DelayQueue until the upload is next due to be processed
+ *
+ * @author rick@robinsonhq.com
+ */
+public class JournalEntry implements Delayed {
+
+    private final JournalSegment segment;
+    private final int offset;
+    private final String uploadUuid;
+    private int attempts;
+    private long dueNanos = System.nanoTime();
+
+    JournalEntry(JournalSegment segment, int offset, String uploadUuid, int attempts) {
+        this.segment = segment;
+        this.offset = offset;
+        this.uploadUuid = uploadUuid;
+        this.attempts = attempts;
+    }
+
+    JournalSegment getSegment() {
+        return segment;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the UUID of the upload - null if it is not known until the
+     * upload is read back from the journal
+     */
+    public String getUploadUuid() {
+        return uploadUuid;
+    }
+
+    /**
+     * @return the number of times processing of the upload has been attempted
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * Set the delay before the upload is next due to be processed
+     *
+     * @param delay delay
+     * @param unit unit of the delay
+     */
+    public void setDelay(long delay, TimeUnit unit) {
+        dueNanos = System.nanoTime() + unit.toNanos(delay);
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A single memory-mapped segment file of a journal.
+ *
+ * Each record in the segment is laid out as:
+ *
+ * [int length][int CRC32 of body][byte status][byte attempts][body]
+ *
+ * The length is written last so that a record only becomes visible once it
+ * has been fully written - a record with a zero length, a length which
+ * overruns the segment or a failed CRC marks the end of the segment when it is
+ * recovered. The status is PENDING when the record is appended and is set to
+ * DONE once it has been processed, or to DEAD once processing has been given
+ * up. The number of processing attempts is kept with the record so that it
+ * survives a restart. When a segment has been sealed (no further records will
+ * be appended) and all its records are DONE it can be deleted. A segment
+ * holding DEAD records is kept so that they can be examined
+ *
+ * @author rick@robinsonhq.com
+ */
+public class JournalSegment {
+
+    private static final int HEADER_SIZE = 10;
+    private static final int STATUS_OFFSET = 8;
+    private static final int ATTEMPTS_OFFSET = 9;
+    private static final byte PENDING = 0;
+    private static final byte DONE = 1;
+    private static final byte DEAD = 2;
+
+    private final File file;
+    private final long sequence;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private int writePosition = 0;
+    private int outstanding = 0;
+    private int deadLetters = 0;
+    private boolean sealed = false;
+    private boolean closed = false;
+
+    private JournalSegment(File file, long sequence, int size) throws IOException {
+        this.file = file;
+        this.sequence = sequence;
+        this.raf = new RandomAccessFile(file, "rw");
+        if (raf.length() < size) {
+            raf.setLength(size);
+        }
+        this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+    }
+
+    /**
+     * Create a new, empty segment
+     *
+     * @param file the segment file
+     * @param sequence sequence number of the segment within the journal
+     * @param size size in bytes of the segment
+     * @return the new segment
+     * @throws IOException if the segment file cannot be created or mapped
+     */
+    public static JournalSegment create(File file, long sequence, int size) throws IOException {
+        return new JournalSegment(file, sequence, size);
+    }
+
+    /**
+     * Open an existing segment following a restart. The segment is sealed and
+     * the offsets of its valid PENDING records are returned so that they can
+     * be processed again
+     *
+     * @param file the segment file
+     * @param sequence sequence number of the segment within the journal
+     * @param pending map to which the offset and number of attempts of each
+     * PENDING record is added
+     * @return the recovered segment
+     * @throws IOException if the segment file cannot be mapped
+     */
+    public static JournalSegment recover(File file, long sequence, Map<Integer, Integer> pending) throws IOException {
+        JournalSegment segment = new JournalSegment(file, sequence, 0);
+        segment.scan(pending);
+        return segment;
+    }
+
+    private synchronized void scan(Map<Integer, Integer> pending) {
+        int capacity = buffer.capacity();
+        int offset = 0;
+        while (offset + HEADER_SIZE <= capacity) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_SIZE + length > capacity) {
+                break;
+            }
+            byte[] body = new byte[length];
+            for (int i = 0; i < length; i++) {
+                body[i] = buffer.get(offset + HEADER_SIZE + i);
+            }
+            if (buffer.getInt(offset + 4) != crc(body)) {
+                // torn write - the remainder of the segment is not trusted
+                break;
+            }
+            byte status = buffer.get(offset + STATUS_OFFSET);
+            if (status == PENDING) {
+                pending.put(offset, buffer.get(offset + ATTEMPTS_OFFSET) & 0xff);
+                outstanding++;
+            } else if (status == DEAD) {
+                deadLetters++;
+            }
+            offset += HEADER_SIZE + length;
+        }
+        writePosition = offset;
+        sealed = true;
+    }
+
+    /**
+     * Append a record to the segment and force it to the storage device
+     *
+     * @param body the record to be appended
+     * @return the offset of the record in the segment or -1 if the segment
+     * does not have room for it
+     */
+    public synchronized int append(byte[] body) {
+        if (sealed || writePosition + HEADER_SIZE + body.length > buffer.capacity()) {
+            return -1;
+        }
+        int offset = writePosition;
+        for (int i = 0; i < body.length; i++) {
+            buffer.put(offset + HEADER_SIZE + i, body[i]);
+        }
+        buffer.putInt(offset + 4, crc(body));
+        buffer.put(offset + STATUS_OFFSET, PENDING);
+        buffer.put(offset + ATTEMPTS_OFFSET, (byte) 0);
+        buffer.putInt(offset, body.length);
+        buffer.force();
+        writePosition = offset + HEADER_SIZE + body.length;
+        outstanding++;
+        return offset;
+    }
+
+    /**
+     * Read the body of a record
+     *
+     * @param offset offset of the record in the segment
+     * @return the body of the record
+     * @throws IOException if the segment has been closed
+     */
+    public synchronized byte[] read(int offset) throws IOException {
+        if (closed) {
+            throw new IOException("Journal segment " + file.getName() + " has been closed");
+        }
+        byte[] body = new byte[buffer.getInt(offset)];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = buffer.get(offset + HEADER_SIZE + i);
+        }
+        return body;
+    }
+
+    /**
+     * Record an attempt to process a record. As for complete this is not
+     * forced to the storage device
+     *
+     * @param offset offset of the record in the segment
+     * @return the number of attempts including this one
+     */
+    public synchronized int attempt(int offset) {
+        int attempts = Math.min(255, (buffer.get(offset + ATTEMPTS_OFFSET) & 0xff) + 1);
+        if (!closed) {
+            buffer.put(offset + ATTEMPTS_OFFSET, (byte) attempts);
+        }
+        return attempts;
+    }
+
+    /**
+     * Mark a record as dead - it will not be processed again but is kept in
+     * the segment. This is forced to the storage device
+     *
+     * @param offset offset of the record in the segment
+     * @return true if the segment is sealed and has no PENDING records
+     */
+    public synchronized boolean deadLetter(int offset) {
+        if (closed) {
+            return false;
+        }
+        if (buffer.get(offset + STATUS_OFFSET) == PENDING) {
+            buffer.put(offset + STATUS_OFFSET, DEAD);
+            buffer.force();
+            outstanding--;
+            deadLetters++;
+        }
+        return sealed && outstanding == 0;
+    }
+
+    /**
+     * Mark a record as processed. This is not forced to the storage device -
+     * should the concentrator stop before the page is written the record will
+     * be processed again, which is acceptable as processing is at-least-once
+     *
+     * @param offset offset of the record in the segment
+     * @return true if the segment is sealed and all of its records are DONE
+     */
+    public synchronized boolean complete(int offset) {
+        if (closed) {
+            return false;
+        }
+        if (buffer.get(offset + STATUS_OFFSET) == PENDING) {
+            buffer.put(offset + STATUS_OFFSET, DONE);
+            outstanding--;
+        }
+        return sealed && outstanding == 0;
+    }
+
+    /**
+     * Seal the segment so that no further records are appended to it
+     *
+     * @return true if all of the segment's records are DONE
+     */
+    public synchronized boolean seal() {
+        sealed = true;
+        return outstanding == 0;
+    }
+
+    /**
+     * Close and delete the segment file
+     */
+    public synchronized void delete() {
+        close();
+        file.delete();
+    }
+
+    /**
+     * Close the segment file
+     */
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            buffer.force();
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // nothing further can be done with the segment
+            }
+        }
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the number of records in the segment which have not been
+     * processed
+     */
+    public synchronized int getOutstanding() {
+        return outstanding;
+    }
+
+    /**
+     * @return the number of DEAD records in the segment
+     */
+    public synchronized int getDeadLetters() {
+        return deadLetters;
+    }
+
+    private static int crc(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.journal;
+
+import java.util.Date;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+
+/**
+ * Data object holding a patient upload as received by the concentrator,
+ * before decryption, so that it can be written to the upload journal and
+ * processed later
+ *
+ * @author rick@robinsonhq.com
+ */
+public class JournalledUpload {
+
+    private String deviceId;
+    private String patientUuid;
+    private String dataFormat;
+    private String payloadEncoding;
+    private Date receivedDate;
+    private EncryptedAndSignedUploadDO content;
+
+    /**
+     * Constructor for deserialisation
+     */
+    public JournalledUpload() {
+    }
+
+    /**
+     * Constructor
+     *
+     * @param deviceId incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param dataFormat incoming Data-Format HTTP header parameter from RESTful
+     * message
+     * @param payloadEncoding incoming Payload-Encoding HTTP header parameter
+     * from RESTful message - null if the payload is Java serialised
+     * @param content incoming message in an encrypted and signed data object
+     */
+    public JournalledUpload(String deviceId, String patientUuid, String dataFormat, String payloadEncoding, EncryptedAndSignedUploadDO content) {
+        this.deviceId = deviceId;
+        this.patientUuid = patientUuid;
+        this.dataFormat = dataFormat;
+        this.payloadEncoding = payloadEncoding;
+        this.content = content;
+        this.receivedDate = new Date();
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public void setDeviceId(String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    public String getPatientUuid() {
+        return patientUuid;
+    }
+
+    public void setPatientUuid(String patientUuid) {
+        this.patientUuid = patientUuid;
+    }
+
+    public String getDataFormat() {
+        return dataFormat;
+    }
+
+    public void setDataFormat(String dataFormat) {
+        this.dataFormat = dataFormat;
+    }
+
+    public String getPayloadEncoding() {
+        return payloadEncoding;
+    }
+
+    public void setPayloadEncoding(String payloadEncoding) {
+        this.payloadEncoding = payloadEncoding;
+    }
+
+    public Date getReceivedDate() {
+        return receivedDate;
+    }
+
+    public void setReceivedDate(Date receivedDate) {
+        this.receivedDate = receivedDate;
+    }
+
+    public EncryptedAndSignedUploadDO getContent() {
+        return content;
+    }
+
+    public void setContent(EncryptedAndSignedUploadDO content) {
+        this.content = content;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.journal;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Durable journal of patient uploads awaiting processing.
+ *
+ * Uploads are appended, still encrypted, to memory-mapped segment files in the
+ * configured journal directory and forced to the storage device before the
+ * upload is acknowledged. Only a handle to each upload is held in memory - the
+ * upload is read back from its segment when it is processed. When an upload
+ * has been processed it is marked as complete, and an upload which can no
+ * longer be retried is marked as dead and kept in its segment. Segments are
+ * rolled when full and deleted once all of their uploads are complete. On
+ * restart any uploads which had not been completed are recovered from the
+ * remaining segments so that they can be processed again (at-least-once)
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class UploadJournal {
+
+    private static final String SEGMENT_PREFIX = "upload-journal-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    @Value("${medipi.concentrator.asyncingest.journaldir:}")
+    private String journalDir;
+
+    @Value("${medipi.concentrator.asyncingest.segmentsize:67108864}")
+    private int segmentSize;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private File directory;
+    private JournalSegment activeSegment;
+    private long nextSequence = 0;
+
+    /**
+     * Open the journal, recovering any uploads which have not been completed
+     *
+     * @return handles for all uploads which still need to be processed, in
+     * the order in which they were journalled
+     * @throws IOException if the journal directory or its segments cannot be
+     * read
+     */
+    public synchronized List<JournalEntry> open() throws IOException {
+        if (journalDir == null || journalDir.trim().length() == 0) {
+            throw new IOException("medipi.concentrator.asyncingest.journaldir is not set");
+        }
+        directory = new File(journalDir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create upload journal directory: " + journalDir);
+        }
+        List<JournalEntry> recovered = new ArrayList<>();
+        int deadLetters = 0;
+        File[] segmentFiles = directory.listFiles((File dir, String name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segmentFiles != null) {
+            // zero padded sequence numbers so segments are recovered in order
+            Arrays.sort(segmentFiles);
+            for (File f : segmentFiles) {
+                long sequence = sequenceOf(f);
+                nextSequence = Math.max(nextSequence, sequence + 1);
+                Map<Integer, Integer> pending = new LinkedHashMap<>();
+                JournalSegment segment = JournalSegment.recover(f, sequence, pending);
+                deadLetters += segment.getDeadLetters();
+                if (pending.isEmpty()) {
+                    retire(segment);
+                    continue;
+                }
+                for (Map.Entry<Integer, Integer> record : pending.entrySet()) {
+                    recovered.add(new JournalEntry(segment, record.getKey(), null, record.getValue()));
+                }
+            }
+        }
+        final int dead = deadLetters;
+        logger.info(UploadJournal.class.getName(), () -> recovered.size() + " uploads recovered from the upload journal, " + dead + " dead uploads held in it");
+        return recovered;
+    }
+
+    /**
+     * Read an upload back from the journal
+     *
+     * @param entry the journal entry of the upload
+     * @return the upload
+     * @throws IOException if the upload cannot be read or is not a valid
+     * upload - it can never be processed
+     */
+    public JournalledUpload read(JournalEntry entry) throws IOException {
+        return mapper.readValue(entry.getSegment().read(entry.getOffset()), JournalledUpload.class);
+    }
+
+    /**
+     * Record an attempt to process an upload
+     *
+     * @param entry the journal entry of the upload
+     * @return the number of attempts including this one
+     */
+    public int attempt(JournalEntry entry) {
+        int attempts = entry.getSegment().attempt(entry.getOffset());
+        entry.setAttempts(attempts);
+        return attempts;
+    }
+
+    /**
+     * Append an upload to the journal. When this method returns the upload is
+     * held durably on the storage device
+     *
+     * @param upload the upload to be journalled
+     * @return the journal entry for the upload
+     * @throws IOException if the upload cannot be written to the journal
+     */
+    public JournalEntry append(JournalledUpload upload) throws IOException {
+        byte[] body = mapper.writeValueAsBytes(upload);
+        synchronized (this) {
+            if (directory == null) {
+                throw new IOException("Upload journal has not been opened");
+            }
+            int offset = activeSegment == null ? -1 : activeSegment.append(body);
+            if (offset < 0) {
+                roll(body.length);
+                offset = activeSegment.append(body);
+            }
+            return new JournalEntry(activeSegment, offset, upload.getContent() == null ? null : upload.getContent().getUploadUuid(), 0);
+        }
+    }
+
+    /**
+     * Mark an upload as processed. The upload will not be recovered following
+     * a restart
+     *
+     * @param entry the journal entry of the processed upload
+     */
+    public void complete(JournalEntry entry) {
+        if (entry.getSegment().complete(entry.getOffset())) {
+            synchronized (this) {
+                if (entry.getSegment() != activeSegment) {
+                    retire(entry.getSegment());
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark an upload as dead. It will not be processed again, even following a
+     * restart, but is kept in the journal so that it can be examined
+     *
+     * @param entry the journal entry of the upload
+     */
+    public void deadLetter(JournalEntry entry) {
+        if (entry.getSegment().deadLetter(entry.getOffset())) {
+            synchronized (this) {
+                if (entry.getSegment() != activeSegment) {
+                    retire(entry.getSegment());
+                }
+            }
+        }
+    }
+
+    /**
+     * Close the journal. Segments holding uploads which have not been
+     * completed are left in place to be recovered on restart
+     */
+    public synchronized void close() {
+        if (activeSegment != null) {
+            if (activeSegment.seal()) {
+                retire(activeSegment);
+            } else {
+                activeSegment.close();
+            }
+            activeSegment = null;
+        }
+    }
+
+    // a sealed segment with no uploads left to process is deleted unless it holds dead uploads
+    private void retire(JournalSegment segment) {
+        if (segment.getDeadLetters() == 0) {
+            segment.delete();
+        } else {
+            segment.close();
+        }
+    }
+
+    private void roll(int recordLength) throws IOException {
+        if (activeSegment != null && activeSegment.seal()) {
+            retire(activeSegment);
+        }
+        long sequence = nextSequence++;
+        File f = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+        // a single upload larger than the configured segment size gets a segment of its own
+        activeSegment = JournalSegment.create(f, sequence, Math.max(segmentSize, recordLength + 64));
+    }
+
+    private long sequenceOf(File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.logging;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A logging Handler which places log records on a bounded ring buffer and
+ * publishes them to the wrapped Handler from a background thread, so that the
+ * calling thread does not wait on formatting or on the log file.
+ *
+ * When the buffer is full records below WARNING are dropped and counted - the
+ * count is written to the log once there is space. WARNING and SEVERE records
+ * wait for space for a short time before being dropped.
+ *
+ * @author rick@robinsonhq.com
+ */
+public class AsyncLogHandler extends Handler {
+
+    private static final int BATCH_SIZE = 256;
+    private static final long IMPORTANT_RECORD_WAIT_MILLIS = 5000;
+    private static final long CLOSE_WAIT_MILLIS = 5000;
+
+    private final Handler target;
+    private final ArrayBlockingQueue<LogRecord> buffer;
+    private final AtomicLong droppedSinceReport = new AtomicLong();
+    private final AtomicLong droppedTotal = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final Thread drainer;
+
+    /**
+     * Constructor
+     *
+     * @param target the Handler to publish the log records to
+     * @param capacity number of log records which may be waiting to be
+     * published
+     */
+    public AsyncLogHandler(Handler target, int capacity) {
+        this.target = target;
+        this.buffer = new ArrayBlockingQueue<>(capacity);
+        this.drainer = new Thread(this::drain, "medipi-log-" + target.getClass().getSimpleName());
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (record == null || !isLoggable(record)) {
+            return;
+        }
+        if (closed.get()) {
+            // the drainer has gone - keep late records (e.g. during shutdown) in order
+            synchronized (target) {
+                target.publish(record);
+            }
+            return;
+        }
+        if (buffer.offer(record)) {
+            return;
+        }
+        if (record.getLevel().intValue() >= Level.WARNING.intValue()) {
+            try {
+                if (buffer.offer(record, IMPORTANT_RECORD_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        droppedSinceReport.incrementAndGet();
+        droppedTotal.incrementAndGet();
+    }
+
+    private void drain() {
+        List<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+        while (!closed.get() || !buffer.isEmpty()) {
+            try {
+                LogRecord first = buffer.poll(250, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, BATCH_SIZE - 1);
+                synchronized (target) {
+                    for (LogRecord record : batch) {
+                        target.publish(record);
+                    }
+                    reportDropped();
+                    target.flush();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                reportError("Failed to publish log records", e, ErrorManager.WRITE_FAILURE);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void reportDropped() {
+        long dropped = droppedSinceReport.getAndSet(0);
+        if (dropped > 0) {
+            LogRecord record = new LogRecord(Level.WARNING, dropped + " log records were dropped because the logging buffer was full");
+            record.setSourceClassName(AsyncLogHandler.class.getName());
+            record.setSourceMethodName("publish");
+            target.publish(record);
+        }
+    }
+
+    /**
+     * @return number of log records waiting to be published
+     */
+    public int getBufferedCount() {
+        return buffer.size();
+    }
+
+    /**
+     * @return number of log records dropped since the handler was created
+     */
+    public long getDroppedCount() {
+        return droppedTotal.get();
+    }
+
+    /**
+     * The background thread flushes the wrapped handler after every batch
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Publish any buffered records and close the wrapped handler
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            drainer.join(CLOSE_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (target) {
+            LogRecord record;
+            while ((record = buffer.poll()) != null) {
+                target.publish(record);
+            }
+            reportDropped();
+            target.flush();
+            target.close();
+        }
+    }
+}
@@ -22,7 +22,9 @@ import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.SimpleFormatter;
+import java.util.function.Supplier;
 import org.medipi.concentrator.utilities.ConfigurationStringTokeniser;
 import org.medipi.concentrator.utilities.Utilities;
 /**
@@ -33,6 +35,11 @@ import org.medipi.concentrator.utilities.Utilities;
  *  Note:  setAppName(String name, String ldir) should be called before any logging call.  
  *         closeLog() will close the logging file.
  *         setAppName() and closeLog() should be called as a pair with a logging file.
+ *
+ *  Messages below the level set by setLevel() are discarded before they are
+ *  formatted, and the Supplier variants of the logging methods only build the
+ *  message when it will be logged. setAsynchronous() hands log records to a
+ *  background thread through a bounded buffer (see AsyncLogHandler).
  * 
  * @author Damian Murphy <murff@warlock.org>
  */
@@ -51,15 +58,24 @@ public class MediPiLogger {
     private static String dateString = null;
     private static MediPiLogger me = null;
     private static String logFileName = null;
-    private boolean useAppLogger = false;
+    private static final String MESSAGE_PATTERN = "Location: {0} : Message: {1}";
+    private volatile java.util.logging.Logger eventLogger;
+    private volatile Level threshold = Level.ALL;
+    private int asyncCapacity = 0;
+    private Handler consoleHandler;
+    private AsyncLogHandler asyncConsoleHandler = null;
+    private AsyncLogHandler asyncFileHandler = null;
     
     /** Creates a new instance of Logger */
     private MediPiLogger() {
         dateString = Utilities.INTERNAL_FORMAT.format(new Date());
         java.util.logging.Logger consoleLogger = java.util.logging.Logger.getLogger(CONSOLE_LOGGER);
-        ConsoleHandler ch = new ConsoleHandler();
-        ch.setFormatter(new SimpleFormatter());
-        consoleLogger.addHandler(ch);
+        consoleHandler = new ConsoleHandler();
+        consoleHandler.setFormatter(new SimpleFormatter());
+        consoleLogger.addHandler(consoleHandler);
+        consoleLogger.setUseParentHandlers(false);
+        consoleLogger.setLevel(Level.ALL);
+        eventLogger = consoleLogger;
     
         /* load the Internal Loggin Levels file - this may be updated at a later stage by having an 
          external one but for the time being this will be sufficient */
@@ -102,7 +118,10 @@ public class MediPiLogger {
      */
     public void log(String location, Exception e)
     {
-       log(location, makeMessage(e));
+       Level l = getLevel(location);
+       if (isLoggable(l)) {
+           log(l, location, makeMessage(e));
+       }
     }    
     
     private String makeMessage(Exception e)
@@ -124,6 +143,31 @@ public class MediPiLogger {
     public void log(String location, String message) {
         log(logLevelsMap.get(location), location, message);
     }
+
+    /**
+     * Log the message built by the supplier at the level configured for the
+     * location. The message is only built if it will be logged
+     *
+     * @param location where the message has been raised.
+     * @param message supplier of the message to be logged
+     */
+    public void log(String location, Supplier<String> message) {
+        log(getLevel(location), location, message);
+    }
+
+    /**
+     * Log the message built by the supplier. The message is only built if it
+     * will be logged
+     *
+     * @param l java.util.logging.Level
+     * @param location where the message has been raised.
+     * @param message supplier of the message to be logged
+     */
+    public void log(Level l, String location, Supplier<String> message) {
+        if (isLoggable(l)) {
+            log(l, location, message.get());
+        }
+    }
     
     public void warn(String location, String message) {
         log(Level.WARNING, location, message);
@@ -144,6 +188,119 @@ public class MediPiLogger {
     public void error(String location, String message) {
         log(Level.SEVERE, location, message);
     }
+
+    public void warn(String location, Supplier<String> message) {
+        log(Level.WARNING, location, message);
+    }
+    public void fine(String location, Supplier<String> message) {
+        log(Level.FINE, location, message);
+    }
+    public void finer(String location, Supplier<String> message) {
+        log(Level.FINER, location, message);
+    }
+    public void finest(String location, Supplier<String> message) {
+        log(Level.FINEST, location, message);
+    }
+    public void info(String location, Supplier<String> message) {
+        log(Level.INFO, location, message);
+    }
+
+    public void error(String location, Supplier<String> message) {
+        log(Level.SEVERE, location, message);
+    }
+
+    /**
+     * The level at which messages from a location are logged - set in the
+     * internal logging levels file, otherwise INFO
+     *
+     * @param location where the message has been raised.
+     * @return java.util.logging.Level
+     */
+    public Level getLevel(String location) {
+        Level l = logLevelsMap.get(location);
+        return l == null ? Level.INFO : l;
+    }
+
+    /**
+     * Whether a message at this level would be logged
+     *
+     * @param l java.util.logging.Level - null is treated as INFO
+     * @return true if the message would be logged
+     */
+    public boolean isLoggable(Level l) {
+        int value = l == null ? Level.INFO.intValue() : l.intValue();
+        Level t = threshold;
+        return value >= t.intValue() && t.intValue() != Level.OFF.intValue();
+    }
+
+    /**
+     * Whether a message from this location would be logged
+     *
+     * @param location where the message has been raised.
+     * @return true if the message would be logged
+     */
+    public boolean isLoggable(String location) {
+        return isLoggable(getLevel(location));
+    }
+
+    /**
+     * Set the level below which messages are discarded
+     *
+     * @param l java.util.logging.Level
+     */
+    public void setLevel(Level l) {
+        if (l != null) {
+            threshold = l;
+        }
+    }
+
+    /**
+     * Hand log records to a background thread for publication rather than
+     * writing them on the calling thread. The console is switched over
+     * immediately and the log file when it is opened by setAppName()
+     *
+     * @param capacity number of log records which may be waiting to be
+     * published. When this is exceeded records below WARNING are dropped
+     */
+    public synchronized void setAsynchronous(int capacity) {
+        if (capacity <= 0 || asyncCapacity > 0) {
+            return;
+        }
+        asyncCapacity = capacity;
+        java.util.logging.Logger consoleLogger = java.util.logging.Logger.getLogger(CONSOLE_LOGGER);
+        asyncConsoleHandler = new AsyncLogHandler(consoleHandler, capacity);
+        consoleLogger.removeHandler(consoleHandler);
+        consoleLogger.addHandler(asyncConsoleHandler);
+    }
+
+    /**
+     * @return number of log records waiting to be published by the
+     * background threads
+     */
+    public int getBufferedCount() {
+        int count = 0;
+        if (asyncConsoleHandler != null) {
+            count += asyncConsoleHandler.getBufferedCount();
+        }
+        if (asyncFileHandler != null) {
+            count += asyncFileHandler.getBufferedCount();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of log records dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        long count = 0;
+        if (asyncConsoleHandler != null) {
+            count += asyncConsoleHandler.getDroppedCount();
+        }
+        if (asyncFileHandler != null) {
+            count += asyncFileHandler.getDroppedCount();
+        }
+        return count;
+    }
     
     /**
      * Log the given exception.
@@ -154,7 +311,9 @@ public class MediPiLogger {
      */
     public void log(Level l, String location, Exception e)
     {
-       log(l, location, makeMessage(e));
+       if (isLoggable(l)) {
+           log(l, location, makeMessage(e));
+       }
     }
     
     /**
@@ -167,31 +326,31 @@ public class MediPiLogger {
      *  @param message   the message to be logged. 
      */
     public void log(Level l, String location, String message) {
-        StringBuilder sb = new StringBuilder();        
-        sb.append("Location: ");
-        if ((location == null) || (location.trim().length() == 0))
-            sb.append("Not given");
-        else
-            sb.append(location);
-        sb.append(" : Message: ");
-        if ((message == null) || (message.trim().length() == 0))
-            sb.append("Not given");
-        else
-            sb.append(message);
+        if (!isLoggable(l)) {
+            return;
+        }
+        // the record is formatted by the handler - on the background thread
+        // when logging is asynchronous
+        java.util.logging.Logger eventlog = eventLogger;
+        LogRecord record = new LogRecord(l == null ? Level.INFO : l, MESSAGE_PATTERN);
+        record.setParameters(new Object[]{isBlank(location) ? "Not given" : location, isBlank(message) ? "Not given" : message});
+        record.setLoggerName(eventlog.getName());
+        // set explicitly so that the caller is not found by walking the stack
+        record.setSourceClassName(MediPiLogger.class.getName());
+        record.setSourceMethodName("log");
+        eventlog.log(record);
+    }
 
-        java.util.logging.Logger eventlog = null;
-        if (useAppLogger) {
-            eventlog = appLogger;
-        } else {
-            eventlog = java.util.logging.Logger.getLogger(CONSOLE_LOGGER);
+    private static boolean isBlank(String s) {
+        if (s == null) {
+            return true;
         }
-        eventlog.setUseParentHandlers(false);
-        eventlog.setLevel(Level.ALL);
-        if(l == null){
-            eventlog.log(Level.INFO, sb.toString());
-        }else{
-            eventlog.log(l, sb.toString());
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) > ' ') {
+                return false;
+            }
         }
+        return true;
     }
     
     /**
@@ -212,6 +371,9 @@ public class MediPiLogger {
                 h.close();
             }
         }
+        if (asyncConsoleHandler != null) {
+            asyncConsoleHandler.close();
+        }
     }
     
     /**
@@ -248,8 +410,14 @@ public class MediPiLogger {
             try {
                 FileHandler fh = new FileHandler(logFileName, 0, 1, true);
                 fh.setFormatter(new SimpleFormatter());
-                appLogger.addHandler(fh);
-                useAppLogger = true;
+                if (asyncCapacity > 0) {
+                    asyncFileHandler = new AsyncLogHandler(fh, asyncCapacity);
+                    appLogger.addHandler(asyncFileHandler);
+                } else {
+                    appLogger.addHandler(fh);
+                }
+                appLogger.setLevel(Level.ALL);
+                eventLogger = appLogger;
             }
             catch (Exception e) {
                 java.util.logging.Logger consoleLogger = java.util.logging.Logger.getLogger(CONSOLE_LOGGER);
@@ -0,0 +1,89 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.metrics;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Wraps the DataSource so that the time taken to get a connection from the
+ * connection pool is recorded, and registers gauges for the state of the pool
+ * when it is the Tomcat JDBC pool
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class DataSourceMetricsPostProcessor implements BeanPostProcessor {
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        if (!(bean instanceof DataSource) || bean instanceof TimedDataSource) {
+            return bean;
+        }
+        if (bean instanceof org.apache.tomcat.jdbc.pool.DataSource) {
+            org.apache.tomcat.jdbc.pool.DataSource pool = (org.apache.tomcat.jdbc.pool.DataSource) bean;
+            metrics.gauge("medipi_db_pool_active_connections", "Connections in use", pool::getActive);
+            metrics.gauge("medipi_db_pool_idle_connections", "Idle connections", pool::getIdle);
+            metrics.gauge("medipi_db_pool_waiting_threads", "Threads waiting for a connection", pool::getWaitCount);
+            metrics.gauge("medipi_db_pool_max_connections", "Maximum number of connections", pool::getMaxActive);
+        }
+        return new TimedDataSource((DataSource) bean, metrics.histogram("medipi_db_connection_wait_seconds", "Time waited for a connection from the pool", ""));
+    }
+
+    private static final class TimedDataSource extends DelegatingDataSource {
+
+        private final MetricsRegistry.Histogram wait;
+
+        private TimedDataSource(DataSource target, MetricsRegistry.Histogram wait) {
+            super(target);
+            this.wait = wait;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            long start = System.nanoTime();
+            try {
+                return super.getConnection();
+            } finally {
+                wait.recordSince(start);
+            }
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            long start = System.nanoTime();
+            try {
+                return super.getConnection(username, password);
+            } finally {
+                wait.recordSince(start);
+            }
+        }
+    }
+}
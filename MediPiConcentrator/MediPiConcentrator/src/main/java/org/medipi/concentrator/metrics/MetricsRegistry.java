@@ -0,0 +1,307 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+import javax.annotation.PostConstruct;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registry of the concentrator's metrics - latency histograms, counters and
+ * gauges - which are written in the Prometheus text exposition format by the
+ * metrics interface.
+ *
+ * The latency of each stage of the upload and download paths is held in the
+ * medipi_stage_duration_seconds histogram with a stage label. Metrics are
+ * registered once and recorded without locking
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class MetricsRegistry {
+
+    /**
+     * Prometheus text exposition format content type
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    public static final String STAGE_VALIDATION = "validation";
+    public static final String STAGE_DECRYPT_VERIFY = "decrypt_verify";
+    public static final String STAGE_PARSE = "parse";
+    public static final String STAGE_PERSIST = "persist";
+    public static final String STAGE_DOWNLOADABLE_LIST = "downloadable_list";
+    public static final String STAGE_CLINICIAN_EXPORT = "clinician_export";
+
+    private static final String STAGE_DURATION = "medipi_stage_duration_seconds";
+    private static final String STAGE_DURATION_HELP = "Time taken by each stage of the upload and download paths";
+
+    // upper bounds in seconds - from a fast index lookup to a large export
+    private static final double[] LATENCY_BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    @PostConstruct
+    private void init() {
+        MediPiLogger logger = MediPiLogger.getInstance();
+        gauge("medipi_log_buffered_records", "Log records waiting to be written", logger::getBufferedCount);
+        counter("medipi_log_dropped_records_total", "Log records dropped because the logging buffer was full", logger::getDroppedCount);
+    }
+
+    /**
+     * Get the latency histogram of a stage
+     *
+     * @param stage name of the stage e.g. STAGE_VALIDATION
+     * @return histogram
+     */
+    public Histogram stage(String stage) {
+        return histogram(STAGE_DURATION, STAGE_DURATION_HELP, "stage=\"" + stage + "\"");
+    }
+
+    /**
+     * Get or register a latency histogram
+     *
+     * @param name metric name
+     * @param help description of the metric
+     * @param labels Prometheus labels e.g. stage="parse" - may be empty
+     * @return histogram
+     */
+    public Histogram histogram(String name, String help, String labels) {
+        return (Histogram) family(name, help, "histogram").metrics.computeIfAbsent(labels, l -> new Histogram(LATENCY_BUCKETS));
+    }
+
+    /**
+     * Get or register a counter
+     *
+     * @param name metric name - ending in _total
+     * @param help description of the metric
+     * @return counter
+     */
+    public Counter counter(String name, String help) {
+        return (Counter) family(name, help, "counter").metrics.computeIfAbsent("", l -> new Counter());
+    }
+
+    /**
+     * Register a counter which is kept elsewhere and read when the metrics are
+     * written
+     *
+     * @param name metric name - ending in _total
+     * @param help description of the metric
+     * @param value supplier of the current count - which must never decrease
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        family(name, help, "counter").metrics.put("", new SuppliedCounter(value));
+    }
+
+    /**
+     * Register a gauge which is read when the metrics are written
+     *
+     * @param name metric name
+     * @param help description of the metric
+     * @param value supplier of the current value
+     */
+    public void gauge(String name, String help, DoubleSupplier value) {
+        family(name, help, "gauge").metrics.put("", new Gauge(value));
+    }
+
+    private Family family(String name, String help, String type) {
+        Family f = families.computeIfAbsent(name, n -> new Family(help, type));
+        if (!f.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as a " + f.type);
+        }
+        return f;
+    }
+
+    /**
+     * Write all the metrics in the Prometheus text exposition format
+     *
+     * @param w writer
+     * @throws IOException
+     */
+    public void write(Writer w) throws IOException {
+        for (Map.Entry<String, Family> e : families.entrySet()) {
+            String name = e.getKey();
+            Family f = e.getValue();
+            w.write("# HELP " + name + " " + f.help + "\n");
+            w.write("# TYPE " + name + " " + f.type + "\n");
+            for (Map.Entry<String, Metric> m : f.metrics.entrySet()) {
+                m.getValue().write(w, name, m.getKey());
+            }
+        }
+    }
+
+    private static String format(double d) {
+        if (Double.isInfinite(d)) {
+            return d > 0 ? "+Inf" : "-Inf";
+        }
+        if (d == Math.rint(d) && Math.abs(d) < 1e15) {
+            return Long.toString((long) d);
+        }
+        if (Double.isNaN(d)) {
+            return "NaN";
+        }
+        return BigDecimal.valueOf(d).stripTrailingZeros().toPlainString();
+    }
+
+    private static String labels(String labels, String extra) {
+        if (labels.isEmpty() && extra.isEmpty()) {
+            return "";
+        }
+        if (labels.isEmpty() || extra.isEmpty()) {
+            return "{" + labels + extra + "}";
+        }
+        return "{" + labels + "," + extra + "}";
+    }
+
+    private static final class Family {
+
+        private final String help;
+        private final String type;
+        private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+        private Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private interface Metric {
+
+        void write(Writer w, String name, String labels) throws IOException;
+    }
+
+    /**
+     * A monotonically increasing count
+     */
+    public static final class Counter implements Metric {
+
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public void write(Writer w, String name, String labels) throws IOException {
+            w.write(name + labels(labels, "") + " " + count.sum() + "\n");
+        }
+    }
+
+    private static final class SuppliedCounter implements Metric {
+
+        private final LongSupplier value;
+
+        private SuppliedCounter(LongSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(Writer w, String name, String labels) throws IOException {
+            w.write(name + labels(labels, "") + " " + value.getAsLong() + "\n");
+        }
+    }
+
+    /**
+     * A histogram of durations with fixed bucket boundaries in seconds
+     */
+    public static final class Histogram implements Metric {
+
+        private final double[] bounds;
+        private final long[] boundNanos;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        private Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.boundNanos = new long[bounds.length];
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                boundNanos[i] = (long) (bounds[i] * 1_000_000_000L);
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Record a duration
+         *
+         * @param nanos duration in nanoseconds
+         */
+        public void record(long nanos) {
+            for (int i = 0; i < boundNanos.length; i++) {
+                if (nanos <= boundNanos[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Record the time elapsed since the start time
+         *
+         * @param startNanos start time from System.nanoTime()
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public void write(Writer w, String name, String labels) throws IOException {
+            // Prometheus buckets are cumulative
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                w.write(name + "_bucket" + labels(labels, "le=\"" + format(bounds[i]) + "\"") + " " + cumulative + "\n");
+            }
+            // the adders are read while being updated - keep the output consistent
+            long total = Math.max(count.sum(), cumulative);
+            w.write(name + "_bucket" + labels(labels, "le=\"+Inf\"") + " " + total + "\n");
+            w.write(name + "_sum" + labels(labels, "") + " " + format(sumNanos.sum() / 1e9) + "\n");
+            w.write(name + "_count" + labels(labels, "") + " " + total + "\n");
+        }
+    }
+
+    private static final class Gauge implements Metric {
+
+        private final DoubleSupplier value;
+
+        private Gauge(DoubleSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void write(Writer w, String name, String labels) throws IOException {
+            w.write(name + labels(labels, "") + " " + format(value.getAsDouble()) + "\n");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.model;
+
+import java.io.Serializable;
+
+/**
+ * This data object is the notification sent to subscribed clinical systems
+ * when new data for a patient has been stored. It identifies the patient and
+ * device type and the cursor up to which the new data can be requested
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DataChangeDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String patientUuid;
+    private String type;
+    private String cursor;
+
+    public DataChangeDO() {
+    }
+
+    public DataChangeDO(String patientUuid, String type, String cursor) {
+        this.patientUuid = patientUuid;
+        this.type = type;
+        this.cursor = cursor;
+    }
+
+    public String getPatientUuid() {
+        return patientUuid;
+    }
+
+    public void setPatientUuid(String patientUuid) {
+        this.patientUuid = patientUuid;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.model;
+
+import java.io.Serializable;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+
+/**
+ * This data object is an item of a batch of alerts sent by a clinical system.
+ * The request holds the patient and the encrypted and signed alert for that
+ * patient. The response returns the patient and the UUID of the patient
+ * downloadable created for the alert
+ *
+ * @author rick@robinsonhq.com
+ */
+public class PatientAlertDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String patientUuid;
+    private String downloadableUuid;
+    private EncryptedAndSignedUploadDO alert;
+
+    public PatientAlertDO() {
+    }
+
+    public PatientAlertDO(String patientUuid, String downloadableUuid) {
+        this.patientUuid = patientUuid;
+        this.downloadableUuid = downloadableUuid;
+    }
+
+    public String getPatientUuid() {
+        return patientUuid;
+    }
+
+    public void setPatientUuid(String patientUuid) {
+        this.patientUuid = patientUuid;
+    }
+
+    public String getDownloadableUuid() {
+        return downloadableUuid;
+    }
+
+    public void setDownloadableUuid(String downloadableUuid) {
+        this.downloadableUuid = downloadableUuid;
+    }
+
+    public EncryptedAndSignedUploadDO getAlert() {
+        return alert;
+    }
+
+    public void setAlert(EncryptedAndSignedUploadDO alert) {
+        this.alert = alert;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * This data object reports the progress of a replay of the inbound message
+ * archive
+ *
+ * @author rick@robinsonhq.com
+ */
+public class ReplayStatusDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String state;
+    private Date started;
+    private Date finished;
+    private long segments;
+    private long segmentsRead;
+    private long read;
+    private long skipped;
+    private long replayed;
+    private long rejected;
+    private long failed;
+    private double uploadsPerSecond;
+    private Long checkpoint;
+
+    public ReplayStatusDO() {
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    public Date getStarted() {
+        return started;
+    }
+
+    public void setStarted(Date started) {
+        this.started = started;
+    }
+
+    public Date getFinished() {
+        return finished;
+    }
+
+    public void setFinished(Date finished) {
+        this.finished = finished;
+    }
+
+    public long getSegments() {
+        return segments;
+    }
+
+    public void setSegments(long segments) {
+        this.segments = segments;
+    }
+
+    public long getSegmentsRead() {
+        return segmentsRead;
+    }
+
+    public void setSegmentsRead(long segmentsRead) {
+        this.segmentsRead = segmentsRead;
+    }
+
+    public long getRead() {
+        return read;
+    }
+
+    public void setRead(long read) {
+        this.read = read;
+    }
+
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public void setSkipped(long skipped) {
+        this.skipped = skipped;
+    }
+
+    public long getReplayed() {
+        return replayed;
+    }
+
+    public void setReplayed(long replayed) {
+        this.replayed = replayed;
+    }
+
+    public long getRejected() {
+        return rejected;
+    }
+
+    public void setRejected(long rejected) {
+        this.rejected = rejected;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public void setFailed(long failed) {
+        this.failed = failed;
+    }
+
+    public double getUploadsPerSecond() {
+        return uploadsPerSecond;
+    }
+
+    public void setUploadsPerSecond(double uploadsPerSecond) {
+        this.uploadsPerSecond = uploadsPerSecond;
+    }
+
+    public Long getCheckpoint() {
+        return checkpoint;
+    }
+
+    public void setCheckpoint(Long checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+}
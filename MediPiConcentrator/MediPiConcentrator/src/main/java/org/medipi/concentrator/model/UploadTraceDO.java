@@ -0,0 +1,105 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.model;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * This data object holds the trace of the processing of an upload from a
+ * MediPi patient unit - the timings of each stage are held in a tree of spans
+ *
+ * @author rick@robinsonhq.com
+ */
+public class UploadTraceDO implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private String uploadUuid;
+    private String deviceId;
+    private String patientUuid;
+    private Date start;
+    private Date end;
+    private long durationMillis;
+    private String outcome;
+    private TraceSpanDO span;
+
+    public UploadTraceDO() {
+    }
+
+    public String getUploadUuid() {
+        return uploadUuid;
+    }
+
+    public void setUploadUuid(String uploadUuid) {
+        this.uploadUuid = uploadUuid;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public void setDeviceId(String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    public String getPatientUuid() {
+        return patientUuid;
+    }
+
+    public void setPatientUuid(String patientUuid) {
+        this.patientUuid = patientUuid;
+    }
+
+    public Date getStart() {
+        return start;
+    }
+
+    public void setStart(Date start) {
+        this.start = start;
+    }
+
+    public Date getEnd() {
+        return end;
+    }
+
+    public void setEnd(Date end) {
+        this.end = end;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    public void setOutcome(String outcome) {
+        this.outcome = outcome;
+    }
+
+    public TraceSpanDO getSpan() {
+        return span;
+    }
+
+    public void setSpan(TraceSpanDO span) {
+        this.span = span;
+    }
+}
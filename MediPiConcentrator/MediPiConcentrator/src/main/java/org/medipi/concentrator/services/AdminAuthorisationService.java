@@ -0,0 +1,112 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import org.medipi.concentrator.exception.Forbidden403Exception;
+import org.medipi.concentrator.exception.NotFound404Exception;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class to authorise requests to the administrative interfaces of the
+ * concentrator.
+ *
+ * The administrative interfaces are only available when an admin token has
+ * been configured (medipi.concentrator.admin.token) and each request must
+ * present that token in the Admin-Token HTTP header.
+ *
+ * The metrics interface has its own token (medipi.concentrator.metrics.token)
+ * so that a monitoring system can scrape the metrics without holding the admin
+ * token. It is presented as an Authorization Bearer token and the interface is
+ * only available when it has been configured
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class AdminAuthorisationService {
+
+    /**
+     * HTTP header holding the admin token
+     */
+    public static final String HEADER = "Admin-Token";
+
+    private static final String BEARER = "Bearer ";
+
+    @Value("${medipi.concentrator.admin.token:}")
+    private String adminToken;
+
+    @Value("${medipi.concentrator.metrics.token:}")
+    private String metricsToken;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    /**
+     * Authorise an administrative request
+     *
+     * @param token the token presented in the Admin-Token header
+     * @param operation description of the operation for the log
+     * @throws NotFound404Exception if the administrative interfaces are not
+     * enabled
+     * @throws Forbidden403Exception if the token does not match
+     */
+    public void authorise(String token, String operation) {
+        if (adminToken == null || adminToken.isEmpty()) {
+            throw new NotFound404Exception("The administrative interfaces are not enabled");
+        }
+        check(adminToken, token, operation);
+    }
+
+    /**
+     * Authorise a request to scrape the metrics
+     *
+     * @param token the token presented as an Authorization Bearer token
+     * @throws NotFound404Exception if the metrics interface is not enabled
+     * @throws Forbidden403Exception if the token does not match
+     */
+    public void authoriseMetrics(String token) {
+        if (metricsToken == null || metricsToken.isEmpty()) {
+            throw new NotFound404Exception("The metrics interface is not enabled");
+        }
+        check(metricsToken, token, "metrics");
+    }
+
+    private void check(String expected, String token, String operation) {
+        // compared in constant time so that the token cannot be discovered by timing
+        if (token == null || !MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            logger.error(AdminAuthorisationService.class.getName() + ".error", () -> "Unauthorised admin request: " + operation);
+            throw new Forbidden403Exception("Not authorised");
+        }
+    }
+
+    /**
+     * Get the token from an Authorization header using the Bearer scheme, as
+     * sent by monitoring systems such as Prometheus
+     *
+     * @param authorization Authorization HTTP header - may be null
+     * @return the token or null if there is not one
+     */
+    public static String bearerToken(String authorization) {
+        if (authorization == null || !authorization.regionMatches(true, 0, BEARER, 0, BEARER.length())) {
+            return null;
+        }
+        return authorization.substring(BEARER.length()).trim();
+    }
+}
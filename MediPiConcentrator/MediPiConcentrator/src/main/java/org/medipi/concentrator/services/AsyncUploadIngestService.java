@@ -0,0 +1,278 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PreDestroy;
+import javax.servlet.ServletContext;
+import org.medipi.concentrator.exception.BadRequest400Exception;
+import org.medipi.concentrator.exception.InternalServerError500Exception;
+import org.medipi.concentrator.exception.NotAcceptable406Exception;
+import org.medipi.concentrator.exception.NotFound404Exception;
+import org.medipi.concentrator.journal.JournalEntry;
+import org.medipi.concentrator.journal.JournalledUpload;
+import org.medipi.concentrator.journal.UploadJournal;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.model.DevicesPayloadCodec;
+import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class to optionally decouple patient uploads from their processing.
+ *
+ * When asynchronous ingest is enabled the encrypted upload is written to the
+ * durable upload journal and acknowledged with 202 Accepted and the upload
+ * UUID. A pool of worker threads then processes the journalled uploads
+ * through PatientUploadService exactly as a synchronous upload would be. Only
+ * a handle to each upload waiting to be processed is held in memory - each
+ * worker reads its upload back from the journal - and once the configured
+ * number of uploads are waiting further uploads are refused with 503 Service
+ * Unavailable and a Retry-After header.
+ *
+ * An upload which is rejected (400, 404, 406) will never succeed and is
+ * removed from the journal. An upload which fails for any other reason (e.g.
+ * the DB is unavailable) is retried with an exponential backoff from the
+ * configured delay. Once the maximum number of attempts have failed the upload
+ * is marked as dead in the journal, where it is kept so that it can be
+ * examined. Uploads are processed at least once - duplicate data points are
+ * filtered by the data format
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class AsyncUploadIngestService {
+
+    @Value("${medipi.concentrator.asyncingest:false}")
+    private boolean asyncIngest;
+
+    @Value("${medipi.concentrator.asyncingest.workers:2}")
+    private int workers;
+
+    @Value("${medipi.concentrator.asyncingest.retrydelayseconds:30}")
+    private long retryDelaySeconds;
+
+    @Value("${medipi.concentrator.asyncingest.maxretrydelayseconds:3600}")
+    private long maxRetryDelaySeconds;
+
+    @Value("${medipi.concentrator.asyncingest.maxattempts:10}")
+    private int maxAttempts;
+
+    @Value("${medipi.concentrator.asyncingest.maxpending:10000}")
+    private int maxPending;
+
+    @Value("${medipi.concentrator.asyncingest.retryafterseconds:30}")
+    private int retryAfterSeconds;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private ServletContext servletCtx;
+
+    @Autowired
+    private UploadJournal uploadJournal;
+
+    @Autowired
+    private PatientUploadService patientUploadService;
+
+    private ExecutorService workerPool;
+    // handles of the journalled uploads which are waiting until they are due to be processed
+    private final DelayQueue<JournalEntry> due = new DelayQueue<>();
+    // journalled uploads which have not yet been processed, including those being processed
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * @return true if asynchronous ingest is enabled and has been started
+     */
+    public boolean isEnabled() {
+        return asyncIngest && workerPool != null;
+    }
+
+    /**
+     * Open the upload journal and start the worker pool, queueing any uploads
+     * recovered from the journal. This must be called once the data formats
+     * have been registered
+     *
+     * @return a string representation of any failure to start or null
+     */
+    public synchronized String start() {
+        if (!asyncIngest || workerPool != null) {
+            return null;
+        }
+        List<JournalEntry> recovered;
+        try {
+            recovered = uploadJournal.open();
+        } catch (IOException e) {
+            return "Cannot open upload journal: " + e.getLocalizedMessage();
+        }
+        for (JournalEntry entry : recovered) {
+            pending.incrementAndGet();
+            due.add(entry);
+        }
+        int poolSize = Math.max(1, workers);
+        AtomicInteger threadNo = new AtomicInteger();
+        workerPool = Executors.newFixedThreadPool(poolSize, (Runnable r) -> {
+            Thread t = new Thread(r, "upload-ingest-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < poolSize; i++) {
+            workerPool.execute(this::work);
+        }
+        logger.info(AsyncUploadIngestService.class.getName(), () -> "Asynchronous upload ingest started with " + poolSize + " workers");
+        return null;
+    }
+
+    /**
+     * Accept an upload for asynchronous processing. The upload is journalled
+     * before the response is returned
+     *
+     * @param deviceId incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param dataFormat incoming Data-Format HTTP header parameter from RESTful
+     * message
+     * @param payloadEncoding incoming Payload-Encoding HTTP header parameter
+     * from RESTful message - null if the payload is Java serialised
+     * @param content incoming message in an encrypted and signed data object
+     * @return 202 Accepted response containing the upload UUID, or 503
+     * Service Unavailable if too many uploads are waiting to be processed
+     */
+    public ResponseEntity<?> accept(String deviceId, String patientUuid, String dataFormat, String payloadEncoding, EncryptedAndSignedUploadDO content) {
+        if (dataFormat == null || servletCtx.getAttribute(dataFormat) == null) {
+            //The Data-Format HTTP header in the incoming request is missing or not a supported format
+            logger.log(AsyncUploadIngestService.class.getName() + ".dataValidationIssue", "The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
+            throw new BadRequest400Exception("The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
+        }
+        if (!DevicesPayloadCodec.isSupported(payloadEncoding)) {
+            logger.log(AsyncUploadIngestService.class.getName() + ".dataValidationIssue", "The Payload-Encoding HTTP header in the incoming request is not a supported encoding: " + payloadEncoding);
+            throw new BadRequest400Exception("The Payload-Encoding HTTP header in the incoming request is not a supported encoding: " + payloadEncoding);
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            logger.info(AsyncUploadIngestService.class.getName() + ".busy", () -> maxPending + " journalled uploads are waiting to be processed - upload with uuid: " + content.getUploadUuid() + " refused");
+            HttpHeaders headers = new HttpHeaders();
+            headers.set(HttpHeaders.RETRY_AFTER, Integer.toString(retryAfterSeconds));
+            return new ResponseEntity<>("MediPi Concentrator is busy - please retry later", headers, HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        JournalEntry entry;
+        try {
+            entry = uploadJournal.append(new JournalledUpload(deviceId, patientUuid, dataFormat, payloadEncoding, content));
+        } catch (IOException e) {
+            pending.decrementAndGet();
+            logger.log(AsyncUploadIngestService.class.getName() + ".error", "Cannot write upload " + content.getUploadUuid() + " to the upload journal: " + e.getLocalizedMessage());
+            throw new InternalServerError500Exception("Cannot accept upload");
+        }
+        due.add(entry);
+        return new ResponseEntity<>(content.getUploadUuid(), HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * @return the number of journalled uploads waiting to be processed
+     */
+    public int getQueued() {
+        return pending.get();
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                ingest(due.take());
+            }
+        } catch (InterruptedException e) {
+            // stopping - unprocessed uploads remain in the journal
+        }
+    }
+
+    private void ingest(JournalEntry entry) {
+        JournalledUpload upload;
+        try {
+            upload = uploadJournal.read(entry);
+        } catch (IOException e) {
+            // an unreadable upload can never be processed
+            uploadJournal.deadLetter(entry);
+            pending.decrementAndGet();
+            logger.error(AsyncUploadIngestService.class.getName() + ".error", () -> "Unreadable upload in the upload journal marked as dead: " + e.getLocalizedMessage());
+            return;
+        }
+        String uploadUuid = upload.getContent() == null ? null : upload.getContent().getUploadUuid();
+        int attempt = uploadJournal.attempt(entry);
+        try {
+            ResponseEntity<?> r = this.patientUploadService.uploadRecordingDeviceData(upload.getDeviceId(), upload.getPatientUuid(), upload.getDataFormat(), upload.getPayloadEncoding(), upload.getContent());
+            if (!r.getStatusCode().is2xxSuccessful()) {
+                throw new InternalServerError500Exception("Upload processing returned " + r.getStatusCode());
+            }
+            uploadJournal.complete(entry);
+            pending.decrementAndGet();
+            logger.log(AsyncUploadIngestService.class.getName(), () -> "Journalled upload " + uploadUuid + " processed on attempt " + attempt);
+        } catch (BadRequest400Exception | NotFound404Exception | NotAcceptable406Exception e) {
+            // the upload will never be accepted - retrying will not help
+            uploadJournal.complete(entry);
+            pending.decrementAndGet();
+            logger.error(AsyncUploadIngestService.class.getName() + ".error", () -> "Journalled upload " + uploadUuid + " from device " + upload.getDeviceId() + " rejected: " + e.getLocalizedMessage());
+        } catch (RuntimeException e) {
+            if (attempt >= maxAttempts) {
+                uploadJournal.deadLetter(entry);
+                pending.decrementAndGet();
+                logger.error(AsyncUploadIngestService.class.getName() + ".error", () -> "Journalled upload " + uploadUuid + " from device " + upload.getDeviceId() + " failed on all " + attempt + " attempts and has been marked as dead: " + e.getLocalizedMessage());
+                return;
+            }
+            long delay = backoff(attempt);
+            logger.error(AsyncUploadIngestService.class.getName() + ".error", () -> "Journalled upload " + uploadUuid + " failed on attempt " + attempt + " and will be retried in " + delay + " seconds: " + e.getLocalizedMessage());
+            entry.setDelay(delay, TimeUnit.SECONDS);
+            due.add(entry);
+        }
+    }
+
+    // the retry delay doubles with each failed attempt up to the maximum
+    private long backoff(int attempt) {
+        long delay = retryDelaySeconds;
+        for (int i = 1; i < attempt && delay < maxRetryDelaySeconds; i++) {
+            delay *= 2;
+        }
+        return Math.min(delay, maxRetryDelaySeconds);
+    }
+
+    /**
+     * Stop the worker pool. Uploads which have not been processed remain in the
+     * journal and are recovered on restart
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (workerPool != null) {
+            workerPool.shutdownNow();
+            try {
+                workerPool.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            workerPool = null;
+        }
+        due.clear();
+        pending.set(0);
+        uploadJournal.close();
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.metrics.MetricsRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class providing a bounded executor for CPU-bound cryptographic work
+ * (decryption and signature verification of incoming uploads).
+ *
+ * The executor has a fixed number of threads - by default the number of
+ * available processors - and a bounded queue. When the queue is full further
+ * work is rejected immediately so that the caller can fail fast rather than
+ * tying up servlet threads which are needed by the I/O-bound endpoints
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class CryptoExecutorService {
+
+    @Value("${medipi.concentrator.crypto.threads:0}")
+    private int threads;
+
+    @Value("${medipi.concentrator.crypto.queuecapacity:64}")
+    private int queueCapacity;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    private void init() {
+        int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadNo = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                (Runnable r) -> {
+                    Thread t = new Thread(r, "crypto-" + threadNo.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        metrics.gauge("medipi_crypto_queued_tasks", "Uploads waiting for a crypto thread", this::getQueueSize);
+        metrics.gauge("medipi_crypto_active_threads", "Crypto threads decrypting and verifying an upload", this::getActiveCount);
+        logger.log(CryptoExecutorService.class.getName(), "Crypto executor started with " + poolSize + " threads and a queue capacity of " + queueCapacity);
+    }
+
+    /**
+     * Submit a task to the crypto executor
+     *
+     * @param <T> result type of the task
+     * @param task the task to be run
+     * @return future holding the result of the task
+     * @throws RejectedExecutionException if the executor's queue is full
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> task) throws RejectedExecutionException {
+        return CompletableFuture.supplyAsync(task, executor);
+    }
+
+    /**
+     * @return the number of tasks waiting for a crypto thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of crypto threads currently running a task
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        executor.shutdown();
+    }
+}
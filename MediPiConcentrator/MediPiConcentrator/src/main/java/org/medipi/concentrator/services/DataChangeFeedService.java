@@ -0,0 +1,381 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.dao.RecordingDeviceDataDAOImpl;
+import org.medipi.concentrator.entities.Patient;
+import org.medipi.concentrator.exception.BadRequest400Exception;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.DataChangeDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/**
+ * Service class to push notifications of new patient data to subscribed
+ * clinical systems using Server-Sent Events.
+ *
+ * A clinical system subscribes for a patient group and is sent a "data" event
+ * holding a DataChangeDO (patient, device type and cursor) as soon as new data
+ * points for a patient in the group have been committed. The event id is the
+ * cursor, which can be used with the paged data request to fetch the data.
+ * Comment lines are sent as heartbeats so that idle connections are kept open.
+ *
+ * Recent notifications are buffered so that a subscriber which reconnects with
+ * its last cursor (or the Last-Event-ID header) is sent those it missed. If the
+ * cursor is older than the buffer a "resync" event is sent instead, and the
+ * subscriber should page through the data from its cursor.
+ *
+ * Events are queued for each subscriber and sent from the feed's own thread.
+ * Each queue is bounded so that a subscriber which is not keeping up cannot
+ * hold more than medipi.concentrator.changefeed.queuesize events - when its
+ * queue overflows the subscription is completed and the subscriber resumes
+ * from its last event id when it reconnects
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class DataChangeFeedService {
+
+    private static final String DATAEVENT = "data";
+    private static final String RESYNCEVENT = "resync";
+
+    @Value("${medipi.concentrator.changefeed.heartbeatseconds:15}")
+    private long heartbeatSeconds;
+
+    @Value("${medipi.concentrator.changefeed.timeoutminutes:30}")
+    private long timeoutMinutes;
+
+    @Value("${medipi.concentrator.changefeed.buffersize:1000}")
+    private int bufferSize;
+
+    @Value("${medipi.concentrator.changefeed.queuesize:100}")
+    private int queueSize;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private RecordingDeviceDataDAOImpl recordingDeviceDataDAOImpl;
+
+    private final Map<String, List<Subscriber>> subscribers = new ConcurrentHashMap<>();
+    // recent notifications by cursor - published out of commit order so kept sorted
+    private final ConcurrentSkipListMap<Long, Change> recent = new ConcurrentSkipListMap<>();
+    // subscribers with a cursor below this may have missed notifications which are no longer buffered
+    private volatile long bufferedFrom = Long.MAX_VALUE;
+    private volatile ScheduledExecutorService sender;
+
+    /**
+     * Start sending heartbeats. Notifications of data stored before this are
+     * not buffered
+     */
+    public synchronized void start() {
+        if (sender != null) {
+            return;
+        }
+        try {
+            bufferedFrom = recordingDeviceDataDAOImpl.getLatestDataId();
+        } catch (Exception e) {
+            logger.error(DataChangeFeedService.class.getName() + ".error", () -> "Cannot read the latest data_id, all resuming subscribers will be resynchronised: " + e.getMessage());
+        }
+        sender = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "data-change-feed");
+            t.setDaemon(true);
+            return t;
+        });
+        sender.scheduleWithFixedDelay(this::sendHeartbeats, heartbeatSeconds, heartbeatSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Subscribe to the notifications for a patient group
+     *
+     * @param patientGroupUuid patient group UUID
+     * @param cursor cursor from which to resume or null for only new data
+     * @return the emitter for the subscription
+     */
+    public SseEmitter subscribe(String patientGroupUuid, String cursor) {
+        long from = -1;
+        if (cursor != null) {
+            try {
+                from = Long.parseLong(cursor);
+            } catch (NumberFormatException nfe) {
+                from = -1;
+            }
+            if (from < 0) {
+                throw new BadRequest400Exception("Invalid cursor: " + cursor);
+            }
+        }
+        SseEmitter emitter = new SseEmitter(TimeUnit.MINUTES.toMillis(timeoutMinutes));
+        List<Subscriber> groupSubscribers = subscribers.computeIfAbsent(patientGroupUuid, k -> new CopyOnWriteArrayList<>());
+        Subscriber subscriber = new Subscriber(emitter, groupSubscribers);
+        emitter.onCompletion(subscriber::remove);
+        emitter.onTimeout(subscriber::remove);
+        logger.info(DataChangeFeedService.class.getName(), () -> "Patient Group: " + patientGroupUuid + " subscribed to data changes from cursor: " + cursor);
+        // subscribe and queue the replay together so that anything published in between is queued after it
+        synchronized (subscriber) {
+            groupSubscribers.add(subscriber);
+            if (from >= 0) {
+                enqueue(subscriber, replay(patientGroupUuid, from));
+            }
+        }
+        return emitter;
+    }
+
+    /**
+     * Publish notifications of new data for a patient once the current
+     * transaction commits (or immediately if there is no transaction)
+     *
+     * @param patient patient for which data was stored
+     * @param changes notifications, one per device type stored
+     */
+    public void publishAfterCommit(Patient patient, List<DataChangeDO> changes) {
+        if (changes.isEmpty() || patient.getPatientGroupUuid() == null) {
+            return;
+        }
+        String patientGroupUuid = patient.getPatientGroupUuid().getPatientGroupUuid();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    publish(patientGroupUuid, changes);
+                }
+            });
+        } else {
+            publish(patientGroupUuid, changes);
+        }
+    }
+
+    private void publish(String patientGroupUuid, List<DataChangeDO> changes) {
+        for (DataChangeDO change : changes) {
+            recent.put(Long.parseLong(change.getCursor()), new Change(patientGroupUuid, change));
+        }
+        while (recent.size() > bufferSize) {
+            Map.Entry<Long, Change> evicted = recent.pollFirstEntry();
+            if (evicted != null) {
+                bufferedFrom = Math.max(bufferedFrom, evicted.getKey());
+            }
+        }
+        List<Subscriber> groupSubscribers = subscribers.get(patientGroupUuid);
+        if (groupSubscribers == null || groupSubscribers.isEmpty()) {
+            return;
+        }
+        List<Event> events = new ArrayList<>(changes.size());
+        for (DataChangeDO change : changes) {
+            events.add(new Event(DATAEVENT, change));
+        }
+        for (Subscriber subscriber : groupSubscribers) {
+            enqueue(subscriber, events);
+        }
+    }
+
+    /**
+     * The events which a subscriber resuming from a cursor has missed - a
+     * resync if they are no longer buffered or there are more than its queue
+     * can hold
+     */
+    private List<Event> replay(String patientGroupUuid, long from) {
+        List<Event> missed = new ArrayList<>();
+        if (from >= bufferedFrom) {
+            for (Change c : recent.tailMap(from, false).values()) {
+                if (c.patientGroupUuid.equals(patientGroupUuid)) {
+                    missed.add(new Event(DATAEVENT, c.change));
+                }
+            }
+            if (missed.size() <= queueSize) {
+                return missed;
+            }
+            missed.clear();
+        }
+        missed.add(new Event(RESYNCEVENT, new DataChangeDO(null, null, Long.toString(from))));
+        return missed;
+    }
+
+    private void sendHeartbeats() {
+        List<Event> heartbeat = new ArrayList<>(1);
+        heartbeat.add(new Event(null, null));
+        for (List<Subscriber> groupSubscribers : subscribers.values()) {
+            for (Subscriber subscriber : groupSubscribers) {
+                // a subscriber with events waiting does not need a heartbeat
+                synchronized (subscriber) {
+                    if (subscriber.queue.isEmpty()) {
+                        enqueue(subscriber, heartbeat);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue events for a subscriber and start sending them if they are not
+     * already being sent. If the subscriber's queue would overflow it is
+     * dropped - the subscriber resumes from its last event id when it
+     * reconnects
+     */
+    private void enqueue(Subscriber subscriber, List<Event> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        synchronized (subscriber) {
+            if (subscriber.overflowed) {
+                return;
+            }
+            if (subscriber.queue.size() + events.size() > queueSize) {
+                subscriber.queue.clear();
+                subscriber.overflowed = true;
+                subscriber.remove();
+                logger.warn(DataChangeFeedService.class.getName(), () -> "Data change subscriber is not keeping up and has been dropped - queue size: " + queueSize);
+            } else {
+                subscriber.queue.addAll(events);
+            }
+            if (subscriber.sending) {
+                return;
+            }
+            subscriber.sending = true;
+        }
+        ScheduledExecutorService s = sender;
+        if (s != null) {
+            s.execute(() -> drain(subscriber));
+        } else {
+            drain(subscriber);
+        }
+    }
+
+    /**
+     * Send the events queued for a subscriber, on the feed's own thread so
+     * that a slow subscriber cannot hold up the upload. The events queued
+     * when the drain starts are sent and any queued meanwhile are sent by a
+     * further drain behind the other subscribers'
+     */
+    private void drain(Subscriber subscriber) {
+        List<Event> events;
+        boolean overflowed;
+        synchronized (subscriber) {
+            events = new ArrayList<>(subscriber.queue);
+            subscriber.queue.clear();
+            overflowed = subscriber.overflowed;
+        }
+        if (overflowed) {
+            subscriber.emitter.complete();
+            return;
+        }
+        for (Event event : events) {
+            if (!send(subscriber.emitter, event)) {
+                subscriber.remove();
+                return;
+            }
+        }
+        synchronized (subscriber) {
+            if (subscriber.queue.isEmpty() && !subscriber.overflowed) {
+                subscriber.sending = false;
+                return;
+            }
+        }
+        ScheduledExecutorService s = sender;
+        if (s != null) {
+            s.execute(() -> drain(subscriber));
+        }
+    }
+
+    private boolean send(SseEmitter emitter, Event event) {
+        try {
+            if (event.name == null) {
+                emitter.send(SseEmitter.event().comment("heartbeat"));
+            } else {
+                emitter.send(SseEmitter.event().name(event.name).id(event.change.getCursor()).data(event.change, MediaType.APPLICATION_JSON));
+            }
+            return true;
+        } catch (IOException | IllegalStateException e) {
+            // the subscriber has gone away - it will resume from its last event id when it reconnects
+            emitter.completeWithError(e);
+            return false;
+        }
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (sender != null) {
+            sender.shutdownNow();
+            sender = null;
+        }
+        for (List<Subscriber> groupSubscribers : subscribers.values()) {
+            for (Subscriber subscriber : groupSubscribers) {
+                subscriber.emitter.complete();
+            }
+        }
+        subscribers.clear();
+    }
+
+    private static class Subscriber {
+
+        private final SseEmitter emitter;
+        private final List<Subscriber> groupSubscribers;
+        // guarded by this subscriber
+        private final ArrayDeque<Event> queue = new ArrayDeque<>();
+        private boolean sending = false;
+        private boolean overflowed = false;
+
+        Subscriber(SseEmitter emitter, List<Subscriber> groupSubscribers) {
+            this.emitter = emitter;
+            this.groupSubscribers = groupSubscribers;
+        }
+
+        void remove() {
+            groupSubscribers.remove(this);
+        }
+    }
+
+    /**
+     * An event queued for a subscriber - built when it is sent as an
+     * SseEventBuilder can only be sent once. A heartbeat has no name
+     */
+    private static class Event {
+
+        private final String name;
+        private final DataChangeDO change;
+
+        Event(String name, DataChangeDO change) {
+            this.name = name;
+            this.change = change;
+        }
+    }
+
+    private static class Change {
+
+        private final String patientGroupUuid;
+        private final DataChangeDO change;
+
+        Change(String patientGroupUuid, DataChangeDO change) {
+            this.patientGroupUuid = patientGroupUuid;
+            this.change = change;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.medipi.concentrator.exception.NotFound404Exception;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class to serve the files of downloadables to the MediPi Patient
+ * devices.
+ *
+ * A single byte range (Range: bytes=first-last, first- or -suffix) is honoured
+ * so that an interrupted download can be resumed. The response carries a strong
+ * ETag - the SHA-256 of the file content - which the device sends in If-Range so
+ * that a range is only returned if the file is unchanged, and which it can use
+ * to check the completed file. The content is sent by the servlet container's
+ * sendfile support where available, otherwise using FileChannel.transferTo
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class DownloadableFileService {
+
+    // Tomcat request attributes for sendfile
+    private static final String SENDFILESUPPORT = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILEFILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILESTART = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILEEND = "org.apache.tomcat.sendfile.end";
+
+    // content hashes by file path, recomputed if the file is modified
+    private final Map<String, ContentHash> hashes = new ConcurrentHashMap<>();
+
+    /**
+     * Serve a downloadable file
+     *
+     * @param fileName location of the file
+     * @param request request holding any Range and If-Range headers
+     * @param response response to which the file is written
+     * @throws IOException if the file cannot be read or written
+     * @throws NotFound404Exception if there is no such file
+     */
+    public void serve(String fileName, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (fileName == null || fileName.isEmpty()) {
+            throw new NotFound404Exception("Cannot find the downloadable resource which has been requested");
+        }
+        File f = new File(fileName);
+        if (!f.isFile()) {
+            throw new NotFound404Exception("Cannot find the downloadable resource which has been requested");
+        }
+        long length = f.length();
+        String eTag = getETag(f);
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, eTag);
+        response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+        response.setHeader("Content-Disposition", "attachment; filename=" + fileName.replace(" ", "_"));
+
+        long first = 0;
+        long last = length - 1;
+        String range = request.getHeader(HttpHeaders.RANGE);
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        // a range is only returned if the file is the one which the device started to download
+        if (range != null && (ifRange == null || ifRange.equals(eTag))) {
+            long[] r = parseRange(range, length);
+            if (r == null) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+                return;
+            }
+            if (r.length == 2) {
+                first = r[0];
+                last = r[1];
+                response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + first + "-" + last + "/" + length);
+            }
+        }
+        long count = last - first + 1;
+        response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(count));
+        if (count <= 0) {
+            return;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILESUPPORT))) {
+            // the container writes the file directly to the socket once the request completes
+            request.setAttribute(SENDFILEFILENAME, f.getCanonicalPath());
+            request.setAttribute(SENDFILESTART, first);
+            request.setAttribute(SENDFILEEND, last + 1);
+            return;
+        }
+        try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            long position = first;
+            long end = last + 1;
+            while (position < end) {
+                long sent = fc.transferTo(position, end - position, out);
+                if (sent <= 0) {
+                    throw new IOException("Downloadable file truncated while being sent: " + fileName);
+                }
+                position += sent;
+            }
+        }
+    }
+
+    /**
+     * Parse a Range header
+     *
+     * @return {first, last} for a single satisfiable range, an empty array if
+     * the header is to be ignored (multiple ranges or not bytes) or null if the
+     * range cannot be satisfied
+     */
+    private long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return null;
+                }
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+                if (last < first) {
+                    return first >= length ? null : new long[0];
+                }
+            }
+            if (first >= length) {
+                return null;
+            }
+            return new long[]{first, last};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private String getETag(File f) throws IOException {
+        String path = f.getCanonicalPath();
+        long modified = f.lastModified();
+        long length = f.length();
+        ContentHash h = hashes.get(path);
+        if (h == null || h.modified != modified || h.length != length) {
+            h = new ContentHash(modified, length, "\"" + sha256(f) + "\"");
+            hashes.put(path, h);
+        }
+        return h.eTag;
+    }
+
+    private String sha256(File f) throws IOException {
+        try (FileChannel fc = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (fc.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static class ContentHash {
+
+        private final long modified;
+        private final long length;
+        private final String eTag;
+
+        ContentHash(long modified, long length, String eTag) {
+            this.modified = modified;
+            this.length = length;
+            this.eTag = eTag;
+        }
+    }
+}
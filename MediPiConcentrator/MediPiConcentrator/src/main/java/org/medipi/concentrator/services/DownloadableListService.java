@@ -15,7 +15,6 @@
  */
 package org.medipi.concentrator.services;
 
-import java.security.NoSuchAlgorithmException;
 import static org.springframework.hateoas.mvc.ControllerLinkBuilder.*;
 import java.util.ArrayList;
 import java.util.Date;
@@ -25,21 +24,21 @@ import org.medipi.concentrator.controllers.DownloadServiceController;
 import org.medipi.concentrator.dao.AllHardwareDownloadableDAOImpl;
 import org.medipi.concentrator.dao.HardwareDownloadableDAOImpl;
 import org.medipi.concentrator.dao.PatientDownloadableDAOImpl;
-import org.medipi.security.CertificateDefinitions;
-import org.medipi.security.UploadEncryptionAdapter;
 import org.medipi.concentrator.entities.AllHardwareDownloadable;
 import org.medipi.concentrator.entities.HardwareDownloadable;
 import org.medipi.concentrator.entities.PatientDownloadable;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.exception.NotFound404Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.metrics.MetricsRegistry;
 import org.medipi.concentrator.model.DownloadableDO;
-import org.medipi.concentrator.utilities.Utilities;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 /**
  * Service class to return a list of downloadable data objects for the given
@@ -48,13 +47,22 @@ import org.springframework.transaction.annotation.Transactional;
  * 1st assess that the patient device and patient user are related in the DB
  * Then return the list of downloadable Data Objects for the patient. The
  * patient downloadables are currently signed by the clinical system and passed
- * through the concentrator. The hardware downloadables are signed in this class
+ * through the concentrator. The hardware downloadables are signed once by the
+ * DownloadableSigningService and their stored signatures are returned
  * The downloadable list employs a HATEOAS link for the MediPi Patient device to
  * subsequently download
  *
  * The "all hardware" updates are global updates intended for all the MediPi
  * Patient devices connected to the concentrator
  *
+ * Each list is returned with an ETag. When a device polls with the ETag of its
+ * last list in If-None-Match and its manifest has not changed since (see
+ * DownloadableManifestService), 304 Not Modified is returned without
+ * validating the device or reading the downloadables. The ETag is checked
+ * outside any transaction so that a poll which is answered with 304 does not
+ * take a database connection - the list is only built in a transaction when
+ * the ETag does not match
+ *
  * @author rick@robinsonhq.com
  */
 @Service
@@ -64,7 +72,7 @@ public class DownloadableListService {
     private MediPiLogger logger;
 
     @Autowired
-    private Utilities utils;
+    private MetricsRegistry metrics;
 
     @Autowired
     private PatientDownloadableDAOImpl patientDownloadableDAOImpl;
@@ -78,18 +86,45 @@ public class DownloadableListService {
     @Autowired
     private PatientDeviceValidationService patientDeviceValidationService;
 
+    @Autowired
+    private DownloadableManifestService downloadableManifestService;
+
     @Autowired
     private MapperFacade mapperFacade;
 
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public DownloadableListService(PlatformTransactionManager transactionManager) {
+        // rolls back on RuntimeException
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
     /**
      * Get Download method
      *
      * @param hardware_name incoming deviceId parameter from RESTful message
      * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param ifNoneMatch incoming If-None-Match HTTP header from RESTful
+     * message - null if not present
      * @return Downloadable list Response
      */
-    @Transactional(rollbackFor = RuntimeException.class)
-    public ResponseEntity<List<DownloadableDO>> getDownloadableList(String hardware_name, String patientUuid) {
+    public ResponseEntity<List<DownloadableDO>> getDownloadableList(String hardware_name, String patientUuid, String ifNoneMatch) {
+        long start = System.nanoTime();
+        try {
+            String eTag = downloadableManifestService.getETag(hardware_name, patientUuid);
+            if (eTag != null && eTag.equals(ifNoneMatch)) {
+                return notModified(eTag);
+            }
+            return transactionTemplate.execute(status -> buildDownloadableList(hardware_name, patientUuid, ifNoneMatch));
+        } finally {
+            metrics.stage(MetricsRegistry.STAGE_DOWNLOADABLE_LIST).recordSince(start);
+        }
+    }
+
+    private ResponseEntity<List<DownloadableDO>> buildDownloadableList(String hardware_name, String patientUuid, String ifNoneMatch) {
+        // taken before the downloadables are read so that any change while they are read is not missed
+        String manifestVersion = downloadableManifestService.getVersion(hardware_name, patientUuid);
         ResponseEntity<?> r = null;
         try {
             // Check that the device and patient are registered with each other
@@ -113,7 +148,8 @@ public class DownloadableListService {
                             DownloadableDO d = this.mapperFacade.map(pd, DownloadableDO.class);
                             d.setDownloadType("PATIENTMESSAGE");
                             // Add HATEOAS return path for getting the data from each reference  
-                            d.add(linkTo(methodOn(DownloadServiceController.class).getPatientDownloadable(pd.getDownloadableUuid())).withRel("next"));
+                            // (built from the path as the download methods write the file to the response and return void)
+                            d.add(linkTo(DownloadServiceController.class).slash("patient").slash(pd.getDownloadableUuid()).withRel("next"));
                             dList.add(d);
                         }
                     }
@@ -124,12 +160,11 @@ public class DownloadableListService {
                     if (!hdList.isEmpty()) {
                         logger.log(DownloadableListService.class.getName(), new Date().toString() + " Download List returned to hardwareName: " + patientUuid + " using deviceId: " + hardware_name);
                         for (HardwareDownloadable hd : hdList) {
+                            // the signature is read as stored against the downloadable by the DownloadableSigningService
                             DownloadableDO d = this.mapperFacade.map(hd, DownloadableDO.class);
                             d.setDownloadType("HARDWAREUPDATE");
                             // Add HATEOAS return path for getting the data from each reference  
-                            d.add(linkTo(methodOn(DownloadServiceController.class).getHardwareDownloadable(hd.getDownloadableUuid())).withRel("next"));
-
-                            d.setSignature(createSignature(d));
+                            d.add(linkTo(DownloadServiceController.class).slash("hardware").slash(hd.getDownloadableUuid()).withRel("next"));
                             dList.add(d);
                         }
                     }
@@ -140,16 +175,22 @@ public class DownloadableListService {
                     if (!ahdList.isEmpty()) {
                         logger.log(DownloadableListService.class.getName(), new Date().toString() + " Download List returned to hardwareName: " + patientUuid + " using deviceId: " + hardware_name);
                         for (AllHardwareDownloadable ahd : ahdList) {
+                            // the signature is read as stored against the downloadable by the DownloadableSigningService
                             DownloadableDO d = this.mapperFacade.map(ahd, DownloadableDO.class);
                             d.setDownloadType("HARDWAREUPDATE");
                             // Add HATEOAS return path for getting the data from each reference  
-                            d.add(linkTo(methodOn(DownloadServiceController.class).getAllHardwareDownloadable(ahd.getDownloadableUuid(), hardware_name)).withRel("next"));
-                            d.setSignature(createSignature(d));
+                            d.add(linkTo(DownloadServiceController.class).slash("hardware").slash(ahd.getDownloadableUuid()).slash(hardware_name).withRel("next"));
                             dList.add(d);
                         }
                     }
-                    
-                    return new ResponseEntity<>(dList, HttpStatus.OK);
+
+                    String eTag = downloadableManifestService.putManifest(hardware_name, patientUuid, manifestVersion, dList);
+                    if (eTag.equals(ifNoneMatch)) {
+                        return notModified(eTag);
+                    }
+                    HttpHeaders headers = new HttpHeaders();
+                    headers.setETag(eTag);
+                    return new ResponseEntity<>(dList, headers, HttpStatus.OK);
                 }
 
             }
@@ -161,32 +202,9 @@ public class DownloadableListService {
         throw new InternalServerError500Exception("Internal Server Error");
     }
 
-    private String createSignature(DownloadableDO d) throws NoSuchAlgorithmException, Exception {
-        // THIS MAY NOT BE A PERMANENT SOLUTION FOR THE HARDWARE DOWNLOADABLES and may be done from a UI 
-        UploadEncryptionAdapter uploadEncryptionAdapter = new UploadEncryptionAdapter();
-        CertificateDefinitions cd;
-        cd = fetchHardwareSigningCerts();
-        String error = uploadEncryptionAdapter.init(cd, UploadEncryptionAdapter.SIGNMODE);
-        if (error != null) {
-            throw new Exception("Signing initailisation failed - " + error);
-        }
-        StringBuilder digestSubject = new StringBuilder();
-        digestSubject.append(d.getDownloadType())
-                .append(d.getDownloadableUuid())
-                .append(d.getFileName())
-                .append(d.getVersion())
-                .append(d.getVersionAuthor())
-                .append(d.getVersionDate().getTime());
-        String signature = uploadEncryptionAdapter.signPayload(digestSubject.toString().getBytes());
-        return signature;
-    }
-
-    private CertificateDefinitions fetchHardwareSigningCerts() throws Exception {
-        CertificateDefinitions cd = new CertificateDefinitions(utils.getProperties());
-        cd.setSIGNKEYSTORELOCATION("medipi.json.sign.keystore.hardware.location", CertificateDefinitions.INTERNAL);
-        cd.setSIGNKEYSTOREALIAS("medipi.json.sign.keystore.hardware.alias", CertificateDefinitions.INTERNAL);
-        cd.setSIGNKEYSTOREPASSWORD("medipi.json.sign.keystore.hardware.password", CertificateDefinitions.INTERNAL);
-        return cd;
+    private ResponseEntity<List<DownloadableDO>> notModified(String eTag) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag(eTag);
+        return new ResponseEntity<>(headers, HttpStatus.NOT_MODIFIED);
     }
-
 }
@@ -0,0 +1,180 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.medipi.concentrator.model.DownloadableDO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Service class to hold the version of the downloadable list (manifest) last
+ * returned for each hardware and patient, so that an unchanged list can be
+ * answered with 304 Not Modified without validating the device or querying the
+ * DB.
+ *
+ * The manifest is identified by an ETag computed from the downloadables in
+ * the list. It is held with the versions of the patient, the hardware and the
+ * all hardware downloadables at the time the list was read, and is valid
+ * until one of those is bumped - when a downloadable is added or
+ * acknowledged - or until its time to live expires. The time to live bounds
+ * how long downloadables added directly to the DB take to be seen
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class DownloadableManifestService {
+
+    @Value("${medipi.concentrator.downloadables.manifestttlseconds:300}")
+    private long manifestTtlSeconds;
+
+    private final Map<String, AtomicLong> patientVersions = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> hardwareVersions = new ConcurrentHashMap<>();
+    private final AtomicLong allHardwareVersion = new AtomicLong();
+    private final Map<String, Manifest> manifests = new ConcurrentHashMap<>();
+
+    /**
+     * Get the ETag of the current manifest for a hardware and patient
+     *
+     * @param hardwareName hardware name
+     * @param patientUuid patient UUID
+     * @return the ETag or null if there is no valid manifest
+     */
+    public String getETag(String hardwareName, String patientUuid) {
+        Manifest m = manifests.get(key(hardwareName, patientUuid));
+        if (m == null || System.nanoTime() - m.created > TimeUnit.SECONDS.toNanos(manifestTtlSeconds)
+                || !m.version.equals(getVersion(hardwareName, patientUuid))) {
+            return null;
+        }
+        return m.eTag;
+    }
+
+    /**
+     * Get the versions which a manifest is to be recorded against. This must
+     * be taken before the downloadables are read so that a change made while
+     * they are being read invalidates the manifest
+     *
+     * @param hardwareName hardware name
+     * @param patientUuid patient UUID
+     * @return the current version
+     */
+    public String getVersion(String hardwareName, String patientUuid) {
+        return version(patientVersions, patientUuid) + "." + version(hardwareVersions, hardwareName) + "." + allHardwareVersion.get();
+    }
+
+    /**
+     * Record the manifest returned to a hardware and patient
+     *
+     * @param hardwareName hardware name
+     * @param patientUuid patient UUID
+     * @param version version taken before the downloadables were read
+     * @param downloadables the downloadable list
+     * @return the ETag of the manifest
+     */
+    public String putManifest(String hardwareName, String patientUuid, String version, List<DownloadableDO> downloadables) {
+        String eTag = computeETag(downloadables);
+        manifests.put(key(hardwareName, patientUuid), new Manifest(version, eTag));
+        return eTag;
+    }
+
+    /**
+     * Bump the version of a patient's downloadables once the current
+     * transaction commits
+     *
+     * @param patientUuid patient UUID
+     */
+    public void patientChanged(String patientUuid) {
+        afterCommit(() -> patientVersions.computeIfAbsent(patientUuid, k -> new AtomicLong()).incrementAndGet());
+    }
+
+    /**
+     * Bump the version of a hardware's downloadables once the current
+     * transaction commits
+     *
+     * @param hardwareName hardware name
+     */
+    public void hardwareChanged(String hardwareName) {
+        afterCommit(() -> hardwareVersions.computeIfAbsent(hardwareName, k -> new AtomicLong()).incrementAndGet());
+    }
+
+    /**
+     * Bump the version of the all hardware downloadables once the current
+     * transaction commits
+     */
+    public void allHardwareChanged() {
+        afterCommit(allHardwareVersion::incrementAndGet);
+    }
+
+    private void afterCommit(Runnable r) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    r.run();
+                }
+            });
+        } else {
+            r.run();
+        }
+    }
+
+    private long version(Map<String, AtomicLong> versions, String key) {
+        AtomicLong v = versions.get(key);
+        return v == null ? 0L : v.get();
+    }
+
+    private String key(String hardwareName, String patientUuid) {
+        return hardwareName + "/" + patientUuid;
+    }
+
+    private String computeETag(List<DownloadableDO> downloadables) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (DownloadableDO d : downloadables) {
+                md.update((d.getDownloadType() + "\n" + d.getDownloadableUuid() + "\n" + d.getVersion() + "\n" + d.getSignature() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder sb = new StringBuilder("\"");
+            byte[] digest = md.digest();
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Manifest {
+
+        private final String version;
+        private final String eTag;
+        private final long created = System.nanoTime();
+
+        Manifest(String version, String eTag) {
+            this.version = version;
+            this.eTag = eTag;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import com.nimbusds.jose.JWSObject;
+import java.text.ParseException;
+import java.util.Date;
+import org.medipi.concentrator.dao.AllHardwareDownloadableDAOImpl;
+import org.medipi.concentrator.dao.HardwareDownloadableDAOImpl;
+import org.medipi.concentrator.entities.AllHardwareDownloadable;
+import org.medipi.concentrator.entities.HardwareDownloadable;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.utilities.Utilities;
+import org.medipi.security.CertificateDefinitions;
+import org.medipi.security.UploadEncryptionAdapter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Service class to sign hardware downloadables.
+ *
+ * Hardware and "all hardware" downloadables are registered directly in the DB.
+ * The signature of a downloadable does not change unless its content does, so
+ * it is computed once using the hardware signing key and stored in the
+ * downloadable's signature column, from where it is returned in every
+ * downloadable list. A stored signature is considered current if it is a JWS
+ * whose payload matches the downloadable - anything else (e.g. a placeholder
+ * entered when the downloadable was registered) is replaced.
+ *
+ * Downloadables which are not yet signed are signed at startup - the
+ * downloadable list only reads the stored signatures. Downloadables registered
+ * while the concentrator is running, and all downloadables following rotation
+ * of the hardware signing key, are signed by the signing job of the admin
+ * interface
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class DownloadableSigningService {
+
+    private static final String HARDWAREUPDATE = "HARDWAREUPDATE";
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private Utilities utils;
+
+    @Autowired
+    private HardwareDownloadableDAOImpl hardwareDownloadableDAOImpl;
+
+    @Autowired
+    private AllHardwareDownloadableDAOImpl allHardwareDownloadableDAOImpl;
+
+    @Autowired
+    private DownloadableManifestService downloadableManifestService;
+
+    private UploadEncryptionAdapter signingAdapter;
+
+    /**
+     * Sign the downloadables without a current signature at startup
+     *
+     * @return number of downloadables signed
+     * @throws Exception if the hardware signing key cannot be loaded
+     */
+    @Transactional(rollbackFor = RuntimeException.class)
+    public int signOnStartup() throws Exception {
+        return signAll(false);
+    }
+
+    /**
+     * Bulk signing job. The hardware signing keystore is watched by the
+     * KeyMaterialRegistry so this signs with the rotated key once the keystore
+     * has been replaced
+     *
+     * @param force re-sign every downloadable rather than only those without a
+     * current signature
+     * @return number of downloadables signed
+     * @throws Exception if the hardware signing key cannot be loaded
+     */
+    @Transactional(rollbackFor = RuntimeException.class)
+    public int signAll(boolean force) throws Exception {
+        int signed = 0;
+        for (HardwareDownloadable hd : hardwareDownloadableDAOImpl.getOpenHardwareDownloads()) {
+            if (force || !isSignatureCurrent(hd)) {
+                sign(hd);
+                signed++;
+            }
+        }
+        for (AllHardwareDownloadable ahd : allHardwareDownloadableDAOImpl.getAllHardwareDownloads()) {
+            if (force || !isSignatureCurrent(ahd)) {
+                sign(ahd);
+                signed++;
+            }
+        }
+        if (signed > 0) {
+            // the signatures in every device's downloadable list may have changed
+            downloadableManifestService.allHardwareChanged();
+        }
+        final int count = signed;
+        logger.info(DownloadableSigningService.class.getName(), () -> count + " hardware downloadables signed");
+        return signed;
+    }
+
+    private void sign(HardwareDownloadable hd) throws Exception {
+        hd.setSignature(createSignature(digestSubject(hd.getDownloadableUuid(), hd.getScriptLocation(), hd.getVersion(), hd.getVersionAuthor(), hd.getVersionDate())));
+        hardwareDownloadableDAOImpl.update(hd);
+        logger.info(DownloadableSigningService.class.getName(), () -> "Hardware downloadable: " + hd.getDownloadableUuid() + " signed");
+    }
+
+    private void sign(AllHardwareDownloadable ahd) throws Exception {
+        ahd.setSignature(createSignature(digestSubject(ahd.getDownloadableUuid(), ahd.getScriptLocation(), ahd.getVersion(), ahd.getVersionAuthor(), ahd.getVersionDate())));
+        allHardwareDownloadableDAOImpl.update(ahd);
+        logger.info(DownloadableSigningService.class.getName(), () -> "All hardware downloadable: " + ahd.getDownloadableUuid() + " signed");
+    }
+
+    private boolean isSignatureCurrent(HardwareDownloadable hd) {
+        return isSignatureCurrent(hd.getSignature(), digestSubject(hd.getDownloadableUuid(), hd.getScriptLocation(), hd.getVersion(), hd.getVersionAuthor(), hd.getVersionDate()));
+    }
+
+    private boolean isSignatureCurrent(AllHardwareDownloadable ahd) {
+        return isSignatureCurrent(ahd.getSignature(), digestSubject(ahd.getDownloadableUuid(), ahd.getScriptLocation(), ahd.getVersion(), ahd.getVersionAuthor(), ahd.getVersionDate()));
+    }
+
+    private boolean isSignatureCurrent(String signature, String digestSubject) {
+        if (signature == null || signature.isEmpty()) {
+            return false;
+        }
+        try {
+            return JWSObject.parse(signature).getPayload().toString().equals(digestSubject);
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    // The subject must match that which the MediPi Patient HardwareHandler constructs from the DownloadableDO
+    private String digestSubject(String downloadableUuid, String fileName, String version, String versionAuthor, Date versionDate) {
+        StringBuilder digestSubject = new StringBuilder();
+        digestSubject.append(HARDWAREUPDATE)
+                .append(downloadableUuid)
+                .append(fileName)
+                .append(version)
+                .append(versionAuthor)
+                .append(versionDate.getTime());
+        return digestSubject.toString();
+    }
+
+    private String createSignature(String digestSubject) throws Exception {
+        return getSigningAdapter().signPayload(digestSubject.getBytes());
+    }
+
+    private synchronized UploadEncryptionAdapter getSigningAdapter() throws Exception {
+        if (signingAdapter == null) {
+            UploadEncryptionAdapter uploadEncryptionAdapter = new UploadEncryptionAdapter();
+            String error = uploadEncryptionAdapter.init(fetchHardwareSigningCerts(), UploadEncryptionAdapter.SIGNMODE);
+            if (error != null) {
+                throw new Exception("Signing initailisation failed - " + error);
+            }
+            signingAdapter = uploadEncryptionAdapter;
+        }
+        return signingAdapter;
+    }
+
+    private CertificateDefinitions fetchHardwareSigningCerts() throws Exception {
+        CertificateDefinitions cd = new CertificateDefinitions(utils.getProperties());
+        cd.setSIGNKEYSTORELOCATION("medipi.json.sign.keystore.hardware.location", CertificateDefinitions.INTERNAL);
+        cd.setSIGNKEYSTOREALIAS("medipi.json.sign.keystore.hardware.alias", CertificateDefinitions.INTERNAL);
+        cd.setSIGNKEYSTOREPASSWORD("medipi.json.sign.keystore.hardware.password", CertificateDefinitions.INTERNAL);
+        return cd;
+    }
+}
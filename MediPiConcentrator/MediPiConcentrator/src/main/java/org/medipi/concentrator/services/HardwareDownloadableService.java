@@ -15,9 +15,10 @@
  */
 package org.medipi.concentrator.services;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.Date;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import ma.glasnost.orika.MapperFacade;
 import org.medipi.concentrator.dao.AllHardwareDownloadableDAOImpl;
 import org.medipi.concentrator.dao.AllHardwareDownloadedDAOImpl;
@@ -31,11 +32,8 @@ import org.medipi.concentrator.exception.NotFound404Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.model.DownloadableDO;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
 import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -72,17 +70,25 @@ public class HardwareDownloadableService {
     @Autowired
     private HardwareDAOImpl hardwareDAOImpl;
 
+    @Autowired
+    private DownloadableManifestService downloadableManifestService;
+
+    @Autowired
+    private DownloadableFileService downloadableFileService;
+
     @Autowired
     private MapperFacade mapperFacade;
 
     /**
-     * Method to enable download of hardware update file from Concentrator
+     * Method to enable download of hardware update file from Concentrator. A
+     * single byte range is honoured so that an interrupted download can be
+     * resumed
      *
      * @param downloadable_uuid of the download file item
-     * @return File System Resource Response
+     * @param request request holding any Range and If-Range headers
+     * @param response response to which the file is written
      */
-    @Transactional(rollbackFor = RuntimeException.class)
-    public ResponseEntity<FileSystemResource> getDownload(String downloadable_uuid) {
+    public void getDownload(String downloadable_uuid, HttpServletRequest request, HttpServletResponse response) {
         String fileName = null;
         try {
             HardwareDownloadable hd = hardwareDownloadableDAOImpl.getHardwareDownload(downloadable_uuid);
@@ -92,25 +98,20 @@ public class HardwareDownloadableService {
         } catch (Exception e) {
             throw new InternalServerError500Exception("Internal Server Error");
         }
-        try {
-
-            ResponseEntity<FileSystemResource> response = retreiveDownloadableBinary(fileName, downloadable_uuid);
-            return response;
-        } catch (Exception e) {
-            throw new NotFound404Exception("Cannot find the resource quested download");
-        }
+        retreiveDownloadableBinary(fileName, downloadable_uuid, request, response);
     }
 
     /**
      * Method to enable download of "all hardware" global update files from
-     * Concentrator
+     * Concentrator. A single byte range is honoured so that an interrupted
+     * download can be resumed
      *
      * @param downloadable_uuid of the download file item
      * @param hardwareName
-     * @return File System Resource Response
+     * @param request request holding any Range and If-Range headers
+     * @param response response to which the file is written
      */
-    @Transactional(rollbackFor = RuntimeException.class)
-    public ResponseEntity<FileSystemResource> getAllDownload(String downloadable_uuid, String hardwareName) {
+    public void getAllDownload(String downloadable_uuid, String hardwareName, HttpServletRequest request, HttpServletResponse response) {
         String fileName = null;
         try {
             AllHardwareDownloadable ahd = allHardwareDownloadableDAOImpl.getHardwareDownload(downloadable_uuid);
@@ -120,29 +121,18 @@ public class HardwareDownloadableService {
         } catch (Exception e) {
             throw new InternalServerError500Exception("Internal Server Error " + e.getLocalizedMessage());
         }
-        try {
-
-            ResponseEntity<FileSystemResource> response = retreiveDownloadableBinary(fileName, downloadable_uuid);
-            return response;
-        } catch (IOException | NotFound404Exception e) {
-            throw new NotFound404Exception("Cannot find the requested download " + e.getLocalizedMessage());
-        }
+        retreiveDownloadableBinary(fileName, downloadable_uuid, request, response);
     }
 
-    private ResponseEntity<FileSystemResource> retreiveDownloadableBinary(String fileName, String downloadable_uuid) throws IOException, NotFound404Exception {
-        if (fileName == null || fileName.isEmpty()) {
-            throw new NotFound404Exception("Cannot find the downloadable resource which has been requested");
+    // the file is sent outside of any transaction so that no DB connection is held while it is transferred
+    private void retreiveDownloadableBinary(String fileName, String downloadable_uuid, HttpServletRequest request, HttpServletResponse response) throws NotFound404Exception {
+        try {
+            downloadableFileService.serve(fileName, request, response);
+            logger.info(HardwareDownloadableService.class.getName(), () -> "Hardware Downloadable item: " + downloadable_uuid + " downloaded");
+        } catch (IOException e) {
+            logger.error(HardwareDownloadableService.class.getName() + ".error", () -> "Hardware Downloadable item: " + downloadable_uuid + " download failed: " + e.getLocalizedMessage());
+            throw new InternalServerError500Exception("Failed to send the requested download");
         }
-        File f = new File(fileName);
-        FileSystemResource fsr = new FileSystemResource(fileName);
-        HttpHeaders header = new HttpHeaders();
-        header.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-        header.set("Content-Disposition",
-                "attachment; filename=" + fileName.replace(" ", "_"));
-        header.setContentLength(fsr.contentLength());
-        logger.log(HardwareDownloadableService.class.getName(), new Date().toString() + " Hardware Downloadable item: " + downloadable_uuid + " downloaded");
-        ResponseEntity<FileSystemResource> response = new ResponseEntity<>(fsr, header, HttpStatus.OK);
-        return response;
     }
 
     /**
@@ -170,6 +160,7 @@ public class HardwareDownloadableService {
                 }
                 hd.setDownloadedDate(new Date());
                 hardwareDownloadableDAOImpl.update(hd);
+                downloadableManifestService.hardwareChanged(hd.getHardwareName().getHardwareName());
                 DownloadableDO d = this.mapperFacade.map(hd, DownloadableDO.class);
 
                 logger.log(HardwareDownloadableService.class.getName(), new Date().toString() + " Patient Downloadable item: " + downloadable_uuid + " acknowledged");
@@ -211,6 +202,8 @@ public class HardwareDownloadableService {
             ahd.setHardwareName(hardwareDAOImpl.findByPrimaryKey(hardwareName));
             ahd.setDownloadedDate(new Date());
             allHardwareDownloadedDAOImpl.save(ahd);
+            allHardwareDownloadableDAOImpl.removePending(downloadable_uuid, hardwareName);
+            downloadableManifestService.hardwareChanged(hardwareName);
             DownloadableDO d = this.mapperFacade.map(ahde, DownloadableDO.class);
             d.setDownloadedDate(ahd.getDownloadedDate());
             logger.log(HardwareDownloadableService.class.getName(), new Date().toString() + " Patient Downloadable item: " + downloadable_uuid + " acknowledged");
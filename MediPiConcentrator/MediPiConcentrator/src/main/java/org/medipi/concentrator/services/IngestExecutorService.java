@@ -0,0 +1,105 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.metrics.MetricsRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class providing a bounded executor for the DB-bound stage of an
+ * upload (parsing the decrypted payload and persisting its data points).
+ *
+ * Decrypted uploads are handed from the crypto executor to this executor so
+ * that crypto threads are never held waiting for a DB connection. The executor
+ * has a fixed number of threads - which should not exceed the size of the DB
+ * connection pool - and a bounded queue. When the queue is full further work
+ * is rejected immediately so that the upload can be refused with 503
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class IngestExecutorService {
+
+    @Value("${medipi.concentrator.ingest.threads:4}")
+    private int threads;
+
+    @Value("${medipi.concentrator.ingest.queuecapacity:64}")
+    private int queueCapacity;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    private ThreadPoolExecutor executor;
+
+    @PostConstruct
+    private void init() {
+        int poolSize = Math.max(1, threads);
+        AtomicInteger threadNo = new AtomicInteger();
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                (Runnable r) -> {
+                    Thread t = new Thread(r, "ingest-" + threadNo.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        metrics.gauge("medipi_ingest_queued_tasks", "Decrypted uploads waiting for an ingest thread", this::getQueueSize);
+        metrics.gauge("medipi_ingest_active_threads", "Ingest threads parsing and persisting an upload", this::getActiveCount);
+        logger.log(IngestExecutorService.class.getName(), "Ingest executor started with " + poolSize + " threads and a queue capacity of " + queueCapacity);
+    }
+
+    /**
+     * The executor - its execute method throws RejectedExecutionException if
+     * the executor's queue is full
+     *
+     * @return the executor
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the number of tasks waiting for an ingest thread
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of ingest threads currently running a task
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -23,6 +23,7 @@ import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.exception.NotAcceptable406Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.metrics.MetricsRegistry;
 import org.medipi.concentrator.utilities.Utilities;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -50,6 +51,9 @@ public class PatientDeviceValidationService {
     @Autowired
     private HardwareDAOImpl hardwareDAO;
 
+    @Autowired
+    private MetricsRegistry metrics;
+
     @Autowired
     private RegisterNewPatientService registerNewPatient;
 
@@ -67,6 +71,36 @@ public class PatientDeviceValidationService {
      */
     @Transactional(rollbackFor = RuntimeException.class)
     public ResponseEntity<?> validate(String hardware_name, String patientUuid) {
+        long start = System.nanoTime();
+        try {
+            return validateRegistration(hardware_name, patientUuid, true);
+        } finally {
+            metrics.stage(MetricsRegistry.STAGE_VALIDATION).recordSince(start);
+        }
+    }
+
+    /**
+     * Checks that the hardware and patient uuids are related on the
+     * Concentrator DB as validate does but without writing to it. A device
+     * with no patient associated is accepted if the configuration allows a new
+     * patient to be created, but the patient is not created until validate is
+     * called
+     *
+     * @param hardware_name incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @return Response from the message
+     */
+    @Transactional(readOnly = true)
+    public ResponseEntity<?> check(String hardware_name, String patientUuid) {
+        long start = System.nanoTime();
+        try {
+            return validateRegistration(hardware_name, patientUuid, false);
+        } finally {
+            metrics.stage(MetricsRegistry.STAGE_VALIDATION).recordSince(start);
+        }
+    }
+
+    private ResponseEntity<?> validateRegistration(String hardware_name, String patientUuid, boolean register) {
         // Establish that deviceId and patientUuid are present
         boolean deviceAndPatientVerified = false;
         ResponseEntity<?> positiveResponse = new ResponseEntity<>("Data added to MediPi Concentrator", HttpStatus.OK);
@@ -89,7 +123,10 @@ public class PatientDeviceValidationService {
                 //No patient is associated with this device
                 logger.log(PatientDeviceValidationService.class.getName() + ".dbIssue", "Device (deviceId: " + hardware_name + ") has been found in DB but no patient is associated with this device");
                 //should a new patient be created and associated with this device?
-                if (createpatientforunassociateddevices) {
+                if (createpatientforunassociateddevices && !register) {
+                    // the patient will be created when the upload is validated for writing
+                    deviceAndPatientVerified = true;
+                } else if (createpatientforunassociateddevices) {
                     //REGISTER NEW PATIENT - this should prob have its own method/class
 
                     try {
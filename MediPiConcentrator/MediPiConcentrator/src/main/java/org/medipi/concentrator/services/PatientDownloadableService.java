@@ -15,8 +15,10 @@
  */
 package org.medipi.concentrator.services;
 
-import java.io.File;
+import java.io.IOException;
 import java.util.Date;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import ma.glasnost.orika.MapperFacade;
 import org.medipi.concentrator.dao.PatientDownloadableDAOImpl;
 import org.medipi.concentrator.entities.PatientDownloadable;
@@ -25,11 +27,8 @@ import org.medipi.concentrator.exception.NotFound404Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
 import org.medipi.concentrator.model.DownloadableDO;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
 import org.springframework.dao.EmptyResultDataAccessException;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
@@ -54,18 +53,26 @@ public class PatientDownloadableService {
     @Autowired
     private PatientDownloadableDAOImpl patientDownloadableDAOImpl;
 
+    @Autowired
+    private DownloadableManifestService downloadableManifestService;
+
+    @Autowired
+    private DownloadableFileService downloadableFileService;
+
     @Autowired
     private MapperFacade mapperFacade;
 
     /**
-     * Method to enable download of hardware update file from Concentrator
+     * Method to enable download of patient message file from Concentrator. A
+     * single byte range is honoured so that an interrupted download can be
+     * resumed. The file is sent outside of any transaction so that no DB
+     * connection is held while it is transferred
      *
      * @param downloadable_uuid of the download file item
-     * @return File System Resource Response
+     * @param request request holding any Range and If-Range headers
+     * @param response response to which the file is written
      */
-
-    @Transactional(rollbackFor = RuntimeException.class)
-    public ResponseEntity<FileSystemResource> getDownload(String downloadable_uuid) {
+    public void getDownload(String downloadable_uuid, HttpServletRequest request, HttpServletResponse response) {
         PatientDownloadable pd = null;
         try {
             pd = patientDownloadableDAOImpl.getPatientDownload(downloadable_uuid);
@@ -75,27 +82,14 @@ public class PatientDownloadableService {
             throw new InternalServerError500Exception("Internal Server Error");
         }
         try {
-
-            String fileName = pd.getScriptLocation();
-            if (fileName == null || fileName.isEmpty()) {
-                throw new NotFound404Exception("Cannot find the downloadable resource which has been requested");
-            }
-            File f = new File(fileName);
-            FileSystemResource fsr = new FileSystemResource(fileName);
-
-            HttpHeaders header = new HttpHeaders();
-            header.setContentType(MediaType.APPLICATION_OCTET_STREAM);
-            header.set("Content-Disposition",
-                    "attachment; filename=" + fileName.replace(" ", "_"));
-            header.setContentLength(fsr.contentLength());
-
+            downloadableFileService.serve(pd.getScriptLocation(), request, response);
             logger.log(PatientDownloadableService.class.getName(), new Date().toString() + " Patient Downloadable item: " + downloadable_uuid + " downloaded");
-            ResponseEntity<FileSystemResource> response = new ResponseEntity<>(fsr, header, HttpStatus.OK);
-            return response;
-        } catch (Exception e) {
-            throw new NotFound404Exception("Cannot find the resource quested download");
+        } catch (IOException e) {
+            logger.error(PatientDownloadableService.class.getName() + ".error", () -> "Patient Downloadable item: " + downloadable_uuid + " download failed: " + e.getLocalizedMessage());
+            throw new InternalServerError500Exception("Failed to send the requested download");
         }
     }
+
     /**
      * Method to enable acknowledgement of the patient update files from
      * Concentrator
@@ -119,6 +113,7 @@ public class PatientDownloadableService {
             }
             pd.setDownloadedDate(new Date());
             patientDownloadableDAOImpl.update(pd);
+            downloadableManifestService.patientChanged(pd.getPatientUuid().getPatientUuid());
             DownloadableDO d = this.mapperFacade.map(pd, DownloadableDO.class);
 
             logger.log(PatientDownloadableService.class.getName(), new Date().toString() + " Patient Downloadable item: " + downloadable_uuid + " acknowledged");
@@ -20,7 +20,11 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import org.medipi.concentrator.controllers.PatientUploadServiceController;
 import org.medipi.concentrator.dao.PatientCertificateDAOImpl;
@@ -33,6 +37,7 @@ import org.medipi.concentrator.entities.PatientDownloadable;
 import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.PatientAlertDO;
 import org.medipi.concentrator.utilities.Utilities;
 import org.medipi.security.CertificateDefinitions;
 import org.medipi.model.EncryptedAndSignedUploadDO;
@@ -43,6 +48,8 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 /**
  * Service class to allow 3rd party clinical systems to send encrypted and
@@ -66,12 +73,22 @@ public class PatientMessagingService {
     @Autowired
     private PatientCertificateDAOImpl patientCertificateDAOImpl;
 
+    @Autowired
+    private DownloadableManifestService downloadableManifestService;
+
     @Autowired
     PatientDownloadableDAOImpl patientDownloadableDAOImpl;
 
     @Value("${medipi.concentrator.alertmessagedir}")
     private String alertmessagedir;
 
+    @Value("${medipi.concentrator.alerts.maxbatchsize:10000}")
+    private int maxAlertBatchSize;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private UploadEncryptionAdapter signingAdapter;
+
     
     /**
      * alert interface. This interface simply saves and makes available the
@@ -108,30 +125,17 @@ public class PatientMessagingService {
                     FileOutputStream fop = null;
                     try {
                         Date messageDate = new Date();
-                        StringBuilder fnb = new StringBuilder(alertmessagedir);
-                        fnb.append(System.getProperty("file.separator"));
-                        fnb.append(messageDate.getTime());
-                        fnb.append("-Alert");
-                        fnb.append(".txt");
-                        File file = new File(fnb.toString());
+                        String downloadableUuid = UUID.randomUUID().toString();
+                        File file = alertFile(downloadableUuid, messageDate);
                         fop = new FileOutputStream(file);
-                        // if file doesnt exists, then create it
-                        if (!file.exists()) {
-                            file.createNewFile();
-                        }
                         writeJSON(content, fop);
                         fop.flush();
                         fop.close();
 
-                        PatientDownloadable pd = new PatientDownloadable(UUID.randomUUID().toString());
-                        pd.setPatientUuid(patient);
-                        pd.setScriptLocation(fnb.toString());
-                        pd.setVersion("1.0");
-                        pd.setVersionAuthor("concentrator-created");
-                        pd.setVersionDate(messageDate);
-                        pd.setSignature(createSignature(pd, file.getName()));
+                        PatientDownloadable pd = createDownloadable(downloadableUuid, patient, file, messageDate);
 
                         patientDownloadableDAOImpl.save(pd);
+                        downloadableManifestService.patientChanged(patientUuid);
 
                         logger.log(PatientUploadServiceController.class.getName(), new Date().toString() + " Written alert for Patient: " + patientUuid);
                     } catch (IOException e) {
@@ -157,21 +161,126 @@ public class PatientMessagingService {
         }
     }
 
+    /**
+     * Batch alert interface. This saves and makes available the encrypted and
+     * signed alerts for many patients in a single transaction - either all of
+     * the alerts are accepted or none are. The alert files are written first
+     * and removed again if the batch cannot be persisted
+     *
+     * @param alerts list of patients and the encrypted and signed alert for
+     * each
+     * @return list of the patients and the UUIDs of the patient downloadables
+     * created for the alerts, in the order of the request
+     */
+    @Transactional(rollbackFor = RuntimeException.class)
+    public ResponseEntity<List<PatientAlertDO>> persistAlerts(List<PatientAlertDO> alerts) {
+        if (alerts == null || alerts.isEmpty()) {
+            throw new BadRequest400Exception("No alerts have been sent");
+        }
+        if (alerts.size() > maxAlertBatchSize) {
+            throw new BadRequest400Exception("Too many alerts in the batch: " + alerts.size() + " - the maximum is: " + maxAlertBatchSize);
+        }
+        Set<String> patientUuids = new LinkedHashSet<>();
+        for (PatientAlertDO alert : alerts) {
+            if (alert.getPatientUuid() == null || alert.getAlert() == null) {
+                throw new BadRequest400Exception("Each alert in the batch must have a patientUuid and an alert");
+            }
+            patientUuids.add(alert.getPatientUuid());
+        }
+        //validate that the patients are registered and that the concentrator serves a certificate for each of them
+        Set<String> missing = new LinkedHashSet<>(patientUuids);
+        try {
+            missing.removeAll(patientCertificateDAOImpl.findPatientUuidsWithCertificate(patientUuids));
+        } catch (Exception e) {
+            throw new InternalServerError500Exception("Internal Server Error " + e.getLocalizedMessage());
+        }
+        if (!missing.isEmpty()) {
+            throw new BadRequest400Exception("The patient or patient certificate is not registered on the concentrator when clinical system attempting to send a message to the patients: " + missing);
+        }
+
+        List<File> written = new ArrayList<>();
+        List<PatientDownloadable> pdList = new ArrayList<>();
+        List<PatientAlertDO> response = new ArrayList<>();
+        try {
+            Date messageDate = new Date();
+            for (PatientAlertDO alert : alerts) {
+                String downloadableUuid = UUID.randomUUID().toString();
+                File file = alertFile(downloadableUuid, messageDate);
+                try (FileOutputStream fop = new FileOutputStream(file)) {
+                    written.add(file);
+                    writeJSON(alert.getAlert(), fop);
+                }
+                // a reference is enough as the patient has been validated above
+                Patient patient = patientDAOImpl.getReference(alert.getPatientUuid());
+                pdList.add(createDownloadable(downloadableUuid, patient, file, messageDate));
+                response.add(new PatientAlertDO(alert.getPatientUuid(), downloadableUuid));
+            }
+            patientDownloadableDAOImpl.saveBatch(pdList);
+        } catch (IOException e) {
+            deleteAll(written);
+            logger.error(PatientMessagingService.class.getName() + ".error", () -> "Cannot save outbound Alert message payload to local drive - check the configured directory: " + alertmessagedir);
+            throw new InternalServerError500Exception("Unable to save Alerts to file: " + e.getLocalizedMessage());
+        } catch (Exception e) {
+            deleteAll(written);
+            throw new InternalServerError500Exception("Unable to persist Alerts: " + e.getLocalizedMessage());
+        }
+        // remove the files should the transaction roll back when it commits
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) {
+                        deleteAll(written);
+                    }
+                }
+            });
+        }
+        for (String patientUuid : patientUuids) {
+            downloadableManifestService.patientChanged(patientUuid);
+        }
+        logger.info(PatientMessagingService.class.getName(), () -> "Written " + pdList.size() + " alerts for " + patientUuids.size() + " patients");
+        return new ResponseEntity<>(response, HttpStatus.OK);
+    }
+
+    // the file is named by the downloadable UUID so that alerts written in the same millisecond cannot collide
+    private File alertFile(String downloadableUuid, Date messageDate) {
+        StringBuilder fnb = new StringBuilder(alertmessagedir);
+        fnb.append(System.getProperty("file.separator"));
+        fnb.append(messageDate.getTime());
+        fnb.append("-");
+        fnb.append(downloadableUuid);
+        fnb.append("-Alert");
+        fnb.append(".txt");
+        return new File(fnb.toString());
+    }
+
+    private PatientDownloadable createDownloadable(String downloadableUuid, Patient patient, File file, Date messageDate) throws Exception {
+        PatientDownloadable pd = new PatientDownloadable(downloadableUuid);
+        pd.setPatientUuid(patient);
+        pd.setScriptLocation(file.getPath());
+        pd.setVersion("1.0");
+        pd.setVersionAuthor("concentrator-created");
+        pd.setVersionDate(messageDate);
+        pd.setSignature(createSignature(pd, file.getName()));
+        return pd;
+    }
+
+    private void deleteAll(List<File> files) {
+        for (File f : files) {
+            if (!f.delete()) {
+                logger.error(PatientMessagingService.class.getName() + ".error", () -> "Cannot remove the alert file of a failed batch: " + f.getPath());
+            }
+        }
+    }
+
     private void writeJSON(EncryptedAndSignedUploadDO encryptedAndSignedUploadDO, FileOutputStream f) throws IOException {
-        ObjectMapper mapper = new ObjectMapper();
         mapper.writeValue(f, encryptedAndSignedUploadDO);
 
     }
 
     private String createSignature(PatientDownloadable d, String fileName) throws NoSuchAlgorithmException, Exception {
         // THIS IS AS A STAND IN FOR WHEN AN INTERFACE IDS CREATED WHICH WILL SIGN THE DB ENTRY
-        UploadEncryptionAdapter uploadEncryptionAdapter = new UploadEncryptionAdapter();
-        CertificateDefinitions cd;
-        cd = fetchClinicianSigningCerts();
-        String error = uploadEncryptionAdapter.init(cd, UploadEncryptionAdapter.SIGNMODE);
-        if (error != null) {
-            throw new Exception("Signing initailisation failed - " + error);
-        }
+        UploadEncryptionAdapter uploadEncryptionAdapter = getSigningAdapter();
         StringBuilder digestSubject = new StringBuilder();
         digestSubject.append(d.getDownloadableUuid())
                 .append(fileName)
@@ -182,6 +291,19 @@ public class PatientMessagingService {
         return signature;
     }
 
+    // the clinician signing key is loaded once rather than for every alert
+    private synchronized UploadEncryptionAdapter getSigningAdapter() throws Exception {
+        if (signingAdapter == null) {
+            UploadEncryptionAdapter uploadEncryptionAdapter = new UploadEncryptionAdapter();
+            String error = uploadEncryptionAdapter.init(fetchClinicianSigningCerts(), UploadEncryptionAdapter.SIGNMODE);
+            if (error != null) {
+                throw new Exception("Signing initailisation failed - " + error);
+            }
+            signingAdapter = uploadEncryptionAdapter;
+        }
+        return signingAdapter;
+    }
+
     private CertificateDefinitions fetchClinicianSigningCerts() throws Exception {
         CertificateDefinitions cd = new CertificateDefinitions(utils.getProperties());
         cd.setSIGNKEYSTORELOCATION("medipi.json.sign.keystore.clinician.location", CertificateDefinitions.INTERNAL);
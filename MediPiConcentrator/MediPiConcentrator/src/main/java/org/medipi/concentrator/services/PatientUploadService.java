@@ -15,7 +15,8 @@
  */
 package org.medipi.concentrator.services;
 
-import java.util.Date;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
 import javax.servlet.ServletContext;
 import org.medipi.concentrator.dataformat.PatientUploadDataFormat;
 import org.medipi.security.UploadEncryptionAdapter;
@@ -23,14 +24,23 @@ import org.medipi.concentrator.entities.Patient;
 import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
 import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.metrics.MetricsRegistry;
+import org.medipi.concentrator.tracing.UploadTrace;
+import org.medipi.concentrator.tracing.UploadTracer;
 import org.medipi.concentrator.utilities.Utilities;
+import org.medipi.model.DevicesPayloadCodec;
 import org.medipi.model.DevicesPayloadDO;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.context.request.async.DeferredResult;
 
 /**
  * Service class to assess that the incoming request is for a valid device and
@@ -43,6 +53,11 @@ import org.springframework.transaction.annotation.Transactional;
  * 2.depending on the header Data-Format then the appropriate data parsing class
  * is chosen
  *
+ * 3.decryption and verification of the payload may be run on the bounded crypto
+ * executor so that servlet threads are not held by CPU-bound work, and the
+ * payload then validated, parsed and persisted in one transaction on the
+ * bounded ingest executor so that crypto threads are not held by DB-bound work
+ *
  * @author rick@robinsonhq.com
  */
 @Service
@@ -60,6 +75,32 @@ public class PatientUploadService {
     @Autowired
     private UploadEncryptionAdapter patientEncryptionAdapter;
 
+    @Autowired
+    private CryptoExecutorService cryptoExecutor;
+
+    @Autowired
+    private IngestExecutorService ingestExecutor;
+
+    @Autowired
+    private MetricsRegistry metrics;
+
+    @Autowired
+    private UploadTracer tracer;
+
+    @Value("${medipi.concentrator.crypto.retryafterseconds:5}")
+    private int retryAfterSeconds;
+
+    @Value("${medipi.concentrator.crypto.timeoutmillis:60000}")
+    private long timeoutMillis;
+
+    private final TransactionTemplate transactionTemplate;
+
+    @Autowired
+    public PatientUploadService(PlatformTransactionManager transactionManager) {
+        // rolls back on RuntimeException
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
     /**
      * uploadRecordingDevice - Method to decide that data is to be uploaded and
      * based upon the configuration choose a data format of the uploaded data.
@@ -70,38 +111,181 @@ public class PatientUploadService {
      * @param patientUuid incoming patientUuid parameter from RESTful message
      * @param dataFormat incoming Data-Format HTTP header parameter from RESTful
      * message
+     * @param payloadEncoding incoming Payload-Encoding HTTP header parameter
+     * from RESTful message - null if the payload is Java serialised
      * @param content incoming message contents
      * @return status only response
      */
     @Transactional(rollbackFor = RuntimeException.class)
-    public ResponseEntity<?> uploadRecordingDeviceData(String hardware_name, String patientUuid, String dataFormat, EncryptedAndSignedUploadDO content) {
-        // OK device and patient are now veried as being registered with each other
-        ResponseEntity<?> r = this.patientDeviceValidationService.validate(hardware_name, patientUuid);
-        if (r.getStatusCode() == HttpStatus.ACCEPTED || r.getStatusCode() == HttpStatus.OK) {
+    public ResponseEntity<?> uploadRecordingDeviceData(String hardware_name, String patientUuid, String dataFormat, String payloadEncoding, EncryptedAndSignedUploadDO content) {
+        UploadTrace trace = tracer.begin(content.getUploadUuid(), hardware_name, patientUuid);
+        try {
+            ResponseEntity<?> response;
+            // OK device and patient are now veried as being registered with each other
+            ResponseEntity<?> r = validate(hardware_name, patientUuid);
+            if (isValid(r)) {
+                // using the HTTP header Data-Format choose the incoming message data format
+                PatientUploadDataFormat patientUploadFormat = getDataFormat(dataFormat);
+                checkPayloadEncoding(payloadEncoding);
+                response = process(patientUploadFormat, decrypt(content, payloadEncoding), patientUuid, r);
+            } else {
+                response = new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+            }
+            tracer.finish(trace, response, null);
+            return response;
+        } catch (RuntimeException e) {
+            tracer.finish(trace, null, e);
+            throw e;
+        } finally {
+            tracer.release();
+        }
+    }
+
+    /**
+     * uploadRecordingDeviceDataDeferred - Method to upload data as
+     * uploadRecordingDeviceData but releasing the servlet thread while the
+     * payload is decrypted and verified.
+     *
+     * The device and patient are checked without writing on the calling
+     * thread. Decryption and signature verification are then run on the
+     * bounded crypto executor and the validation, parsing and persisting of the
+     * payload in one transaction on the bounded ingest executor, so that a new
+     * patient is only registered to the device once the payload has been
+     * verified. If either executor's queue is full the upload is refused with
+     * 503 Service Unavailable and a Retry-After header
+     *
+     * @param hardware_name incoming deviceId parameter from RESTful message
+     * @param patientUuid incoming patientUuid parameter from RESTful message
+     * @param dataFormat incoming Data-Format HTTP header parameter from RESTful
+     * message
+     * @param payloadEncoding incoming Payload-Encoding HTTP header parameter
+     * from RESTful message - null if the payload is Java serialised
+     * @param content incoming message contents
+     * @return deferred status only response
+     */
+    public DeferredResult<ResponseEntity<?>> uploadRecordingDeviceDataDeferred(String hardware_name, String patientUuid, String dataFormat, String payloadEncoding, EncryptedAndSignedUploadDO content) {
+        DeferredResult<ResponseEntity<?>> result = new DeferredResult<>(timeoutMillis, serviceUnavailable());
+        UploadTrace trace = tracer.begin(content.getUploadUuid(), hardware_name, patientUuid);
+        try {
+            // device and patient are checked but any new patient is not registered until the payload is verified
+            ResponseEntity<?> r = check(hardware_name, patientUuid);
+            if (!isValid(r)) {
+                ResponseEntity<?> response = new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+                tracer.finish(trace, response, null);
+                result.setResult(response);
+                return result;
+            }
             // using the HTTP header Data-Format choose the incoming message data format
-            if (servletCtx.getAttribute(dataFormat) != null) {
-                PatientUploadDataFormat patientUploadFormat = (PatientUploadDataFormat) servletCtx.getAttribute(dataFormat);
-                DevicesPayloadDO payload = null;
-                try {
-                    payload = (DevicesPayloadDO) patientEncryptionAdapter.decryptAndVerify(content);
-                    logger.log(PatientUploadService.class.getName(), new Date().toString() + " Encrypted Payload with uuid: " + content.getUploadUuid() + " has been sucessfully decrypted. Upload date: " + payload.getUploadedDate() + "decrypted uuid: " + payload.getUploadUuid());
-                } catch (Exception e) {
-                    throw new BadRequest400Exception("Decryption exception: " + e.getLocalizedMessage());
-                }
-                if (patientUploadFormat.process(payload, new Patient(patientUuid))) {
-                    return r;
-                } else {
-                    throw new InternalServerError500Exception("Internal Server Error");
-                }
+            PatientUploadDataFormat patientUploadFormat = getDataFormat(dataFormat);
+            checkPayloadEncoding(payloadEncoding);
+            // the trace moves with the upload to the crypto thread and then to the ingest thread
+            cryptoExecutor.submit(tracer.bind(trace, () -> decrypt(content, payloadEncoding)))
+                    .thenApplyAsync(tracer.bind(trace, (DevicesPayloadDO payload) -> validateAndProcess(patientUploadFormat, payload, hardware_name, patientUuid)), ingestExecutor.getExecutor())
+                    .whenComplete((ResponseEntity<?> response, Throwable t) -> {
+                        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+                        if (cause instanceof RejectedExecutionException) {
+                            logger.info(PatientUploadService.class.getName() + ".busy", () -> "Ingest executor is at capacity - upload with uuid: " + content.getUploadUuid() + " refused");
+                            response = serviceUnavailable();
+                            cause = null;
+                        }
+                        tracer.finish(trace, response, cause);
+                        if (cause == null) {
+                            result.setResult(response);
+                        } else {
+                            result.setErrorResult(cause);
+                        }
+                    });
+        } catch (RejectedExecutionException e) {
+            logger.info(PatientUploadService.class.getName() + ".busy", () -> "Crypto executor is at capacity - upload with uuid: " + content.getUploadUuid() + " refused");
+            ResponseEntity<?> response = serviceUnavailable();
+            tracer.finish(trace, response, null);
+            result.setResult(response);
+        } catch (RuntimeException e) {
+            tracer.finish(trace, null, e);
+            throw e;
+        } finally {
+            tracer.release();
+        }
+        return result;
+    }
 
-            } else {
-                //The Data-Format HTTP header in the incoming request is missing or not a supported format 
-                logger.log(PatientUploadService.class.getName() + ".dataValidationIssue", "The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
-                throw new BadRequest400Exception("The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
+    private ResponseEntity<?> validate(String hardware_name, String patientUuid) {
+        try (UploadTrace.Span span = tracer.span("validation")) {
+            ResponseEntity<?> r = this.patientDeviceValidationService.validate(hardware_name, patientUuid);
+            span.setDetail(Integer.toString(r.getStatusCode().value())).succeeded();
+            return r;
+        }
+    }
 
+    private ResponseEntity<?> check(String hardware_name, String patientUuid) {
+        try (UploadTrace.Span span = tracer.span("check")) {
+            ResponseEntity<?> r = this.patientDeviceValidationService.check(hardware_name, patientUuid);
+            span.setDetail(Integer.toString(r.getStatusCode().value())).succeeded();
+            return r;
+        }
+    }
+
+    private static boolean isValid(ResponseEntity<?> r) {
+        return r.getStatusCode() == HttpStatus.ACCEPTED || r.getStatusCode() == HttpStatus.OK;
+    }
+
+    private ResponseEntity<?> validateAndProcess(PatientUploadDataFormat patientUploadFormat, DevicesPayloadDO payload, String hardware_name, String patientUuid) {
+        // a new patient registered by validation is rolled back if the payload cannot be persisted
+        return transactionTemplate.execute(status -> {
+            ResponseEntity<?> r = validate(hardware_name, patientUuid);
+            if (!isValid(r)) {
+                return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
             }
+            return process(patientUploadFormat, payload, patientUuid, r);
+        });
+    }
+
+    private PatientUploadDataFormat getDataFormat(String dataFormat) {
+        if (dataFormat == null || servletCtx.getAttribute(dataFormat) == null) {
+            //The Data-Format HTTP header in the incoming request is missing or not a supported format 
+            logger.log(PatientUploadService.class.getName() + ".dataValidationIssue", "The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
+            throw new BadRequest400Exception("The Data-Format HTTP header in the incoming request is missing or not a supported format: " + dataFormat);
         }
-        return new ResponseEntity(HttpStatus.INTERNAL_SERVER_ERROR);
+        return (PatientUploadDataFormat) servletCtx.getAttribute(dataFormat);
+    }
+
+    private void checkPayloadEncoding(String payloadEncoding) {
+        if (!DevicesPayloadCodec.isSupported(payloadEncoding)) {
+            //The Payload-Encoding HTTP header in the incoming request is not an encoding which can be decoded
+            logger.log(PatientUploadService.class.getName() + ".dataValidationIssue", "The Payload-Encoding HTTP header in the incoming request is not a supported encoding: " + payloadEncoding);
+            throw new BadRequest400Exception("The Payload-Encoding HTTP header in the incoming request is not a supported encoding: " + payloadEncoding);
+        }
+    }
+
+    private DevicesPayloadDO decrypt(EncryptedAndSignedUploadDO content, String payloadEncoding) {
+        long start = System.nanoTime();
+        try (UploadTrace.Span span = tracer.span("decrypt_verify")) {
+            DevicesPayloadDO payload = patientEncryptionAdapter.decryptAndVerify(content, payloadEncoding);
+            metrics.stage(MetricsRegistry.STAGE_DECRYPT_VERIFY).recordSince(start);
+            span.setDetail((payload.getPayload() == null ? 0 : payload.getPayload().size()) + " payloads").succeeded();
+            logger.log(PatientUploadService.class.getName(), () -> "Encrypted Payload with uuid: " + content.getUploadUuid() + " has been sucessfully decrypted. Upload date: " + payload.getUploadedDate() + "decrypted uuid: " + payload.getUploadUuid());
+            return payload;
+        } catch (Exception e) {
+            throw new BadRequest400Exception("Decryption exception: " + e.getLocalizedMessage());
+        }
+    }
+
+    private ResponseEntity<?> process(PatientUploadDataFormat patientUploadFormat, DevicesPayloadDO payload, String patientUuid, ResponseEntity<?> r) {
+        if (patientUploadFormat.process(payload, new Patient(patientUuid))) {
+            return r;
+        } else {
+            throw new InternalServerError500Exception("Internal Server Error");
+        }
+    }
+
+    /**
+     * @return 503 Service Unavailable response with a Retry-After header, for
+     * an upload which cannot be handled now
+     */
+    public ResponseEntity<?> serviceUnavailable() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, Integer.toString(retryAfterSeconds));
+        return new ResponseEntity<>("MediPi Concentrator is busy - please retry later", headers, HttpStatus.SERVICE_UNAVAILABLE);
     }
 
 }
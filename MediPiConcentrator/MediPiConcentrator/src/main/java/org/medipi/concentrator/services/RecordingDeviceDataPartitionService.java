@@ -0,0 +1,100 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.dao.RecordingDeviceDataDAOImpl;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class to maintain the monthly partitions of recording_device_data
+ * (see medipidb_recording_device_data_partitions.sql).
+ *
+ * The partitions for the current month and the configured number of months
+ * ahead are created on startup and then checked daily so that a partition
+ * always exists before any data is downloaded into it, and uploads are never
+ * held up by the creation of a partition. The insert trigger creates a missing
+ * partition itself only as a fallback, so a failure here is logged but is not
+ * fatal
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class RecordingDeviceDataPartitionService {
+
+    @Value("${medipi.concentrator.db.partition:false}")
+    private boolean partition;
+
+    @Value("${medipi.concentrator.db.partition.monthsahead:2}")
+    private int monthsAhead;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private RecordingDeviceDataDAOImpl recordingDeviceDataDAOImpl;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Create the partitions due now and schedule the daily check
+     */
+    public synchronized void start() {
+        if (!partition || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread t = new Thread(r, "recording-device-data-partitions");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::ensurePartitions, 0, 1, TimeUnit.DAYS);
+    }
+
+    /**
+     * Create any of the partitions for the current month and the configured
+     * number of months ahead which do not yet exist
+     */
+    public void ensurePartitions() {
+        Calendar month = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        month.set(Calendar.DAY_OF_MONTH, 1);
+        try {
+            for (int i = 0; i <= monthsAhead; i++) {
+                String name = recordingDeviceDataDAOImpl.createPartition(month.getTime());
+                logger.info(RecordingDeviceDataPartitionService.class.getName() + ".info", () -> "Partition " + name + " is available");
+                month.add(Calendar.MONTH, 1);
+            }
+        } catch (Exception e) {
+            logger.error(RecordingDeviceDataPartitionService.class.getName() + ".error", () -> "Failed to create recording_device_data partitions - check that medipidb_recording_device_data_partitions.sql has been applied or set medipi.concentrator.db.partition=false: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.PostConstruct;
+import org.medipi.concentrator.dao.RecordingDeviceAttributeDAOImpl;
+import org.medipi.concentrator.dao.RecordingDeviceTypeDAOImpl;
+import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class to hold an in-memory dictionary of the recording device types
+ * and recording device attributes.
+ *
+ * Both tables are small and are only added to when a new device or a new
+ * device attribute is seen for the first time. The dictionary is preloaded at
+ * startup and keyed by (type, subtype) for the types and by (typeId,
+ * attributeName, units, format) for the attributes so that parsing incoming
+ * data does not need to query the DB for each data point.
+ *
+ * Missing entries are created in their own committed transaction under a lock
+ * so that concurrent uploads introducing the same new device do not create
+ * duplicate entries
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class RecordingDeviceDictionaryService {
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private RecordingDeviceTypeDAOImpl recordingDeviceTypeDAO;
+
+    @Autowired
+    private RecordingDeviceAttributeDAOImpl recordingDeviceAttributeDAO;
+
+    private final ConcurrentHashMap<List<Object>, RecordingDeviceType> types = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<List<Object>, RecordingDeviceAttribute> attributes = new ConcurrentHashMap<>();
+    private final Object creationLock = new Object();
+
+    /**
+     * Preload the dictionary with all the recording device types and
+     * attributes currently on the DB
+     */
+    @PostConstruct
+    public void preload() {
+        try {
+            for (RecordingDeviceType rdt : recordingDeviceTypeDAO.findAll()) {
+                types.put(typeKey(rdt.getType(), rdt.getSubtype()), rdt);
+            }
+            for (RecordingDeviceAttribute rda : recordingDeviceAttributeDAO.findAll()) {
+                attributes.put(attributeKey(rda.getTypeId(), rda.getAttributeName(), rda.getAttributeUnits(), rda.getAttributeType()), rda);
+            }
+            logger.log(RecordingDeviceDictionaryService.class.getName() + ".info", "Recording device dictionary preloaded with " + types.size() + " types and " + attributes.size() + " attributes");
+        } catch (Exception e) {
+            // the dictionary will be populated on demand instead
+            logger.log(RecordingDeviceDictionaryService.class.getName() + ".error", "Unable to preload the recording device dictionary: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Get the recording device type for the given type and subtype, creating
+     * it on the DB if it does not yet exist
+     *
+     * @param type device type e.g. Oximeter
+     * @param subtype device subtype e.g. make and model
+     * @return recording device type
+     */
+    public RecordingDeviceType getRecordingDeviceType(String type, String subtype) {
+        List<Object> key = typeKey(type, subtype);
+        RecordingDeviceType rdt = types.get(key);
+        if (rdt != null) {
+            return rdt;
+        }
+        synchronized (creationLock) {
+            rdt = types.get(key);
+            if (rdt == null) {
+                try {
+                    rdt = recordingDeviceTypeDAO.findBytypeAndSubtype(type, subtype);
+                } catch (EmptyResultDataAccessException e) {
+                    // Device does NOT exist in the database - add it
+                    rdt = new RecordingDeviceType();
+                    rdt.setType(type);
+                    rdt.setSubtype(subtype);
+                    rdt = recordingDeviceTypeDAO.saveInNewTransaction(rdt);
+                    logger.log(RecordingDeviceDictionaryService.class.getName() + ".dbInfo", () -> "New recording device type added: " + type + " " + subtype);
+                }
+                types.put(key, rdt);
+            }
+            return rdt;
+        }
+    }
+
+    /**
+     * Get the recording device attribute for the given type, name, units and
+     * format, creating it on the DB if it does not yet exist
+     *
+     * @param rdt recording device type which the attribute belongs to
+     * @param attributeName name of the attribute
+     * @param attributeUnits units of the attribute
+     * @param attributeType format of the attribute
+     * @return recording device attribute
+     */
+    public RecordingDeviceAttribute getRecordingDeviceAttribute(RecordingDeviceType rdt, String attributeName, String attributeUnits, String attributeType) {
+        List<Object> key = attributeKey(rdt, attributeName, attributeUnits, attributeType);
+        RecordingDeviceAttribute rda = attributes.get(key);
+        if (rda != null) {
+            return rda;
+        }
+        synchronized (creationLock) {
+            rda = attributes.get(key);
+            if (rda == null) {
+                try {
+                    rda = recordingDeviceAttributeDAO.findByTypeUnitsFormatAndAttributeName(rdt, attributeName, attributeUnits, attributeType);
+                } catch (EmptyResultDataAccessException e) {
+                    // Attribute does NOT exist in the database - add it
+                    rda = new RecordingDeviceAttribute();
+                    rda.setAttributeName(attributeName);
+                    rda.setAttributeType(attributeType);
+                    rda.setAttributeUnits(attributeUnits);
+                    rda.setTypeId(rdt);
+                    rda = recordingDeviceAttributeDAO.saveInNewTransaction(rda);
+                    logger.log(RecordingDeviceDictionaryService.class.getName() + ".dbInfo", () -> "New recording device attribute added: " + attributeName + " " + attributeUnits + " " + attributeType + " for device type id: " + rdt.getTypeId());
+                }
+                attributes.put(key, rda);
+            }
+            return rda;
+        }
+    }
+
+    private List<Object> typeKey(String type, String subtype) {
+        return Arrays.asList(type, subtype);
+    }
+
+    private List<Object> attributeKey(RecordingDeviceType rdt, String attributeName, String attributeUnits, String attributeType) {
+        return Arrays.asList(rdt.getTypeId(), attributeName, attributeUnits, attributeType);
+    }
+}
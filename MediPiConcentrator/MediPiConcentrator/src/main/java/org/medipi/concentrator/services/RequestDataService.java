@@ -15,19 +15,26 @@
  */
 package org.medipi.concentrator.services;
 
-import java.util.ArrayList;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.util.Date;
-import java.util.List;
-import ma.glasnost.orika.MapperFacade;
-import org.medipi.concentrator.dao.PatientDAOImpl;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import org.medipi.concentrator.dao.RecordingDeviceDataDAO;
 import org.medipi.concentrator.dao.RecordingDeviceDataDAOImpl;
-import org.medipi.concentrator.entities.Patient;
-import org.medipi.concentrator.entities.RecordingDeviceData;
+import org.medipi.concentrator.exception.BadRequest400Exception;
 import org.medipi.concentrator.exception.InternalServerError500Exception;
-import org.medipi.concentrator.model.PatientDataRequestDO;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.metrics.MetricsRegistry;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -35,57 +42,267 @@ import org.springframework.transaction.annotation.Transactional;
  * Service class to enable 3rd party systems to request data for patients from a
  * patient group from a date in the past and have it delivered to the requesting system.
  *
+ * The data points for the whole patient group are read using a single query
+ * through a forward-only cursor and each row is written straight to the
+ * response as it is read, so the memory used does not depend on the amount of
+ * data returned. The JSON is the same as the serialisation of a list of
+ * PatientDataRequestDO - one object per patient with data, holding its
+ * patientUuid and recordingDeviceDataList.
+ *
+ * Data may also be requested a page at a time using a cursor. The response
+ * then holds the page of data points in data_id order (so a patient may appear
+ * more than once within a page), the cursor from which the next page is to be
+ * requested and whether more data was available when the page was read. A page
+ * stops below the data_ids of any upload which is still being stored, so that
+ * a data point which becomes visible later is never behind a returned cursor
+ *
  * @author rick@robinsonhq.com
  */
 @Service
 public class RequestDataService {
 
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    @Value("${medipi.concentrator.requestdata.gzip:true}")
+    private boolean gzip;
+
+    @Value("${medipi.concentrator.requestdata.maxpagesize:10000}")
+    private int maxPageSize;
+
     @Autowired
     private RecordingDeviceDataDAOImpl recordingDeviceDataDAOImpl;
 
     @Autowired
-    private PatientDAOImpl patientDAOImpl;
+    private MediPiLogger logger;
 
     @Autowired
-    private MapperFacade mapperFacade;
+    private MetricsRegistry metrics;
 
     /**
      * A date query parameter is passed to the interface with a requesting patient group parameter.
-     * This defines at what point the requesting system last had any data for these patients
+     * This defines at what point the requesting system last had any data for these patients.
+     * The response is 204 No Content if there is no new data
      *
      * @param patientGroupUuid patient group UUID to be requested
      * @param lastDownloadDate last download date 
-     * @return Response list of data for patients requested
+     * @param acceptEncoding Accept-Encoding HTTP header of the request - the
+     * response is gzipped if it accepts gzip and gzip is enabled
+     * @param response response to which the list of data for the patients requested is written
      */
-    @Transactional(rollbackFor = RuntimeException.class)
-    public ResponseEntity<List<PatientDataRequestDO>> getData(String patientGroupUuid, Date lastDownloadDate) {
+    @Transactional(readOnly = true, rollbackFor = RuntimeException.class)
+    public void streamData(String patientGroupUuid, Date lastDownloadDate, String acceptEncoding, HttpServletResponse response) {
+        long start = System.nanoTime();
+        DataPointWriter writer = new DataPointWriter(response, gzip && acceptsGzip(acceptEncoding), null);
         try {
-            List<PatientDataRequestDO> responsePayload = new ArrayList<>();
-
-            List<Patient> pList = patientDAOImpl.findByGroup(patientGroupUuid);
-            for (Patient p : pList) {
-                PatientDataRequestDO responsePdr = null;
-                List<RecordingDeviceData> rddList = recordingDeviceDataDAOImpl.findByPatientAndDownloadedTime(p.getPatientUuid(), lastDownloadDate);
-                if (rddList != null && !rddList.isEmpty()) {
-                    //create a new patient data request to return
-                    responsePdr = new PatientDataRequestDO(p.getPatientUuid());
-                    for (RecordingDeviceData rdd : rddList) {
-                        RecordingDeviceData rddMapped = this.mapperFacade.map(rdd, RecordingDeviceData.class);
-
-                        responsePdr.addRecordingDeviceData(rddMapped);
-                    }
-                    responsePayload.add(responsePdr);
-                }
+            int streamed = recordingDeviceDataDAOImpl.streamByPatientGroupAndDownloadedTime(patientGroupUuid, lastDownloadDate, writer);
+            writer.finish(false);
+            recordExport(start, streamed);
+            logger.log(RequestDataService.class.getName(), new Date().toString() + " " + streamed + " data points returned to Patient Group: " + patientGroupUuid);
+        } catch (Exception ex) {
+            if (response.isCommitted()) {
+                // the status has already been sent so the truncated JSON is the only indication of the failure
+                logger.log(RequestDataService.class.getName() + ".error", new Date().toString() + " Data request for Patient Group: " + patientGroupUuid + " failed after the response was started: " + ex.getLocalizedMessage());
             }
-            if (responsePayload.isEmpty()) {
-                return new ResponseEntity<>(HttpStatus.NO_CONTENT);
-            } else {
-                return new ResponseEntity<>(responsePayload, HttpStatus.OK);
+            throw new InternalServerError500Exception(ex.getLocalizedMessage());
+        }
+    }
 
+    /**
+     * A cursor is passed to the interface with a requesting patient group
+     * parameter. This is the next cursor returned by the previous page (or 0
+     * to start from the first data point) and the page holds the data points
+     * which have been stored since then, up to the page size
+     *
+     * @param patientGroupUuid patient group UUID to be requested
+     * @param cursor next cursor from the previous page
+     * @param pageSize maximum number of data points to return - null for the
+     * configured maximum
+     * @param acceptEncoding Accept-Encoding HTTP header of the request - the
+     * response is gzipped if it accepts gzip and gzip is enabled
+     * @param response response to which the page is written
+     */
+    @Transactional(readOnly = true, rollbackFor = RuntimeException.class)
+    public void streamPage(String patientGroupUuid, String cursor, Integer pageSize, String acceptEncoding, HttpServletResponse response) {
+        long afterDataId;
+        try {
+            afterDataId = Long.parseLong(cursor);
+        } catch (NumberFormatException nfe) {
+            afterDataId = -1;
+        }
+        if (afterDataId < 0) {
+            throw new BadRequest400Exception("Invalid cursor: " + cursor);
+        }
+        if (pageSize != null && pageSize < 1) {
+            throw new BadRequest400Exception("Invalid page size: " + pageSize);
+        }
+        int limit = pageSize == null ? maxPageSize : Math.min(pageSize, maxPageSize);
+        long start = System.nanoTime();
+        DataPointWriter writer = new DataPointWriter(response, gzip && acceptsGzip(acceptEncoding), afterDataId);
+        try {
+            long mark = recordingDeviceDataDAOImpl.getCommittedDataIdMark();
+            int streamed = recordingDeviceDataDAOImpl.streamByPatientGroupAfterDataId(patientGroupUuid, afterDataId, mark, limit, writer);
+            if (streamed < limit) {
+                // every data point of the group below the mark has been returned
+                writer.advanceTo(mark - 1);
             }
+            writer.finish(streamed == limit);
+            recordExport(start, streamed);
+            logger.log(RequestDataService.class.getName(), new Date().toString() + " " + streamed + " data points returned to Patient Group: " + patientGroupUuid + " after cursor: " + cursor);
         } catch (Exception ex) {
+            if (response.isCommitted()) {
+                logger.log(RequestDataService.class.getName() + ".error", new Date().toString() + " Data request for Patient Group: " + patientGroupUuid + " failed after the response was started: " + ex.getLocalizedMessage());
+            }
             throw new InternalServerError500Exception(ex.getLocalizedMessage());
         }
     }
 
+    private void recordExport(long start, int streamed) {
+        metrics.stage(MetricsRegistry.STAGE_CLINICIAN_EXPORT).recordSince(start);
+        metrics.counter("medipi_export_rows_total", "Data points exported to clinical systems").add(streamed);
+    }
+
+    private boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                // gzip;q=0 means that gzip is not acceptable
+                return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes each streamed row to the response as JSON. The response is only
+     * started when the first row is received so that 204 No Content can still be
+     * returned if there are none. When paged the list is enclosed in an object
+     * holding the next cursor, and an empty page is returned rather than 204
+     */
+    private static class DataPointWriter implements RecordingDeviceDataDAO.DataPointHandler {
+
+        private final HttpServletResponse response;
+        private final boolean gzip;
+        private final boolean paged;
+        private long lastDataId;
+        private JsonGenerator generator;
+        private String currentPatientUuid;
+
+        /**
+         * @param response response to write to
+         * @param gzip whether to gzip the response
+         * @param cursor data_id cursor of the page or null if not paged
+         */
+        DataPointWriter(HttpServletResponse response, boolean gzip, Long cursor) {
+            this.response = response;
+            this.gzip = gzip;
+            this.paged = cursor != null;
+            this.lastDataId = paged ? cursor : 0L;
+        }
+
+        @Override
+        public void handle(ResultSet rs) throws IOException, SQLException {
+            String patientUuid = rs.getString("patient_uuid");
+            if (generator == null) {
+                start();
+            }
+            if (!patientUuid.equals(currentPatientUuid)) {
+                if (currentPatientUuid != null) {
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                }
+                generator.writeStartObject();
+                generator.writeStringField("patientUuid", patientUuid);
+                generator.writeArrayFieldStart("recordingDeviceDataList");
+                currentPatientUuid = patientUuid;
+            }
+            generator.writeStartObject();
+            writeTime("scheduleEffectiveTime", rs.getTimestamp("schedule_effective_time"));
+            writeTime("scheduleExpiryTime", rs.getTimestamp("schedule_expiry_time"));
+            lastDataId = rs.getLong("data_id");
+            generator.writeNumberField("dataId", lastDataId);
+            generator.writeStringField("dataValue", rs.getString("data_value"));
+            writeTime("dataValueTime", rs.getTimestamp("data_value_time"));
+            writeTime("downloadedTime", rs.getTimestamp("downloaded_time"));
+            // the patient is given by the enclosing object
+            generator.writeNullField("patientUuid");
+            generator.writeObjectFieldStart("attributeId");
+            generator.writeNumberField("attributeId", rs.getInt("attribute_id"));
+            generator.writeStringField("attributeName", rs.getString("attribute_name"));
+            generator.writeStringField("attributeType", rs.getString("attribute_type"));
+            generator.writeObjectFieldStart("typeId");
+            generator.writeNumberField("typeId", rs.getInt("type_id"));
+            generator.writeStringField("type", rs.getString("type"));
+            generator.writeStringField("subtype", rs.getString("subtype"));
+            generator.writeEndObject();
+            generator.writeStringField("attributeUnits", rs.getString("attribute_units"));
+            generator.writeEndObject();
+            generator.writeEndObject();
+        }
+
+        private void start() throws IOException {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            response.setCharacterEncoding("UTF-8");
+            OutputStream out = response.getOutputStream();
+            if (gzip) {
+                response.setHeader("Content-Encoding", "gzip");
+                out = new GZIPOutputStream(out, 8192);
+            }
+            generator = JSON_FACTORY.createGenerator(out);
+            if (paged) {
+                generator.writeStartObject();
+                generator.writeArrayFieldStart("patients");
+            } else {
+                generator.writeStartArray();
+            }
+        }
+
+        private void writeTime(String fieldName, Timestamp time) throws IOException {
+            if (time == null) {
+                generator.writeNullField(fieldName);
+            } else {
+                // dates are written as epoch millis as configured for Jackson (WRITE_DATES_AS_TIMESTAMPS)
+                generator.writeNumberField(fieldName, time.getTime());
+            }
+        }
+
+        /**
+         * Move the next cursor on past data points which are not for the
+         * patient group
+         *
+         * @param dataId data_id up to which every data point of the group has
+         * been written
+         */
+        void advanceTo(long dataId) {
+            lastDataId = Math.max(lastDataId, dataId);
+        }
+
+        /**
+         * @param more whether the page was full so more data may be available
+         */
+        void finish(boolean more) throws IOException {
+            if (generator == null) {
+                if (!paged) {
+                    response.setStatus(HttpStatus.NO_CONTENT.value());
+                    return;
+                }
+                start();
+            }
+            if (currentPatientUuid != null) {
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            if (paged) {
+                generator.writeStringField("next", Long.toString(lastDataId));
+                generator.writeBooleanField("more", more);
+                generator.writeEndObject();
+            }
+            // closing the generator finishes the gzip stream and flushes the response
+            generator.close();
+        }
+    }
 }
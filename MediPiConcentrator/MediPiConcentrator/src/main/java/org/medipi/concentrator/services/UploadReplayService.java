@@ -0,0 +1,439 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.exception.BadRequest400Exception;
+import org.medipi.concentrator.exception.NotAcceptable406Exception;
+import org.medipi.concentrator.exception.NotFound404Exception;
+import org.medipi.concentrator.journal.InboundMessageArchive;
+import org.medipi.concentrator.journal.JournalledUpload;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.ReplayStatusDO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+/**
+ * Service class to replay the inbound message archive - re-ingesting archived
+ * patient uploads through the normal upload processing, e.g. following a
+ * restore of the DB.
+ *
+ * The archive segments are read in order by a single reader which hands each
+ * upload to one of a number of lanes chosen by the patient, so that the
+ * uploads for a patient are processed in the order in which they were
+ * received while different patients are decrypted, parsed and written in
+ * parallel. Uploads can be limited to those received in a time window.
+ * Uploads already stored are recognised by the data format and are not stored
+ * twice.
+ *
+ * A checkpoint - the last segment all of whose uploads have been replayed
+ * without failure - is written as the replay progresses so that an
+ * interrupted replay can be resumed from the following segment. Progress and
+ * throughput are logged periodically and are available from status()
+ *
+ * @author rick@robinsonhq.com
+ */
+@Service
+public class UploadReplayService {
+
+    private static final String RUNNING = "RUNNING";
+    private static final String COMPLETED = "COMPLETED";
+    private static final String CANCELLED = "CANCELLED";
+    private static final String FAILED = "FAILED";
+
+    @Value("${medipi.concentrator.replay.lanes:0}")
+    private int laneCount;
+
+    @Value("${medipi.concentrator.replay.lanequeue:100}")
+    private int laneQueue;
+
+    @Value("${medipi.concentrator.replay.progressseconds:30}")
+    private long progressSeconds;
+
+    @Value("${medipi.concentrator.replay.checkpointfile:${medipi.concentrator.inboundsavedmessagedir:}/replay.checkpoint}")
+    private String checkpointFile;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    @Autowired
+    private InboundMessageArchive inboundMessageArchive;
+
+    @Autowired
+    private PatientUploadService patientUploadService;
+
+    private volatile Replay replay;
+
+    /**
+     * Start a replay of the inbound message archive
+     *
+     * @param fromMillis replay only uploads received at or after this time -
+     * may be null
+     * @param toMillis replay only uploads received before this time - may be
+     * null
+     * @param resume start from the segment following the checkpoint of a
+     * previous replay rather than from the oldest segment
+     * @return the status of the replay
+     */
+    public synchronized ReplayStatusDO start(Long fromMillis, Long toMillis, boolean resume) {
+        if (replay != null && RUNNING.equals(replay.state)) {
+            throw new BadRequest400Exception("A replay is already running");
+        }
+        long[] sequences = inboundMessageArchive.listSegmentSequences();
+        int first = 0;
+        if (resume) {
+            Long checkpoint = readCheckpoint();
+            while (checkpoint != null && first < sequences.length && sequences[first] <= checkpoint) {
+                first++;
+            }
+        }
+        int lanes = laneCount > 0 ? laneCount : Runtime.getRuntime().availableProcessors();
+        replay = new Replay(sequences, first, fromMillis, toMillis, lanes);
+        replay.start();
+        final int segments = sequences.length - first;
+        logger.info(UploadReplayService.class.getName(), () -> "Replay of " + segments + " inbound message archive segments started with " + lanes + " lanes");
+        return status();
+    }
+
+    /**
+     * Cancel the running replay. Uploads already handed to a lane are not
+     * replayed
+     *
+     * @return the status of the replay
+     */
+    public ReplayStatusDO cancel() {
+        Replay r = replay;
+        if (r == null || !RUNNING.equals(r.state)) {
+            throw new BadRequest400Exception("No replay is running");
+        }
+        r.cancelled = true;
+        return status();
+    }
+
+    /**
+     * Get the status of the current or last replay
+     *
+     * @return the status
+     */
+    public ReplayStatusDO status() {
+        Replay r = replay;
+        if (r == null) {
+            throw new NotFound404Exception("No replay has been started");
+        }
+        return r.status();
+    }
+
+    @PreDestroy
+    public void stop() {
+        Replay r = replay;
+        if (r != null) {
+            r.cancelled = true;
+        }
+    }
+
+    private Long readCheckpoint() {
+        File f = new File(checkpointFile);
+        if (!f.isFile()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8).trim());
+        } catch (IOException | NumberFormatException e) {
+            logger.error(UploadReplayService.class.getName() + ".error", () -> "Cannot read the replay checkpoint " + checkpointFile + " - replaying from the oldest segment: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    private void writeCheckpoint(long sequence) {
+        try {
+            File f = new File(checkpointFile);
+            File tmp = new File(checkpointFile + ".tmp");
+            Files.write(tmp.toPath(), Long.toString(sequence).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.error(UploadReplayService.class.getName() + ".error", () -> "Cannot write the replay checkpoint " + checkpointFile + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * A single run of the replay
+     */
+    private class Replay {
+
+        private final long[] sequences;
+        private final int first;
+        private final Long fromMillis;
+        private final Long toMillis;
+        private final Lane[] lanes;
+        // uploads outstanding per segment - the reader holds one until it has finished the segment
+        private final Map<Long, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+        private final Map<Long, Boolean> segmentFailed = new ConcurrentHashMap<>();
+        private final Map<Long, Boolean> segmentDone = new ConcurrentHashMap<>();
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicLong skipped = new AtomicLong();
+        private final AtomicLong replayed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final Date started = new Date();
+        private volatile long segmentsRead = 0;
+        private volatile Long checkpoint;
+        private volatile boolean cancelled = false;
+        private volatile String state = RUNNING;
+        private volatile Date finished;
+        private int nextCheckpoint;
+        private boolean checkpointBlocked = false;
+        private ScheduledExecutorService progress;
+
+        Replay(long[] sequences, int first, Long fromMillis, Long toMillis, int laneCount) {
+            this.sequences = sequences;
+            this.first = first;
+            this.nextCheckpoint = first;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            this.lanes = new Lane[laneCount];
+            for (int i = 0; i < laneCount; i++) {
+                lanes[i] = new Lane(this, i, laneQueue);
+            }
+        }
+
+        void start() {
+            for (Lane lane : lanes) {
+                lane.start();
+            }
+            progress = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+                Thread t = new Thread(r, "upload-replay-progress");
+                t.setDaemon(true);
+                return t;
+            });
+            progress.scheduleWithFixedDelay(this::logProgress, progressSeconds, progressSeconds, TimeUnit.SECONDS);
+            Thread reader = new Thread(this::read, "upload-replay-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void read() {
+            boolean readFailed = false;
+            try {
+                for (int i = first; i < sequences.length && !cancelled; i++) {
+                    long sequence = sequences[i];
+                    AtomicInteger count = new AtomicInteger(1);
+                    outstanding.put(sequence, count);
+                    try {
+                        inboundMessageArchive.readSegment(sequence, (JournalledUpload upload) -> {
+                            if (cancelled) {
+                                throw new InterruptedException("Replay cancelled");
+                            }
+                            read.incrementAndGet();
+                            long received = upload.getReceivedDate() == null ? 0L : upload.getReceivedDate().getTime();
+                            if ((fromMillis != null && received < fromMillis) || (toMillis != null && received >= toMillis)) {
+                                skipped.incrementAndGet();
+                                return;
+                            }
+                            count.incrementAndGet();
+                            lanes[laneOf(upload.getPatientUuid())].put(new Task(sequence, upload));
+                        });
+                    } catch (IOException e) {
+                        // the uploads after the corruption are lost to this replay - the checkpoint stops before the segment
+                        segmentFailed.put(sequence, Boolean.TRUE);
+                        failed.incrementAndGet();
+                        logger.error(UploadReplayService.class.getName() + ".error", () -> "Replay cannot read all of the inbound message archive: " + e.getLocalizedMessage());
+                    }
+                    segmentsRead++;
+                    release(sequence);
+                }
+            } catch (InterruptedException e) {
+                cancelled = true;
+            } catch (RuntimeException e) {
+                readFailed = true;
+                logger.error(UploadReplayService.class.getName() + ".error", () -> "Replay failed to read the inbound message archive: " + e.getLocalizedMessage());
+            }
+            for (Lane lane : lanes) {
+                lane.finish();
+            }
+            for (Lane lane : lanes) {
+                try {
+                    lane.thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            progress.shutdownNow();
+            finished = new Date();
+            state = cancelled ? CANCELLED : readFailed ? FAILED : COMPLETED;
+            logProgress();
+        }
+
+        private int laneOf(String patientUuid) {
+            return patientUuid == null ? 0 : (patientUuid.hashCode() & Integer.MAX_VALUE) % lanes.length;
+        }
+
+        void process(Task task) {
+            if (cancelled) {
+                release(task.sequence);
+                return;
+            }
+            JournalledUpload upload = task.upload;
+            String uploadUuid = upload.getContent() == null ? null : upload.getContent().getUploadUuid();
+            try {
+                ResponseEntity<?> r = patientUploadService.uploadRecordingDeviceData(upload.getDeviceId(), upload.getPatientUuid(), upload.getDataFormat(), upload.getPayloadEncoding(), upload.getContent());
+                if (r.getStatusCode().is2xxSuccessful()) {
+                    replayed.incrementAndGet();
+                } else {
+                    failed(task, uploadUuid, "Upload processing returned " + r.getStatusCode());
+                }
+            } catch (BadRequest400Exception | NotFound404Exception | NotAcceptable406Exception e) {
+                // the upload would never be accepted
+                rejected.incrementAndGet();
+                logger.error(UploadReplayService.class.getName() + ".error", () -> "Replayed upload " + uploadUuid + " from device " + upload.getDeviceId() + " rejected: " + e.getLocalizedMessage());
+            } catch (RuntimeException e) {
+                failed(task, uploadUuid, e.getLocalizedMessage());
+            }
+            release(task.sequence);
+        }
+
+        private void failed(Task task, String uploadUuid, String message) {
+            failed.incrementAndGet();
+            segmentFailed.put(task.sequence, Boolean.TRUE);
+            logger.error(UploadReplayService.class.getName() + ".error", () -> "Replayed upload " + uploadUuid + " from device " + task.upload.getDeviceId() + " failed: " + message);
+        }
+
+        private void release(long sequence) {
+            if (outstanding.get(sequence).decrementAndGet() == 0) {
+                outstanding.remove(sequence);
+                segmentDone.put(sequence, Boolean.TRUE);
+                advanceCheckpoint();
+            }
+        }
+
+        // the checkpoint only passes segments which are done, in order, and which had no failures
+        private synchronized void advanceCheckpoint() {
+            Long advancedTo = null;
+            while (!checkpointBlocked && !cancelled && nextCheckpoint < sequences.length && segmentDone.containsKey(sequences[nextCheckpoint])) {
+                long sequence = sequences[nextCheckpoint];
+                if (segmentFailed.containsKey(sequence)) {
+                    checkpointBlocked = true;
+                    break;
+                }
+                segmentDone.remove(sequence);
+                advancedTo = sequence;
+                nextCheckpoint++;
+            }
+            if (advancedTo != null) {
+                checkpoint = advancedTo;
+                writeCheckpoint(advancedTo);
+            }
+        }
+
+        private void logProgress() {
+            ReplayStatusDO s = status();
+            logger.info(UploadReplayService.class.getName(), () -> "Replay " + s.getState() + ": " + s.getSegmentsRead() + "/" + s.getSegments() + " segments read, " + s.getRead() + " uploads read, " + s.getReplayed() + " replayed, " + s.getSkipped() + " skipped, " + s.getRejected() + " rejected, " + s.getFailed() + " failed - " + String.format("%.1f", s.getUploadsPerSecond()) + " uploads/s, checkpoint segment: " + s.getCheckpoint());
+        }
+
+        ReplayStatusDO status() {
+            ReplayStatusDO s = new ReplayStatusDO();
+            s.setState(state);
+            s.setStarted(started);
+            s.setFinished(finished);
+            s.setSegments(sequences.length - first);
+            s.setSegmentsRead(segmentsRead);
+            s.setRead(read.get());
+            s.setSkipped(skipped.get());
+            s.setReplayed(replayed.get());
+            s.setRejected(rejected.get());
+            s.setFailed(failed.get());
+            double seconds = ((finished == null ? System.currentTimeMillis() : finished.getTime()) - started.getTime()) / 1000.0;
+            s.setUploadsPerSecond(seconds > 0 ? (replayed.get() + rejected.get() + failed.get()) / seconds : 0);
+            s.setCheckpoint(checkpoint);
+            return s;
+        }
+    }
+
+    /**
+     * A lane processes the uploads handed to it in order on its own thread
+     */
+    private static class Lane {
+
+        private static final Task END = new Task(-1, null);
+        private final Replay replay;
+        private final BlockingQueue<Task> queue;
+        private final Thread thread;
+
+        Lane(Replay replay, int number, int capacity) {
+            this.replay = replay;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this::run, "upload-replay-lane-" + number);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void put(Task task) throws InterruptedException {
+            queue.put(task);
+        }
+
+        void finish() {
+            try {
+                queue.put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    Task task = queue.take();
+                    if (task == END) {
+                        return;
+                    }
+                    replay.process(task);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class Task {
+
+        private final long sequence;
+        private final JournalledUpload upload;
+
+        Task(long sequence, JournalledUpload upload) {
+            this.sequence = sequence;
+            this.upload = upload;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.tracing;
+
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import org.medipi.concentrator.model.TraceSpanDO;
+import org.medipi.concentrator.model.UploadTraceDO;
+
+/**
+ * The trace of an upload while it is being processed. Spans are opened and
+ * closed in a strictly nested order - an upload is handled by one thread at a
+ * time even when it is passed from the servlet thread to the crypto executor -
+ * and each new span is a child of the innermost open span.
+ *
+ * Times are taken from System.nanoTime() and converted to wall clock times
+ * relative to the start of the trace
+ *
+ * @author rick@robinsonhq.com
+ */
+public class UploadTrace {
+
+    /**
+     * Outcome of a span which completed normally
+     */
+    public static final String OK = "ok";
+    /**
+     * Outcome of a span which was left by an exception
+     */
+    public static final String FAILED = "failed";
+
+    private final UploadTraceDO trace = new UploadTraceDO();
+    private final long startMillis;
+    private final long startNanos;
+    private final Deque<Span> open = new ArrayDeque<>();
+    private final Span root;
+    private boolean finished = false;
+
+    UploadTrace(String uploadUuid, String deviceId, String patientUuid) {
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        trace.setUploadUuid(uploadUuid);
+        trace.setDeviceId(deviceId);
+        trace.setPatientUuid(patientUuid);
+        trace.setStart(new Date(startMillis));
+        root = new Span(this, "upload", startNanos);
+        trace.setSpan(root.span);
+        open.push(root);
+    }
+
+    /**
+     * @return upload UUID of the traced upload
+     */
+    public String getUploadUuid() {
+        return trace.getUploadUuid();
+    }
+
+    synchronized Span startSpan(String name) {
+        Span s = new Span(this, name, System.nanoTime());
+        Span parent = open.peek();
+        if (parent != null) {
+            parent.span.getChildren().add(s.span);
+        }
+        open.push(s);
+        return s;
+    }
+
+    synchronized void endSpan(Span s, long endNanos) {
+        s.span.setEnd(toDate(endNanos));
+        s.span.setDurationMicros((endNanos - s.startNanos) / 1000);
+        if (!open.contains(s)) {
+            return;
+        }
+        // spans left open by an exception further in are closed with their parent
+        while (!open.isEmpty()) {
+            Span top = open.pop();
+            if (top == s) {
+                break;
+            }
+            if (top.span.getEnd() == null) {
+                top.span.setEnd(toDate(endNanos));
+                top.span.setDurationMicros((endNanos - top.startNanos) / 1000);
+                top.span.setOutcome(FAILED);
+            }
+        }
+    }
+
+    /**
+     * Close the trace
+     *
+     * @param outcome outcome of the upload e.g. the HTTP status returned
+     * @return the completed trace or null if it has already been finished
+     */
+    synchronized UploadTraceDO finish(String outcome) {
+        if (finished) {
+            return null;
+        }
+        finished = true;
+        root.span.setOutcome(outcome);
+        endSpan(root, System.nanoTime());
+        trace.setEnd(root.span.getEnd());
+        trace.setDurationMillis(root.span.getDurationMicros() / 1000);
+        trace.setOutcome(outcome);
+        return trace;
+    }
+
+    private Date toDate(long nanos) {
+        return new Date(startMillis + (nanos - startNanos) / 1_000_000);
+    }
+
+    /**
+     * A stage of the processing of an upload. The span is ended when it is
+     * closed and its outcome is failed unless succeeded() was called, so that
+     * it can be used with try-with-resources:
+     *
+     * try (UploadTrace.Span span = tracer.span("parse")) {
+     * ...
+     * span.succeeded();
+     * }
+     */
+    public static class Span implements AutoCloseable {
+
+        // span returned when the current thread is not processing a traced upload
+        static final Span NONE = new Span(null, null, 0);
+
+        private final UploadTrace trace;
+        private final TraceSpanDO span;
+        private final long startNanos;
+
+        private Span(UploadTrace trace, String name, long startNanos) {
+            this.trace = trace;
+            this.startNanos = startNanos;
+            this.span = new TraceSpanDO();
+            if (trace != null) {
+                span.setName(name);
+                span.setStart(trace.toDate(startNanos));
+            }
+        }
+
+        /**
+         * @param rows number of rows handled by the stage
+         * @return this span
+         */
+        public Span setRows(int rows) {
+            if (trace != null) {
+                span.setRows(rows);
+            }
+            return this;
+        }
+
+        /**
+         * @param detail description of what the stage handled e.g. the device
+         * type of a payload
+         * @return this span
+         */
+        public Span setDetail(String detail) {
+            if (trace != null) {
+                span.setDetail(detail);
+            }
+            return this;
+        }
+
+        /**
+         * Mark the stage as having completed normally
+         */
+        public void succeeded() {
+            if (trace != null) {
+                span.setOutcome(OK);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (trace == null || span.getEnd() != null) {
+                return;
+            }
+            if (span.getOutcome() == null) {
+                span.setOutcome(FAILED);
+            }
+            trace.endSpan(this, System.nanoTime());
+        }
+    }
+}
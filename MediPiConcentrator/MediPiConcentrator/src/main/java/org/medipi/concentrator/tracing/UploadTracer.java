@@ -0,0 +1,357 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.tracing;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import javax.annotation.PreDestroy;
+import org.medipi.concentrator.logging.MediPiLogger;
+import org.medipi.concentrator.model.UploadTraceDO;
+import org.medipi.concentrator.utilities.RollingFileWriter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+/**
+ * Traces the processing of each upload from a MediPi patient unit as a tree of
+ * spans - validation, decryption and verification, and the parsing and
+ * persisting of each payload - with their start and end times, the rows they
+ * handled and their outcome.
+ *
+ * The trace of the upload being processed is bound to the current thread and
+ * is passed with the upload when it moves to the crypto executor. Traces of
+ * uploads which took at least medipi.concentrator.trace.thresholdmillis are
+ * handed to a background writer which appends them as JSON lines to rolling
+ * files in the trace directory, where they can be found by upload UUID or
+ * device
+ *
+ * @author rick@robinsonhq.com
+ */
+@Component
+public class UploadTracer {
+
+    private static final String FILE_PREFIX = "upload-traces-";
+    private static final String FILE_SUFFIX = ".log";
+
+    @Value("${medipi.concentrator.trace.thresholdmillis:1000}")
+    private long thresholdMillis;
+
+    @Value("${medipi.concentrator.trace.dir:${medipi.log}/traces}")
+    private String traceDir;
+
+    @Value("${medipi.concentrator.trace.filesize:16777216}")
+    private long fileSize;
+
+    @Value("${medipi.concentrator.trace.maxfiles:10}")
+    private int maxFiles;
+
+    @Value("${medipi.concentrator.trace.queuecapacity:1000}")
+    private int queueCapacity;
+
+    @Autowired
+    private MediPiLogger logger;
+
+    private final ThreadLocal<UploadTrace> current = new ThreadLocal<>();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private BlockingQueue<UploadTraceDO> queue;
+    private Thread writer;
+    private volatile boolean running = false;
+    private RollingFileWriter files;
+    // active trace file - only used by the writer thread
+    private Writer out;
+
+    /**
+     * Start the background writer
+     *
+     * @return null if tracing has started (or is not configured), otherwise
+     * the reason why it could not be started
+     */
+    public synchronized String start() {
+        if (thresholdMillis < 0 || writer != null) {
+            return null;
+        }
+        if (traceDir == null || traceDir.trim().length() == 0) {
+            return "medipi.concentrator.trace.dir is not set";
+        }
+        File directory = new File(traceDir);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return "Cannot create trace directory: " + traceDir;
+        }
+        files = new RollingFileWriter(directory, FILE_PREFIX, FILE_SUFFIX);
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        running = true;
+        writer = new Thread(this::write, "upload-trace-writer");
+        writer.setDaemon(true);
+        writer.start();
+        return null;
+    }
+
+    /**
+     * Start the trace of an upload and bind it to the current thread
+     *
+     * @param uploadUuid upload UUID
+     * @param deviceId device the upload was sent from
+     * @param patientUuid patient the upload is for
+     * @return the trace or null if tracing is not running
+     */
+    public UploadTrace begin(String uploadUuid, String deviceId, String patientUuid) {
+        if (!running) {
+            return null;
+        }
+        UploadTrace trace = new UploadTrace(uploadUuid, deviceId, patientUuid);
+        current.set(trace);
+        return trace;
+    }
+
+    /**
+     * Start a span within the trace bound to the current thread
+     *
+     * @param name name of the stage
+     * @return the span - which does nothing if there is no trace
+     */
+    public UploadTrace.Span span(String name) {
+        UploadTrace trace = current.get();
+        return trace == null ? UploadTrace.Span.NONE : trace.startSpan(name);
+    }
+
+    /**
+     * @return upload UUID of the trace bound to the current thread or null if
+     * there is not one
+     */
+    public String currentUploadUuid() {
+        UploadTrace trace = current.get();
+        return trace == null ? null : trace.getUploadUuid();
+    }
+
+    /**
+     * Wrap a task so that the trace is bound to the thread which runs it
+     *
+     * @param <T> result type of the task
+     * @param trace the trace - may be null
+     * @param task the task
+     * @return the wrapped task
+     */
+    public <T> Supplier<T> bind(UploadTrace trace, Supplier<T> task) {
+        return () -> {
+            UploadTrace previous = current.get();
+            current.set(trace);
+            try {
+                return task.get();
+            } finally {
+                restore(previous);
+            }
+        };
+    }
+
+    /**
+     * Wrap a function so that the trace is bound to the thread which runs it
+     *
+     * @param <A> argument type of the function
+     * @param <R> result type of the function
+     * @param trace the trace - may be null
+     * @param function the function
+     * @return the wrapped function
+     */
+    public <A, R> Function<A, R> bind(UploadTrace trace, Function<A, R> function) {
+        return (A a) -> {
+            UploadTrace previous = current.get();
+            current.set(trace);
+            try {
+                return function.apply(a);
+            } finally {
+                restore(previous);
+            }
+        };
+    }
+
+    private void restore(UploadTrace previous) {
+        if (previous == null) {
+            current.remove();
+        } else {
+            current.set(previous);
+        }
+    }
+
+    /**
+     * Unbind the trace from the current thread - the trace itself may still be
+     * finished by the thread which completes the upload
+     */
+    public void release() {
+        current.remove();
+    }
+
+    /**
+     * Finish the trace of an upload with the response returned or the
+     * exception raised, and queue it to be written if it is slow. A trace is
+     * only finished once
+     *
+     * @param trace the trace - may be null
+     * @param response response to the upload - null if an exception was raised
+     * @param t exception raised by the upload - null if it succeeded
+     */
+    public void finish(UploadTrace trace, ResponseEntity<?> response, Throwable t) {
+        if (trace == null) {
+            return;
+        }
+        UploadTraceDO completed = trace.finish(outcome(response, t));
+        if (completed == null || completed.getDurationMillis() < thresholdMillis) {
+            return;
+        }
+        BlockingQueue<UploadTraceDO> q = queue;
+        if (q == null || !q.offer(completed)) {
+            logger.error(UploadTracer.class.getName() + ".error", () -> "Upload trace writer is not keeping up - trace of upload uuid: " + completed.getUploadUuid() + " has not been written");
+        }
+    }
+
+    private String outcome(ResponseEntity<?> response, Throwable t) {
+        if (t == null) {
+            return response == null ? UploadTrace.OK : Integer.toString(response.getStatusCode().value());
+        }
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        return cause.getClass().getSimpleName() + ": " + cause.getLocalizedMessage();
+    }
+
+    /**
+     * Find the written traces of an upload or of the uploads from a device,
+     * newest first
+     *
+     * @param uploadUuid upload UUID - null for any
+     * @param deviceId device - null for any
+     * @param limit maximum number of traces to return
+     * @return traces
+     * @throws IOException if the trace files cannot be read
+     */
+    public List<UploadTraceDO> find(String uploadUuid, String deviceId, int limit) throws IOException {
+        List<UploadTraceDO> found = new ArrayList<>();
+        File[] traceFiles = files == null ? new File[0] : files.listFiles();
+        for (int i = traceFiles.length - 1; i >= 0 && found.size() < limit; i--) {
+            List<UploadTraceDO> inFile = new ArrayList<>();
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(traceFiles[i]), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    // only lines which mention what is being looked for are parsed
+                    if ((uploadUuid != null && !line.contains(uploadUuid)) || (deviceId != null && !line.contains(deviceId))) {
+                        continue;
+                    }
+                    UploadTraceDO trace;
+                    try {
+                        trace = mapper.readValue(line, UploadTraceDO.class);
+                    } catch (IOException e) {
+                        // a line being written when the concentrator stopped
+                        continue;
+                    }
+                    if ((uploadUuid == null || uploadUuid.equals(trace.getUploadUuid())) && (deviceId == null || deviceId.equals(trace.getDeviceId()))) {
+                        inFile.add(trace);
+                    }
+                }
+            }
+            Collections.reverse(inFile);
+            for (UploadTraceDO trace : inFile) {
+                if (found.size() == limit) {
+                    break;
+                }
+                found.add(trace);
+            }
+        }
+        return found;
+    }
+
+    private void write() {
+        List<UploadTraceDO> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                UploadTraceDO first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                if (out == null) {
+                    files.open();
+                    out = new OutputStreamWriter(files.getStream(), StandardCharsets.UTF_8);
+                }
+                for (UploadTraceDO trace : batch) {
+                    out.write(mapper.writeValueAsString(trace));
+                    out.write('\n');
+                }
+                out.flush();
+                if (files.isDue(fileSize, 0)) {
+                    closeFile();
+                    for (File f : files.removeOldFiles(maxFiles)) {
+                        logger.error(UploadTracer.class.getName() + ".error", () -> "Cannot delete old upload trace file: " + f.getName());
+                    }
+                }
+            } catch (InterruptedException e) {
+                running = false;
+            } catch (IOException e) {
+                final int size = batch.size();
+                logger.error(UploadTracer.class.getName() + ".error", () -> "Cannot write " + size + " upload traces - check the configured directory: " + traceDir + " - " + e.getLocalizedMessage());
+                closeFile();
+            } finally {
+                batch.clear();
+            }
+        }
+        closeFile();
+    }
+
+    private void closeFile() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+            files.close();
+        } catch (IOException e) {
+            logger.error(UploadTracer.class.getName() + ".error", () -> "Cannot close upload trace file: " + e.getLocalizedMessage());
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * Stop the background writer once it has written the traces already
+     * queued
+     */
+    @PreDestroy
+    public synchronized void stop() {
+        if (writer == null) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.utilities;
+
+import com.fasterxml.jackson.databind.util.ISO8601Utils;
+import java.text.ParseException;
+import java.text.ParsePosition;
+
+/**
+ * Utility class to parse ISO8601 timestamps directly from a character
+ * sequence without creating a DateFormat or Calendar for every value.
+ *
+ * The form produced by the MediPi patient units (yyyy-MM-ddTHH:mm:ss.SSSZ and
+ * its variants with or without seconds, fractions of a second and numeric
+ * offsets) is parsed arithmetically. Any other ISO8601 form falls back to the
+ * Jackson ISO8601 parser which was previously used for all values
+ *
+ * @author rick@robinsonhq.com
+ */
+public final class ISO8601Parser {
+
+    private static final long MILLIS_PER_MINUTE = 60L * 1000L;
+    private static final long MILLIS_PER_HOUR = 60L * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24L * MILLIS_PER_HOUR;
+
+    private ISO8601Parser() {
+    }
+
+    /**
+     * Parse the whole of a string as an ISO8601 timestamp
+     *
+     * @param s string representation of the timestamp
+     * @return milliseconds since the epoch
+     * @throws ParseException if the string is not a valid ISO8601 timestamp
+     */
+    public static long parse(CharSequence s) throws ParseException {
+        return parse(s, 0, s.length());
+    }
+
+    /**
+     * Parse a region of a character sequence as an ISO8601 timestamp
+     *
+     * @param s the character sequence containing the timestamp
+     * @param start index of the first character of the timestamp
+     * @param end index after the last character of the timestamp
+     * @return milliseconds since the epoch
+     * @throws ParseException if the region is not a valid ISO8601 timestamp
+     */
+    public static long parse(CharSequence s, int start, int end) throws ParseException {
+        long millis = parseExtendedDateTime(s, start, end);
+        if (millis != Long.MIN_VALUE) {
+            return millis;
+        }
+        String value = s.subSequence(start, end).toString();
+        try {
+            return ISO8601Utils.parse(value, new ParsePosition(0)).getTime();
+        } catch (IllegalArgumentException e) {
+            throw new ParseException("Unparseable ISO8601 date: " + value, 0);
+        }
+    }
+
+    /**
+     * Fast path for yyyy-MM-ddTHH:mm[:ss[.S+]](Z|+HH[[:]mm]|-HH[[:]mm])
+     *
+     * @return milliseconds since the epoch or Long.MIN_VALUE if the region is
+     * not in this form
+     */
+    private static long parseExtendedDateTime(CharSequence s, int start, int end) {
+        if (end - start < 17) {
+            return Long.MIN_VALUE;
+        }
+        int p = start;
+        int year = digits(s, p, 4);
+        if (year < 0 || s.charAt(p + 4) != '-') {
+            return Long.MIN_VALUE;
+        }
+        int month = digits(s, p + 5, 2);
+        if (month < 1 || month > 12 || s.charAt(p + 7) != '-') {
+            return Long.MIN_VALUE;
+        }
+        int day = digits(s, p + 8, 2);
+        if (day < 1 || day > daysInMonth(year, month) || s.charAt(p + 10) != 'T') {
+            return Long.MIN_VALUE;
+        }
+        int hour = digits(s, p + 11, 2);
+        if (hour < 0 || hour > 23 || s.charAt(p + 13) != ':') {
+            return Long.MIN_VALUE;
+        }
+        int minute = digits(s, p + 14, 2);
+        if (minute < 0 || minute > 59) {
+            return Long.MIN_VALUE;
+        }
+        p += 16;
+        int second = 0;
+        int millisecond = 0;
+        if (p < end && s.charAt(p) == ':') {
+            second = digits(s, p + 1, 2);
+            if (second < 0 || second > 59 || p + 3 > end) {
+                return Long.MIN_VALUE;
+            }
+            p += 3;
+            if (p < end && s.charAt(p) == '.') {
+                p++;
+                int fractionStart = p;
+                int scale = 100;
+                while (p < end && isDigit(s.charAt(p))) {
+                    // only millisecond precision is retained
+                    millisecond += (s.charAt(p) - '0') * scale;
+                    scale /= 10;
+                    p++;
+                }
+                if (p == fractionStart) {
+                    return Long.MIN_VALUE;
+                }
+            }
+        }
+        if (p >= end) {
+            // a time zone designator is required
+            return Long.MIN_VALUE;
+        }
+        long offset;
+        char tz = s.charAt(p);
+        if (tz == 'Z') {
+            offset = 0;
+            p++;
+        } else if (tz == '+' || tz == '-') {
+            int offsetHours = digits(s, p + 1, 2);
+            if (offsetHours < 0 || p + 3 > end) {
+                return Long.MIN_VALUE;
+            }
+            p += 3;
+            int offsetMinutes = 0;
+            if (p < end) {
+                if (s.charAt(p) == ':') {
+                    p++;
+                }
+                offsetMinutes = digits(s, p, 2);
+                if (offsetMinutes < 0 || p + 2 > end) {
+                    return Long.MIN_VALUE;
+                }
+                p += 2;
+            }
+            offset = offsetHours * MILLIS_PER_HOUR + offsetMinutes * MILLIS_PER_MINUTE;
+            if (tz == '-') {
+                offset = -offset;
+            }
+        } else {
+            return Long.MIN_VALUE;
+        }
+        if (p != end) {
+            return Long.MIN_VALUE;
+        }
+        return daysSinceEpoch(year, month, day) * MILLIS_PER_DAY
+                + hour * MILLIS_PER_HOUR
+                + minute * MILLIS_PER_MINUTE
+                + second * 1000L
+                + millisecond
+                - offset;
+    }
+
+    /**
+     * @return the value of the decimal digits or -1 if any character is not a
+     * digit or the region overruns the sequence
+     */
+    private static int digits(CharSequence s, int start, int count) {
+        if (start + count > s.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * Number of days between 1970-01-01 and the given proleptic Gregorian date
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        long y = month <= 2 ? year - 1 : year;
+        long era = (y >= 0 ? y : y - 399) / 400;
+        long yearOfEra = y - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.utilities;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Utility class to append to a series of rolling files in a directory, named
+ * with a prefix, a zero padded sequence number and a suffix so that they sort
+ * in the order in which they were written. A new file is opened with the next
+ * sequence number - following any files already in the directory - each time
+ * the active file is rolled.
+ *
+ * The active file is only to be used by a single writer thread; the files can
+ * be listed and read by any thread
+ *
+ * @author rick@robinsonhq.com
+ */
+public class RollingFileWriter {
+
+    private final File directory;
+    private final String prefix;
+    private final String suffix;
+    private long nextSequence = -1;
+    private File file;
+    private FileOutputStream out;
+    private long opened;
+
+    /**
+     * Constructor
+     *
+     * @param directory directory holding the files
+     * @param prefix start of each file name
+     * @param suffix end of each file name
+     */
+    public RollingFileWriter(File directory, String prefix, String suffix) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    /**
+     * List the files, oldest first
+     *
+     * @return files
+     */
+    public File[] listFiles() {
+        File[] files = directory.listFiles((File dir, String name) -> name.startsWith(prefix) && name.endsWith(suffix));
+        if (files == null) {
+            return new File[0];
+        }
+        // zero padded sequence numbers so files sort in the order they were written
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * @param sequence sequence number
+     * @return the file with the sequence number
+     */
+    public File fileOf(long sequence) {
+        return new File(directory, String.format("%s%020d%s", prefix, sequence, suffix));
+    }
+
+    /**
+     * @param f one of the files
+     * @return sequence number of the file
+     */
+    public long sequenceOf(File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length()));
+    }
+
+    /**
+     * @return true if there is an active file
+     */
+    public boolean isOpen() {
+        return out != null;
+    }
+
+    /**
+     * Open the next file as the active file, closing the active file if there
+     * is one
+     *
+     * @return the file opened
+     * @throws IOException if the file cannot be opened
+     */
+    public File open() throws IOException {
+        close();
+        if (nextSequence < 0) {
+            nextSequence = 0;
+            for (File f : listFiles()) {
+                nextSequence = Math.max(nextSequence, sequenceOf(f) + 1);
+            }
+        }
+        File f = fileOf(nextSequence++);
+        out = new FileOutputStream(f, true);
+        file = f;
+        opened = System.currentTimeMillis();
+        return f;
+    }
+
+    /**
+     * @return the stream to the active file or null if there is not one
+     */
+    public FileOutputStream getStream() {
+        return out;
+    }
+
+    /**
+     * @return the active file or null if there is not one
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Whether the active file has reached the size or age at which it is to be
+     * rolled
+     *
+     * @param maxSize size in bytes - 0 or less for no limit
+     * @param maxAgeMillis time since the file was opened - 0 or less for no
+     * limit
+     * @return true if the active file is to be rolled
+     * @throws IOException if the size of the file cannot be found
+     */
+    public boolean isDue(long maxSize, long maxAgeMillis) throws IOException {
+        if (out == null) {
+            return false;
+        }
+        return (maxSize > 0 && out.getChannel().position() >= maxSize)
+                || (maxAgeMillis > 0 && System.currentTimeMillis() - opened >= maxAgeMillis);
+    }
+
+    /**
+     * Close the active file
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        FileOutputStream o = out;
+        out = null;
+        file = null;
+        if (o != null) {
+            o.close();
+        }
+    }
+
+    /**
+     * Delete the oldest files so that only the newest are kept
+     *
+     * @param keep number of files to keep
+     * @return the files which could not be deleted
+     */
+    public List<File> removeOldFiles(int keep) {
+        List<File> failed = new ArrayList<>();
+        File[] files = listFiles();
+        for (int i = 0; i < files.length - keep; i++) {
+            if (!files[i].delete()) {
+                failed.add(files[i]);
+            }
+        }
+        return failed;
+    }
+}
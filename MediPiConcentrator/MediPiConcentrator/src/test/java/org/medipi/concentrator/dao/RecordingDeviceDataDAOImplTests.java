@@ -0,0 +1,90 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dao;
+
+import java.math.BigDecimal;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of the conversion of data values for bulk writing - the numeric form
+ * used for stored readings and the CSV quoting used by COPY
+ *
+ * @author rick@robinsonhq.com
+ */
+public class RecordingDeviceDataDAOImplTests {
+
+    private static String csv(String value) {
+        return RecordingDeviceDataDAOImpl.appendCsvText(new StringBuilder(), value).toString();
+    }
+
+    @Test
+    public void storesPlainDecimalsAsNumeric() {
+        assertEquals(new BigDecimal("120"), RecordingDeviceDataDAOImpl.toNumeric("120"));
+        assertEquals(new BigDecimal("0"), RecordingDeviceDataDAOImpl.toNumeric("0"));
+        assertEquals(new BigDecimal("0.0"), RecordingDeviceDataDAOImpl.toNumeric("0.0"));
+        assertEquals(new BigDecimal("-3.50"), RecordingDeviceDataDAOImpl.toNumeric("-3.50"));
+        assertEquals(new BigDecimal("99999999999999999999.99999999999999999999"), RecordingDeviceDataDAOImpl.toNumeric("99999999999999999999.99999999999999999999"));
+    }
+
+    @Test
+    public void keepsScaleSoNumericTextIsUnchanged() {
+        // numeric::text presents trailing zeros so they must be retained
+        assertEquals("36.60", RecordingDeviceDataDAOImpl.toNumeric("36.60").toPlainString());
+        assertEquals("-3.50", RecordingDeviceDataDAOImpl.toNumeric("-3.50").toPlainString());
+    }
+
+    @Test
+    public void storesOtherValuesAsText() {
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric(null));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric(""));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric("007"));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric("+5"));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric("-0"));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric("-0.0"));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric("1."));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric(".5"));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric("1e5"));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric(" 5"));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric("NaN"));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric("yes"));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric("123456789012345678901"));
+        assertNull(RecordingDeviceDataDAOImpl.toNumeric("1.123456789012345678901"));
+    }
+
+    @Test
+    public void quotesCsvText() {
+        assertEquals("\"120\"", csv("120"));
+        // an empty string is quoted so that it is not read as NULL
+        assertEquals("\"\"", csv(""));
+    }
+
+    @Test
+    public void doublesQuotesInCsvText() {
+        assertEquals("\"say \"\"yes\"\"\"", csv("say \"yes\""));
+        assertEquals("\"\"\"\"", csv("\""));
+    }
+
+    @Test
+    public void keepsSeparatorsAndLineBreaksInsideCsvQuotes() {
+        assertEquals("\"a,b\r\nc\"", csv("a,b\r\nc"));
+        // backslash has no special meaning in COPY csv format
+        assertEquals("\"C:\\path\\N\"", csv("C:\\path\\N"));
+        assertEquals("\"\\.\"", csv("\\."));
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dataformat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import org.junit.Test;
+import org.medipi.model.DeviceDataDO;
+import org.medipi.model.DevicesPayloadCodec;
+import org.medipi.model.DevicesPayloadDO;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the binary encoding of patient upload payloads
+ *
+ * @author rick@robinsonhq.com
+ */
+public class DevicesPayloadCodecTests {
+
+    private static DevicesPayloadDO roundTrip(DevicesPayloadDO dp) throws IOException {
+        return DevicesPayloadCodec.decode(new ByteArrayInputStream(DevicesPayloadCodec.encode(dp)));
+    }
+
+    private static void assertDeviceDataEquals(DeviceDataDO expected, DeviceDataDO actual) {
+        assertEquals(expected.getDeviceDataUuid(), actual.getDeviceDataUuid());
+        assertEquals(expected.getProfileId(), actual.getProfileId());
+        assertEquals(expected.getPayload(), actual.getPayload());
+    }
+
+    @Test
+    public void roundTripsPayload() throws IOException {
+        DevicesPayloadDO dp = new DevicesPayloadDO("upload-uuid", new Date(1456827330123L));
+        DeviceDataDO first = new DeviceDataDO("payload-uuid-1", "urn:nhs-en:profile:BloodPressure", "device-data-uuid-1");
+        first.setPayload("metadata->subtype->BM55\nmetadata->datadelimiter->^\n2016-03-01T10:15:30Z^120^80\n");
+        DeviceDataDO second = new DeviceDataDO("payload-uuid-2", "urn:nhs-en:profile:Questionnaire", "device-data-uuid-2");
+        // multi-byte UTF-8 and separators survive unchanged
+        second.setPayload("Feeling é中😀 -> ok ^ \"quoted\", \r\n");
+        dp.addPayload(first);
+        dp.addPayload(second);
+
+        DevicesPayloadDO decoded = roundTrip(dp);
+        assertEquals("upload-uuid", decoded.getUploadUuid());
+        assertEquals(new Date(1456827330123L), decoded.getUploadedDate());
+        assertEquals(2, decoded.getPayload().size());
+        assertDeviceDataEquals(first, decoded.getPayload().get(0));
+        assertDeviceDataEquals(second, decoded.getPayload().get(1));
+    }
+
+    @Test
+    public void roundTripsNullsAndEmptyStrings() throws IOException {
+        DevicesPayloadDO dp = new DevicesPayloadDO(null, null);
+        DeviceDataDO ddo = new DeviceDataDO("payload-uuid", null, "");
+        ddo.setPayload(null);
+        dp.addPayload(ddo);
+
+        DevicesPayloadDO decoded = roundTrip(dp);
+        assertNull(decoded.getUploadUuid());
+        assertNull(decoded.getUploadedDate());
+        assertEquals(1, decoded.getPayload().size());
+        assertDeviceDataEquals(ddo, decoded.getPayload().get(0));
+    }
+
+    @Test
+    public void roundTripsLargePayload() throws IOException {
+        // lengths which need multi-byte varints
+        char[] chars = new char[70000];
+        Arrays.fill(chars, 'x');
+        DevicesPayloadDO dp = new DevicesPayloadDO("upload-uuid", new Date(0));
+        DeviceDataDO ddo = new DeviceDataDO("payload-uuid", "profile", "device-data-uuid");
+        ddo.setPayload(new String(chars));
+        dp.addPayload(ddo);
+
+        DevicesPayloadDO decoded = roundTrip(dp);
+        assertEquals(new Date(0), decoded.getUploadedDate());
+        assertDeviceDataEquals(ddo, decoded.getPayload().get(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsUnsupportedVersion() throws IOException {
+        byte[] encoded = DevicesPayloadCodec.encode(new DevicesPayloadDO("upload-uuid", new Date()));
+        // version byte follows the three byte magic
+        encoded[3] = 2;
+        DevicesPayloadCodec.decode(new ByteArrayInputStream(encoded));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsJavaSerialisedPayload() throws IOException {
+        DevicesPayloadCodec.decode(new ByteArrayInputStream(new byte[]{(byte) 0xAC, (byte) 0xED, 0x00, 0x05}));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedPayload() throws IOException {
+        DevicesPayloadDO dp = new DevicesPayloadDO("upload-uuid", new Date());
+        DeviceDataDO ddo = new DeviceDataDO("payload-uuid", "profile", "device-data-uuid");
+        ddo.setPayload("2016-03-01T10:15:30Z^120^80");
+        dp.addPayload(ddo);
+        byte[] encoded = DevicesPayloadCodec.encode(dp);
+        DevicesPayloadCodec.decode(new ByteArrayInputStream(Arrays.copyOf(encoded, encoded.length - 5)));
+    }
+
+    @Test
+    public void supportsOnlyKnownEncodings() {
+        assertTrue(DevicesPayloadCodec.isSupported(null));
+        assertTrue(DevicesPayloadCodec.isSupported(DevicesPayloadCodec.BINARY_V1));
+        assertFalse(DevicesPayloadCodec.isSupported("medipi-binary-2"));
+    }
+
+    @Test
+    public void usesEncodingOnlyWhenAdvertised() {
+        assertTrue(DevicesPayloadCodec.isAdvertised(DevicesPayloadCodec.SUPPORTED, DevicesPayloadCodec.BINARY_V1));
+        assertTrue(DevicesPayloadCodec.isAdvertised("medipi-binary-2, medipi-binary-1", DevicesPayloadCodec.BINARY_V1));
+        assertFalse(DevicesPayloadCodec.isAdvertised(null, DevicesPayloadCodec.BINARY_V1));
+        assertFalse(DevicesPayloadCodec.isAdvertised("medipi-binary-2", DevicesPayloadCodec.BINARY_V1));
+        assertFalse(DevicesPayloadCodec.isAdvertised(DevicesPayloadCodec.SUPPORTED, null));
+    }
+}
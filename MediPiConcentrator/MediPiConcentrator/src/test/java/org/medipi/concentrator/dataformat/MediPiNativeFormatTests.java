@@ -0,0 +1,163 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dataformat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.medipi.concentrator.dao.RecordingDeviceDataDAOImpl;
+import org.medipi.concentrator.entities.Patient;
+import org.medipi.concentrator.entities.RecordingDeviceAttribute;
+import org.medipi.concentrator.entities.RecordingDeviceData;
+import org.medipi.concentrator.entities.RecordingDeviceType;
+import org.medipi.concentrator.exception.InternalServerError500Exception;
+import org.medipi.concentrator.metrics.MetricsRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests of the removal of already stored data points from an uploaded payload
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MediPiNativeFormatTests {
+
+    private static final Date T1 = new Date(1456827330000L);
+    private static final Date T2 = new Date(1456827390000L);
+    private static final Date T3 = new Date(1456827450000L);
+
+    private final Patient patient = new Patient("patient-uuid");
+    private final RecordingDeviceType type = new RecordingDeviceType(1, "BloodPressure", "BM55");
+    private final RecordingDeviceAttribute systolic = attribute(10, "systol");
+    private final RecordingDeviceAttribute diastolic = attribute(11, "diastol");
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private RecordingDeviceDataDAOImpl dao;
+    private MediPiNativeFormat format;
+
+    private RecordingDeviceAttribute attribute(int id, String name) {
+        RecordingDeviceAttribute a = new RecordingDeviceAttribute(id, name, "INTEGER");
+        a.setTypeId(type);
+        return a;
+    }
+
+    private RecordingDeviceData point(RecordingDeviceAttribute a, Date time, String value) {
+        RecordingDeviceData d = new RecordingDeviceData();
+        d.setAttributeId(a);
+        d.setPatientUuid(patient);
+        d.setDataValueTime(time);
+        d.setDataValue(value);
+        return d;
+    }
+
+    private void stored(Object[]... keys) {
+        when(dao.findStoredKeys(any(Patient.class), any(RecordingDeviceType.class), any(Date.class), any(Date.class))).thenReturn(Arrays.asList(keys));
+    }
+
+    private List<List<RecordingDeviceData>> removeDuplicates(List<List<RecordingDeviceData>> rows) {
+        return format.removeDuplicates(rows, patient, type, T1, T3);
+    }
+
+    private long counter(String name) {
+        return metrics.counter(name, "").get();
+    }
+
+    @Before
+    public void setUp() {
+        dao = mock(RecordingDeviceDataDAOImpl.class);
+        format = new MediPiNativeFormat();
+        ReflectionTestUtils.setField(format, "recordingDeviceDataDAO", dao);
+        ReflectionTestUtils.setField(format, "metrics", metrics);
+    }
+
+    @Test
+    public void keepsRowsWhichAreNotStored() {
+        stored();
+        List<RecordingDeviceData> row1 = Arrays.asList(point(systolic, T1, "120"), point(diastolic, T1, "80"));
+        List<RecordingDeviceData> row2 = Arrays.asList(point(systolic, T2, "121"), point(diastolic, T2, "81"));
+        List<List<RecordingDeviceData>> pending = removeDuplicates(Arrays.asList(row1, row2));
+        assertEquals(Arrays.asList(row1, row2), pending);
+        assertEquals(2, counter("medipi_dedup_rows_checked_total"));
+        assertEquals(0, counter("medipi_dedup_rows_duplicate_total"));
+    }
+
+    @Test
+    public void dropsStoredRows() {
+        stored(new Object[]{10, T1, "120"}, new Object[]{11, T1, "80"});
+        List<RecordingDeviceData> row1 = Arrays.asList(point(systolic, T1, "120"), point(diastolic, T1, "80"));
+        List<RecordingDeviceData> row2 = Arrays.asList(point(systolic, T2, "121"), point(diastolic, T2, "81"));
+        List<List<RecordingDeviceData>> pending = removeDuplicates(Arrays.asList(row1, row2));
+        assertEquals(1, pending.size());
+        assertEquals(row2, pending.get(0));
+        assertEquals(1, counter("medipi_dedup_rows_duplicate_total"));
+    }
+
+    @Test
+    public void cutsRowOffAtFirstDuplicate() {
+        // the points of a row before the duplicate are written and the remainder of the row is not
+        stored(new Object[]{11, T2, "81"});
+        RecordingDeviceData first = point(systolic, T2, "121");
+        List<RecordingDeviceData> row = Arrays.asList(first, point(diastolic, T2, "81"), point(systolic, T3, "122"));
+        List<List<RecordingDeviceData>> pending = removeDuplicates(Collections.singletonList(row));
+        assertEquals(1, pending.size());
+        assertEquals(1, pending.get(0).size());
+        assertSame(first, pending.get(0).get(0));
+        assertEquals(1, counter("medipi_dedup_rows_duplicate_total"));
+    }
+
+    @Test
+    public void matchesOnAttributeTimeAndValue() {
+        stored(new Object[]{10, T1, "120"});
+        // same value at another time, another value at the same time and the same value for another attribute
+        List<RecordingDeviceData> row1 = Collections.singletonList(point(systolic, T2, "120"));
+        List<RecordingDeviceData> row2 = Collections.singletonList(point(systolic, T1, "121"));
+        List<RecordingDeviceData> row3 = Collections.singletonList(point(diastolic, T1, "120"));
+        List<List<RecordingDeviceData>> pending = removeDuplicates(Arrays.asList(row1, row2, row3));
+        assertEquals(Arrays.asList(row1, row2, row3), pending);
+    }
+
+    @Test
+    public void dropsDuplicatesWithinPayload() {
+        stored();
+        List<RecordingDeviceData> row1 = Arrays.asList(point(systolic, T1, "120"), point(diastolic, T1, "80"));
+        List<RecordingDeviceData> row2 = Arrays.asList(point(systolic, T1, "120"), point(diastolic, T1, "80"));
+        List<List<RecordingDeviceData>> pending = removeDuplicates(Arrays.asList(row1, row2));
+        assertEquals(Collections.singletonList(row1), pending);
+    }
+
+    @Test
+    public void emptyPayloadIsNotChecked() {
+        assertTrue(removeDuplicates(new ArrayList<>()).isEmpty());
+        verify(dao, never()).findStoredKeys(any(Patient.class), any(RecordingDeviceType.class), any(Date.class), any(Date.class));
+    }
+
+    @Test(expected = InternalServerError500Exception.class)
+    public void failedCheckIsServerError() {
+        when(dao.findStoredKeys(any(Patient.class), any(RecordingDeviceType.class), any(Date.class), any(Date.class))).thenThrow(new RuntimeException("connection lost"));
+        removeDuplicates(Collections.singletonList(Collections.singletonList(point(systolic, T1, "120"))));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.dataformat;
+
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the MediPi Native payload tokeniser
+ *
+ * @author rick@robinsonhq.com
+ */
+public class MediPiNativePayloadParserTests {
+
+    private static List<String> fields(MediPiNativePayloadParser parser, String delimiter) {
+        List<String> fields = new ArrayList<>();
+        while (parser.nextField(delimiter)) {
+            fields.add(parser.field());
+        }
+        return fields;
+    }
+
+    @Test
+    public void readsMetadataAndDataLines() {
+        MediPiNativePayloadParser parser = new MediPiNativePayloadParser("metadata->subtype->BM55\nmetadata->datadelimiter->^\n2016-03-01T10:15:30Z^120^80\n");
+        assertTrue(parser.nextLine());
+        assertTrue(parser.isMetadata());
+        assertArrayEquals(new String[]{"subtype", "BM55"}, parser.metadataFields());
+        assertTrue(parser.nextLine());
+        assertArrayEquals(new String[]{"datadelimiter", "^"}, parser.metadataFields());
+        assertTrue(parser.nextLine());
+        assertFalse(parser.isMetadata());
+        assertEquals("2016-03-01T10:15:30Z^120^80", parser.line());
+        assertEquals(Arrays.asList("2016-03-01T10:15:30Z", "120", "80"), fields(parser, "^"));
+        assertFalse(parser.nextLine());
+    }
+
+    @Test
+    public void acceptsAllLineTerminatorsAndSkipsEmptyLines() {
+        MediPiNativePayloadParser parser = new MediPiNativePayloadParser("a\r\nb\rc\n\n\r\n\rd");
+        List<String> lines = new ArrayList<>();
+        while (parser.nextLine()) {
+            lines.add(parser.line());
+        }
+        assertEquals(Arrays.asList("a", "b", "c", "d"), lines);
+    }
+
+    @Test
+    public void emptyPayloadHasNoLines() {
+        assertFalse(new MediPiNativePayloadParser("").nextLine());
+        assertFalse(new MediPiNativePayloadParser("\r\n\n").nextLine());
+    }
+
+    @Test
+    public void treatsDelimiterLiterally() {
+        // characters which are special in a regex must not be interpreted
+        MediPiNativePayloadParser parser = new MediPiNativePayloadParser("1.5|2|3");
+        assertTrue(parser.nextLine());
+        assertEquals(Arrays.asList("1.5", "2", "3"), fields(parser, "|"));
+    }
+
+    @Test
+    public void keepsOtherSeparatorsInsideValues() {
+        MediPiNativePayloadParser parser = new MediPiNativePayloadParser("a,b^c->d^e:f");
+        assertTrue(parser.nextLine());
+        assertEquals(Arrays.asList("a,b", "c->d", "e:f"), fields(parser, "^"));
+    }
+
+    @Test
+    public void keepsPartialMultiCharacterDelimiterInsideValues() {
+        MediPiNativePayloadParser parser = new MediPiNativePayloadParser("a|b||c|||d");
+        assertTrue(parser.nextLine());
+        assertEquals(Arrays.asList("a|b", "c", "|d"), fields(parser, "||"));
+    }
+
+    @Test
+    public void keepsInteriorEmptyFieldsAndDropsTrailingOnes() {
+        MediPiNativePayloadParser parser = new MediPiNativePayloadParser("^a^^b^^");
+        assertTrue(parser.nextLine());
+        assertEquals(Arrays.asList("", "a", "", "b"), fields(parser, "^"));
+        assertArrayEquals("^a^^b^^".split("\\^"), MediPiNativePayloadParser.split("^a^^b^^", "^"));
+    }
+
+    @Test
+    public void lineOfDelimitersHasNoFields() {
+        MediPiNativePayloadParser parser = new MediPiNativePayloadParser("^^^");
+        assertTrue(parser.nextLine());
+        assertFalse(parser.nextField("^"));
+        assertEquals(0, MediPiNativePayloadParser.split("^^^", "^").length);
+    }
+
+    @Test
+    public void fieldsAreReadPerLine() {
+        MediPiNativePayloadParser parser = new MediPiNativePayloadParser("a^b\nc^d");
+        assertTrue(parser.nextLine());
+        assertTrue(parser.nextField("^"));
+        assertEquals("a", parser.field());
+        assertTrue(parser.nextLine());
+        assertEquals(Arrays.asList("c", "d"), fields(parser, "^"));
+    }
+
+    @Test
+    public void parsesTimestampFieldInPlace() throws ParseException {
+        MediPiNativePayloadParser parser = new MediPiNativePayloadParser("2016-03-01T10:15:30.123+01:00^72");
+        assertTrue(parser.nextLine());
+        assertTrue(parser.nextField("^"));
+        assertEquals(Instant.parse("2016-03-01T09:15:30.123Z").toEpochMilli(), parser.fieldAsISO8601());
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsMalformedTimestampField() throws ParseException {
+        MediPiNativePayloadParser parser = new MediPiNativePayloadParser("2016-03-01 10:15:30^72");
+        assertTrue(parser.nextLine());
+        assertTrue(parser.nextField("^"));
+        parser.fieldAsISO8601();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ Copyright 2016  Richard Robinson @ NHS Digital <rrobinson@nhs.net>
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.medipi.concentrator.utilities;
+
+import java.text.ParseException;
+import java.time.Instant;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of the ISO8601 timestamp parser used for MediPi Native payloads
+ *
+ * @author rick@robinsonhq.com
+ */
+public class ISO8601ParserTests {
+
+    private static long millis(String instant) {
+        return Instant.parse(instant).toEpochMilli();
+    }
+
+    @Test
+    public void parsesPatientUnitForm() throws ParseException {
+        assertEquals(millis("2016-03-01T10:15:30.123Z"), ISO8601Parser.parse("2016-03-01T10:15:30.123Z"));
+    }
+
+    @Test
+    public void parsesWithoutSecondsOrFraction() throws ParseException {
+        assertEquals(millis("2016-03-01T10:15:00Z"), ISO8601Parser.parse("2016-03-01T10:15Z"));
+        assertEquals(millis("2016-03-01T10:15:30Z"), ISO8601Parser.parse("2016-03-01T10:15:30Z"));
+    }
+
+    @Test
+    public void retainsOnlyMillisecondPrecision() throws ParseException {
+        assertEquals(millis("2016-03-01T10:15:30.100Z"), ISO8601Parser.parse("2016-03-01T10:15:30.1Z"));
+        assertEquals(millis("2016-03-01T10:15:30.123Z"), ISO8601Parser.parse("2016-03-01T10:15:30.123456789Z"));
+    }
+
+    @Test
+    public void appliesNumericOffsets() throws ParseException {
+        long utc = millis("2016-03-01T09:15:30Z");
+        assertEquals(utc, ISO8601Parser.parse("2016-03-01T10:15:30+01:00"));
+        assertEquals(utc, ISO8601Parser.parse("2016-03-01T10:15:30+0100"));
+        assertEquals(utc, ISO8601Parser.parse("2016-03-01T10:15:30+01"));
+        assertEquals(millis("2016-03-01T15:45:30Z"), ISO8601Parser.parse("2016-03-01T10:15:30-05:30"));
+    }
+
+    @Test
+    public void offsetCrossesDateAndYear() throws ParseException {
+        assertEquals(millis("2015-12-31T23:30:00Z"), ISO8601Parser.parse("2016-01-01T00:30:00.000+01:00"));
+    }
+
+    @Test
+    public void parsesLeapDay() throws ParseException {
+        assertEquals(millis("2016-02-29T00:00:00Z"), ISO8601Parser.parse("2016-02-29T00:00:00Z"));
+        assertEquals(millis("2000-02-29T12:00:00Z"), ISO8601Parser.parse("2000-02-29T12:00:00Z"));
+    }
+
+    @Test
+    public void parsesDatesBeforeTheEpoch() throws ParseException {
+        assertEquals(millis("1969-12-31T23:59:59.999Z"), ISO8601Parser.parse("1969-12-31T23:59:59.999Z"));
+    }
+
+    @Test
+    public void parsesRegionOfSequence() throws ParseException {
+        String s = "x^2016-03-01T10:15:30.123Z^y";
+        assertEquals(millis("2016-03-01T10:15:30.123Z"), ISO8601Parser.parse(s, 2, s.length() - 2));
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsInvalidLeapDay() throws ParseException {
+        ISO8601Parser.parse("2015-02-29T00:00:00Z");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsInvalidMonth() throws ParseException {
+        ISO8601Parser.parse("2016-13-01T10:15:30Z");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsInvalidHour() throws ParseException {
+        ISO8601Parser.parse("2016-03-01T24:15:30Z");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsEmptyFraction() throws ParseException {
+        ISO8601Parser.parse("2016-03-01T10:15:30.Z");
+    }
+
+    @Test
+    public void ignoresTrailingCharactersAsDateFormatDid() throws ParseException {
+        // ISO8601DateFormat.parse(String) stopped at the end of the timestamp - uploads relying on this are still accepted
+        assertEquals(millis("2016-03-01T10:15:30Z"), ISO8601Parser.parse("2016-03-01T10:15:30Zx"));
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsTruncatedOffset() throws ParseException {
+        ISO8601Parser.parse("2016-03-01T10:15:30+0");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsNonTimestamp() throws ParseException {
+        ISO8601Parser.parse("not a timestamp");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsEmptyValue() throws ParseException {
+        ISO8601Parser.parse("");
+    }
+}
@@ -0,0 +1,106 @@
+--
+-- MediPi Concentrator - referential integrity of alert.data_id
+--
+-- Included by medipidb_recording_device_reading.sql and
+-- medipidb_recording_device_data_partitions.sql, and may be applied again at
+-- any time.
+--
+-- The recording_device_data_alert_fk foreign key can only reference rows held
+-- in recording_device_data itself, whereas an alert's data point may be held in
+-- recording_device_reading or in a partition of recording_device_data. The
+-- foreign key is replaced by triggers which enforce the same rules across all
+-- of them: an alert's data_id must exist, the data point is locked as a foreign
+-- key would lock it until the alert is committed, and a data point referenced
+-- by an alert cannot be deleted or have its data_id changed.
+--
+
+ALTER TABLE ONLY alert
+    DROP CONSTRAINT IF EXISTS recording_device_data_alert_fk;
+
+-- PostgreSQL 9.4 has no CREATE INDEX IF NOT EXISTS
+DO $$
+BEGIN
+    IF to_regclass('alert_data_id_idx') IS NULL THEN
+        CREATE INDEX alert_data_id_idx ON alert USING btree (data_id);
+    END IF;
+END;
+$$;
+
+CREATE OR REPLACE FUNCTION alert_data_id_check() RETURNS trigger AS $$
+BEGIN
+    -- recording_device_data includes its partitions
+    PERFORM 1 FROM recording_device_data WHERE data_id = NEW.data_id FOR KEY SHARE;
+    IF NOT FOUND AND to_regclass('recording_device_reading') IS NOT NULL THEN
+        PERFORM 1 FROM recording_device_reading WHERE data_ids @> ARRAY[NEW.data_id] FOR KEY SHARE;
+    END IF;
+    IF NOT FOUND THEN
+        RAISE EXCEPTION 'insert or update on table "alert" violates foreign key constraint "recording_device_data_alert_fk"'
+            USING ERRCODE = 'foreign_key_violation',
+                  DETAIL = format('Key (data_id)=(%s) is not present in table "recording_device_data" or "recording_device_reading".', NEW.data_id);
+    END IF;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER FUNCTION alert_data_id_check() OWNER TO postgres;
+
+DROP TRIGGER IF EXISTS alert_data_id_trigger ON alert;
+
+CREATE TRIGGER alert_data_id_trigger
+    BEFORE INSERT OR UPDATE OF data_id ON alert
+    FOR EACH ROW EXECUTE PROCEDURE alert_data_id_check();
+
+CREATE OR REPLACE FUNCTION recording_device_data_alert_restrict() RETURNS trigger AS $$
+BEGIN
+    IF TG_OP = 'UPDATE' AND NEW.data_id = OLD.data_id THEN
+        RETURN NEW;
+    END IF;
+    IF EXISTS (SELECT 1 FROM alert WHERE data_id = OLD.data_id) THEN
+        RAISE EXCEPTION 'update or delete on table "%" violates foreign key constraint "recording_device_data_alert_fk" on table "alert"', TG_TABLE_NAME
+            USING ERRCODE = 'foreign_key_violation',
+                  DETAIL = format('Key (data_id)=(%s) is still referenced from table "alert".', OLD.data_id);
+    END IF;
+    RETURN CASE WHEN TG_OP = 'DELETE' THEN OLD ELSE NEW END;
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER FUNCTION recording_device_data_alert_restrict() OWNER TO postgres;
+
+CREATE OR REPLACE FUNCTION recording_device_reading_alert_restrict() RETURNS trigger AS $$
+DECLARE
+    referenced bigint;
+BEGIN
+    IF TG_OP = 'UPDATE' THEN
+        SELECT a.data_id INTO referenced FROM alert a WHERE a.data_id = ANY (OLD.data_ids) AND NOT a.data_id = ANY (NEW.data_ids) LIMIT 1;
+    ELSE
+        SELECT a.data_id INTO referenced FROM alert a WHERE a.data_id = ANY (OLD.data_ids) LIMIT 1;
+    END IF;
+    IF referenced IS NOT NULL THEN
+        RAISE EXCEPTION 'update or delete on table "recording_device_reading" violates foreign key constraint "recording_device_data_alert_fk" on table "alert"'
+            USING ERRCODE = 'foreign_key_violation',
+                  DETAIL = format('Key (data_id)=(%s) is still referenced from table "alert".', referenced);
+    END IF;
+    RETURN CASE WHEN TG_OP = 'DELETE' THEN OLD ELSE NEW END;
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER FUNCTION recording_device_reading_alert_restrict() OWNER TO postgres;
+
+-- row triggers are not inherited, so every table which holds data points is
+-- given its own - new partitions are given it when they are created
+DO $$
+DECLARE
+    t regclass;
+BEGIN
+    FOR t IN SELECT 'recording_device_data'::regclass UNION ALL SELECT inhrelid::regclass FROM pg_inherits WHERE inhparent = 'recording_device_data'::regclass LOOP
+        EXECUTE format('DROP TRIGGER IF EXISTS recording_device_data_alert_restrict_trigger ON %s', t);
+        EXECUTE format('CREATE TRIGGER recording_device_data_alert_restrict_trigger BEFORE DELETE OR UPDATE OF data_id ON %s FOR EACH ROW EXECUTE PROCEDURE recording_device_data_alert_restrict()', t);
+    END LOOP;
+    IF to_regclass('recording_device_reading') IS NOT NULL THEN
+        DROP TRIGGER IF EXISTS recording_device_reading_alert_restrict_trigger ON recording_device_reading;
+        CREATE TRIGGER recording_device_reading_alert_restrict_trigger
+            BEFORE DELETE OR UPDATE OF data_ids ON recording_device_reading
+            FOR EACH ROW EXECUTE PROCEDURE recording_device_reading_alert_restrict();
+    END IF;
+END;
+$$;
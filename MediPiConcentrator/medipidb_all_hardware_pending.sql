@@ -0,0 +1,63 @@
+--
+-- MediPi Concentrator - per-hardware pending all hardware downloadables
+--
+-- To be applied to the MediPi Concentrator DB after the schema dump has been
+-- restored. It is required by all versions of the concentrator from this one.
+--
+-- all_hardware_pending holds a row for every all hardware downloadable which
+-- a hardware has not yet acknowledged, keyed by hardware name, so that the
+-- downloadables pending for a hardware are found from its own rows rather
+-- than by subtracting all_hardware_downloaded from every downloadable ever
+-- published. Rows are added by trigger when an all hardware downloadable is
+-- published or a hardware is registered, and removed by the concentrator when
+-- the hardware acknowledges the download.
+--
+
+CREATE TABLE all_hardware_pending (
+    hardware_name character varying(100) NOT NULL,
+    downloadable_uuid character varying(100) NOT NULL
+);
+
+ALTER TABLE all_hardware_pending OWNER TO postgres;
+
+ALTER TABLE ONLY all_hardware_pending
+    ADD CONSTRAINT all_hardware_pending_pkey PRIMARY KEY (hardware_name, downloadable_uuid);
+
+ALTER TABLE ONLY all_hardware_pending
+    ADD CONSTRAINT hardware_all_hardware_pending_fk FOREIGN KEY (hardware_name) REFERENCES hardware(hardware_name) ON DELETE CASCADE;
+
+ALTER TABLE ONLY all_hardware_pending
+    ADD CONSTRAINT all_hardware_downloadable_all_hardware_pending_fk FOREIGN KEY (downloadable_uuid) REFERENCES all_hardware_downloadable(downloadable_uuid) ON DELETE CASCADE;
+
+CREATE FUNCTION all_hardware_pending_publish() RETURNS trigger AS $$
+BEGIN
+    INSERT INTO all_hardware_pending (hardware_name, downloadable_uuid)
+        SELECT h.hardware_name, NEW.downloadable_uuid FROM hardware h;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER FUNCTION all_hardware_pending_publish() OWNER TO postgres;
+
+CREATE TRIGGER all_hardware_pending_publish_trigger
+    AFTER INSERT ON all_hardware_downloadable
+    FOR EACH ROW EXECUTE PROCEDURE all_hardware_pending_publish();
+
+CREATE FUNCTION all_hardware_pending_register() RETURNS trigger AS $$
+BEGIN
+    INSERT INTO all_hardware_pending (hardware_name, downloadable_uuid)
+        SELECT NEW.hardware_name, a.downloadable_uuid FROM all_hardware_downloadable a;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER FUNCTION all_hardware_pending_register() OWNER TO postgres;
+
+CREATE TRIGGER all_hardware_pending_register_trigger
+    AFTER INSERT ON hardware
+    FOR EACH ROW EXECUTE PROCEDURE all_hardware_pending_register();
+
+-- populate from the downloadables already published
+INSERT INTO all_hardware_pending (hardware_name, downloadable_uuid)
+    SELECT h.hardware_name, a.downloadable_uuid FROM hardware h CROSS JOIN all_hardware_downloadable a
+    WHERE NOT EXISTS (SELECT 1 FROM all_hardware_downloaded d WHERE d.hardware_name = h.hardware_name AND d.downloadable_uuid = a.downloadable_uuid);
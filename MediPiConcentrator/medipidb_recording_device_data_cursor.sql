@@ -0,0 +1,13 @@
+--
+-- MediPi Concentrator - index supporting data requests by data_id cursor
+--
+-- To be applied to the MediPi Concentrator DB after
+-- medipidb_recording_device_reading.sql has been applied.
+--
+-- The data_ids of a reading are allocated in ascending order when it is
+-- written, so the last is the highest. Indexing it allows the readings
+-- holding data points after a cursor to be found without scanning the table.
+-- recording_device_data is read by its primary key.
+--
+
+CREATE INDEX recording_device_reading_last_data_id_idx ON recording_device_reading USING btree ((data_ids[array_upper(data_ids, 1)]));
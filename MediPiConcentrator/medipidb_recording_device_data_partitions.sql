@@ -0,0 +1,99 @@
+--
+-- MediPi Concentrator - monthly partitioning of recording_device_data
+--
+-- To be applied to the MediPi Concentrator DB after the schema dump has been
+-- restored and, if readings are to be stored,
+-- medipidb_recording_device_reading.sql has been applied.
+--
+-- recording_device_data is partitioned by inheritance into one child table per
+-- calendar month (UTC) of downloaded_time, named recording_device_data_YYYY_MM,
+-- each with a CHECK constraint on its month so that queries restricted on
+-- downloaded_time only scan the relevant months (constraint_exclusion =
+-- partition, the PostgreSQL default). Rows inserted (or COPYed) into
+-- recording_device_data are routed to their month's partition by trigger.
+-- The concentrator creates the partitions for the current and coming months in
+-- advance (medipi.concentrator.db.partition, on by default, and
+-- medipi.concentrator.db.partition.monthsahead); the trigger only creates a
+-- missing partition as a fallback.
+--
+-- Each partition has composite indexes matching the concentrator's queries:
+-- (patient_uuid, downloaded_time) for the clinical data requests by downloaded
+-- time and (patient_uuid, data_value_time, attribute_id) for requests by data
+-- point time and the duplicate checks on upload.
+--
+-- A foreign key only sees the rows of the table it references and not those of
+-- its partitions, so the foreign key from alert.data_id is replaced by the
+-- triggers of medipidb_alert_data_id_triggers.sql (included below), which each
+-- new partition is given.
+--
+
+CREATE OR REPLACE FUNCTION recording_device_data_create_partition(for_month date) RETURNS text AS $$
+DECLARE
+    partition_name text := 'recording_device_data_' || to_char(for_month, 'YYYY_MM');
+    from_time timestamp with time zone := date_trunc('month', for_month::timestamp) AT TIME ZONE 'UTC';
+    to_time timestamp with time zone := (date_trunc('month', for_month::timestamp) + interval '1 month') AT TIME ZONE 'UTC';
+BEGIN
+    IF to_regclass(partition_name) IS NOT NULL THEN
+        RETURN partition_name;
+    END IF;
+    BEGIN
+        EXECUTE format('CREATE TABLE %I (CHECK (downloaded_time >= %L AND downloaded_time < %L)) INHERITS (recording_device_data)', partition_name, from_time, to_time);
+    EXCEPTION WHEN duplicate_table OR unique_violation THEN
+        -- created concurrently by another session - a concurrent CREATE TABLE
+        -- can also fail on the unique index of the catalog
+        RETURN partition_name;
+    END;
+    EXECUTE format('ALTER TABLE %I OWNER TO postgres', partition_name);
+    EXECUTE format('ALTER TABLE ONLY %I ADD CONSTRAINT %I PRIMARY KEY (data_id)', partition_name, partition_name || '_pkey');
+    EXECUTE format('ALTER TABLE ONLY %I ADD CONSTRAINT %I FOREIGN KEY (patient_uuid) REFERENCES patient(patient_uuid)', partition_name, partition_name || '_patient_fk');
+    EXECUTE format('ALTER TABLE ONLY %I ADD CONSTRAINT %I FOREIGN KEY (attribute_id) REFERENCES recording_device_attribute(attribute_id)', partition_name, partition_name || '_attribute_fk');
+    EXECUTE format('CREATE INDEX %I ON %I USING btree (patient_uuid, downloaded_time)', partition_name || '_patient_downloaded_time_idx', partition_name);
+    EXECUTE format('CREATE INDEX %I ON %I USING btree (patient_uuid, data_value_time, attribute_id)', partition_name || '_patient_value_time_idx', partition_name);
+    -- row triggers are not inherited
+    IF to_regproc('recording_device_data_alert_restrict') IS NOT NULL THEN
+        EXECUTE format('CREATE TRIGGER recording_device_data_alert_restrict_trigger BEFORE DELETE OR UPDATE OF data_id ON %I FOR EACH ROW EXECUTE PROCEDURE recording_device_data_alert_restrict()', partition_name);
+    END IF;
+    RETURN partition_name;
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER FUNCTION recording_device_data_create_partition(date) OWNER TO postgres;
+
+CREATE OR REPLACE FUNCTION recording_device_data_partition_insert() RETURNS trigger AS $$
+BEGIN
+    EXECUTE format('INSERT INTO %I SELECT ($1).*', recording_device_data_create_partition((NEW.downloaded_time AT TIME ZONE 'UTC')::date)) USING NEW;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER FUNCTION recording_device_data_partition_insert() OWNER TO postgres;
+
+CREATE TRIGGER recording_device_data_partition_trigger
+    BEFORE INSERT ON recording_device_data
+    FOR EACH ROW EXECUTE PROCEDURE recording_device_data_partition_insert();
+
+-- rows which remain in the parent table are covered by the same indexes
+CREATE INDEX recording_device_data_patient_downloaded_time_idx ON recording_device_data USING btree (patient_uuid, downloaded_time);
+
+CREATE INDEX recording_device_data_patient_value_time_idx ON recording_device_data USING btree (patient_uuid, data_value_time, attribute_id);
+
+-- create the partitions for the current and following month
+SELECT recording_device_data_create_partition((now() AT TIME ZONE 'UTC')::date);
+SELECT recording_device_data_create_partition((now() AT TIME ZONE 'UTC' + interval '1 month')::date);
+
+-- alerts may reference the data points of the partitions
+\ir medipidb_alert_data_id_triggers.sql
+
+--
+-- Optional: move the existing data points from the parent table into their
+-- partitions. This rewrites every existing data point so should be run at a
+-- quiet time. The data points referenced by alerts are moved rather than
+-- deleted, so the trigger protecting them is disabled for the move
+--
+-- BEGIN;
+-- ALTER TABLE recording_device_data DISABLE TRIGGER recording_device_data_alert_restrict_trigger;
+-- WITH moved AS (DELETE FROM ONLY recording_device_data RETURNING *)
+-- INSERT INTO recording_device_data SELECT * FROM moved;
+-- ALTER TABLE recording_device_data ENABLE TRIGGER recording_device_data_alert_restrict_trigger;
+-- COMMIT;
+--
@@ -0,0 +1,100 @@
+--
+-- MediPi Concentrator - reading-oriented storage of recording device data
+--
+-- To be applied to the MediPi Concentrator DB after the schema dump has been
+-- restored when a data format is to store readings
+-- (medipi.concentrator.dataformat.<classtoken>.storage reading). It is not
+-- needed while every data format uses the default eav storage.
+--
+-- recording_device_reading holds one row per reading (e.g. a single blood
+-- pressure measurement) rather than one row per attribute of the reading. The
+-- values are held in arrays aligned with attribute_ids: numeric_values holds
+-- every value which is a plain decimal number (stored as numeric so that its
+-- text representation is exactly that which was uploaded) and text_values holds
+-- any other value - text_values is NULL when all the values are numeric.
+-- data_ids holds an id for each value allocated from the same sequence as
+-- recording_device_data so that data points from either table can be
+-- referenced (e.g. by alerts) in the same way.
+--
+-- recording_device_data_view presents the data points of both tables in the
+-- recording_device_data (EAV) layout and is the view through which the
+-- concentrator reads all data points when reading storage is configured
+-- (spring.jpa.hibernate.naming_strategy
+-- org.medipi.concentrator.entities.ReadingStorageNamingStrategy).
+--
+-- As an alert may reference a data point in either table the
+-- recording_device_data_alert_fk foreign key is replaced by the triggers of
+-- medipidb_alert_data_id_triggers.sql, which is included (psql \ir) and
+-- enforces the same rules across both tables: an alert's data_id must exist in
+-- one of them and a data point referenced by an alert cannot be deleted.
+--
+
+CREATE SEQUENCE recording_device_reading_reading_id_seq
+    START WITH 1
+    INCREMENT BY 1
+    NO MINVALUE
+    NO MAXVALUE
+    CACHE 1;
+
+ALTER TABLE recording_device_reading_reading_id_seq OWNER TO postgres;
+
+CREATE TABLE recording_device_reading (
+    reading_id bigint DEFAULT nextval('recording_device_reading_reading_id_seq'::regclass) NOT NULL,
+    type_id integer NOT NULL,
+    patient_uuid character varying(100) NOT NULL,
+    data_value_time timestamp with time zone NOT NULL,
+    downloaded_time timestamp with time zone NOT NULL,
+    schedule_effective_time timestamp with time zone,
+    schedule_expiry_time timestamp with time zone,
+    attribute_ids integer[] NOT NULL,
+    numeric_values numeric[] NOT NULL,
+    text_values character varying(1000)[],
+    data_ids bigint[] NOT NULL
+);
+
+ALTER TABLE recording_device_reading OWNER TO postgres;
+
+ALTER SEQUENCE recording_device_reading_reading_id_seq OWNED BY recording_device_reading.reading_id;
+
+ALTER TABLE ONLY recording_device_reading
+    ADD CONSTRAINT recording_device_reading_pkey PRIMARY KEY (reading_id);
+
+ALTER TABLE ONLY recording_device_reading
+    ADD CONSTRAINT patient_recording_device_reading_fk FOREIGN KEY (patient_uuid) REFERENCES patient(patient_uuid);
+
+ALTER TABLE ONLY recording_device_reading
+    ADD CONSTRAINT recording_device_type_recording_device_reading_fk FOREIGN KEY (type_id) REFERENCES recording_device_type(type_id);
+
+CREATE INDEX recording_device_reading_patient_value_time_idx ON recording_device_reading USING btree (patient_uuid, data_value_time);
+
+CREATE INDEX recording_device_reading_patient_downloaded_time_idx ON recording_device_reading USING btree (patient_uuid, downloaded_time);
+
+CREATE VIEW recording_device_data_view AS
+    SELECT d.data_id,
+        d.attribute_id,
+        d.data_value,
+        d.patient_uuid,
+        d.data_value_time,
+        d.downloaded_time,
+        d.schedule_effective_time,
+        d.schedule_expiry_time
+    FROM recording_device_data d
+    UNION ALL
+    SELECT r.data_ids[i] AS data_id,
+        r.attribute_ids[i] AS attribute_id,
+        COALESCE(r.text_values[i], r.numeric_values[i]::text) AS data_value,
+        r.patient_uuid,
+        r.data_value_time,
+        r.downloaded_time,
+        r.schedule_effective_time,
+        r.schedule_expiry_time
+    FROM recording_device_reading r,
+        LATERAL generate_subscripts(r.attribute_ids, 1) AS i;
+
+ALTER TABLE recording_device_data_view OWNER TO postgres;
+
+CREATE INDEX recording_device_reading_data_ids_idx ON recording_device_reading USING gin (data_ids);
+
+-- alerts may reference the data points of either table - the foreign key is
+-- replaced by triggers which also look in recording_device_reading
+\ir medipidb_alert_data_id_triggers.sql
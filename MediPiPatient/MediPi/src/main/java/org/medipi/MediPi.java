@@ -60,6 +60,7 @@ import org.medipi.devices.Device;
 import org.medipi.downloadable.handlers.DownloadableHandlerManager;
 import org.medipi.downloadable.handlers.HardwareHandler;
 import org.medipi.logging.MediPiLogger;
+import org.medipi.security.KeyMaterialRegistry;
 import org.medipi.utilities.ConfigurationStringTokeniser;
 import org.medipi.utilities.Utilities;
 
@@ -302,6 +303,7 @@ public class MediPi extends Application {
             } else if (new File(log).isDirectory()) {
                 MediPiLogger.getInstance().setAppName("MEDIPI", log);
                 MediPiLogger.getInstance().log(MediPi.class.getName() + "startup", versionIdent);
+                KeyMaterialRegistry.getInstance().setErrorLogger(MediPiLogger.getInstance()::error);
             } else {
                 makeFatalErrorMessage(log + " - MediPi log directory is not a directory", null);
             }
@@ -18,6 +18,7 @@ package org.medipi;
 import java.util.HashMap;
 import java.util.List;
 import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import org.medipi.logging.MediPiLogger;
 import org.medipi.messaging.rest.RESTfulMessagingEngine;
@@ -28,6 +29,10 @@ import org.medipi.model.DownloadableDO;
  *
  * This class polls the concentrator receives the list of responses and calls the appropriate handler 
  *
+ * The ETag of the last list which was handled without error is sent in the
+ * If-None-Match header, so that the concentrator can respond 304 Not Modified
+ * without a body when nothing has changed
+ *
  * @author rick@robinsonhq.com
  */
 public class PollDownloads
@@ -41,6 +46,7 @@ public class PollDownloads
     private final String resourcePath;
     private final MediPi medipi;
     private RESTfulMessagingEngine rme;
+    private String listETag = null;
 
     /**
      * Constructor for PollIncomingMessage class
@@ -75,23 +81,35 @@ public class PollDownloads
             HashMap<String, Object> hs = new HashMap<>();
             hs.put("deviceId", deviceCertName);
             hs.put("patientId", patientCertName);
-            Response listResponse = rme.executeGet(hs);
+            HashMap<String, String> header = new HashMap<>();
+            if (listETag != null) {
+                header.put(HttpHeaders.IF_NONE_MATCH, listETag);
+            }
+            Response listResponse = rme.executeGet(hs, header);
             //
             if (listResponse != null) {
                 System.out.println("Poll Download returned status = " + listResponse.getStatus());
                 //POSITIVE RESPONSE
-                if (listResponse.getStatus() == Response.Status.OK.getStatusCode()) {
+                if (listResponse.getStatus() == Response.Status.NOT_MODIFIED.getStatusCode()) {
+                    // The list is unchanged since it was last handled - therefore no action
+                    listResponse.close();
+                } else if (listResponse.getStatus() == Response.Status.OK.getStatusCode()) {
+                    String eTag = listResponse.getHeaderString(HttpHeaders.ETAG);
                     List<DownloadableDO> ld = listResponse.readEntity(new GenericType<List<DownloadableDO>>() {
                     });
+                    boolean handled = true;
                     for (DownloadableDO d : ld) {
                         MediPiLogger.getInstance().log(PollDownloads.class.getName() + ".info", "New Downloadable List detected - Downloadable UUID: " + d.getDownloadableUuid());
                         try{
                         medipi.getDownloadableHandlerManager().handle(d);
                         }catch(Exception e){
+                            handled = false;
                             MediPiMessageBox.getInstance().makeErrorMessage("Error in attempting to download an incoming message/update ", e);
                         }
                     }
                     // Remember that list may be empty - therefore no action
+                    // If any downloadable failed the whole list is requested again at the next poll
+                    listETag = handled ? eTag : null;
                 } else {
                     //ERROR RESPONSE
                     String err = listResponse.readEntity(String.class);
@@ -49,6 +49,7 @@ import javafx.scene.layout.VBox;
 import org.medipi.DashboardTile;
 import org.medipi.MediPiMessageBox;
 import org.medipi.security.CertificateDefinitions;
+import org.medipi.model.DevicesPayloadCodec;
 import org.medipi.model.DevicesPayloadDO;
 import org.medipi.model.EncryptedAndSignedUploadDO;
 import org.medipi.utilities.Utilities;
@@ -88,6 +89,8 @@ public abstract class Transmitter extends Element {
     private static final String INTERACTION = "urn:nhs-itk:interaction:MediPi";
     private static final String OUTBOUNDPAYLOAD = "medipi.outboundpayload";
     private static final String CLEARALLAFTERTRANSMISSION = "medipi.element.Transmitter.clearallaftertransmission";
+    private static final String PAYLOADENCODING = "medipi.transmit.payloadencoding";
+    private static final String COMPRESSIONTHRESHOLD = "medipi.transmit.compressionthreshold";
     private static final String NAME = "Transmitter";
 
     private Label transmitStatus;
@@ -95,6 +98,10 @@ public abstract class Transmitter extends Element {
     private final BooleanProperty isTransmitting = new SimpleBooleanProperty(false);
     private final HashMap<String, CheckBox> deviceCheckBox = new HashMap<>();
     private boolean clearAllAfterTransmission = false;
+    private String payloadEncoding;
+    private int compressionThreshold = -1;
+    private volatile boolean compressionAdvertised = false;
+    private volatile boolean encodingAdvertised = false;
     protected String senderAddress;
     protected String recipientAddress;
     protected String auditIdentity;
@@ -151,6 +158,18 @@ public abstract class Transmitter extends Element {
         clearAllAfterTransmission = !(b == null || b.trim().length() == 0 || b.toLowerCase().startsWith("n"));
         // fundamental UI decisions made from the properties
 
+        // encoding of the uploaded payload - only once the concentrator has advertised that it accepts it. Until then, or when not set, the payload is Java serialised which all concentrators accept
+        String pe = medipi.getProperties().getProperty(PAYLOADENCODING);
+        payloadEncoding = pe == null || pe.trim().length() == 0 ? null : pe.trim();
+
+        // size of signed payload above which it is compressed before encryption - only once the concentrator has advertised that it accepts compression
+        String ct = medipi.getProperties().getProperty(COMPRESSIONTHRESHOLD);
+        try {
+            compressionThreshold = ct == null || ct.trim().length() == 0 ? -1 : Integer.parseInt(ct.trim());
+        } catch (NumberFormatException e) {
+            return "Cannot parse " + COMPRESSIONTHRESHOLD + ": " + ct;
+        }
+
         // loop through all loaded elements and add checkboxes and images to the window
         for (Element e : medipi.getElements()) {
             if (Device.class.isAssignableFrom(e.getClass())) {
@@ -252,7 +271,8 @@ public abstract class Transmitter extends Element {
                                 if (error != null) {
                                     throw new Exception(error);
                                 }
-                                EncryptedAndSignedUploadDO encryptedMessage = uploadEncryptionAdapter.encryptAndSign(devicesPayload);
+                                uploadEncryptionAdapter.setCompressionThreshold(compressionAdvertised ? compressionThreshold : -1);
+                                EncryptedAndSignedUploadDO encryptedMessage = uploadEncryptionAdapter.encryptAndSign(devicesPayload, getPayloadEncoding());
                                 try {
                                     // save a copy of the data to file if required
                                     String s = medipi.getProperties().getProperty(OUTBOUNDPAYLOAD);
@@ -438,6 +458,40 @@ public abstract class Transmitter extends Element {
         transmitButton.setDisable(!anyTransmitCheckboxSelected);
     }
 
+    /**
+     * Get the encoding of the uploaded payload to be declared in the
+     * Payload-Encoding header
+     *
+     * @return String - payload encoding or null if the payload is Java
+     * serialised, which it is until the concentrator has advertised that it
+     * accepts the configured encoding
+     */
+    protected String getPayloadEncoding() {
+        return encodingAdvertised ? payloadEncoding : null;
+    }
+
+    /**
+     * Record whether the concentrator accepts the configured payload encoding,
+     * as advertised in the Accept-Payload-Encoding header of its response
+     *
+     * @param advertised - value of the Accept-Payload-Encoding header or null
+     * if it was not present
+     */
+    protected void setEncodingAdvertised(String advertised) {
+        encodingAdvertised = DevicesPayloadCodec.isAdvertised(advertised, payloadEncoding);
+    }
+
+    /**
+     * Record whether the concentrator accepts compressed payloads, as
+     * advertised in the Payload-Compression header of its response
+     *
+     * @param advertised - value of the Payload-Compression header or null if
+     * it was not present
+     */
+    protected void setCompressionAdvertised(String advertised) {
+        compressionAdvertised = UploadEncryptionAdapter.DEFLATE.equals(advertised);
+    }
+
     /**
      * Transmit the message using the chosen method
      *
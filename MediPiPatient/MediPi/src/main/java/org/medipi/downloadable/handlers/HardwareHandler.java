@@ -16,12 +16,22 @@
 package org.medipi.downloadable.handlers;
 
 import com.nimbusds.jose.JWSObject;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import javax.ws.rs.client.Entity;
@@ -46,6 +56,9 @@ import org.medipi.utilities.Utilities;
 public class HardwareHandler implements DownloadableHandler {
 
     private static final String MEDIPIDOWNLOADHARDWAREDOWNLOADDIR = "medipi.downloadable.hardware.downloaddir";
+    // suffixes of the partial download and the ETag against which it can be resumed
+    private static final String PARTIALSUFFIX = ".part";
+    private static final String ETAGSUFFIX = ".etag";
     private final Path messageDir;
     private final Properties properties;
 
@@ -109,6 +122,9 @@ public class HardwareHandler implements DownloadableHandler {
 
             Response downloadResponse = null;
             RESTfulMessagingEngine rme = null;
+            File f = new File(messageDir.toString(), ddo.getFileName());
+            File part = new File(messageDir.toString(), ddo.getFileName() + PARTIALSUFFIX);
+            File partETag = new File(messageDir.toString(), ddo.getFileName() + PARTIALSUFFIX + ETAGSUFFIX);
             // Choose the link whic has the rel = next - ignore all others
             List<Links> linkList = ddo.getLinks();
 
@@ -117,20 +133,40 @@ public class HardwareHandler implements DownloadableHandler {
                     System.out.println("href: " + l.getHref());
                     if (!l.getHref().isEmpty()) {
                         rme = new RESTfulMessagingEngine(l.getHref(), null);
-                        downloadResponse = rme.executeGet(null);
+                        // resume an interrupted download from where it stopped -
+                        // the concentrator only returns the remainder if the
+                        // file is unchanged, otherwise it returns the whole file
+                        HashMap<String, String> header = null;
+                        if (part.length() > 0 && partETag.isFile()) {
+                            header = new HashMap<>();
+                            header.put("Range", "bytes=" + part.length() + "-");
+                            header.put("If-Range", new String(Files.readAllBytes(partETag.toPath()), StandardCharsets.UTF_8).trim());
+                        }
+                        downloadResponse = rme.executeGet(null, header);
                     }
                 }
             }
 
             if (downloadResponse != null) {
                 // Expectation is that this file will ALWAYS be a .txt file
-                if (downloadResponse.getStatus() == Response.Status.OK.getStatusCode()) {
+                if (downloadResponse.getStatus() == Response.Status.OK.getStatusCode()
+                        || downloadResponse.getStatus() == Response.Status.PARTIAL_CONTENT.getStatusCode()) {
                     try {
-                        MediPiLogger.getInstance().log(HardwareHandler.class.getName() + ".info", "Hardware Downloadable download started - Downloadable UUID: " + ddo.getDownloadableUuid());
+                        boolean resume = downloadResponse.getStatus() == Response.Status.PARTIAL_CONTENT.getStatusCode();
+                        MediPiLogger.getInstance().log(HardwareHandler.class.getName() + ".info", "Hardware Downloadable download " + (resume ? "resumed from byte " + part.length() : "started") + " - Downloadable UUID: " + ddo.getDownloadableUuid());
+                        String eTag = downloadResponse.getHeaderString("ETag");
+                        if (eTag != null) {
+                            Files.write(partETag.toPath(), eTag.getBytes(StandardCharsets.UTF_8));
+                        } else {
+                            partETag.delete();
+                        }
                         InputStream is = downloadResponse.readEntity(InputStream.class);
-                        File f = new File(messageDir.toString(), ddo.getFileName());
-                        fetchFeed(is, f);
-                        IOUtils.closeQuietly(is);
+                        try {
+                            fetchFeed(is, part, resume);
+                        } finally {
+                            IOUtils.closeQuietly(is);
+                        }
+                        completeFeed(part, partETag, eTag, f);
                         // Depending on the type of file perform actions
 
                         MediPiLogger.getInstance().log(HardwareHandler.class.getName() + ".info", "Hardware Downloadable download completed - Downloadable UUID: " + ddo.getDownloadableUuid());
@@ -157,6 +193,13 @@ public class HardwareHandler implements DownloadableHandler {
                     //ERROR RESPONSE
                     String err = downloadResponse.readEntity(String.class);
                     switch (downloadResponse.getStatus()) {
+                        // RANGE NOT SATISFIABLE
+                        case 416:
+                            // The partial download cannot be resumed - start again at the next poll
+                            part.delete();
+                            partETag.delete();
+                            System.out.println(err);
+                            break;
                         // NOT FOUND
                         case 404:
                         // This is returned when the hardware name and patientId do not match
@@ -180,14 +223,42 @@ public class HardwareHandler implements DownloadableHandler {
     }
 
     /**
-     * Store contents of file from response to local disk using java 7
-     * java.nio.file.Files
+     * Stream contents of file from response to the partial download file on
+     * local disk, appending to it if the download is being resumed. The file is
+     * copied through a small buffer and is never held in memory
+     */
+    private void fetchFeed(InputStream is, File partFile, boolean append) throws IOException {
+        try (OutputStream os = new BufferedOutputStream(new FileOutputStream(partFile, append))) {
+            IOUtils.copyLarge(is, os);
+        }
+    }
+
+    /**
+     * Check the completed download against the SHA-256 ETag sent by the
+     * concentrator and move it to its final location. A download which does not
+     * match is discarded so that it is downloaded in full at the next poll
      */
-    private void fetchFeed(InputStream is, File downloadFile) throws IOException {
-        byte[] byteArray = IOUtils.toByteArray(is);
-        FileOutputStream fos = new FileOutputStream(downloadFile);
-        fos.write(byteArray);
-        fos.flush();
-        fos.close();
+    private void completeFeed(File partFile, File partETag, String eTag, File downloadFile) throws Exception {
+        if (eTag != null) {
+            String expected = eTag.replace("\"", "");
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            try (InputStream is = new DigestInputStream(new BufferedInputStream(new FileInputStream(partFile)), md)) {
+                byte[] buffer = new byte[8192];
+                while (is.read(buffer) != -1) {
+                    // read through the digest
+                }
+            }
+            StringBuilder actual = new StringBuilder();
+            for (byte b : md.digest()) {
+                actual.append(String.format("%02x", b));
+            }
+            if (!actual.toString().equalsIgnoreCase(expected)) {
+                partFile.delete();
+                partETag.delete();
+                throw new Exception("Downloaded file does not match the ETag sent by the concentrator");
+            }
+        }
+        Files.move(partFile.toPath(), downloadFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        partETag.delete();
     }
 }
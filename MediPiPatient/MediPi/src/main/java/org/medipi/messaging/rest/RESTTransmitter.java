@@ -20,7 +20,9 @@ import javax.ws.rs.client.Entity;
 import javax.ws.rs.core.Response;
 import org.medipi.devices.Transmitter;
 import org.medipi.logging.MediPiLogger;
+import org.medipi.model.DevicesPayloadCodec;
 import org.medipi.model.EncryptedAndSignedUploadDO;
+import org.medipi.security.UploadEncryptionAdapter;
 
 /**
  * Concrete class to call the Restful Transmitter and return the outcome.
@@ -98,6 +100,9 @@ public class RESTTransmitter extends Transmitter {
 
             HashMap<String, String> headers = new HashMap<>();
             headers.put("Data-Format", "MediPiNative");
+            if (getPayloadEncoding() != null) {
+                headers.put(DevicesPayloadCodec.HEADER, getPayloadEncoding());
+            }
 
             MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".info", "New Patient Upload started - MediPiUploadEnvelope UUID: " + message.getUploadUuid());
 
@@ -105,6 +110,9 @@ public class RESTTransmitter extends Transmitter {
 
             if (postResponse != null) {
                 System.out.println("PatientUpload returned status = " + postResponse.getStatus());
+                // the concentrator advertises whether it accepts compressed payloads and which payload encodings it accepts on every response
+                setCompressionAdvertised(postResponse.getHeaderString(UploadEncryptionAdapter.COMPRESSIONHEADER));
+                setEncodingAdvertised(postResponse.getHeaderString(DevicesPayloadCodec.ACCEPTHEADER));
                 //POSITIVE RESPONSE
                 if (postResponse.getStatus() == Response.Status.OK.getStatusCode() || postResponse.getStatus() == Response.Status.ACCEPTED.getStatusCode()) {
                     MediPiLogger.getInstance().log(RESTTransmitter.class.getName() + ".info", "New Patient Upload sucessfully sent - MediPiUploadEnvelope UUID: " + message.getUploadUuid());
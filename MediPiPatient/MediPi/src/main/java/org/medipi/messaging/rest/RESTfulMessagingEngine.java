@@ -133,6 +133,18 @@ public class RESTfulMessagingEngine {
      * @return Response
      */
     public Response executeGet(HashMap<String, Object> params) {
+        return executeGet(params, null);
+    }
+
+    /**
+     * Common interface for executing RESTful GET requests
+     *
+     * @param params hashmap of parameters to be added to the target URL
+     * @param header hashmap representation of bespoke header name and value to
+     * be added to the message - may be null
+     * @return Response
+     */
+    public Response executeGet(HashMap<String, Object> params, HashMap<String, String> header) {
         try {
             WebTarget wt;
             if (params != null) {
@@ -142,10 +154,15 @@ public class RESTfulMessagingEngine {
                 wt = trackingTarget;
             }
 
-            Response listResponse = wt
+            Builder b = wt
                     .request(MediaType.APPLICATION_JSON)
-                    .header("Content-Type", MediaType.APPLICATION_JSON)
-                    .get();
+                    .header("Content-Type", MediaType.APPLICATION_JSON);
+            if (header != null) {
+                for (Map.Entry<String, String> pair : header.entrySet()) {
+                    b.header(pair.getKey(), pair.getValue());
+                }
+            }
+            Response listResponse = b.get();
 
             return listResponse;
         } catch (Exception ex) {